@@ -10,6 +10,7 @@ import net.wimpi.modbus.msg.ModbusResponse;
 import net.wimpi.modbus.util.ModbusUtil;
 
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.Socket;
@@ -286,32 +287,59 @@ public class ModbusRTUTCPTransport implements ModbusTransport
 		}
 		case 0x16:
 		{
-			//读取剩余字节
-			length = 8;
+			// echo of the request: ref(2)+AND mask(2)+OR mask(2)+CRC(2bytes)
+			readFully(inputBuffer.getBuffer(), 2, 8);
+			length = 10;
 			break;
 		}
 		case 0x18:
 		{
 			// get a reference to the inner byte buffer
 			byte inBuffer[] = this.inputBuffer.getBuffer();
-			mInputStream.read(inBuffer, 2, 2);
-			length = this.inputBuffer.readUnsignedShort() + 6;// UID+FC+CRC(2bytes)
+			readFully(inBuffer, 2, 2);
+			int byteCount = this.inputBuffer.readUnsignedShort();
+			// FIFO count and at most 31 values
+			if (byteCount < 2 || byteCount > 64)
+			{
+				throw new IOException("Invalid FIFO byte count: " + byteCount);
+			}
+			// the FIFO count, the values and the CRC
+			readFully(inBuffer, 4, byteCount + 2);
+			length = byteCount + 6;// UID+FC+byte count(2bytes)+CRC(2bytes)
 			break;
 		}
-		case 0x83:
-		case 0x90:		
-			// error code
-			byte[] buffer = inputBuffer.getBuffer();
-			//读取剩余字节
-			mInputStream.read(buffer, 2, 3);
-			length = 5;			
+		default:
+			if ((fn & 0x80) != 0)
+			{
+				// exception response of any function code:
+				// UID+FC+exception code+CRC(2bytes)
+				readFully(inputBuffer.getBuffer(), 2, 3);
+				length = 5;
+			}
 			break;
-		
 		}
 
 		return length;
 	}
 
+	/**
+	 * Reads exactly the given number of bytes, as a single
+	 * read may return only part of a frame.
+	 */
+	private void readFully(byte[] buffer, int offset, int len)
+			throws IOException {
+		while (len > 0)
+		{
+			int count = mInputStream.read(buffer, offset, len);
+			if (count == -1)
+			{
+				throw new EOFException("Premature end of stream (Message truncated).");
+			}
+			offset += count;
+			len -= count;
+		}
+	}
+
 	@Override
 	public void close() throws IOException
 	{
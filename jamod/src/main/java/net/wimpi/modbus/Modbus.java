@@ -80,6 +80,24 @@ public interface Modbus {
    */
   public static final int WRITE_SINGLE_REGISTER = 6;
 
+  /**
+   * Defines a standard function code
+   * for <tt>mask write register</tt>.
+   */
+  public static final int MASK_WRITE_REGISTER = 22;
+
+  /**
+   * Defines a standard function code
+   * for <tt>read/write multiple registers</tt>.
+   */
+  public static final int READ_WRITE_MULTIPLE = 23;
+
+  /**
+   * Defines a standard function code
+   * for <tt>read FIFO queue</tt>.
+   */
+  public static final int READ_FIFO_QUEUE = 24;
+
   /**
    * Defines the byte representation of the coil state <b>on</b>.
    */
@@ -143,6 +161,20 @@ public interface Modbus {
    */
   public static final int ILLEGAL_VALUE_EXCEPTION = 3;
 
+  /**
+   * Defines the Modbus slave exception type <tt>slave device failure</tt>.
+   * This exception code is returned if an unrecoverable error occurred
+   * while the slave was performing the requested action.
+   */
+  public static final int SLAVE_DEVICE_FAILURE_EXCEPTION = 4;
+
+  /**
+   * Defines the Modbus slave exception type <tt>gateway path unavailable</tt>.
+   * This exception code is returned by a slave serving several units
+   * if no unit is configured for the unit identifier of the request.
+   */
+  public static final int GATEWAY_PATH_UNAVAILABLE_EXCEPTION = 10;
+
 
   /**
    * Defines the default port number of Modbus
@@ -36,7 +36,7 @@ public class ModbusCoupler {
   private static ModbusCoupler c_Self;  //Singleton reference
 
   //instance attributes
-  private ProcessImage m_ProcessImage;
+  private volatile ProcessImage m_ProcessImage;
   private int m_UnitID = Modbus.DEFAULT_UNIT_ID;
   private boolean m_Master = true;
   private ProcessImageFactory m_PIFactory;
@@ -87,7 +87,7 @@ public class ModbusCoupler {
    *
    * @return the <tt>ProcessImage</tt>.
    */
-  public synchronized ProcessImage getProcessImage() {
+  public ProcessImage getProcessImage() {
     return m_ProcessImage;
   }//getProcessImage
 
@@ -98,7 +98,7 @@ public class ModbusCoupler {
    *
    * @param procimg the <tt>ProcessImage</tt> to be set.
    */
-  public synchronized void setProcessImage(ProcessImage procimg) {
+  public void setProcessImage(ProcessImage procimg) {
     m_ProcessImage = procimg;
   }//setProcessImage
 
@@ -0,0 +1,241 @@
+/***
+ * Copyright 2002-2010 jamod development team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***/
+
+
+package net.wimpi.modbus.cmd;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.wimpi.modbus.Modbus;
+import net.wimpi.modbus.ModbusCoupler;
+import net.wimpi.modbus.ModbusException;
+import net.wimpi.modbus.io.ModbusTCPTransaction;
+import net.wimpi.modbus.io.TransactionCallback;
+import net.wimpi.modbus.msg.ModbusRequest;
+import net.wimpi.modbus.msg.ModbusResponse;
+import net.wimpi.modbus.msg.ReadMultipleRegistersRequest;
+import net.wimpi.modbus.net.ModbusNIOTCPListener;
+import net.wimpi.modbus.net.ModbusNIOTCPMaster;
+import net.wimpi.modbus.net.NIOTCPMasterConnection;
+import net.wimpi.modbus.net.TCPMasterConnection;
+import net.wimpi.modbus.procimg.SimpleProcessImage;
+import net.wimpi.modbus.procimg.SimpleRegister;
+
+/**
+ * Class that implements a simple commandline
+ * tool for measuring the memory held per master
+ * connection.
+ * <p>
+ * The masters are run in one of the modes <tt>nio</tt>
+ * (<tt>NIOTCPMasterConnection</tt>s multiplexed on two event
+ * loops of a <tt>ModbusNIOTCPMaster</tt>) or <tt>blocking</tt>
+ * (one <tt>TCPMasterConnection</tt> per slave). Each connection
+ * completes one request before the heap and the platform threads
+ * in use are reported, along with the heap per connection.
+ * <p>
+ * Without a slave address, a <tt>ModbusNIOTCPListener</tt> is run
+ * in the same JVM and its connections are included in the figures;
+ * point the tool at a slave in another process to measure the
+ * master side alone.
+ *
+ * @author Dieter Wimberger
+ * @version @version@ (@date@)
+ */
+public class NIOTCPMasterBenchmark {
+
+  private static final int BATCH_SIZE = 100;
+
+  public static void main(String[] args) {
+
+    String mode = null;
+    int connections = 0;
+    InetAddress addr = null;
+    int port = 5020;
+    ModbusNIOTCPListener listener = null;
+    ModbusNIOTCPMaster master = null;
+    TCPMasterConnection[] blocking = null;
+
+    try {
+
+      //1. Setup parameters
+      if (args.length < 2) {
+        printUsage();
+        System.exit(1);
+      } else {
+        try {
+          mode = args[0];
+          connections = Integer.parseInt(args[1]);
+          if (args.length > 2) {
+            addr = InetAddress.getByName(args[2]);
+          }
+          if (args.length > 3) {
+            port = Integer.parseInt(args[3]);
+          }
+          if (!"nio".equals(mode) && !"blocking".equals(mode)) {
+            throw new IllegalArgumentException("Unknown mode " + mode);
+          }
+        } catch (Exception ex) {
+          ex.printStackTrace();
+          printUsage();
+          System.exit(1);
+        }
+      }
+
+      //2. Prepare the slave if none is given
+      if (addr == null) {
+        addr = InetAddress.getByName("127.0.0.1");
+        SimpleProcessImage spi = new SimpleProcessImage();
+        for (int i = 0; i < 10; i++) {
+          spi.addRegister(new SimpleRegister(i));
+        }
+        ModbusCoupler.getReference().setProcessImage(spi);
+        ModbusCoupler.getReference().setMaster(false);
+        listener = new ModbusNIOTCPListener(1, addr);
+        listener.setPort(port);
+        listener.setBacklog(Math.max(connections, 128));
+        listener.start();
+        Thread.sleep(200);
+      }
+      ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+      //3. Connect the masters and complete one request each
+      long baseThreads;
+      long baseHeap;
+      int failed = 0;
+      long start;
+      if ("nio".equals(mode)) {
+        master = new ModbusNIOTCPMaster(2);
+        master.setTimeout(120000);
+        master.start();
+        baseThreads = threads.getThreadCount();
+        baseHeap = usedHeap();
+        start = System.nanoTime();
+        NIOTCPMasterConnection[] cons = new NIOTCPMasterConnection[connections];
+        //in batches, to not overrun the accept backlog
+        for (int i = 0; i < connections; i += BATCH_SIZE) {
+          int end = Math.min(i + BATCH_SIZE, connections);
+          for (int k = i; k < end; k++) {
+            cons[k] = master.connect(addr, port);
+          }
+          failed += runRound(cons, i, end);
+        }
+      } else {
+        baseThreads = threads.getThreadCount();
+        baseHeap = usedHeap();
+        start = System.nanoTime();
+        blocking = new TCPMasterConnection[connections];
+        ModbusRequest req = new ReadMultipleRegistersRequest(0, 10);
+        for (int i = 0; i < connections; i++) {
+          blocking[i] = new TCPMasterConnection(addr);
+          blocking[i].setPort(port);
+          try {
+            blocking[i].connect();
+            ModbusTCPTransaction trans = new ModbusTCPTransaction(blocking[i]);
+            trans.setRequest(req);
+            trans.execute();
+          } catch (Exception ex) {
+            if (Modbus.debug) ex.printStackTrace();
+            failed++;
+          }
+        }
+      }
+      long duration = System.nanoTime() - start;
+      long heap = usedHeap() - baseHeap;
+
+      //4. Report
+      System.out.println("Mode:        " + mode);
+      System.out.println("Connections: " + connections + " (" + failed + " failed)");
+      System.out.println("Connected:   in " + (duration / 1000000L) + " ms");
+      System.out.println("Threads:     " + (threads.getThreadCount() - baseThreads) +
+          " platform threads added");
+      System.out.println("Heap:        " + (heap / 1024) + " KiB added, " +
+          (heap / Math.max(connections, 1)) + " bytes per connection" +
+          ((listener != null) ? " (including the slave)" : ""));
+      if (master != null) {
+        System.out.println("Buffered:    " + master.getBufferedBytes() + " bytes, plus " +
+            (ModbusNIOTCPMaster.READ_BUFFER_SIZE + ModbusNIOTCPMaster.WRITE_BUFFER_SIZE) / 1024 +
+            " KiB direct per event loop");
+      }
+
+      //5. Clean up
+      if (master != null) {
+        master.stop();
+      }
+      if (blocking != null) {
+        for (int i = 0; i < blocking.length; i++) {
+          blocking[i].close();
+        }
+      }
+      if (listener != null) {
+        listener.stop();
+      }
+      System.exit(0);
+    } catch (Exception ex) {
+      ex.printStackTrace();
+      System.exit(1);
+    }
+  }//main
+
+  /**
+   * Issues one request on each of the given range of
+   * connections and waits for all of them to complete.
+   *
+   * @return the number of failed requests.
+   */
+  private static int runRound(NIOTCPMasterConnection[] cons, int from, int to)
+      throws InterruptedException {
+    final CountDownLatch latch = new CountDownLatch(to - from);
+    final AtomicInteger failed = new AtomicInteger(0);
+    ModbusRequest req = new ReadMultipleRegistersRequest(0, 10);
+    for (int i = from; i < to; i++) {
+      cons[i].execute(req, new TransactionCallback() {
+        public void completed(ModbusRequest req, ModbusResponse res) {
+          latch.countDown();
+        }
+
+        public void failed(ModbusRequest req, ModbusException ex) {
+          if (Modbus.debug) ex.printStackTrace();
+          failed.incrementAndGet();
+          latch.countDown();
+        }
+      });
+    }
+    if (!latch.await(300, TimeUnit.SECONDS)) {
+      return (int) latch.getCount();
+    }
+    return failed.get();
+  }//runRound
+
+  private static long usedHeap() {
+    Runtime rt = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+    }
+    return rt.totalMemory() - rt.freeMemory();
+  }//usedHeap
+
+  private static void printUsage() {
+    System.out.println(
+        "java net.wimpi.modbus.cmd.NIOTCPMasterBenchmark <mode [nio|blocking]> <connections [int]> {<slave address [String]>} {<port [int]>}"
+    );
+  }//printUsage
+
+}//class NIOTCPMasterBenchmark
@@ -0,0 +1,241 @@
+/***
+ * Copyright 2002-2010 jamod development team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***/
+
+
+package net.wimpi.modbus.cmd;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.wimpi.modbus.Modbus;
+import net.wimpi.modbus.ModbusCoupler;
+import net.wimpi.modbus.ModbusException;
+import net.wimpi.modbus.io.TransactionCallback;
+import net.wimpi.modbus.msg.ModbusRequest;
+import net.wimpi.modbus.msg.ModbusResponse;
+import net.wimpi.modbus.msg.ReadMultipleRegistersRequest;
+import net.wimpi.modbus.net.ModbusNIOTCPListener;
+import net.wimpi.modbus.net.ModbusNIOTCPMaster;
+import net.wimpi.modbus.net.ModbusTCPListener;
+import net.wimpi.modbus.net.NIOTCPMasterConnection;
+import net.wimpi.modbus.procimg.SimpleProcessImage;
+import net.wimpi.modbus.procimg.SimpleRegister;
+
+/**
+ * Class that implements a simple commandline
+ * tool for benchmarking the Modbus/TCP slave listeners
+ * with a given number of concurrent connections.
+ * <p>
+ * The slave is run in one of the modes <tt>pool</tt>
+ * (<tt>ModbusTCPListener</tt> with a pool of one platform
+ * thread per connection), <tt>virtual</tt> (<tt>ModbusTCPListener</tt>
+ * on virtual threads, requires JDK 21 or later) or <tt>nio</tt>
+ * (<tt>ModbusNIOTCPListener</tt>). The masters are multiplexed
+ * on the event loops of a <tt>ModbusNIOTCPMaster</tt>, so that
+ * the client side does not distort the thread count.
+ * Each round issues one request per connection; the tool
+ * reports the request latencies, the throughput and the
+ * platform threads and heap in use while connected.
+ *
+ * @author Dieter Wimberger
+ * @version @version@ (@date@)
+ */
+public class TCPSlaveBenchmark {
+
+  private static final int BATCH_SIZE = 100;
+
+  public static void main(String[] args) {
+
+    String mode = null;
+    int connections = 0;
+    int rounds = 10;
+    int port = 5020;
+    ModbusTCPListener listener = null;
+    ModbusNIOTCPListener nioListener = null;
+    ModbusNIOTCPMaster master = null;
+
+    try {
+
+      //1. Setup parameters
+      if (args.length < 2) {
+        printUsage();
+        System.exit(1);
+      } else {
+        try {
+          mode = args[0];
+          connections = Integer.parseInt(args[1]);
+          if (args.length > 2) {
+            rounds = Integer.parseInt(args[2]);
+          }
+          if (args.length > 3) {
+            port = Integer.parseInt(args[3]);
+          }
+          if (!"pool".equals(mode) && !"virtual".equals(mode) && !"nio".equals(mode)) {
+            throw new IllegalArgumentException("Unknown mode " + mode);
+          }
+        } catch (Exception ex) {
+          ex.printStackTrace();
+          printUsage();
+          System.exit(1);
+        }
+      }
+      if ("virtual".equals(mode) && !ModbusTCPListener.isVirtualThreadsSupported()) {
+        System.out.println("Virtual threads are not supported by this JVM.");
+        System.exit(1);
+      }
+      InetAddress addr = InetAddress.getByName("127.0.0.1");
+      ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+      long baseThreads = threads.getThreadCount();
+      long baseHeap = usedHeap();
+
+      //2. Prepare the slave
+      SimpleProcessImage spi = new SimpleProcessImage();
+      for (int i = 0; i < 10; i++) {
+        spi.addRegister(new SimpleRegister(i));
+      }
+      ModbusCoupler.getReference().setProcessImage(spi);
+      ModbusCoupler.getReference().setMaster(false);
+      if ("nio".equals(mode)) {
+        nioListener = new ModbusNIOTCPListener(Runtime.getRuntime().availableProcessors(), addr);
+        nioListener.setPort(port);
+        nioListener.setBacklog(Math.max(connections, 128));
+        nioListener.start();
+      } else {
+        listener = new ModbusTCPListener(connections, addr);
+        listener.setPort(port);
+        listener.setBacklog(Math.max(connections, 128));
+        listener.setVirtualThreads("virtual".equals(mode));
+        listener.start();
+        Thread.sleep(200);
+      }
+
+      //3. Connect the masters and warm up
+      master = new ModbusNIOTCPMaster(2);
+      master.setTimeout(120000);
+      master.start();
+      //in batches, to not overrun the accept backlog
+      NIOTCPMasterConnection[] cons = new NIOTCPMasterConnection[connections];
+      for (int i = 0; i < connections; i += BATCH_SIZE) {
+        int end = Math.min(i + BATCH_SIZE, connections);
+        for (int k = i; k < end; k++) {
+          cons[k] = master.connect(addr, port);
+        }
+        if (runRound(Arrays.copyOfRange(cons, i, end), null, 0) > 0) {
+          System.out.println("Warm up failed.");
+          System.exit(1);
+        }
+      }
+      long[] latencies = new long[connections * rounds];
+      long connThreads = threads.getThreadCount() - baseThreads;
+      long connHeap = usedHeap() - baseHeap;
+
+      //4. Execute the rounds
+      int failed = 0;
+      long start = System.nanoTime();
+      for (int r = 0; r < rounds; r++) {
+        failed += runRound(cons, latencies, r * connections);
+      }
+      long duration = System.nanoTime() - start;
+
+      //5. Report
+      Arrays.sort(latencies);
+      System.out.println("Mode:        " + mode);
+      System.out.println("Connections: " + connections);
+      System.out.println("Requests:    " + latencies.length + " (" + failed + " failed)");
+      System.out.println("Throughput:  " + (latencies.length * 1000000000L / Math.max(duration, 1)) + " req/s");
+      System.out.println("Latency:     p50=" + micros(latencies, 0.5) + "us p99=" +
+          micros(latencies, 0.99) + "us max=" + micros(latencies, 1.0) + "us");
+      System.out.println("Threads:     " + connThreads + " platform threads added");
+      System.out.println("Heap:        " + (connHeap / 1024) + " KiB added");
+
+      //6. Clean up
+      master.stop();
+      if (listener != null) {
+        listener.stop();
+      }
+      if (nioListener != null) {
+        nioListener.stop();
+      }
+      System.exit(0);
+    } catch (Exception ex) {
+      ex.printStackTrace();
+      System.exit(1);
+    }
+  }//main
+
+  /**
+   * Issues one request on every connection and waits
+   * for all of them to complete.
+   *
+   * @return the number of failed requests.
+   */
+  private static int runRound(NIOTCPMasterConnection[] cons, final long[] latencies,
+                              final int offset) throws InterruptedException {
+    final CountDownLatch latch = new CountDownLatch(cons.length);
+    final AtomicInteger failed = new AtomicInteger(0);
+    for (int i = 0; i < cons.length; i++) {
+      final int idx = offset + i;
+      final long start = System.nanoTime();
+      ModbusRequest req = new ReadMultipleRegistersRequest(0, 10);
+      cons[i].execute(req, new TransactionCallback() {
+        public void completed(ModbusRequest req, ModbusResponse res) {
+          if (latencies != null) {
+            latencies[idx] = System.nanoTime() - start;
+          }
+          latch.countDown();
+        }
+
+        public void failed(ModbusRequest req, ModbusException ex) {
+          if (Modbus.debug) ex.printStackTrace();
+          if (latencies != null) {
+            latencies[idx] = System.nanoTime() - start;
+          }
+          failed.incrementAndGet();
+          latch.countDown();
+        }
+      });
+    }
+    if (!latch.await(300, TimeUnit.SECONDS)) {
+      return (int) latch.getCount();
+    }
+    return failed.get();
+  }//runRound
+
+  private static long usedHeap() {
+    Runtime rt = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+    }
+    return rt.totalMemory() - rt.freeMemory();
+  }//usedHeap
+
+  private static long micros(long[] sorted, double quantile) {
+    int idx = (int) Math.ceil(quantile * sorted.length) - 1;
+    return sorted[Math.max(0, Math.min(idx, sorted.length - 1))] / 1000;
+  }//micros
+
+  private static void printUsage() {
+    System.out.println(
+        "java net.wimpi.modbus.cmd.TCPSlaveBenchmark <mode [pool|virtual|nio]> <connections [int]> {<rounds [int]>} {<port [int]>}"
+    );
+  }//printUsage
+
+}//class TCPSlaveBenchmark
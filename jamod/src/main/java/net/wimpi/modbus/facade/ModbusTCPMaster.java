@@ -16,19 +16,48 @@
 
 package net.wimpi.modbus.facade;
 
+import net.wimpi.modbus.Modbus;
+import net.wimpi.modbus.ModbusCoupler;
 import net.wimpi.modbus.ModbusException;
+import net.wimpi.modbus.ModbusIOException;
+import net.wimpi.modbus.ModbusSlaveException;
+import net.wimpi.modbus.io.CircuitBreaker;
+import net.wimpi.modbus.io.ModbusTCPPipeline;
 import net.wimpi.modbus.io.ModbusTCPTransaction;
+import net.wimpi.modbus.io.PriorityRequestQueue;
+import net.wimpi.modbus.io.ReadCache;
+import net.wimpi.modbus.io.RetryPolicy;
+import net.wimpi.modbus.io.TransactionCallback;
+import net.wimpi.modbus.io.WriteCoalescer;
 import net.wimpi.modbus.msg.*;
 import net.wimpi.modbus.net.TCPMasterConnection;
 import net.wimpi.modbus.procimg.InputRegister;
+import net.wimpi.modbus.procimg.ProcessImageFactory;
 import net.wimpi.modbus.procimg.Register;
 import net.wimpi.modbus.util.BitVector;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Modbus/TCP Master facade.
+ * <p/>
+ * Besides the blocking methods, this facade offers asynchronous
+ * variants that return a <tt>Future</tt>. If the connection is
+ * pipelining (see {@link #setPipelineWindow(int)}), asynchronous
+ * requests are written right away and completed by the reader of
+ * the pipeline, thus no thread waits for their responses. Otherwise
+ * they are executed one at a time on an executor of this facade,
+ * so a slave that does not respond only delays its own facade.
  *
  * @author Dieter Wimberger
  * @version @version@ (@date@)
@@ -46,7 +75,24 @@ public class ModbusTCPMaster {
   private ReadMultipleRegistersRequest m_ReadMultipleRegistersRequest;
   private WriteSingleRegisterRequest m_WriteSingleRegisterRequest;
   private WriteMultipleRegistersRequest m_WriteMultipleRegistersRequest;
+  private ReadWriteMultipleRequest m_ReadWriteMultipleRequest;
+  private MaskWriteRegisterRequest m_MaskWriteRegisterRequest;
   private boolean m_Reconnecting = false;
+  private ExecutorService m_Executor;
+  private volatile ExecutorService m_DefaultExecutor;
+  private final Object m_ExecutorLock = new Object();
+  private RetryPolicy m_RetryPolicy;
+  private int m_Retries = Modbus.DEFAULT_RETRIES;
+  private ReadCache m_ReadCache;
+  private String m_Endpoint;
+  private boolean m_ReusingResponses = false;
+
+  //class attributes
+  private static ScheduledThreadPoolExecutor c_Timer;
+  private static final Runnable NO_TASK = new Runnable() {
+    public void run() {
+    }
+  };
 
   /**
    * Constructs a new master facade instance for communication
@@ -67,6 +113,8 @@ public class ModbusTCPMaster {
       m_ReadMultipleRegistersRequest = new ReadMultipleRegistersRequest();
       m_WriteSingleRegisterRequest = new WriteSingleRegisterRequest();
       m_WriteMultipleRegistersRequest = new WriteMultipleRegistersRequest();
+      m_ReadWriteMultipleRequest = new ReadWriteMultipleRequest();
+      m_MaskWriteRegisterRequest = new MaskWriteRegisterRequest();
 
     } catch (UnknownHostException e) {
       throw new RuntimeException(e.getMessage());
@@ -97,6 +145,9 @@ public class ModbusTCPMaster {
       m_Connection.connect();
       m_Transaction = new ModbusTCPTransaction(m_Connection);
       m_Transaction.setReconnecting(m_Reconnecting);
+      m_Transaction.setRetries(m_Retries);
+      m_Transaction.setRetryPolicy(m_RetryPolicy);
+      m_Transaction.setReusingResponses(m_ReusingResponses);
     }
   }//connect
 
@@ -104,7 +155,8 @@ public class ModbusTCPMaster {
    * Disconnects this <tt>ModbusTCPMaster</tt> from the slave.
    */
   public void disconnect() {
-    if (m_Connection != null && m_Connection.isConnected()) {
+    //also closes a connection whose pipeline reader has failed
+    if (m_Connection != null) {
       m_Connection.close();
       m_Transaction = null;
     }
@@ -135,6 +187,219 @@ public class ModbusTCPMaster {
     return m_Reconnecting;
   }//isReconnecting
 
+  /**
+   * Sets the flag that specifies whether the responses of the
+   * synchronous methods are decoded into reused instances.
+   * <p/>
+   * When reusing, a returned <tt>BitVector</tt> or register array
+   * is only valid until the next call of this facade; the
+   * <tt>int[]</tt> and <tt>BitVector</tt> variants of the read
+   * methods are free of allocations. Asynchronous requests
+   * never reuse responses.
+   *
+   * @param b true if responses should be reused, false otherwise.
+   */
+  public void setReusingResponses(boolean b) {
+    m_ReusingResponses = b;
+    if (m_Transaction != null) {
+      m_Transaction.setReusingResponses(b);
+    }
+  }//setReusingResponses
+
+  /**
+   * Tests if the responses of the synchronous methods
+   * are decoded into reused instances.
+   *
+   * @return true if reusing responses, false otherwise.
+   */
+  public boolean isReusingResponses() {
+    return m_ReusingResponses;
+  }//isReusingResponses
+
+  /**
+   * Sets the cache serving the reads of this <tt>ModbusTCPMaster</tt>.
+   * The cache may be shared by several masters; responses are
+   * keyed by the address and port of the slave, and writes through
+   * this master evict the ranges they overlap.
+   * <p/>
+   * Reads bypass the cache while responses are reused.
+   *
+   * @param cache a <tt>ReadCache</tt>, or <tt>null</tt> to read uncached.
+   */
+  public void setReadCache(ReadCache cache) {
+    m_Endpoint = m_Connection.getAddress().getHostAddress() + ":" + m_Connection.getPort();
+    m_ReadCache = cache;
+  }//setReadCache
+
+  /**
+   * Returns the cache serving the reads of this <tt>ModbusTCPMaster</tt>.
+   *
+   * @return the <tt>ReadCache</tt>, or <tt>null</tt> if none.
+   */
+  public ReadCache getReadCache() {
+    return m_ReadCache;
+  }//getReadCache
+
+  /**
+   * Sets the policy that decides when failed transactions
+   * with the slave are retried.
+   *
+   * @param policy a <tt>RetryPolicy</tt>, or <tt>null</tt> for
+   *               immediate retries.
+   */
+  public void setRetryPolicy(RetryPolicy policy) {
+    m_RetryPolicy = policy;
+    if (m_Transaction != null) {
+      m_Transaction.setRetryPolicy(policy);
+    }
+  }//setRetryPolicy
+
+  /**
+   * Sets the number of times a failed transaction
+   * with the slave is retried, also by asynchronous calls.
+   *
+   * @param retries the number of retries.
+   */
+  public void setRetries(int retries) {
+    m_Retries = retries;
+    if (m_Transaction != null) {
+      m_Transaction.setRetries(retries);
+    }
+  }//setRetries
+
+  /**
+   * Returns the number of times a failed transaction
+   * with the slave is retried.
+   *
+   * @return the number of retries.
+   */
+  public int getRetries() {
+    return m_Retries;
+  }//getRetries
+
+  /**
+   * Returns the policy that decides when failed transactions
+   * with the slave are retried.
+   *
+   * @return the <tt>RetryPolicy</tt>, or <tt>null</tt> if none.
+   */
+  public RetryPolicy getRetryPolicy() {
+    return m_RetryPolicy;
+  }//getRetryPolicy
+
+  /**
+   * Sets the circuit breaker that makes transactions with
+   * the slave fail fast once it has stopped responding.
+   *
+   * @param breaker a <tt>CircuitBreaker</tt>, or <tt>null</tt>.
+   */
+  public void setCircuitBreaker(CircuitBreaker breaker) {
+    m_Connection.setCircuitBreaker(breaker);
+  }//setCircuitBreaker
+
+  /**
+   * Returns the circuit breaker guarding the transactions
+   * with the slave.
+   *
+   * @return the <tt>CircuitBreaker</tt>, or <tt>null</tt> if none.
+   */
+  public CircuitBreaker getCircuitBreaker() {
+    return m_Connection.getCircuitBreaker();
+  }//getCircuitBreaker
+
+  /**
+   * Sets the maximum number of requests that may be outstanding
+   * on the connection to the slave. A window larger than one enables
+   * pipelining of the asynchronous requests of this facade.
+   * <p/>
+   * The window takes effect with the next <tt>connect()</tt>.
+   *
+   * @param window the pipeline window as <tt>int</tt>.
+   */
+  public void setPipelineWindow(int window) {
+    m_Connection.setPipelineWindow(window);
+  }//setPipelineWindow
+
+  /**
+   * Returns the maximum number of requests that may be outstanding
+   * on the connection to the slave.
+   *
+   * @return the pipeline window as <tt>int</tt>.
+   */
+  public int getPipelineWindow() {
+    return m_Connection.getPipelineWindow();
+  }//getPipelineWindow
+
+  /**
+   * Sets the queue admitting the transactions on the connection
+   * to the slave by priority. With a queue, the methods taking a
+   * priority wait for their turn in it, rather than for the monitor
+   * of this facade, so that e.g. a control write overtakes pending
+   * bulk reads; without one, the priority has no effect.
+   *
+   * @param queue a <tt>PriorityRequestQueue</tt>, or <tt>null</tt>.
+   */
+  public void setRequestQueue(PriorityRequestQueue queue) {
+    m_Connection.setRequestQueue(queue);
+  }//setRequestQueue
+
+  /**
+   * Returns the queue admitting the transactions on the
+   * connection to the slave by priority.
+   *
+   * @return the <tt>PriorityRequestQueue</tt>, or <tt>null</tt> if none.
+   */
+  public PriorityRequestQueue getRequestQueue() {
+    return m_Connection.getRequestQueue();
+  }//getRequestQueue
+
+  /**
+   * Sets the executor that executes the asynchronous requests
+   * of this <tt>ModbusTCPMaster</tt> while the connection is not
+   * pipelining.
+   * Per default each instance has an executor of its own, with
+   * a single daemon thread that is started on demand and ends
+   * when idle; as requests on a connection that is not pipelining
+   * are serialized anyway, one thread is all it takes.
+   *
+   * @param executor an <tt>ExecutorService</tt>, or <tt>null</tt> for
+   *                 the default.
+   */
+  public void setExecutor(ExecutorService executor) {
+    m_Executor = executor;
+  }//setExecutor
+
+  /**
+   * Returns the executor that executes the asynchronous requests
+   * of this <tt>ModbusTCPMaster</tt> while the connection is not
+   * pipelining.
+   *
+   * @return the <tt>ExecutorService</tt> in use.
+   */
+  public ExecutorService getExecutor() {
+    if (m_Executor == null) {
+      return getDefaultExecutor();
+    }
+    return m_Executor;
+  }//getExecutor
+
+  /**
+   * Creates a buffer that coalesces the single register and coil
+   * writes submitted to it into multiple writes, executed like the
+   * asynchronous requests of this <tt>ModbusTCPMaster</tt>.
+   *
+   * @param window the time writes are held in milliseconds.
+   * @return a new <tt>WriteCoalescer</tt>.
+   */
+  public WriteCoalescer createWriteCoalescer(long window) {
+    return new WriteCoalescer(window) {
+      protected ModbusResponse execute(ModbusRequest req)
+          throws ModbusException {
+        return executeAsync(req);
+      }//execute
+    };
+  }//createWriteCoalescer
+
   /**
    * Reads a given number of coil states from the slave.
    * <p/>
@@ -152,11 +417,45 @@ public class ModbusTCPMaster {
       throws ModbusException {
     m_ReadCoilsRequest.setReference(ref);
     m_ReadCoilsRequest.setBitCount(count);
-    m_Transaction.setRequest(m_ReadCoilsRequest);
-    m_Transaction.execute();
-    BitVector bv = ((ReadCoilsResponse) m_Transaction.getResponse()).getCoils();
-    bv.forceSize(count);
-    return bv;
+    ModbusResponse res = executeRead(m_ReadCoilsRequest);
+    return copyCoils((ReadCoilsResponse) res, count);
+  }//readCoils
+
+  /**
+   * Reads a given number of coil states from the slave
+   * into the given <tt>BitVector</tt>, starting at bit 0.
+   *
+   * @param ref   the offset of the coil to start reading from.
+   * @param count the number of coil states to be read.
+   * @param dest  the <tt>BitVector</tt> receiving the states.
+   * @throws ModbusException if an I/O error, a slave exception or
+   *                         a transaction error occurs.
+   */
+  public synchronized void readCoils(int ref, int count, BitVector dest)
+      throws ModbusException {
+    m_ReadCoilsRequest.setReference(ref);
+    m_ReadCoilsRequest.setBitCount(count);
+    ModbusResponse res = executeRead(m_ReadCoilsRequest);
+    ((ReadCoilsResponse) res).getCoils(dest, 0, count);
+  }//readCoils
+
+  /**
+   * Reads a given number of coil states from the slave,
+   * waiting for the turn with the given priority.
+   *
+   * @param ref      the offset of the coil to start reading from.
+   * @param count    the number of coil states to be read.
+   * @param priority the priority, lower values are served first.
+   * @return a <tt>BitVector</tt> instance holding the
+   *         received coil states.
+   * @throws ModbusException if an I/O error, a slave exception or
+   *                         a transaction error occurs.
+   * @see #setRequestQueue(PriorityRequestQueue)
+   */
+  public BitVector readCoils(int ref, int count, int priority)
+      throws ModbusException {
+    ModbusResponse res = executeAsync(new ReadCoilsRequest(ref, count), priority);
+    return copyCoils((ReadCoilsResponse) res, count);
   }//readCoils
 
   /**
@@ -174,11 +473,30 @@ public class ModbusTCPMaster {
     m_WriteCoilRequest.setUnitID(unitid);
     m_WriteCoilRequest.setReference(ref);
     m_WriteCoilRequest.setCoil(state);
-    m_Transaction.setRequest(m_WriteCoilRequest);
-    m_Transaction.execute();
+    executeWrite(m_WriteCoilRequest);
     return ((WriteCoilResponse) m_Transaction.getResponse()).getCoil();
   }//writeCoil
 
+  /**
+   * Writes a coil state to the slave, waiting for
+   * the turn with the given priority.
+   *
+   * @param unitid   the slave unit id.
+   * @param ref      the offset of the coil to be written.
+   * @param state    the coil state to be written.
+   * @param priority the priority, lower values are served first.
+   * @return the state of the coil as returned from the slave.
+   * @throws ModbusException if an I/O error, a slave exception or
+   *                         a transaction error occurs.
+   * @see #setRequestQueue(PriorityRequestQueue)
+   */
+  public boolean writeCoil(int unitid, int ref, boolean state, int priority)
+      throws ModbusException {
+    WriteCoilRequest req = new WriteCoilRequest(ref, state);
+    req.setUnitID(unitid);
+    return ((WriteCoilResponse) executeAsync(req, priority)).getCoil();
+  }//writeCoil
+
   /**
    * Writes a given number of coil states to the slave.
    * <p/>
@@ -194,8 +512,23 @@ public class ModbusTCPMaster {
       throws ModbusException {
     m_WriteMultipleCoilsRequest.setReference(ref);
     m_WriteMultipleCoilsRequest.setCoils(coils);
-    m_Transaction.setRequest(m_WriteMultipleCoilsRequest);
-    m_Transaction.execute();
+    executeWrite(m_WriteMultipleCoilsRequest);
+  }//writeMultipleCoils
+
+  /**
+   * Writes a given number of coil states to the slave,
+   * waiting for the turn with the given priority.
+   *
+   * @param ref      the offset of the coil to start writing to.
+   * @param coils    a <tt>BitVector</tt> which holds the coil states to be written.
+   * @param priority the priority, lower values are served first.
+   * @throws ModbusException if an I/O error, a slave exception or
+   *                         a transaction error occurs.
+   * @see #setRequestQueue(PriorityRequestQueue)
+   */
+  public void writeMultipleCoils(int ref, BitVector coils, int priority)
+      throws ModbusException {
+    executeAsync(new WriteMultipleCoilsRequest(ref, coils), priority);
   }//writeMultipleCoils
 
   /**
@@ -215,11 +548,45 @@ public class ModbusTCPMaster {
       throws ModbusException {
     m_ReadInputDiscretesRequest.setReference(ref);
     m_ReadInputDiscretesRequest.setBitCount(count);
-    m_Transaction.setRequest(m_ReadInputDiscretesRequest);
-    m_Transaction.execute();
-    BitVector bv = ((ReadInputDiscretesResponse) m_Transaction.getResponse()).getDiscretes();
-    bv.forceSize(count);
-    return bv;
+    ModbusResponse res = executeRead(m_ReadInputDiscretesRequest);
+    return copyDiscretes((ReadInputDiscretesResponse) res, count);
+  }//readInputDiscretes
+
+  /**
+   * Reads a given number of input discrete states from the slave
+   * into the given <tt>BitVector</tt>, starting at bit 0.
+   *
+   * @param ref   the offset of the input discrete to start reading from.
+   * @param count the number of input discrete states to be read.
+   * @param dest  the <tt>BitVector</tt> receiving the states.
+   * @throws ModbusException if an I/O error, a slave exception or
+   *                         a transaction error occurs.
+   */
+  public synchronized void readInputDiscretes(int ref, int count, BitVector dest)
+      throws ModbusException {
+    m_ReadInputDiscretesRequest.setReference(ref);
+    m_ReadInputDiscretesRequest.setBitCount(count);
+    ModbusResponse res = executeRead(m_ReadInputDiscretesRequest);
+    ((ReadInputDiscretesResponse) res).getDiscretes(dest, 0, count);
+  }//readInputDiscretes
+
+  /**
+   * Reads a given number of input discrete states from the
+   * slave, waiting for the turn with the given priority.
+   *
+   * @param ref      the offset of the input discrete to start reading from.
+   * @param count    the number of input discrete states to be read.
+   * @param priority the priority, lower values are served first.
+   * @return a <tt>BitVector</tt> instance holding the received input discrete
+   *         states.
+   * @throws ModbusException if an I/O error, a slave exception or
+   *                         a transaction error occurs.
+   * @see #setRequestQueue(PriorityRequestQueue)
+   */
+  public BitVector readInputDiscretes(int ref, int count, int priority)
+      throws ModbusException {
+    ModbusResponse res = executeAsync(new ReadInputDiscretesRequest(ref, count), priority);
+    return copyDiscretes((ReadInputDiscretesResponse) res, count);
   }//readInputDiscretes
 
 
@@ -239,9 +606,46 @@ public class ModbusTCPMaster {
       throws ModbusException {
     m_ReadInputRegistersRequest.setReference(ref);
     m_ReadInputRegistersRequest.setWordCount(count);
-    m_Transaction.setRequest(m_ReadInputRegistersRequest);
-    m_Transaction.execute();
-    return ((ReadInputRegistersResponse) m_Transaction.getResponse()).getRegisters();
+    ModbusResponse res = executeRead(m_ReadInputRegistersRequest);
+    return copyRegisters((ReadInputRegistersResponse) res);
+  }//readInputRegisters
+
+  /**
+   * Reads a given number of input registers from the slave into
+   * the given array, as unsigned values, without creating an
+   * object per register.
+   *
+   * @param ref   the offset of the input register to start reading from.
+   * @param count the number of input registers to be read.
+   * @param dest  the <tt>int[]</tt> receiving the values, starting at index 0.
+   * @return the number of values received.
+   * @throws ModbusException if an I/O error, a slave exception or
+   *                         a transaction error occurs.
+   */
+  public synchronized int readInputRegisters(int ref, int count, int[] dest)
+      throws ModbusException {
+    m_ReadInputRegistersRequest.setReference(ref);
+    m_ReadInputRegistersRequest.setWordCount(count);
+    ModbusResponse res = executeRead(m_ReadInputRegistersRequest);
+    return ((ReadInputRegistersResponse) res).getRegisterValues(dest, 0);
+  }//readInputRegisters
+
+  /**
+   * Reads a given number of input registers from the slave,
+   * waiting for the turn with the given priority.
+   *
+   * @param ref      the offset of the input register to start reading from.
+   * @param count    the number of input registers to be read.
+   * @param priority the priority, lower values are served first.
+   * @return a <tt>InputRegister[]</tt> with the received input registers.
+   * @throws ModbusException if an I/O error, a slave exception or
+   *                         a transaction error occurs.
+   * @see #setRequestQueue(PriorityRequestQueue)
+   */
+  public InputRegister[] readInputRegisters(int ref, int count, int priority)
+      throws ModbusException {
+    ModbusResponse res = executeAsync(new ReadInputRegistersRequest(ref, count), priority);
+    return copyRegisters((ReadInputRegistersResponse) res);
   }//readInputRegisters
 
   /**
@@ -260,11 +664,67 @@ public class ModbusTCPMaster {
       throws ModbusException {
     m_ReadMultipleRegistersRequest.setReference(ref);
     m_ReadMultipleRegistersRequest.setWordCount(count);
-    m_Transaction.setRequest(m_ReadMultipleRegistersRequest);
-    m_Transaction.execute();
-    return ((ReadMultipleRegistersResponse) m_Transaction.getResponse()).getRegisters();
+    ModbusResponse res = executeRead(m_ReadMultipleRegistersRequest);
+    return copyRegisters((ReadMultipleRegistersResponse) res);
   }//readMultipleRegisters
 
+  /**
+   * Reads a given number of registers from the slave into
+   * the given array, as unsigned values, without creating an
+   * object per register.
+   *
+   * @param ref   the offset of the register to start reading from.
+   * @param count the number of registers to be read.
+   * @param dest  the <tt>int[]</tt> receiving the values, starting at index 0.
+   * @return the number of values received.
+   * @throws ModbusException if an I/O error, a slave exception or
+   *                         a transaction error occurs.
+   */
+  public synchronized int readMultipleRegisters(int ref, int count, int[] dest)
+      throws ModbusException {
+    m_ReadMultipleRegistersRequest.setReference(ref);
+    m_ReadMultipleRegistersRequest.setWordCount(count);
+    ModbusResponse res = executeRead(m_ReadMultipleRegistersRequest);
+    return ((ReadMultipleRegistersResponse) res).getRegisterValues(dest, 0);
+  }//readMultipleRegisters
+
+  /**
+   * Reads a given number of registers from the slave,
+   * waiting for the turn with the given priority.
+   *
+   * @param ref      the offset of the register to start reading from.
+   * @param count    the number of registers to be read.
+   * @param priority the priority, lower values are served first.
+   * @return a <tt>Register[]</tt> holding the received registers.
+   * @throws ModbusException if an I/O error, a slave exception or
+   *                         a transaction error occurs.
+   * @see #setRequestQueue(PriorityRequestQueue)
+   */
+  public Register[] readMultipleRegisters(int ref, int count, int priority)
+      throws ModbusException {
+    ModbusResponse res = executeAsync(new ReadMultipleRegistersRequest(ref, count), priority);
+    return copyRegisters((ReadMultipleRegistersResponse) res);
+  }//readMultipleRegisters
+
+  /**
+   * Reads the values queued in a FIFO of the slave; the
+   * slave hands over at most 31 values per request.
+   *
+   * @param ref the offset of the FIFO pointer.
+   * @return an <tt>int[]</tt> holding the values, head first.
+   * @throws ModbusException if an I/O error, a slave exception or
+   *                         a transaction error occurs.
+   */
+  public synchronized int[] readFIFOQueue(int ref)
+      throws ModbusException {
+    m_Transaction.setRequest(new ReadFIFOQueueRequest(ref));
+    m_Transaction.execute();
+    ReadFIFOQueueResponse res = (ReadFIFOQueueResponse) m_Transaction.getResponse();
+    int[] values = new int[res.getCount()];
+    res.getValues(values, 0);
+    return values;
+  }//readFIFOQueue
+
   /**
    * Writes a single register to the slave.
    *
@@ -278,10 +738,62 @@ public class ModbusTCPMaster {
       throws ModbusException {
     m_WriteSingleRegisterRequest.setReference(ref);
     m_WriteSingleRegisterRequest.setRegister(register);
-    m_Transaction.setRequest(m_WriteSingleRegisterRequest);
-    m_Transaction.execute();
+    executeWrite(m_WriteSingleRegisterRequest);
   }//writeSingleRegister
 
+  /**
+   * Writes a single register to the slave, waiting
+   * for the turn with the given priority.
+   *
+   * @param ref      the offset of the register to be written.
+   * @param register a <tt>Register</tt> holding the value of the register
+   *                 to be written.
+   * @param priority the priority, lower values are served first.
+   * @throws ModbusException if an I/O error, a slave exception or
+   *                         a transaction error occurs.
+   * @see #setRequestQueue(PriorityRequestQueue)
+   */
+  public void writeSingleRegister(int ref, Register register, int priority)
+      throws ModbusException {
+    executeAsync(new WriteSingleRegisterRequest(ref, register), priority);
+  }//writeSingleRegister
+
+  /**
+   * Modifies bits of a single register on the slave, which sets
+   * the register to <tt>(current AND andmask) OR (ormask AND (NOT andmask))</tt>
+   * in a single, atomic step.
+   *
+   * @param ref     the offset of the register to be modified.
+   * @param andmask the AND mask, whose cleared bits are replaced.
+   * @param ormask  the OR mask, providing the replaced bits.
+   * @throws ModbusException if an I/O error, a slave exception or
+   *                         a transaction error occurs.
+   */
+  public synchronized void maskWriteRegister(int ref, int andmask, int ormask)
+      throws ModbusException {
+    m_MaskWriteRegisterRequest.setReference(ref);
+    m_MaskWriteRegisterRequest.setAndMask(andmask);
+    m_MaskWriteRegisterRequest.setOrMask(ormask);
+    executeWrite(m_MaskWriteRegisterRequest);
+  }//maskWriteRegister
+
+  /**
+   * Modifies bits of a single register on the slave, waiting
+   * for the turn with the given priority.
+   *
+   * @param ref      the offset of the register to be modified.
+   * @param andmask  the AND mask, whose cleared bits are replaced.
+   * @param ormask   the OR mask, providing the replaced bits.
+   * @param priority the priority, lower values are served first.
+   * @throws ModbusException if an I/O error, a slave exception or
+   *                         a transaction error occurs.
+   * @see #setRequestQueue(PriorityRequestQueue)
+   */
+  public void maskWriteRegister(int ref, int andmask, int ormask, int priority)
+      throws ModbusException {
+    executeAsync(new MaskWriteRegisterRequest(ref, andmask, ormask), priority);
+  }//maskWriteRegister
+
   /**
    * Writes a number of registers to the slave.
    *
@@ -295,8 +807,602 @@ public class ModbusTCPMaster {
       throws ModbusException {
     m_WriteMultipleRegistersRequest.setReference(ref);
     m_WriteMultipleRegistersRequest.setRegisters(registers);
-    m_Transaction.setRequest(m_WriteMultipleRegistersRequest);
-    m_Transaction.execute();
+    executeWrite(m_WriteMultipleRegistersRequest);
   }//writeMultipleRegisters
 
+  /**
+   * Writes a number of registers to the slave, waiting
+   * for the turn with the given priority.
+   *
+   * @param ref       the offset of the register to start writing to.
+   * @param registers a <tt>Register[]</tt> holding the values of
+   *                  the registers to be written.
+   * @param priority  the priority, lower values are served first.
+   * @throws ModbusException if an I/O error, a slave exception or
+   *                         a transaction error occurs.
+   * @see #setRequestQueue(PriorityRequestQueue)
+   */
+  public void writeMultipleRegisters(int ref, Register[] registers, int priority)
+      throws ModbusException {
+    executeAsync(new WriteMultipleRegistersRequest(ref, registers), priority);
+  }//writeMultipleRegisters
+
+  /**
+   * Writes a number of registers to the slave and reads
+   * a number of registers back in a single transaction.
+   * The slave writes before it reads.
+   *
+   * @param readref   the offset of the register to start reading from.
+   * @param count     the number of registers to be read.
+   * @param writeref  the offset of the register to start writing to.
+   * @param registers a <tt>Register[]</tt> holding the values of
+   *                  the registers to be written.
+   * @return a <tt>Register[]</tt> holding the registers read.
+   * @throws ModbusException if an I/O error, a slave exception or
+   *                         a transaction error occurs.
+   */
+  public synchronized Register[] readWriteMultipleRegisters(int readref, int count,
+                                                            int writeref, Register[] registers)
+      throws ModbusException {
+    m_ReadWriteMultipleRequest.setReadReference(readref);
+    m_ReadWriteMultipleRequest.setReadWordCount(count);
+    m_ReadWriteMultipleRequest.setWriteReference(writeref);
+    m_ReadWriteMultipleRequest.setRegisters(registers);
+    executeWrite(m_ReadWriteMultipleRequest);
+    return ((ReadWriteMultipleResponse) m_Transaction.getResponse()).getRegisters();
+  }//readWriteMultipleRegisters
+
+  /**
+   * Writes a number of registers to the slave and reads a number
+   * of registers back in a single transaction, waiting for the turn
+   * with the given priority.
+   *
+   * @param readref   the offset of the register to start reading from.
+   * @param count     the number of registers to be read.
+   * @param writeref  the offset of the register to start writing to.
+   * @param registers a <tt>Register[]</tt> holding the values of
+   *                  the registers to be written.
+   * @param priority  the priority, lower values are served first.
+   * @return a <tt>Register[]</tt> holding the registers read.
+   * @throws ModbusException if an I/O error, a slave exception or
+   *                         a transaction error occurs.
+   * @see #setRequestQueue(PriorityRequestQueue)
+   */
+  public Register[] readWriteMultipleRegisters(int readref, int count,
+                                              int writeref, Register[] registers,
+                                              int priority)
+      throws ModbusException {
+    ModbusResponse res = executeAsync(
+        new ReadWriteMultipleRequest(readref, count, writeref, registers), priority);
+    return ((ReadWriteMultipleResponse) res).getRegisters();
+  }//readWriteMultipleRegisters
+
+  /**
+   * Asynchronously reads a given number of coil states from the slave.
+   *
+   * @param ref   the offset of the coil to start reading from.
+   * @param count the number of coil states to be read.
+   * @return a <tt>Future</tt> yielding the received coil states.
+   * @see #readCoils(int, int)
+   */
+  public Future<BitVector> readCoilsAsync(int ref, final int count) {
+    ReadCoilsRequest req = new ReadCoilsRequest(ref, count);
+    return submit(new AsyncRequest<BitVector>(req) {
+      protected BitVector getResult(ModbusResponse res) {
+        return copyCoils((ReadCoilsResponse) res, count);
+      }//getResult
+    });
+  }//readCoilsAsync
+
+  /**
+   * Asynchronously writes a coil state to the slave.
+   *
+   * @param unitid the slave unit id.
+   * @param ref    the offset of the coil to be written.
+   * @param state  the coil state to be written.
+   * @return a <tt>Future</tt> yielding the state of the coil as
+   *         returned from the slave.
+   * @see #writeCoil(int, int, boolean)
+   */
+  public Future<Boolean> writeCoilAsync(int unitid, int ref, boolean state) {
+    WriteCoilRequest req = new WriteCoilRequest(ref, state);
+    req.setUnitID(unitid);
+    return submit(new AsyncRequest<Boolean>(req) {
+      protected Boolean getResult(ModbusResponse res) {
+        return ((WriteCoilResponse) res).getCoil();
+      }//getResult
+    });
+  }//writeCoilAsync
+
+  /**
+   * Asynchronously writes a given number of coil states to the slave.
+   *
+   * @param ref   the offset of the coil to start writing to.
+   * @param coils a <tt>BitVector</tt> which holds the coil states to be written.
+   * @return a <tt>Future</tt> that completes when the coils are written.
+   * @see #writeMultipleCoils(int, BitVector)
+   */
+  public Future<Void> writeMultipleCoilsAsync(int ref, BitVector coils) {
+    WriteMultipleCoilsRequest req = new WriteMultipleCoilsRequest(ref, coils);
+    return submit(new AsyncRequest<Void>(req) {
+      protected Void getResult(ModbusResponse res) {
+        return null;
+      }//getResult
+    });
+  }//writeMultipleCoilsAsync
+
+  /**
+   * Asynchronously reads a given number of input discrete states
+   * from the slave.
+   *
+   * @param ref   the offset of the input discrete to start reading from.
+   * @param count the number of input discrete states to be read.
+   * @return a <tt>Future</tt> yielding the received input discrete states.
+   * @see #readInputDiscretes(int, int)
+   */
+  public Future<BitVector> readInputDiscretesAsync(int ref, final int count) {
+    ReadInputDiscretesRequest req = new ReadInputDiscretesRequest(ref, count);
+    return submit(new AsyncRequest<BitVector>(req) {
+      protected BitVector getResult(ModbusResponse res) {
+        return copyDiscretes((ReadInputDiscretesResponse) res, count);
+      }//getResult
+    });
+  }//readInputDiscretesAsync
+
+  /**
+   * Asynchronously reads a given number of input registers from the slave.
+   *
+   * @param ref   the offset of the input register to start reading from.
+   * @param count the number of input registers to be read.
+   * @return a <tt>Future</tt> yielding the received input registers.
+   * @see #readInputRegisters(int, int)
+   */
+  public Future<InputRegister[]> readInputRegistersAsync(int ref, int count) {
+    ReadInputRegistersRequest req = new ReadInputRegistersRequest(ref, count);
+    return submit(new AsyncRequest<InputRegister[]>(req) {
+      protected InputRegister[] getResult(ModbusResponse res) {
+        return copyRegisters((ReadInputRegistersResponse) res);
+      }//getResult
+    });
+  }//readInputRegistersAsync
+
+  /**
+   * Asynchronously reads a given number of registers from the slave.
+   *
+   * @param ref   the offset of the register to start reading from.
+   * @param count the number of registers to be read.
+   * @return a <tt>Future</tt> yielding the received registers.
+   * @see #readMultipleRegisters(int, int)
+   */
+  public Future<Register[]> readMultipleRegistersAsync(int ref, int count) {
+    ReadMultipleRegistersRequest req = new ReadMultipleRegistersRequest(ref, count);
+    return submit(new AsyncRequest<Register[]>(req) {
+      protected Register[] getResult(ModbusResponse res) {
+        return copyRegisters((ReadMultipleRegistersResponse) res);
+      }//getResult
+    });
+  }//readMultipleRegistersAsync
+
+  /**
+   * Asynchronously writes a single register to the slave.
+   *
+   * @param ref      the offset of the register to be written.
+   * @param register a <tt>Register</tt> holding the value of the register
+   *                 to be written.
+   * @return a <tt>Future</tt> that completes when the register is written.
+   * @see #writeSingleRegister(int, Register)
+   */
+  public Future<Void> writeSingleRegisterAsync(int ref, Register register) {
+    WriteSingleRegisterRequest req = new WriteSingleRegisterRequest(ref, register);
+    return submit(new AsyncRequest<Void>(req) {
+      protected Void getResult(ModbusResponse res) {
+        return null;
+      }//getResult
+    });
+  }//writeSingleRegisterAsync
+
+  /**
+   * Asynchronously writes a number of registers to the slave.
+   *
+   * @param ref       the offset of the register to start writing to.
+   * @param registers a <tt>Register[]</tt> holding the values of
+   *                  the registers to be written.
+   * @return a <tt>Future</tt> that completes when the registers are written.
+   * @see #writeMultipleRegisters(int, Register[])
+   */
+  public Future<Void> writeMultipleRegistersAsync(int ref, Register[] registers) {
+    WriteMultipleRegistersRequest req = new WriteMultipleRegistersRequest(ref, registers);
+    return submit(new AsyncRequest<Void>(req) {
+      protected Void getResult(ModbusResponse res) {
+        return null;
+      }//getResult
+    });
+  }//writeMultipleRegistersAsync
+
+  /**
+   * Sends or schedules the request of an asynchronous call.
+   *
+   * @param call the <tt>AsyncRequest</tt> to be executed.
+   * @return the <tt>Future</tt> of the call.
+   */
+  private <V> Future<V> submit(AsyncRequest<V> call) {
+    call.dispatch();
+    return call;
+  }//submit
+
+  /**
+   * Executes a request of an asynchronous call.
+   *
+   * @param req the <tt>ModbusRequest</tt> to be executed.
+   * @return the <tt>ModbusResponse</tt> received from the slave.
+   * @throws ModbusException if an I/O error, a slave exception or
+   *                         a transaction error occurs.
+   */
+  private ModbusResponse executeAsync(ModbusRequest req)
+      throws ModbusException {
+    return executeAsync(req, PriorityRequestQueue.PRIORITY_NORMAL);
+  }//executeAsync
+
+  /**
+   * Executes a request of an asynchronous call, or of a
+   * call with a priority.
+   *
+   * @param req      the <tt>ModbusRequest</tt> to be executed.
+   * @param priority the priority in the request queue.
+   * @return the <tt>ModbusResponse</tt> received from the slave.
+   * @throws ModbusException if an I/O error, a slave exception or
+   *                         a transaction error occurs.
+   */
+  private ModbusResponse executeAsync(ModbusRequest req, final int priority)
+      throws ModbusException {
+    ReadCache cache = m_ReadCache;
+    if (cache == null) {
+      return executeUncached(req, priority);
+    }
+    if (ReadCache.isCacheable(req)) {
+      return cache.read(m_Endpoint, req, new ReadCache.Loader() {
+        public ModbusResponse load(ModbusRequest r) throws ModbusException {
+          return executeUncached(r, priority);
+        }//load
+      });
+    }
+    try {
+      return executeUncached(req, priority);
+    } finally {
+      cache.invalidate(m_Endpoint, req);
+    }
+  }//executeAsync
+
+  /**
+   * Executes a request, bypassing the cache.
+   * On a pipelining connection, or one with a request queue, a
+   * transaction of its own is used, so that several requests may be
+   * outstanding or the queue decides the order; otherwise the request
+   * is serialized with all other calls through the facade monitor.
+   *
+   * @param req      the <tt>ModbusRequest</tt> to be executed.
+   * @param priority the priority in the request queue.
+   * @return the <tt>ModbusResponse</tt> received from the slave.
+   * @throws ModbusException if an I/O error, a slave exception or
+   *                         a transaction error occurs.
+   */
+  private ModbusResponse executeUncached(ModbusRequest req, int priority)
+      throws ModbusException {
+    if (m_Connection.isPipelining()) {
+      ModbusTCPTransaction trans = new ModbusTCPTransaction(m_Connection);
+      trans.setRetries(m_Retries);
+      trans.setRetryPolicy(m_RetryPolicy);
+      trans.setPriority(priority);
+      trans.setRequest(req);
+      trans.execute();
+      return trans.getResponse();
+    }
+    if (m_Connection.getRequestQueue() != null) {
+      ModbusTCPTransaction trans = new ModbusTCPTransaction(m_Connection);
+      trans.setReconnecting(m_Reconnecting);
+      trans.setRetries(m_Retries);
+      trans.setRetryPolicy(m_RetryPolicy);
+      trans.setPriority(priority);
+      trans.setRequest(req);
+      trans.execute();
+      return trans.getResponse();
+    }
+    synchronized (this) {
+      if (m_Transaction == null) {
+        throw new ModbusException("Not connected.");
+      }
+      ModbusTCPTransaction trans = m_Transaction;
+      if (trans.isReusingResponses()) {
+        //the response is used outside of the monitor
+        trans = new ModbusTCPTransaction(m_Connection);
+        trans.setReconnecting(m_Reconnecting);
+        trans.setRetries(m_Retries);
+      trans.setRetryPolicy(m_RetryPolicy);
+      }
+      trans.setRequest(req);
+      trans.execute();
+      return trans.getResponse();
+    }
+  }//executeUncached
+
+  /**
+   * Copies the coil states of a response into a <tt>BitVector</tt>
+   * of its own, as a cached response is shared by all readers.
+   *
+   * @param res   the <tt>ReadCoilsResponse</tt>.
+   * @param count the number of coil states requested.
+   * @return a new <tt>BitVector</tt> of <tt>count</tt> bits.
+   */
+  private static BitVector copyCoils(ReadCoilsResponse res, int count) {
+    BitVector bv = new BitVector(count);
+    res.getCoils(bv, 0, count);
+    return bv;
+  }//copyCoils
+
+  /**
+   * Copies the input discrete states of a response into a
+   * <tt>BitVector</tt> of its own.
+   *
+   * @param res   the <tt>ReadInputDiscretesResponse</tt>.
+   * @param count the number of input discrete states requested.
+   * @return a new <tt>BitVector</tt> of <tt>count</tt> bits.
+   */
+  private static BitVector copyDiscretes(ReadInputDiscretesResponse res, int count) {
+    BitVector bv = new BitVector(count);
+    res.getDiscretes(bv, 0, count);
+    return bv;
+  }//copyDiscretes
+
+  /**
+   * Creates input registers of their own from the values of a response.
+   *
+   * @param res the <tt>ReadInputRegistersResponse</tt>.
+   * @return a new <tt>InputRegister[]</tt>.
+   */
+  private static InputRegister[] copyRegisters(ReadInputRegistersResponse res) {
+    int[] values = new int[res.getWordCount()];
+    res.getRegisterValues(values, 0);
+    ProcessImageFactory pimf = ModbusCoupler.getReference().getProcessImageFactory();
+    InputRegister[] regs = new InputRegister[values.length];
+    for (int i = 0; i < values.length; i++) {
+      regs[i] = pimf.createInputRegister((byte) (values[i] >> 8), (byte) values[i]);
+    }
+    return regs;
+  }//copyRegisters
+
+  /**
+   * Creates registers of their own from the values of a response.
+   *
+   * @param res the <tt>ReadMultipleRegistersResponse</tt>.
+   * @return a new <tt>Register[]</tt>.
+   */
+  private static Register[] copyRegisters(ReadMultipleRegistersResponse res) {
+    int[] values = new int[res.getWordCount()];
+    res.getRegisterValues(values, 0);
+    ProcessImageFactory pimf = ModbusCoupler.getReference().getProcessImageFactory();
+    Register[] regs = new Register[values.length];
+    for (int i = 0; i < values.length; i++) {
+      regs[i] = pimf.createRegister((byte) (values[i] >> 8), (byte) values[i]);
+    }
+    return regs;
+  }//copyRegisters
+
+  /**
+   * Executes a read, from the cache if there is one.
+   *
+   * @param req the read <tt>ModbusRequest</tt>.
+   * @return the <tt>ModbusResponse</tt>.
+   * @throws ModbusException if the request fails.
+   */
+  private ModbusResponse executeRead(ModbusRequest req)
+      throws ModbusException {
+    ReadCache cache = m_ReadCache;
+    if (cache == null || m_Transaction.isReusingResponses()) {
+      m_Transaction.setRequest(req);
+      m_Transaction.execute();
+      return m_Transaction.getResponse();
+    }
+    return cache.read(m_Endpoint, req, new ReadCache.Loader() {
+      public ModbusResponse load(ModbusRequest r) throws ModbusException {
+        m_Transaction.setRequest(r);
+        m_Transaction.execute();
+        return m_Transaction.getResponse();
+      }//load
+    });
+  }//executeRead
+
+  /**
+   * Executes a write, evicting the cached ranges it overlaps
+   * whether it succeeds or not.
+   *
+   * @param req the write <tt>ModbusRequest</tt>.
+   * @throws ModbusException if the request fails.
+   */
+  private void executeWrite(ModbusRequest req)
+      throws ModbusException {
+    m_Transaction.setRequest(req);
+    try {
+      m_Transaction.execute();
+    } finally {
+      ReadCache cache = m_ReadCache;
+      if (cache != null) {
+        cache.invalidate(m_Endpoint, req);
+      }
+    }
+  }//executeWrite
+
+  /**
+   * Returns the executor of this instance, creating it on demand.
+   *
+   * @return the default <tt>ExecutorService</tt>.
+   */
+  private ExecutorService getDefaultExecutor() {
+    ExecutorService executor = m_DefaultExecutor;
+    if (executor == null) {
+      synchronized (m_ExecutorLock) {
+        executor = m_DefaultExecutor;
+        if (executor == null) {
+          ThreadPoolExecutor pool = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+              new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+              Thread t = new Thread(r, "ModbusTCPMaster-async");
+              t.setDaemon(true);
+              return t;
+            }
+          });
+          pool.allowCoreThreadTimeOut(true);
+          m_DefaultExecutor = executor = pool;
+        }
+      }
+    }
+    return executor;
+  }//getDefaultExecutor
+
+  /**
+   * Returns the timer delaying the retries of asynchronous
+   * requests on a pipelining connection, which is shared
+   * by all instances.
+   *
+   * @return the timer as <tt>ScheduledThreadPoolExecutor</tt>.
+   */
+  private static synchronized ScheduledThreadPoolExecutor getTimer() {
+    if (c_Timer == null) {
+      c_Timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "ModbusTCPMaster-timer");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    }
+    return c_Timer;
+  }//getTimer
+
+  /**
+   * Inner class implementing the <tt>Future</tt> of an
+   * asynchronous call.
+   * <p>
+   * On a pipelining connection the request is handed to the
+   * pipeline and completed through the callback by its reader,
+   * with retries and circuit breaking applied like a transaction
+   * would. Otherwise, and for reads served by a cache, the request
+   * is executed as a transaction on the executor.
+   */
+  private abstract class AsyncRequest<V>
+      extends FutureTask<V>
+      implements TransactionCallback {
+
+    private final ModbusRequest m_Request;
+    private int m_Attempts;
+
+    public AsyncRequest(ModbusRequest req) {
+      super(NO_TASK, null);
+      m_Request = req;
+    }//constructor
+
+    /**
+     * Returns the result of the call from the given response.
+     *
+     * @param res the <tt>ModbusResponse</tt> received.
+     * @return the result.
+     */
+    protected abstract V getResult(ModbusResponse res);
+
+    /**
+     * Sends the request on the pipeline, if the connection
+     * is pipelining, or schedules it on the executor.
+     */
+    public void dispatch() {
+      if (isDone()) {
+        return;
+      }
+      ModbusTCPPipeline pipeline = m_Connection.getPipeline();
+      ReadCache cache = m_ReadCache;
+      if (pipeline != null && pipeline.isRunning()
+          && (cache == null || !ReadCache.isCacheable(m_Request))) {
+        CircuitBreaker breaker = m_Connection.getCircuitBreaker();
+        if (breaker != null && !breaker.allowRequest()) {
+          finish(new ModbusIOException("Circuit open, device failed " +
+              breaker.getFailures() + " consecutive times."));
+          return;
+        }
+        pipeline.execute(m_Request, m_Connection.getTimeout(), this);
+      } else {
+        try {
+          getExecutor().execute(this);
+        } catch (RejectedExecutionException ex) {
+          setException(ex);
+        }
+      }
+    }//dispatch
+
+    public void run() {
+      if (isDone()) {
+        return;
+      }
+      try {
+        set(getResult(executeAsync(m_Request)));
+      } catch (Throwable ex) {
+        setException(ex);
+      }
+    }//run
+
+    public void completed(ModbusRequest req, ModbusResponse res) {
+      CircuitBreaker breaker = m_Connection.getCircuitBreaker();
+      if (breaker != null) {
+        breaker.recordSuccess();
+      }
+      invalidate();
+      try {
+        set(getResult(res));
+      } catch (RuntimeException ex) {
+        setException(ex);
+      }
+    }//completed
+
+    public void failed(ModbusRequest req, ModbusException ex) {
+      CircuitBreaker breaker = m_Connection.getCircuitBreaker();
+      if (ex instanceof ModbusSlaveException) {
+        //the slave did answer
+        if (breaker != null) {
+          breaker.recordSuccess();
+        }
+        finish(ex);
+        return;
+      }
+      if (breaker != null) {
+        breaker.recordFailure();
+      }
+      //otherwise the pipeline fails with a ModbusIOException
+      m_Attempts++;
+      RetryPolicy policy = m_RetryPolicy;
+      long delay = (policy == null) ? 0 : policy.getRetryDelay(m_Attempts, (ModbusIOException) ex);
+      if (m_Attempts > m_Retries || delay < 0 || isDone()) {
+        finish(new ModbusIOException("Executing transaction failed (tried " +
+            m_Attempts + " times)"));
+      } else if (delay == 0) {
+        dispatch();
+      } else {
+        getTimer().schedule(new Runnable() {
+          public void run() {
+            dispatch();
+          }
+        }, delay, TimeUnit.MILLISECONDS);
+      }
+    }//failed
+
+    private void finish(ModbusException ex) {
+      invalidate();
+      setException(ex);
+    }//finish
+
+    private void invalidate() {
+      ReadCache cache = m_ReadCache;
+      if (cache != null) {
+        cache.invalidate(m_Endpoint, m_Request);
+      }
+    }//invalidate
+
+  }//inner class AsyncRequest
+
 }//class ModbusTCPMaster
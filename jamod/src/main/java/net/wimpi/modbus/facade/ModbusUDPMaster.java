@@ -16,11 +16,16 @@
 
 package net.wimpi.modbus.facade;
 
+import net.wimpi.modbus.ModbusCoupler;
 import net.wimpi.modbus.ModbusException;
+import net.wimpi.modbus.io.CircuitBreaker;
 import net.wimpi.modbus.io.ModbusUDPTransaction;
+import net.wimpi.modbus.io.ReadCache;
+import net.wimpi.modbus.io.RetryPolicy;
 import net.wimpi.modbus.msg.*;
 import net.wimpi.modbus.net.UDPMasterConnection;
 import net.wimpi.modbus.procimg.InputRegister;
+import net.wimpi.modbus.procimg.ProcessImageFactory;
 import net.wimpi.modbus.procimg.Register;
 import net.wimpi.modbus.util.BitVector;
 
@@ -38,6 +43,10 @@ public class ModbusUDPMaster {
   private UDPMasterConnection m_Connection;
   private InetAddress m_SlaveAddress;
   private ModbusUDPTransaction m_Transaction;
+  private RetryPolicy m_RetryPolicy;
+  private ReadCache m_ReadCache;
+  private String m_Endpoint;
+  private CircuitBreaker m_CircuitBreaker;
   private ReadCoilsRequest m_ReadCoilsRequest;
   private ReadInputDiscretesRequest m_ReadInputDiscretesRequest;
   private WriteCoilRequest m_WriteCoilRequest;
@@ -46,6 +55,8 @@ public class ModbusUDPMaster {
   private ReadMultipleRegistersRequest m_ReadMultipleRegistersRequest;
   private WriteSingleRegisterRequest m_WriteSingleRegisterRequest;
   private WriteMultipleRegistersRequest m_WriteMultipleRegistersRequest;
+  private ReadWriteMultipleRequest m_ReadWriteMultipleRequest;
+  private MaskWriteRegisterRequest m_MaskWriteRegisterRequest;
 
   /**
    * Constructs a new master facade instance for communication
@@ -66,6 +77,8 @@ public class ModbusUDPMaster {
       m_ReadMultipleRegistersRequest = new ReadMultipleRegistersRequest();
       m_WriteSingleRegisterRequest = new WriteSingleRegisterRequest();
       m_WriteMultipleRegistersRequest = new WriteMultipleRegistersRequest();
+      m_ReadWriteMultipleRequest = new ReadWriteMultipleRequest();
+      m_MaskWriteRegisterRequest = new MaskWriteRegisterRequest();
 
     } catch (UnknownHostException e) {
       throw new RuntimeException(e.getMessage());
@@ -95,6 +108,8 @@ public class ModbusUDPMaster {
     if (m_Connection != null && !m_Connection.isConnected()) {
       m_Connection.connect();
       m_Transaction = new ModbusUDPTransaction(m_Connection);
+      m_Transaction.setRetryPolicy(m_RetryPolicy);
+      m_Transaction.setCircuitBreaker(m_CircuitBreaker);
     }
   }//connect
 
@@ -108,6 +123,75 @@ public class ModbusUDPMaster {
     }
   }//disconnect
 
+  /**
+   * Sets the cache serving the reads of this <tt>ModbusUDPMaster</tt>.
+   * The cache may be shared by several masters; responses are
+   * keyed by the address and port of the slave, and writes through
+   * this master evict the ranges they overlap.
+   *
+   * @param cache a <tt>ReadCache</tt>, or <tt>null</tt> to read uncached.
+   */
+  public void setReadCache(ReadCache cache) {
+    m_Endpoint = m_Connection.getAddress().getHostAddress() + ":" + m_Connection.getPort();
+    m_ReadCache = cache;
+  }//setReadCache
+
+  /**
+   * Returns the cache serving the reads of this <tt>ModbusUDPMaster</tt>.
+   *
+   * @return the <tt>ReadCache</tt>, or <tt>null</tt> if none.
+   */
+  public ReadCache getReadCache() {
+    return m_ReadCache;
+  }//getReadCache
+
+  /**
+   * Sets the policy that decides when failed transactions
+   * with the slave are retried.
+   *
+   * @param policy a <tt>RetryPolicy</tt>, or <tt>null</tt> for
+   *               immediate retries.
+   */
+  public void setRetryPolicy(RetryPolicy policy) {
+    m_RetryPolicy = policy;
+    if (m_Transaction != null) {
+      m_Transaction.setRetryPolicy(policy);
+    }
+  }//setRetryPolicy
+
+  /**
+   * Returns the policy that decides when failed transactions
+   * with the slave are retried.
+   *
+   * @return the <tt>RetryPolicy</tt>, or <tt>null</tt> if none.
+   */
+  public RetryPolicy getRetryPolicy() {
+    return m_RetryPolicy;
+  }//getRetryPolicy
+
+  /**
+   * Sets the circuit breaker that makes transactions with
+   * the slave fail fast once it has stopped responding.
+   *
+   * @param breaker a <tt>CircuitBreaker</tt>, or <tt>null</tt>.
+   */
+  public void setCircuitBreaker(CircuitBreaker breaker) {
+    m_CircuitBreaker = breaker;
+    if (m_Transaction != null) {
+      m_Transaction.setCircuitBreaker(breaker);
+    }
+  }//setCircuitBreaker
+
+  /**
+   * Returns the circuit breaker guarding the transactions
+   * with the slave.
+   *
+   * @return the <tt>CircuitBreaker</tt>, or <tt>null</tt> if none.
+   */
+  public CircuitBreaker getCircuitBreaker() {
+    return m_CircuitBreaker;
+  }//getCircuitBreaker
+
   /**
    * Reads a given number of coil states from the slave.
    * <p/>
@@ -125,11 +209,26 @@ public class ModbusUDPMaster {
       throws ModbusException {
     m_ReadCoilsRequest.setReference(ref);
     m_ReadCoilsRequest.setBitCount(count);
-    m_Transaction.setRequest(m_ReadCoilsRequest);
-    m_Transaction.execute();
-    BitVector bv = ((ReadCoilsResponse) m_Transaction.getResponse()).getCoils();
-    bv.forceSize(count);
-    return bv;
+    ModbusResponse res = executeRead(m_ReadCoilsRequest);
+    return copyCoils((ReadCoilsResponse) res, count);
+  }//readCoils
+
+  /**
+   * Reads a given number of coil states from the slave
+   * into the given <tt>BitVector</tt>, starting at bit 0.
+   *
+   * @param ref   the offset of the coil to start reading from.
+   * @param count the number of coil states to be read.
+   * @param dest  the <tt>BitVector</tt> receiving the states.
+   * @throws ModbusException if an I/O error, a slave exception or
+   *                         a transaction error occurs.
+   */
+  public synchronized void readCoils(int ref, int count, BitVector dest)
+      throws ModbusException {
+    m_ReadCoilsRequest.setReference(ref);
+    m_ReadCoilsRequest.setBitCount(count);
+    ModbusResponse res = executeRead(m_ReadCoilsRequest);
+    ((ReadCoilsResponse) res).getCoils(dest, 0, count);
   }//readCoils
 
   /**
@@ -147,8 +246,7 @@ public class ModbusUDPMaster {
     m_WriteCoilRequest.setUnitID(unitid);
     m_WriteCoilRequest.setReference(ref);
     m_WriteCoilRequest.setCoil(state);
-    m_Transaction.setRequest(m_WriteCoilRequest);
-    m_Transaction.execute();
+    executeWrite(m_WriteCoilRequest);
     return ((WriteCoilResponse) m_Transaction.getResponse()).getCoil();
   }//writeCoil
 
@@ -167,8 +265,7 @@ public class ModbusUDPMaster {
       throws ModbusException {
     m_WriteMultipleCoilsRequest.setReference(ref);
     m_WriteMultipleCoilsRequest.setCoils(coils);
-    m_Transaction.setRequest(m_WriteMultipleCoilsRequest);
-    m_Transaction.execute();
+    executeWrite(m_WriteMultipleCoilsRequest);
   }//writeMultipleCoils
 
   /**
@@ -188,11 +285,26 @@ public class ModbusUDPMaster {
       throws ModbusException {
     m_ReadInputDiscretesRequest.setReference(ref);
     m_ReadInputDiscretesRequest.setBitCount(count);
-    m_Transaction.setRequest(m_ReadInputDiscretesRequest);
-    m_Transaction.execute();
-    BitVector bv = ((ReadInputDiscretesResponse) m_Transaction.getResponse()).getDiscretes();
-    bv.forceSize(count);
-    return bv;
+    ModbusResponse res = executeRead(m_ReadInputDiscretesRequest);
+    return copyDiscretes((ReadInputDiscretesResponse) res, count);
+  }//readInputDiscretes
+
+  /**
+   * Reads a given number of input discrete states from the slave
+   * into the given <tt>BitVector</tt>, starting at bit 0.
+   *
+   * @param ref   the offset of the input discrete to start reading from.
+   * @param count the number of input discrete states to be read.
+   * @param dest  the <tt>BitVector</tt> receiving the states.
+   * @throws ModbusException if an I/O error, a slave exception or
+   *                         a transaction error occurs.
+   */
+  public synchronized void readInputDiscretes(int ref, int count, BitVector dest)
+      throws ModbusException {
+    m_ReadInputDiscretesRequest.setReference(ref);
+    m_ReadInputDiscretesRequest.setBitCount(count);
+    ModbusResponse res = executeRead(m_ReadInputDiscretesRequest);
+    ((ReadInputDiscretesResponse) res).getDiscretes(dest, 0, count);
   }//readInputDiscretes
 
 
@@ -212,9 +324,28 @@ public class ModbusUDPMaster {
       throws ModbusException {
     m_ReadInputRegistersRequest.setReference(ref);
     m_ReadInputRegistersRequest.setWordCount(count);
-    m_Transaction.setRequest(m_ReadInputRegistersRequest);
-    m_Transaction.execute();
-    return ((ReadInputRegistersResponse) m_Transaction.getResponse()).getRegisters();
+    ModbusResponse res = executeRead(m_ReadInputRegistersRequest);
+    return copyRegisters((ReadInputRegistersResponse) res);
+  }//readInputRegisters
+
+  /**
+   * Reads a given number of input registers from the slave into
+   * the given array, as unsigned values, without creating an
+   * object per register.
+   *
+   * @param ref   the offset of the input register to start reading from.
+   * @param count the number of input registers to be read.
+   * @param dest  the <tt>int[]</tt> receiving the values, starting at index 0.
+   * @return the number of values received.
+   * @throws ModbusException if an I/O error, a slave exception or
+   *                         a transaction error occurs.
+   */
+  public synchronized int readInputRegisters(int ref, int count, int[] dest)
+      throws ModbusException {
+    m_ReadInputRegistersRequest.setReference(ref);
+    m_ReadInputRegistersRequest.setWordCount(count);
+    ModbusResponse res = executeRead(m_ReadInputRegistersRequest);
+    return ((ReadInputRegistersResponse) res).getRegisterValues(dest, 0);
   }//readInputRegisters
 
   /**
@@ -233,11 +364,49 @@ public class ModbusUDPMaster {
       throws ModbusException {
     m_ReadMultipleRegistersRequest.setReference(ref);
     m_ReadMultipleRegistersRequest.setWordCount(count);
-    m_Transaction.setRequest(m_ReadMultipleRegistersRequest);
-    m_Transaction.execute();
-    return ((ReadMultipleRegistersResponse) m_Transaction.getResponse()).getRegisters();
+    ModbusResponse res = executeRead(m_ReadMultipleRegistersRequest);
+    return copyRegisters((ReadMultipleRegistersResponse) res);
   }//readMultipleRegisters
 
+  /**
+   * Reads a given number of registers from the slave into
+   * the given array, as unsigned values, without creating an
+   * object per register.
+   *
+   * @param ref   the offset of the register to start reading from.
+   * @param count the number of registers to be read.
+   * @param dest  the <tt>int[]</tt> receiving the values, starting at index 0.
+   * @return the number of values received.
+   * @throws ModbusException if an I/O error, a slave exception or
+   *                         a transaction error occurs.
+   */
+  public synchronized int readMultipleRegisters(int ref, int count, int[] dest)
+      throws ModbusException {
+    m_ReadMultipleRegistersRequest.setReference(ref);
+    m_ReadMultipleRegistersRequest.setWordCount(count);
+    ModbusResponse res = executeRead(m_ReadMultipleRegistersRequest);
+    return ((ReadMultipleRegistersResponse) res).getRegisterValues(dest, 0);
+  }//readMultipleRegisters
+
+  /**
+   * Reads the values queued in a FIFO of the slave; the
+   * slave hands over at most 31 values per request.
+   *
+   * @param ref the offset of the FIFO pointer.
+   * @return an <tt>int[]</tt> holding the values, head first.
+   * @throws ModbusException if an I/O error, a slave exception or
+   *                         a transaction error occurs.
+   */
+  public synchronized int[] readFIFOQueue(int ref)
+      throws ModbusException {
+    m_Transaction.setRequest(new ReadFIFOQueueRequest(ref));
+    m_Transaction.execute();
+    ReadFIFOQueueResponse res = (ReadFIFOQueueResponse) m_Transaction.getResponse();
+    int[] values = new int[res.getCount()];
+    res.getValues(values, 0);
+    return values;
+  }//readFIFOQueue
+
   /**
    * Writes a single register to the slave.
    *
@@ -251,10 +420,28 @@ public class ModbusUDPMaster {
       throws ModbusException {
     m_WriteSingleRegisterRequest.setReference(ref);
     m_WriteSingleRegisterRequest.setRegister(register);
-    m_Transaction.setRequest(m_WriteSingleRegisterRequest);
-    m_Transaction.execute();
+    executeWrite(m_WriteSingleRegisterRequest);
   }//writeSingleRegister
 
+  /**
+   * Modifies bits of a single register on the slave, which sets
+   * the register to <tt>(current AND andmask) OR (ormask AND (NOT andmask))</tt>
+   * in a single, atomic step.
+   *
+   * @param ref     the offset of the register to be modified.
+   * @param andmask the AND mask, whose cleared bits are replaced.
+   * @param ormask  the OR mask, providing the replaced bits.
+   * @throws ModbusException if an I/O error, a slave exception or
+   *                         a transaction error occurs.
+   */
+  public synchronized void maskWriteRegister(int ref, int andmask, int ormask)
+      throws ModbusException {
+    m_MaskWriteRegisterRequest.setReference(ref);
+    m_MaskWriteRegisterRequest.setAndMask(andmask);
+    m_MaskWriteRegisterRequest.setOrMask(ormask);
+    executeWrite(m_MaskWriteRegisterRequest);
+  }//maskWriteRegister
+
   /**
    * Writes a number of registers to the slave.
    *
@@ -268,8 +455,138 @@ public class ModbusUDPMaster {
       throws ModbusException {
     m_WriteMultipleRegistersRequest.setReference(ref);
     m_WriteMultipleRegistersRequest.setRegisters(registers);
-    m_Transaction.setRequest(m_WriteMultipleRegistersRequest);
-    m_Transaction.execute();
+    executeWrite(m_WriteMultipleRegistersRequest);
   }//writeMultipleRegisters
 
+  /**
+   * Writes a number of registers to the slave and reads
+   * a number of registers back in a single transaction.
+   * The slave writes before it reads.
+   *
+   * @param readref   the offset of the register to start reading from.
+   * @param count     the number of registers to be read.
+   * @param writeref  the offset of the register to start writing to.
+   * @param registers a <tt>Register[]</tt> holding the values of
+   *                  the registers to be written.
+   * @return a <tt>Register[]</tt> holding the registers read.
+   * @throws ModbusException if an I/O error, a slave exception or
+   *                         a transaction error occurs.
+   */
+  public synchronized Register[] readWriteMultipleRegisters(int readref, int count,
+                                                            int writeref, Register[] registers)
+      throws ModbusException {
+    m_ReadWriteMultipleRequest.setReadReference(readref);
+    m_ReadWriteMultipleRequest.setReadWordCount(count);
+    m_ReadWriteMultipleRequest.setWriteReference(writeref);
+    m_ReadWriteMultipleRequest.setRegisters(registers);
+    executeWrite(m_ReadWriteMultipleRequest);
+    return ((ReadWriteMultipleResponse) m_Transaction.getResponse()).getRegisters();
+  }//readWriteMultipleRegisters
+
+  /**
+   * Copies the coil states of a response into a <tt>BitVector</tt>
+   * of its own, as a cached response is shared by all readers.
+   *
+   * @param res   the <tt>ReadCoilsResponse</tt>.
+   * @param count the number of coil states requested.
+   * @return a new <tt>BitVector</tt> of <tt>count</tt> bits.
+   */
+  private static BitVector copyCoils(ReadCoilsResponse res, int count) {
+    BitVector bv = new BitVector(count);
+    res.getCoils(bv, 0, count);
+    return bv;
+  }//copyCoils
+
+  /**
+   * Copies the input discrete states of a response into a
+   * <tt>BitVector</tt> of its own.
+   *
+   * @param res   the <tt>ReadInputDiscretesResponse</tt>.
+   * @param count the number of input discrete states requested.
+   * @return a new <tt>BitVector</tt> of <tt>count</tt> bits.
+   */
+  private static BitVector copyDiscretes(ReadInputDiscretesResponse res, int count) {
+    BitVector bv = new BitVector(count);
+    res.getDiscretes(bv, 0, count);
+    return bv;
+  }//copyDiscretes
+
+  /**
+   * Creates input registers of their own from the values of a response.
+   *
+   * @param res the <tt>ReadInputRegistersResponse</tt>.
+   * @return a new <tt>InputRegister[]</tt>.
+   */
+  private static InputRegister[] copyRegisters(ReadInputRegistersResponse res) {
+    int[] values = new int[res.getWordCount()];
+    res.getRegisterValues(values, 0);
+    ProcessImageFactory pimf = ModbusCoupler.getReference().getProcessImageFactory();
+    InputRegister[] regs = new InputRegister[values.length];
+    for (int i = 0; i < values.length; i++) {
+      regs[i] = pimf.createInputRegister((byte) (values[i] >> 8), (byte) values[i]);
+    }
+    return regs;
+  }//copyRegisters
+
+  /**
+   * Creates registers of their own from the values of a response.
+   *
+   * @param res the <tt>ReadMultipleRegistersResponse</tt>.
+   * @return a new <tt>Register[]</tt>.
+   */
+  private static Register[] copyRegisters(ReadMultipleRegistersResponse res) {
+    int[] values = new int[res.getWordCount()];
+    res.getRegisterValues(values, 0);
+    ProcessImageFactory pimf = ModbusCoupler.getReference().getProcessImageFactory();
+    Register[] regs = new Register[values.length];
+    for (int i = 0; i < values.length; i++) {
+      regs[i] = pimf.createRegister((byte) (values[i] >> 8), (byte) values[i]);
+    }
+    return regs;
+  }//copyRegisters
+
+  /**
+   * Executes a read, from the cache if there is one.
+   *
+   * @param req the read <tt>ModbusRequest</tt>.
+   * @return the <tt>ModbusResponse</tt>.
+   * @throws ModbusException if the request fails.
+   */
+  private ModbusResponse executeRead(ModbusRequest req)
+      throws ModbusException {
+    ReadCache cache = m_ReadCache;
+    if (cache == null) {
+      m_Transaction.setRequest(req);
+      m_Transaction.execute();
+      return m_Transaction.getResponse();
+    }
+    return cache.read(m_Endpoint, req, new ReadCache.Loader() {
+      public ModbusResponse load(ModbusRequest r) throws ModbusException {
+        m_Transaction.setRequest(r);
+        m_Transaction.execute();
+        return m_Transaction.getResponse();
+      }//load
+    });
+  }//executeRead
+
+  /**
+   * Executes a write, evicting the cached ranges it overlaps
+   * whether it succeeds or not.
+   *
+   * @param req the write <tt>ModbusRequest</tt>.
+   * @throws ModbusException if the request fails.
+   */
+  private void executeWrite(ModbusRequest req)
+      throws ModbusException {
+    m_Transaction.setRequest(req);
+    try {
+      m_Transaction.execute();
+    } finally {
+      ReadCache cache = m_ReadCache;
+      if (cache != null) {
+        cache.invalidate(m_Endpoint, req);
+      }
+    }
+  }//executeWrite
+
 }//class ModbusUDPMaster
@@ -0,0 +1,580 @@
+/***
+ * Copyright 2002-2010 jamod development team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***/
+
+
+package net.wimpi.modbus.io;
+
+import java.util.Arrays;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import net.wimpi.modbus.msg.ModbusResponse;
+import net.wimpi.modbus.msg.ReadCoilsResponse;
+import net.wimpi.modbus.msg.ReadInputDiscretesResponse;
+import net.wimpi.modbus.msg.ReadInputRegistersResponse;
+import net.wimpi.modbus.msg.ReadMultipleRegistersResponse;
+import net.wimpi.modbus.msg.ReadWriteMultipleResponse;
+import net.wimpi.modbus.util.BitVector;
+import net.wimpi.modbus.util.RegisterCodec;
+
+/**
+ * Class implementing a change detector for a
+ * polled block of registers, coils or discretes.
+ * <p>
+ * The detector keeps the last value of every address in
+ * primitive arrays and compares each new read against them,
+ * reporting only the addresses that changed to its
+ * registered {@link ChangeListener}s. The first update
+ * reports all values, as does the first update after a
+ * channel was added for the values of that channel.
+ * <p>
+ * Listeners are invoked after the detector has been released,
+ * so they may query or update it. The changes of concurrent
+ * updates may be reported in either order.
+ * <p>
+ * Raw registers and bits are compared exactly. Registers
+ * can be grouped into typed channels (e.g. a float taking
+ * two registers), which are decoded with the {@link RegisterCodec}
+ * and reported only if they moved beyond an absolute or
+ * percent deadband from the value reported last.
+ * <p>
+ * A detector is typically fed from a {@link ScanListener}
+ * with the response of a transaction or a range of a
+ * {@link ReadPlan}.
+ *
+ * @author Dieter Wimberger
+ * @version @version@ (@date@)
+ */
+public class ChangeDetector {
+
+  /**
+   * Type of a channel holding an unsigned 16 bit value.
+   */
+  public static final int TYPE_UINT16 = 0;
+
+  /**
+   * Type of a channel holding a signed 16 bit value.
+   */
+  public static final int TYPE_INT16 = 1;
+
+  /**
+   * Type of a channel holding a signed 32 bit value.
+   */
+  public static final int TYPE_INT32 = 2;
+
+  /**
+   * Type of a channel holding an unsigned 32 bit value.
+   */
+  public static final int TYPE_UINT32 = 3;
+
+  /**
+   * Type of a channel holding a single precision value.
+   */
+  public static final int TYPE_FLOAT32 = 4;
+
+  /**
+   * Type of a channel holding a signed 64 bit value.
+   */
+  public static final int TYPE_INT64 = 5;
+
+  /**
+   * Type of a channel holding a double precision value.
+   */
+  public static final int TYPE_FLOAT64 = 6;
+
+  //instance attributes
+  private final int m_Reference;
+  private final int m_Count;
+  private final int[] m_Last;
+  private final int[] m_Channel;
+  private final int[] m_Scratch;
+  private boolean m_Primed;
+
+  //channels
+  private int m_Channels;
+  private final int[] m_ChOffset;
+  private final int[] m_ChType;
+  private final int[] m_ChOrder;
+  private final double[] m_ChDeadband;
+  private final boolean[] m_ChPercent;
+  private final double[] m_ChReported;
+  private final boolean[] m_ChPrimed;
+
+  //changes found by an update, reported after releasing the lock
+  private final int[] m_ChangedRef;
+  private final double[] m_ChangedOld;
+  private final double[] m_ChangedNew;
+
+  //decoding buffers
+  private final int[] m_IntBuf = new int[1];
+  private final long[] m_LongBuf = new long[1];
+  private final float[] m_FloatBuf = new float[1];
+  private final double[] m_DoubleBuf = new double[1];
+
+  //statistics
+  private long m_Updates;
+  private long m_Changes;
+
+  private final CopyOnWriteArrayList<ChangeListener> m_Listeners =
+      new CopyOnWriteArrayList<ChangeListener>();
+
+  /**
+   * Constructs a new <tt>ChangeDetector</tt> instance
+   * for the given block of addresses.
+   *
+   * @param ref   the reference of the first address.
+   * @param count the number of addresses.
+   */
+  public ChangeDetector(int ref, int count) {
+    if (count < 1) {
+      throw new IllegalArgumentException("Count must be at least 1.");
+    }
+    m_Reference = ref;
+    m_Count = count;
+    m_Last = new int[count];
+    m_Scratch = new int[count];
+    m_Channel = new int[count];
+    Arrays.fill(m_Channel, -1);
+    m_ChOffset = new int[count];
+    m_ChType = new int[count];
+    m_ChOrder = new int[count];
+    m_ChDeadband = new double[count];
+    m_ChPercent = new boolean[count];
+    m_ChReported = new double[count];
+    m_ChPrimed = new boolean[count];
+    m_ChangedRef = new int[count];
+    m_ChangedOld = new double[count];
+    m_ChangedNew = new double[count];
+  }//constructor
+
+  /**
+   * Returns the reference of the first address
+   * of this <tt>ChangeDetector</tt>.
+   *
+   * @return the reference as <tt>int</tt>.
+   */
+  public int getReference() {
+    return m_Reference;
+  }//getReference
+
+  /**
+   * Returns the number of addresses of this
+   * <tt>ChangeDetector</tt>.
+   *
+   * @return the number of addresses as <tt>int</tt>.
+   */
+  public int getCount() {
+    return m_Count;
+  }//getCount
+
+  /**
+   * Adds a listener to this <tt>ChangeDetector</tt>.
+   *
+   * @param l the <tt>ChangeListener</tt> to be added.
+   */
+  public void addListener(ChangeListener l) {
+    if (l == null) {
+      throw new IllegalArgumentException("Listener must not be null.");
+    }
+    m_Listeners.addIfAbsent(l);
+  }//addListener
+
+  /**
+   * Removes a listener from this <tt>ChangeDetector</tt>.
+   *
+   * @param l the <tt>ChangeListener</tt> to be removed.
+   */
+  public void removeListener(ChangeListener l) {
+    m_Listeners.remove(l);
+  }//removeListener
+
+  /**
+   * Adds a typed channel starting at the given reference.
+   * <p>
+   * The registers of the channel are no longer reported
+   * individually; instead the decoded value is reported at
+   * the reference of the first register whenever it moved
+   * beyond the deadband from the value reported last.
+   * A deadband of 0 reports every change.
+   *
+   * @param ref      the reference of the first register of the channel.
+   * @param type     one of the <tt>TYPE_*</tt> constants.
+   * @param order    the word order as defined by {@link RegisterCodec},
+   *                 ignored for 16 bit types.
+   * @param deadband the deadband, absolute or in percent of the
+   *                 value reported last.
+   * @param percent  true if the deadband is given in percent,
+   *                 false if it is absolute.
+   * @return the index of the channel.
+   * @throws IllegalArgumentException if the channel does not fit
+   *                                  into the block or overlaps another one.
+   */
+  public synchronized int addChannel(int ref, int type, int order,
+                                     double deadband, boolean percent) {
+    int width = getWidth(type);
+    int offset = ref - m_Reference;
+    if (offset < 0 || offset + width > m_Count) {
+      throw new IllegalArgumentException("Channel out of range.");
+    }
+    if (deadband < 0 || Double.isNaN(deadband)) {
+      throw new IllegalArgumentException("Invalid deadband.");
+    }
+    if (width > 1 && (order < RegisterCodec.ABCD || order > RegisterCodec.DCBA)) {
+      throw new IllegalArgumentException("Invalid word order.");
+    }
+    for (int i = 0; i < width; i++) {
+      if (m_Channel[offset + i] != -1) {
+        throw new IllegalArgumentException("Channel overlaps channel " +
+            m_Channel[offset + i] + ".");
+      }
+    }
+    int ch = m_Channels++;
+    m_ChOffset[ch] = offset;
+    m_ChType[ch] = type;
+    m_ChOrder[ch] = order;
+    m_ChDeadband[ch] = deadband;
+    m_ChPercent[ch] = percent;
+    m_ChReported[ch] = Double.NaN;
+    //the channel reports its first value, the others do not
+    m_ChPrimed[ch] = false;
+    for (int i = 0; i < width; i++) {
+      m_Channel[offset + i] = ch;
+    }
+    return ch;
+  }//addChannel
+
+  /**
+   * Returns the number of typed channels of
+   * this <tt>ChangeDetector</tt>.
+   *
+   * @return the number of channels as <tt>int</tt>.
+   */
+  public synchronized int getChannelCount() {
+    return m_Channels;
+  }//getChannelCount
+
+  /**
+   * Returns the value of the given channel that
+   * was reported last.
+   *
+   * @param ch the index of the channel.
+   * @return the value, or <tt>Double.NaN</tt> if none was reported yet.
+   */
+  public synchronized double getChannelValue(int ch) {
+    if (ch < 0 || ch >= m_Channels) {
+      throw new IndexOutOfBoundsException();
+    }
+    return m_ChReported[ch];
+  }//getChannelValue
+
+  /**
+   * Compares the given values with the last ones and
+   * reports the changes to the listeners.
+   *
+   * @param values the unsigned register values or bits as 0 or 1.
+   * @param off    the index of the value of the first address.
+   * @return the number of changes reported.
+   */
+  public int update(int[] values, int off) {
+    Changes changes;
+    synchronized (this) {
+      changes = detect(values, off);
+    }
+    return fire(changes);
+  }//update
+
+  /**
+   * Compares the values read by the given response with
+   * the last ones and reports the changes to the listeners.
+   * <p>
+   * The response must read registers or bits and must not
+   * hold less values than addresses of this detector.
+   * Surplus bits, as padded by the protocol, are ignored.
+   *
+   * @param res the <tt>ModbusResponse</tt> of a read.
+   * @return the number of changes reported.
+   * @throws IllegalArgumentException if the response does not
+   *                                  fit this detector.
+   */
+  public int update(ModbusResponse res) {
+    Changes changes;
+    synchronized (this) {
+      if (res instanceof ReadMultipleRegistersResponse) {
+        ReadMultipleRegistersResponse r = (ReadMultipleRegistersResponse) res;
+        checkCount(r.getWordCount(), true);
+        r.getRegisterValues(m_Scratch, 0);
+      } else if (res instanceof ReadInputRegistersResponse) {
+        ReadInputRegistersResponse r = (ReadInputRegistersResponse) res;
+        checkCount(r.getWordCount(), true);
+        r.getRegisterValues(m_Scratch, 0);
+      } else if (res instanceof ReadWriteMultipleResponse) {
+        ReadWriteMultipleResponse r = (ReadWriteMultipleResponse) res;
+        checkCount(r.getWordCount(), true);
+        r.getRegisterValues(m_Scratch, 0);
+      } else if (res instanceof ReadCoilsResponse) {
+        copyBits(((ReadCoilsResponse) res).getCoils(), 0);
+      } else if (res instanceof ReadInputDiscretesResponse) {
+        copyBits(((ReadInputDiscretesResponse) res).getDiscretes(), 0);
+      } else {
+        throw new IllegalArgumentException("Response does not read registers or bits.");
+      }
+      changes = detect(m_Scratch, 0);
+    }
+    return fire(changes);
+  }//update
+
+  /**
+   * Compares the bits of the given vector with
+   * the last ones and reports the changes to the listeners.
+   *
+   * @param bits   the <tt>BitVector</tt> holding the bits.
+   * @param offset the index of the bit of the first address.
+   * @return the number of changes reported.
+   */
+  public int update(BitVector bits, int offset) {
+    Changes changes;
+    synchronized (this) {
+      copyBits(bits, offset);
+      changes = detect(m_Scratch, 0);
+    }
+    return fire(changes);
+  }//update
+
+  /**
+   * Compares the values of the given range of a plan with
+   * the last ones and reports the changes to the listeners.
+   *
+   * @param plan  the executed <tt>ReadPlan</tt>.
+   * @param range the index of the range, which must have
+   *              as many addresses as this detector.
+   * @return the number of changes reported.
+   */
+  public int update(ReadPlan plan, int range) {
+    Changes changes;
+    synchronized (this) {
+      int count = 0;
+      boolean bits = false;
+      try {
+        count = plan.getRegisterValues(range, m_Scratch, 0);
+      } catch (IndexOutOfBoundsException ex) {
+        throw new IllegalArgumentException("Range " + range + " does not fit detector.");
+      } catch (IllegalArgumentException ex) {
+        //not a register range
+        bits = true;
+      }
+      if (bits) {
+        copyBits(plan.getBits(range), 0);
+      } else {
+        checkCount(count, true);
+      }
+      changes = detect(m_Scratch, 0);
+    }
+    return fire(changes);
+  }//update
+
+  /**
+   * Forgets the last values, so that the next update
+   * reports all of them again.
+   */
+  public synchronized void reset() {
+    m_Primed = false;
+    Arrays.fill(m_ChReported, 0, m_Channels, Double.NaN);
+    Arrays.fill(m_ChPrimed, 0, m_Channels, false);
+  }//reset
+
+  /**
+   * Returns the number of updates of this <tt>ChangeDetector</tt>.
+   *
+   * @return the number of updates as <tt>long</tt>.
+   */
+  public synchronized long getUpdates() {
+    return m_Updates;
+  }//getUpdates
+
+  /**
+   * Returns the number of changes reported by this
+   * <tt>ChangeDetector</tt>.
+   *
+   * @return the number of changes as <tt>long</tt>.
+   */
+  public synchronized long getChanges() {
+    return m_Changes;
+  }//getChanges
+
+  /**
+   * Compares the given values with the last ones, holding the lock.
+   *
+   * @param values the unsigned register values or bits as 0 or 1.
+   * @param off    the index of the value of the first address.
+   * @return the <tt>Changes</tt> found, or null if none.
+   */
+  private Changes detect(int[] values, int off) {
+    if (off < 0 || off + m_Count > values.length) {
+      throw new IndexOutOfBoundsException();
+    }
+    final boolean primed = m_Primed;
+    int changes = 0;
+    for (int i = 0; i < m_Count; i++) {
+      int ch = m_Channel[i];
+      if (ch == -1) {
+        int v = values[off + i];
+        if (!primed || v != m_Last[i]) {
+          m_ChangedRef[changes] = m_Reference + i;
+          m_ChangedOld[changes] = (primed) ? m_Last[i] : Double.NaN;
+          m_ChangedNew[changes++] = v;
+        }
+        m_Last[i] = v;
+      } else if (m_ChOffset[ch] == i) {
+        double v = decode(ch, values, off + i);
+        double old = m_ChReported[ch];
+        if (exceeds(ch, old, v)) {
+          m_ChReported[ch] = v;
+          m_ChPrimed[ch] = true;
+          m_ChangedRef[changes] = m_Reference + i;
+          m_ChangedOld[changes] = old;
+          m_ChangedNew[changes++] = v;
+        }
+      }
+    }
+    m_Primed = true;
+    m_Updates++;
+    m_Changes += changes;
+    return (changes == 0) ? null : new Changes(this, changes);
+  }//detect
+
+  /**
+   * Reports the given changes to the listeners,
+   * without holding the lock.
+   *
+   * @param changes the <tt>Changes</tt>, or null if none.
+   * @return the number of changes reported.
+   */
+  private int fire(Changes changes) {
+    if (changes == null) {
+      return 0;
+    }
+    int count = changes.m_Ref.length;
+    for (int i = 0; i < count; i++) {
+      for (ChangeListener l : m_Listeners) {
+        l.valueChanged(this, changes.m_Ref[i], changes.m_Old[i], changes.m_New[i]);
+      }
+    }
+    for (ChangeListener l : m_Listeners) {
+      l.changesCompleted(this, count);
+    }
+    return count;
+  }//fire
+
+  private void copyBits(BitVector bits, int offset) {
+    checkCount(bits.size() - offset, false);
+    for (int i = 0; i < m_Count; i++) {
+      m_Scratch[i] = (bits.getBit(offset + i)) ? 1 : 0;
+    }
+  }//copyBits
+
+  private void checkCount(int count, boolean exact) {
+    if ((exact) ? count != m_Count : count < m_Count) {
+      throw new IllegalArgumentException("Read of " + count +
+          " values does not fit detector of " + m_Count + ".");
+    }
+  }//checkCount
+
+  /**
+   * Tests if the new value of a channel is to be reported.
+   *
+   * @param ch  the index of the channel.
+   * @param old the value reported last.
+   * @param v   the new value.
+   * @return true if the value is to be reported, false otherwise.
+   */
+  private boolean exceeds(int ch, double old, double v) {
+    if (!m_ChPrimed[ch]) {
+      //first value
+      return true;
+    }
+    if (Double.isNaN(old) || Double.isNaN(v)) {
+      //a float going to or coming from NaN
+      return !(Double.isNaN(old) && Double.isNaN(v));
+    }
+    double band = m_ChDeadband[ch];
+    if (band == 0) {
+      return v != old;
+    }
+    if (m_ChPercent[ch]) {
+      band = Math.abs(old) * band / 100;
+    }
+    return Math.abs(v - old) > band || (band == 0 && v != old);
+  }//exceeds
+
+  private double decode(int ch, int[] values, int idx) {
+    int order = m_ChOrder[ch];
+    switch (m_ChType[ch]) {
+      case TYPE_UINT16:
+        return values[idx] & 0xffff;
+      case TYPE_INT16:
+        return (short) values[idx];
+      case TYPE_INT32:
+        RegisterCodec.decodeInts(values, idx, m_IntBuf, 0, 1, order);
+        return m_IntBuf[0];
+      case TYPE_UINT32:
+        RegisterCodec.decodeUnsignedInts(values, idx, m_LongBuf, 0, 1, order);
+        return m_LongBuf[0];
+      case TYPE_FLOAT32:
+        RegisterCodec.decodeFloats(values, idx, m_FloatBuf, 0, 1, order);
+        return m_FloatBuf[0];
+      case TYPE_INT64:
+        RegisterCodec.decodeLongs(values, idx, m_LongBuf, 0, 1, order);
+        return m_LongBuf[0];
+      default:
+        RegisterCodec.decodeDoubles(values, idx, m_DoubleBuf, 0, 1, order);
+        return m_DoubleBuf[0];
+    }
+  }//decode
+
+  private static int getWidth(int type) {
+    switch (type) {
+      case TYPE_UINT16:
+      case TYPE_INT16:
+        return 1;
+      case TYPE_INT32:
+      case TYPE_UINT32:
+      case TYPE_FLOAT32:
+        return 2;
+      case TYPE_INT64:
+      case TYPE_FLOAT64:
+        return 4;
+      default:
+        throw new IllegalArgumentException("Invalid channel type " + type + ".");
+    }
+  }//getWidth
+
+  /**
+   * Inner class holding the changes found by an update.
+   */
+  private static class Changes {
+
+    private final int[] m_Ref;
+    private final double[] m_Old;
+    private final double[] m_New;
+
+    public Changes(ChangeDetector det, int count) {
+      m_Ref = Arrays.copyOf(det.m_ChangedRef, count);
+      m_Old = Arrays.copyOf(det.m_ChangedOld, count);
+      m_New = Arrays.copyOf(det.m_ChangedNew, count);
+    }//constructor
+
+  }//inner class Changes
+
+}//class ChangeDetector
@@ -0,0 +1,57 @@
+/***
+ * Copyright 2002-2010 jamod development team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***/
+
+
+package net.wimpi.modbus.io;
+
+/**
+ * Interface defining a listener that is notified
+ * of the values a {@link ChangeDetector} found changed.
+ * <p>
+ * Listeners are invoked on the thread that updated the
+ * detector, thus they should return quickly.
+ *
+ * @author Dieter Wimberger
+ * @version @version@ (@date@)
+ */
+public interface ChangeListener {
+
+  /**
+   * Invoked for each value that changed beyond its deadband.
+   * <p>
+   * Raw registers and bits are reported as their unsigned
+   * value; typed channels are reported as the decoded value
+   * at the reference of their first register.
+   *
+   * @param det      the <tt>ChangeDetector</tt> reporting the change.
+   * @param ref      the reference of the value.
+   * @param oldValue the value reported before, <tt>Double.NaN</tt>
+   *                 on the first update.
+   * @param newValue the new value.
+   */
+  public void valueChanged(ChangeDetector det, int ref,
+                           double oldValue, double newValue);
+
+  /**
+   * Invoked once per update that reported at least one change,
+   * after the last call to {@link #valueChanged}.
+   *
+   * @param det   the <tt>ChangeDetector</tt> reporting the changes.
+   * @param count the number of changes reported by the update.
+   */
+  public void changesCompleted(ChangeDetector det, int count);
+
+}//interface ChangeListener
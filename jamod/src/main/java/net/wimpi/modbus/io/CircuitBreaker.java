@@ -0,0 +1,172 @@
+/***
+ * Copyright 2002-2010 jamod development team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***/
+
+package net.wimpi.modbus.io;
+
+/**
+ * Class implementing a circuit breaker for a single device.
+ * <p>
+ * After a configured number of consecutive failed attempts
+ * the breaker opens, and transactions fail fast without touching
+ * the device for the cooling-off period. Afterwards a single
+ * trial transaction is let through: if it succeeds the breaker
+ * closes, otherwise it opens again.
+ * <p>
+ * Only I/O failures such as timeouts count; an exception
+ * response proves that the device is alive.
+ *
+ * @author Dieter Wimberger
+ * @version @version@ (@date@)
+ */
+public class CircuitBreaker {
+
+  /**
+   * Defines the state in which transactions pass.
+   */
+  public static final int CLOSED = 0;
+
+  /**
+   * Defines the state in which transactions fail fast.
+   */
+  public static final int OPEN = 1;
+
+  /**
+   * Defines the state in which a single trial transaction passes.
+   */
+  public static final int HALF_OPEN = 2;
+
+  private int m_Threshold;
+  private long m_CoolOff;
+  private int m_State = CLOSED;
+  private int m_Failures;
+  private long m_OpenedAt;
+  private boolean m_Trial;
+
+  /**
+   * Constructs a new <tt>CircuitBreaker</tt> instance.
+   *
+   * @param threshold the number of consecutive failures opening the breaker.
+   * @param cooloff   the cooling-off period in milliseconds.
+   */
+  public CircuitBreaker(int threshold, long cooloff) {
+    if (threshold < 1) {
+      throw new IllegalArgumentException("Threshold must be at least 1.");
+    }
+    m_Threshold = threshold;
+    m_CoolOff = cooloff;
+  }//constructor
+
+  /**
+   * Returns the number of consecutive failures
+   * opening this <tt>CircuitBreaker</tt>.
+   *
+   * @return the threshold as <tt>int</tt>.
+   */
+  public int getThreshold() {
+    return m_Threshold;
+  }//getThreshold
+
+  /**
+   * Returns the cooling-off period of this <tt>CircuitBreaker</tt>.
+   *
+   * @return the period in milliseconds.
+   */
+  public long getCoolOff() {
+    return m_CoolOff;
+  }//getCoolOff
+
+  /**
+   * Returns the state of this <tt>CircuitBreaker</tt>.
+   *
+   * @return one of <tt>CLOSED</tt>, <tt>OPEN</tt> or <tt>HALF_OPEN</tt>.
+   */
+  public synchronized int getState() {
+    if (m_State == OPEN
+        && System.currentTimeMillis() - m_OpenedAt >= m_CoolOff) {
+      m_State = HALF_OPEN;
+    }
+    return m_State;
+  }//getState
+
+  /**
+   * Returns the number of consecutive failures.
+   *
+   * @return the number of failures as <tt>int</tt>.
+   */
+  public synchronized int getFailures() {
+    return m_Failures;
+  }//getFailures
+
+  /**
+   * Tests if an attempt may be made. In the half-open
+   * state only one trial attempt is granted at a time.
+   *
+   * @return true if the attempt may be made, false if it should fail fast.
+   */
+  public synchronized boolean allowRequest() {
+    switch (getState()) {
+      case CLOSED:
+        return true;
+      case HALF_OPEN:
+        if (m_Trial) {
+          return false;
+        }
+        m_Trial = true;
+        return true;
+      default:
+        return false;
+    }
+  }//allowRequest
+
+  /**
+   * Records a successful attempt, closing this breaker.
+   */
+  public synchronized void recordSuccess() {
+    m_Failures = 0;
+    m_Trial = false;
+    m_State = CLOSED;
+  }//recordSuccess
+
+  /**
+   * Records a failed attempt, opening this breaker if
+   * the threshold is reached or the trial attempt failed.
+   */
+  public synchronized void recordFailure() {
+    m_Failures++;
+    if (m_Trial || m_Failures >= m_Threshold) {
+      m_Trial = false;
+      m_State = OPEN;
+      m_OpenedAt = System.currentTimeMillis();
+    }
+  }//recordFailure
+
+  /**
+   * Releases an attempt granted by {@link #allowRequest()}
+   * that ended without reaching the device, e.g. because the
+   * calling thread was interrupted.
+   */
+  public synchronized void releaseRequest() {
+    m_Trial = false;
+  }//releaseRequest
+
+  /**
+   * Resets this <tt>CircuitBreaker</tt> to the closed state.
+   */
+  public void reset() {
+    recordSuccess();
+  }//reset
+
+}//class CircuitBreaker
@@ -0,0 +1,107 @@
+/***
+ * Copyright 2002-2010 jamod development team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***/
+
+package net.wimpi.modbus.io;
+
+import java.util.Random;
+
+import net.wimpi.modbus.ModbusIOException;
+
+/**
+ * Class implementing a <tt>RetryPolicy</tt> that doubles
+ * the delay with each retry, up to a maximum.
+ * <p>
+ * A random jitter is applied to every delay, so that
+ * masters polling the same devices do not retry in lockstep.
+ * With a jitter of 0.5, a delay of 100 ms becomes a value
+ * between 50 and 150 ms.
+ *
+ * @author Dieter Wimberger
+ * @version @version@ (@date@)
+ */
+public class ExponentialBackoffRetryPolicy
+    implements RetryPolicy {
+
+  private long m_InitialDelay;
+  private long m_MaxDelay;
+  private double m_Jitter;
+  private final Random m_Random = new Random();
+
+  /**
+   * Constructs a new <tt>ExponentialBackoffRetryPolicy</tt>
+   * instance.
+   *
+   * @param initial the delay before the first retry in milliseconds.
+   * @param max     the maximum delay in milliseconds.
+   * @param jitter  the fraction of each delay that is randomized,
+   *                between 0 and 1.
+   */
+  public ExponentialBackoffRetryPolicy(long initial, long max, double jitter) {
+    if (initial < 0 || max < initial) {
+      throw new IllegalArgumentException("Invalid delays.");
+    }
+    if (jitter < 0 || jitter > 1) {
+      throw new IllegalArgumentException("Jitter must be between 0 and 1.");
+    }
+    m_InitialDelay = initial;
+    m_MaxDelay = max;
+    m_Jitter = jitter;
+  }//constructor
+
+  /**
+   * Returns the delay before the first retry.
+   *
+   * @return the delay in milliseconds.
+   */
+  public long getInitialDelay() {
+    return m_InitialDelay;
+  }//getInitialDelay
+
+  /**
+   * Returns the maximum delay between retries.
+   *
+   * @return the delay in milliseconds.
+   */
+  public long getMaxDelay() {
+    return m_MaxDelay;
+  }//getMaxDelay
+
+  /**
+   * Returns the fraction of each delay that is randomized.
+   *
+   * @return the jitter as <tt>double</tt>.
+   */
+  public double getJitter() {
+    return m_Jitter;
+  }//getJitter
+
+  public long getRetryDelay(int retry, ModbusIOException cause) {
+    long delay = m_InitialDelay;
+    for (int i = 1; i < retry && delay < m_MaxDelay; i++) {
+      delay <<= 1;
+    }
+    delay = Math.min(delay, m_MaxDelay);
+    if (m_Jitter > 0 && delay > 0) {
+      double factor;
+      synchronized (m_Random) {
+        factor = (m_Random.nextDouble() * 2 - 1) * m_Jitter;
+      }
+      delay += (long) (delay * factor);
+    }
+    return delay;
+  }//getRetryDelay
+
+}//class ExponentialBackoffRetryPolicy
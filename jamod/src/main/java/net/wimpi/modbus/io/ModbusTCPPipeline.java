@@ -0,0 +1,571 @@
+/***
+ * Copyright 2002-2010 jamod development team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***/
+
+package net.wimpi.modbus.io;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import net.wimpi.modbus.Modbus;
+import net.wimpi.modbus.ModbusIOException;
+import net.wimpi.modbus.ModbusSlaveException;
+import net.wimpi.modbus.msg.ExceptionResponse;
+import net.wimpi.modbus.msg.ModbusRequest;
+import net.wimpi.modbus.msg.ModbusResponse;
+import net.wimpi.modbus.util.AtomicCounter;
+
+/**
+ * Class implementing a pipeline of outstanding
+ * Modbus/TCP transactions on a single connection.
+ * <p>
+ * Requests are written as soon as a slot in the window
+ * of outstanding requests is available. A dedicated reader
+ * thread takes the responses off the wire and hands each one
+ * to the caller waiting for the matching MBAP transaction
+ * identifier, thus responses may arrive in any order.
+ * <p>
+ * Requests passed with a <tt>TransactionCallback</tt> do not
+ * block the caller: if the window is full they are queued, and
+ * they are completed by the reader thread, or failed by a timer
+ * thread shared by all pipelines once their timeout has passed.
+ *
+ * @author Dieter Wimberger
+ * @version @version@ (@date@)
+ */
+public class ModbusTCPPipeline
+    implements Runnable {
+
+  //class attributes
+  private static ScheduledThreadPoolExecutor c_Timer;
+
+  //instance attributes and associations
+  private ModbusTransport m_IO;
+  private int m_Window;
+  private Semaphore m_Slots;
+  private final Map<Integer, PendingResponse> m_Pending =
+      new HashMap<Integer, PendingResponse>();
+  private final ArrayDeque<PendingResponse> m_Waiting =
+      new ArrayDeque<PendingResponse>();
+  private final Object m_WriteLock = new Object();
+  private AtomicCounter m_TransactionID =
+      new AtomicCounter(Modbus.DEFAULT_TRANSACTION_ID);
+  private Thread m_Reader;
+  private volatile boolean m_Running;
+  private volatile ModbusIOException m_Failure;
+
+  /**
+   * Constructs a new <tt>ModbusTCPPipeline</tt> instance
+   * working on the given transport.
+   *
+   * @param io     the <tt>ModbusTransport</tt> of an open connection.
+   * @param window the maximum number of outstanding requests.
+   */
+  public ModbusTCPPipeline(ModbusTransport io, int window) {
+    if (window < 1) {
+      throw new IllegalArgumentException("Window must be at least 1.");
+    }
+    m_IO = io;
+    m_Window = window;
+    m_Slots = new Semaphore(window, true);
+  }//constructor
+
+  /**
+   * Returns the maximum number of outstanding requests
+   * of this <tt>ModbusTCPPipeline</tt>.
+   *
+   * @return the window size as <tt>int</tt>.
+   */
+  public int getWindow() {
+    return m_Window;
+  }//getWindow
+
+  /**
+   * Returns the number of requests that are currently
+   * awaiting their response.
+   *
+   * @return the number of outstanding requests as <tt>int</tt>.
+   */
+  public int getOutstanding() {
+    synchronized (m_Pending) {
+      return m_Pending.size();
+    }
+  }//getOutstanding
+
+  /**
+   * Returns the number of requests passed with a callback
+   * that are waiting for a slot in the window.
+   *
+   * @return the number of queued requests as <tt>int</tt>.
+   */
+  public int getQueued() {
+    synchronized (m_Waiting) {
+      return m_Waiting.size();
+    }
+  }//getQueued
+
+  /**
+   * Tests if this <tt>ModbusTCPPipeline</tt> is running,
+   * i.e. if its reader has not been stopped or failed.
+   *
+   * @return true if running, false otherwise.
+   */
+  public boolean isRunning() {
+    return m_Running;
+  }//isRunning
+
+  /**
+   * Starts the reader of this <tt>ModbusTCPPipeline</tt>.
+   */
+  public synchronized void start() {
+    if (!m_Running) {
+      m_Failure = null;
+      m_Running = true;
+      m_Reader = new Thread(this, "ModbusTCPPipeline");
+      m_Reader.setDaemon(true);
+      m_Reader.start();
+    }
+  }//start
+
+  /**
+   * Stops this <tt>ModbusTCPPipeline</tt>.
+   * All outstanding requests fail with a
+   * <tt>ModbusIOException</tt>.
+   * <p>
+   * Note that the reader will only return once the
+   * underlying transport has been closed.
+   */
+  public synchronized void stop() {
+    if (m_Running) {
+      m_Running = false;
+      failAll(new ModbusIOException("Pipeline stopped.", true));
+    }
+  }//stop
+
+  /**
+   * Sends the given request and waits for the
+   * response with the matching transaction identifier.
+   * <p>
+   * The transaction identifier of the request is
+   * assigned by this <tt>ModbusTCPPipeline</tt>.
+   *
+   * @param req     the <tt>ModbusRequest</tt> to be sent.
+   * @param timeout the time to wait for a free slot and for
+   *                the response in milliseconds.
+   * @return the matching <tt>ModbusResponse</tt>.
+   * @throws ModbusIOException if the request cannot be written,
+   *                           the response does not arrive in time
+   *                           or the pipeline fails.
+   */
+  public ModbusResponse execute(ModbusRequest req, long timeout)
+      throws ModbusIOException {
+
+    long start = System.currentTimeMillis();
+    try {
+      if (!m_Slots.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+        throw new ModbusIOException("No free slot in pipeline window.");
+      }
+    } catch (InterruptedException ex) {
+      throw new ModbusIOException("Thread waiting for pipeline slot was interrupted.");
+    }
+    PendingResponse pending = new PendingResponse(req, null);
+    int tid = -1;
+    try {
+      //1. register under a transaction identifier not in use
+      synchronized (m_Pending) {
+        assertRunning();
+        do {
+          tid = m_TransactionID.increment();
+        } while (m_Pending.containsKey(tid));
+        m_Pending.put(tid, pending);
+      }
+      req.setTransactionID(tid);
+
+      //2. write, other writers may follow right away
+      synchronized (m_WriteLock) {
+        m_IO.writeMessage(req);
+      }
+
+      //3. wait for the matching response
+      long remaining = timeout - (System.currentTimeMillis() - start);
+      return pending.await(remaining);
+    } finally {
+      if (tid != -1) {
+        synchronized (m_Pending) {
+          //only remove the entry if it has not been reused
+          if (m_Pending.get(tid) == pending) {
+            m_Pending.remove(tid);
+          }
+        }
+      }
+      //the next queued request, if any, takes the slot
+      releaseSlot();
+    }
+  }//execute
+
+  /**
+   * Sends the given request without waiting for the response,
+   * which is passed to the given callback instead. If the window
+   * is full, the request is queued until a slot is available.
+   * <p>
+   * The transaction identifier of the request is
+   * assigned by this <tt>ModbusTCPPipeline</tt>. An exception
+   * response of the slave fails the request with a
+   * <tt>ModbusSlaveException</tt>.
+   *
+   * @param req      the <tt>ModbusRequest</tt> to be sent.
+   * @param timeout  the time to wait for a free slot and for
+   *                 the response in milliseconds.
+   * @param callback the <tt>TransactionCallback</tt> receiving the outcome.
+   */
+  public void execute(ModbusRequest req, long timeout, TransactionCallback callback) {
+    PendingResponse pending = new PendingResponse(req, callback);
+    if (!m_Running) {
+      pending.fail(failure());
+      return;
+    }
+    boolean queued = false;
+    synchronized (m_Waiting) {
+      if (!m_Slots.tryAcquire()) {
+        m_Waiting.addLast(pending);
+        queued = true;
+      }
+    }
+    if (!queued) {
+      send(pending);
+    }
+    if (!pending.isDone()) {
+      pending.m_Timeout = getTimer().schedule(new Expiry(pending),
+          timeout, TimeUnit.MILLISECONDS);
+    }
+  }//execute
+
+  /**
+   * Writes a request passed with a callback, which holds a slot.
+   *
+   * @param pending the <tt>PendingResponse</tt> of the request.
+   */
+  private void send(PendingResponse pending) {
+    int tid;
+    synchronized (m_Pending) {
+      if (pending.isDone()) {
+        //expired, the slot has been released already
+        return;
+      }
+      if (!m_Running) {
+        tid = -1;
+      } else {
+        do {
+          tid = m_TransactionID.increment();
+        } while (m_Pending.containsKey(tid));
+        m_Pending.put(tid, pending);
+        pending.m_ID = tid;
+      }
+    }
+    if (tid == -1) {
+      fail(pending, failure());
+      return;
+    }
+    ModbusRequest req = pending.m_Request;
+    req.setTransactionID(tid);
+    try {
+      synchronized (m_WriteLock) {
+        m_IO.writeMessage(req);
+      }
+    } catch (ModbusIOException ex) {
+      synchronized (m_Pending) {
+        if (m_Pending.get(tid) == pending) {
+          m_Pending.remove(tid);
+        }
+      }
+      fail(pending, ex);
+    }
+  }//send
+
+  /**
+   * Fails a request passed with a callback, releasing
+   * its slot if it had been taken off the queue.
+   *
+   * @param pending the <tt>PendingResponse</tt> of the request.
+   * @param ex      the <tt>ModbusIOException</tt> to be raised.
+   */
+  private void fail(PendingResponse pending, ModbusIOException ex) {
+    boolean queued;
+    synchronized (m_Waiting) {
+      queued = m_Waiting.remove(pending);
+    }
+    if (pending.fail(ex) && pending.m_Callback != null && !queued) {
+      releaseSlot();
+    }
+  }//fail
+
+  /**
+   * Hands a freed slot to the next request queued with a
+   * callback, or returns it to the window.
+   */
+  private void releaseSlot() {
+    PendingResponse next;
+    synchronized (m_Waiting) {
+      next = m_Waiting.pollFirst();
+      if (next == null) {
+        m_Slots.release();
+      }
+    }
+    if (next != null) {
+      send(next);
+    }
+  }//releaseSlot
+
+  /**
+   * Returns the exception failing a request
+   * that cannot be sent.
+   *
+   * @return a <tt>ModbusIOException</tt>.
+   */
+  private ModbusIOException failure() {
+    try {
+      assertRunning();
+      return new ModbusIOException("Pipeline not running.", true);
+    } catch (ModbusIOException ex) {
+      return ex;
+    }
+  }//failure
+
+  /**
+   * Reads responses and dispatches them to the
+   * waiting callers, until stopped or the transport fails.
+   */
+  public void run() {
+    try {
+      while (m_Running) {
+        ModbusResponse res = m_IO.readResponse();
+        PendingResponse pending = null;
+        synchronized (m_Pending) {
+          pending = m_Pending.remove(res.getTransactionID());
+        }
+        if (pending != null) {
+          if (pending.complete(res) && pending.m_Callback != null) {
+            releaseSlot();
+          }
+        } else if (Modbus.debug) {
+          System.out.println("ModbusTCPPipeline::Discarding late or unknown response " +
+              res.getTransactionID());
+        }
+      }
+    } catch (ModbusIOException ex) {
+      if (m_Running) {
+        m_Running = false;
+        failAll(ex);
+      }
+    }
+  }//run
+
+  /**
+   * Fails all outstanding requests with the given exception.
+   *
+   * @param ex the <tt>ModbusIOException</tt> to be raised.
+   */
+  private void failAll(ModbusIOException ex) {
+    List<PendingResponse> sent;
+    List<PendingResponse> queued;
+    synchronized (m_Pending) {
+      m_Failure = ex;
+      sent = new ArrayList<PendingResponse>(m_Pending.values());
+      m_Pending.clear();
+    }
+    synchronized (m_Waiting) {
+      queued = new ArrayList<PendingResponse>(m_Waiting);
+      m_Waiting.clear();
+    }
+    //callbacks are invoked outside of the monitors
+    for (int i = 0; i < queued.size(); i++) {
+      queued.get(i).fail(ex);
+    }
+    for (int i = 0; i < sent.size(); i++) {
+      PendingResponse pending = sent.get(i);
+      if (pending.fail(ex) && pending.m_Callback != null) {
+        releaseSlot();
+      }
+    }
+  }//failAll
+
+  /**
+   * Returns the timer expiring the requests passed
+   * with a callback, which is shared by all pipelines.
+   *
+   * @return the timer as <tt>ScheduledThreadPoolExecutor</tt>.
+   */
+  private static synchronized ScheduledThreadPoolExecutor getTimer() {
+    if (c_Timer == null) {
+      c_Timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "ModbusTCPPipeline-timer");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+      c_Timer.setRemoveOnCancelPolicy(true);
+    }
+    return c_Timer;
+  }//getTimer
+
+  /**
+   * Asserts that this pipeline accepts requests.
+   *
+   * @throws ModbusIOException if the pipeline is not running.
+   */
+  private void assertRunning() throws ModbusIOException {
+    if (!m_Running) {
+      if (m_Failure != null) {
+        throw new ModbusIOException("Pipeline failed: " + m_Failure.getMessage(), true);
+      }
+      throw new ModbusIOException("Pipeline not running.", true);
+    }
+  }//assertRunning
+
+  /**
+   * Inner class failing a request passed with a callback
+   * once its timeout has passed.
+   */
+  private class Expiry implements Runnable {
+
+    private final PendingResponse m_Expired;
+
+    public Expiry(PendingResponse pending) {
+      m_Expired = pending;
+    }//constructor
+
+    public void run() {
+      synchronized (m_Pending) {
+        if (m_Pending.get(m_Expired.m_ID) == m_Expired) {
+          m_Pending.remove(m_Expired.m_ID);
+        }
+      }
+      fail(m_Expired, new ModbusIOException("Response timed out."));
+    }//run
+
+  }//inner class Expiry
+
+  /**
+   * Inner class holding the outcome of a single
+   * outstanding request, which is either awaited by
+   * the caller or passed to a callback.
+   */
+  private static class PendingResponse {
+
+    private final ModbusRequest m_Request;
+    private final TransactionCallback m_Callback;
+    private volatile ScheduledFuture<?> m_Timeout;
+    private int m_ID = -1;
+    private ModbusResponse m_Response;
+    private ModbusIOException m_Exception;
+    private boolean m_Done;
+
+    public PendingResponse(ModbusRequest req, TransactionCallback callback) {
+      m_Request = req;
+      m_Callback = callback;
+    }//constructor
+
+    public synchronized boolean isDone() {
+      return m_Done;
+    }//isDone
+
+    /**
+     * Completes with the given response.
+     *
+     * @param res the <tt>ModbusResponse</tt> received.
+     * @return true if completed, false if already done.
+     */
+    public boolean complete(ModbusResponse res) {
+      synchronized (this) {
+        if (m_Done) {
+          return false;
+        }
+        m_Response = res;
+        m_Done = true;
+        notifyAll();
+      }
+      if (m_Callback != null) {
+        cancelTimeout();
+        if (res instanceof ExceptionResponse) {
+          m_Callback.failed(m_Request,
+              new ModbusSlaveException(((ExceptionResponse) res).getExceptionCode()));
+        } else {
+          m_Callback.completed(m_Request, res);
+        }
+      }
+      return true;
+    }//complete
+
+    /**
+     * Fails with the given exception.
+     *
+     * @param ex the <tt>ModbusIOException</tt> to be raised.
+     * @return true if failed, false if already done.
+     */
+    public boolean fail(ModbusIOException ex) {
+      synchronized (this) {
+        if (m_Done) {
+          return false;
+        }
+        m_Exception = ex;
+        m_Done = true;
+        notifyAll();
+      }
+      if (m_Callback != null) {
+        cancelTimeout();
+        m_Callback.failed(m_Request, ex);
+      }
+      return true;
+    }//fail
+
+    private void cancelTimeout() {
+      ScheduledFuture<?> timeout = m_Timeout;
+      if (timeout != null) {
+        timeout.cancel(false);
+      }
+    }//cancelTimeout
+
+    public synchronized ModbusResponse await(long msecs)
+        throws ModbusIOException {
+      long deadline = System.currentTimeMillis() + msecs;
+      try {
+        while (!m_Done) {
+          long waitTime = deadline - System.currentTimeMillis();
+          if (waitTime <= 0) {
+            throw new ModbusIOException("Response timed out.");
+          }
+          wait(waitTime);
+        }
+      } catch (InterruptedException ex) {
+        throw new ModbusIOException("Thread waiting for response was interrupted.");
+      }
+      if (m_Exception != null) {
+        throw m_Exception;
+      }
+      return m_Response;
+    }//await
+
+  }//inner class PendingResponse
+
+}//class ModbusTCPPipeline
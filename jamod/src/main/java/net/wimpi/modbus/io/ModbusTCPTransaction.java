@@ -50,6 +50,15 @@ public class ModbusTCPTransaction
       Modbus.DEFAULT_VALIDITYCHECK;
   private boolean m_Reconnecting = Modbus.DEFAULT_RECONNECTING;
   private int m_Retries = Modbus.DEFAULT_RETRIES;
+  private RetryPolicy m_RetryPolicy;
+  private CircuitBreaker m_CircuitBreaker;
+  private ModbusResponse[] m_Reusable;
+  private long m_Deadline;
+  private long m_Budget;
+  private int m_Priority = PriorityRequestQueue.PRIORITY_NORMAL;
+  private volatile Thread m_Executor;
+  private volatile boolean m_InIO;
+  private volatile boolean m_Cancelled;
 
   private Mutex m_TransactionLock = new Mutex();
 
@@ -153,29 +162,209 @@ public class ModbusTCPTransaction
     m_Retries = num;
   }//setRetries
 
+  /**
+   * Sets the priority of this <tt>ModbusTCPTransaction</tt>
+   * in the <tt>PriorityRequestQueue</tt> of its connection.
+   * Lower values are served first.
+   *
+   * @param priority the priority, e.g.
+   *                 <tt>PriorityRequestQueue.PRIORITY_CONTROL</tt>.
+   */
+  public void setPriority(int priority) {
+    m_Priority = priority;
+  }//setPriority
+
+  /**
+   * Returns the priority of this <tt>ModbusTCPTransaction</tt>
+   * in the <tt>PriorityRequestQueue</tt> of its connection.
+   *
+   * @return the priority as <tt>int</tt>.
+   */
+  public int getPriority() {
+    return m_Priority;
+  }//getPriority
+
+  /**
+   * Sets the absolute deadline of the executions of this
+   * <tt>ModbusTCPTransaction</tt>. The deadline covers waiting
+   * for the transaction lock, connecting, writing, reading and
+   * all retries; each read is bounded by the connection timeout
+   * or the time remaining, whichever is shorter, and by the time
+   * remaining alone if the connection has no timeout.
+   *
+   * @param deadline the deadline as returned by
+   *                 <tt>System.currentTimeMillis()</tt>, or 0 for none.
+   */
+  public void setDeadline(long deadline) {
+    m_Deadline = deadline;
+  }//setDeadline
+
+  /**
+   * Returns the absolute deadline of the executions of this
+   * <tt>ModbusTCPTransaction</tt>.
+   *
+   * @return the deadline in milliseconds, or 0 if none.
+   */
+  public long getDeadline() {
+    return m_Deadline;
+  }//getDeadline
+
+  /**
+   * Sets the time budget of each execution of this
+   * <tt>ModbusTCPTransaction</tt>, i.e. a deadline relative to
+   * the moment <tt>execute()</tt> is called. If an absolute deadline
+   * is set as well, the earlier one applies.
+   *
+   * @param msecs the budget in milliseconds, or 0 for none.
+   */
+  public void setBudget(long msecs) {
+    m_Budget = msecs;
+  }//setBudget
+
+  /**
+   * Returns the time budget of each execution of this
+   * <tt>ModbusTCPTransaction</tt>.
+   *
+   * @return the budget in milliseconds, or 0 if none.
+   */
+  public long getBudget() {
+    return m_Budget;
+  }//getBudget
+
+  /**
+   * Sets the flag that controls whether responses are
+   * decoded into instances kept by this transaction, one per
+   * function code, instead of being created for every execution.
+   * <p/>
+   * When reusing, the response returned by {@link #getResponse()}
+   * and the data obtained from it, such as a <tt>BitVector</tt> or
+   * register data view, belong to this transaction and are overwritten
+   * by the next execution; callers have to copy what they keep.
+   * Avoid <tt>getRegisters()</tt> on reused responses, as it creates
+   * registers on each call; use <tt>getRegisterValues()</tt> instead.
+   * Responses are not reused while the connection is pipelining.
+   *
+   * @param b true if responses should be reused, false otherwise.
+   */
+  public void setReusingResponses(boolean b) {
+    if (b && m_Reusable == null) {
+      m_Reusable = new ModbusResponse[0x80];
+    } else if (!b) {
+      m_Reusable = null;
+    }
+  }//setReusingResponses
+
+  /**
+   * Tests if responses are reused by this transaction.
+   *
+   * @return true if reusing responses, false otherwise.
+   */
+  public boolean isReusingResponses() {
+    return m_Reusable != null;
+  }//isReusingResponses
+
+  /**
+   * Returns the <tt>RetryPolicy</tt> of this
+   * <tt>ModbusTCPTransaction</tt>.
+   *
+   * @return the <tt>RetryPolicy</tt> or null if
+   *         failed attempts are retried immediately.
+   */
+  public RetryPolicy getRetryPolicy() {
+    return m_RetryPolicy;
+  }//getRetryPolicy
+
+  /**
+   * Sets the <tt>RetryPolicy</tt> of this
+   * <tt>ModbusTCPTransaction</tt>. The number of retries
+   * is still bounded by {@link #getRetries()}. While backing
+   * off, the transaction lock and the turn in the request queue
+   * are released, so other requests on the connection proceed.
+   *
+   * @param policy the <tt>RetryPolicy</tt>, or null for immediate retries.
+   */
+  public void setRetryPolicy(RetryPolicy policy) {
+    m_RetryPolicy = policy;
+  }//setRetryPolicy
+
+  /**
+   * Returns the <tt>CircuitBreaker</tt> guarding this
+   * <tt>ModbusTCPTransaction</tt>, which defaults to the
+   * one of its connection.
+   *
+   * @return the <tt>CircuitBreaker</tt> or null if none.
+   */
+  public CircuitBreaker getCircuitBreaker() {
+    if (m_CircuitBreaker == null && m_Connection != null) {
+      return m_Connection.getCircuitBreaker();
+    }
+    return m_CircuitBreaker;
+  }//getCircuitBreaker
+
+  /**
+   * Sets the <tt>CircuitBreaker</tt> guarding this
+   * <tt>ModbusTCPTransaction</tt>.
+   *
+   * @param breaker the <tt>CircuitBreaker</tt>, or null to use
+   *                the one of the connection.
+   */
+  public void setCircuitBreaker(CircuitBreaker breaker) {
+    m_CircuitBreaker = breaker;
+  }//setCircuitBreaker
+
   public void execute() throws ModbusIOException,
       ModbusSlaveException,
       ModbusException {
 
     //1. check that the transaction can be executed
     assertExecutable();
+    long deadline = getEffectiveDeadline();
+    CircuitBreaker breaker = getCircuitBreaker();
+    if (breaker != null && !breaker.allowRequest()) {
+      throw new ModbusIOException("Circuit open, device failed " +
+          breaker.getFailures() + " consecutive times.");
+    }
+    boolean recorded = false;
+    boolean locked = false;
+    boolean admitted = false;
+    PriorityRequestQueue queue = null;
+    boolean timeoutChanged = false;
 
     try {
-      //2. Lock transaction
+      //2. wait for the turn on a shared connection; the queue
+      //   decides the order, so it is entered before the lock
+      queue = m_Connection.getRequestQueue();
+      if (queue != null) {
+        queue.acquire(m_Priority, (deadline == 0) ? 0 : remaining(deadline));
+        admitted = true;
+      }
+
+      //Lock transaction
       /**
        * Note: The way this explicit synchronization is implemented at the moment,
        * there is no ordering of pending threads. The Mutex will simply call notify()
-       * and the JVM will handle the rest.
+       * and the JVM will handle the rest. Threads sharing this transaction are
+       * ordered by the request queue of the connection, if there is one.
        */
-      m_TransactionLock.acquire();
+      if (deadline == 0) {
+        m_TransactionLock.acquire();
+      } else if (!m_TransactionLock.attempt(remaining(deadline))) {
+        throw new ModbusIOException("Deadline exceeded waiting for transaction lock.");
+      }
+      locked = true;
+      m_Cancelled = false;
+      m_Executor = Thread.currentThread();
 
       //3. open the connection if not connected
       if (!m_Connection.isConnected()) {
         try {
-          m_Connection.connect();
-          m_IO = m_Connection.getModbusTransport();
-        } catch (Exception ex) {
-          throw new ModbusIOException("Connecting failed.");
+          connect(deadline);
+        } catch (ModbusIOException ex) {
+          if (breaker != null) {
+            breaker.recordFailure();
+            recorded = true;
+          }
+          throw ex;
         }
       }
 
@@ -184,23 +373,91 @@ public class ModbusTCPTransaction
       int retryCounter = 0;
 
       while (retryCounter <= m_Retries) {
+        assertNotCancelled();
+        int timeout = getTimeout(m_Connection.getTimeout(), deadline);
         try {
+          if (retryCounter > 0 && !m_Connection.isConnected()) {
+            //the pipeline reader failed with the previous attempt
+            connect(deadline);
+          }
+          ModbusTCPPipeline pipeline = m_Connection.getPipeline();
+          if (pipeline != null) {
+            //pipelined, the id is assigned by the pipeline
+            m_Response = pipeline.execute(m_Request,
+                (timeout == 0) ? Integer.MAX_VALUE : timeout);
+            break;
+          }
+          if (timeout != m_Connection.getTimeout()) {
+            m_Connection.setReadTimeout(timeout);
+            timeoutChanged = true;
+          }
           //toggle and set the id
           m_Request.setTransactionID(c_TransactionID.increment());
           //3. write request, and read response
+          m_InIO = true;
           m_IO.writeMessage(m_Request);
           //read response message
-          m_Response = m_IO.readResponse();
+          if (m_Reusable != null && m_IO instanceof ModbusTCPTransport) {
+            m_Response = ((ModbusTCPTransport) m_IO).readResponse(m_Reusable);
+          } else {
+            m_Response = m_IO.readResponse();
+          }
+          m_InIO = false;
+          assertNotCancelled();
           break;
         } catch (ModbusIOException ex) {
+          m_InIO = false;
+          assertNotCancelled();
+          if (breaker != null) {
+            breaker.recordFailure();
+            recorded = true;
+          }
           if (retryCounter == m_Retries) {
             throw new ModbusIOException("Executing transaction failed (tried " + m_Retries + " times)");
-          } else {
-            retryCounter++;
-            continue;
+          }
+          retryCounter++;
+          long delay = (m_RetryPolicy == null) ? 0 : m_RetryPolicy.getRetryDelay(retryCounter, ex);
+          if (delay < 0 || (breaker != null && !breaker.allowRequest())) {
+            throw new ModbusIOException("Executing transaction failed (tried " + retryCounter + " times)");
+          }
+          recorded = false;
+          if (deadline != 0 && remaining(deadline) <= delay) {
+            throw new ModbusIOException("Deadline exceeded after " + retryCounter + " attempts.");
+          }
+          if (delay > 0) {
+            //back off without holding up the other callers of the
+            //connection, the turn is taken again for the next attempt
+            if (timeoutChanged) {
+              m_Connection.setTimeout(m_Connection.getTimeout());
+              timeoutChanged = false;
+            }
+            locked = false;
+            m_TransactionLock.release();
+            if (admitted) {
+              admitted = false;
+              queue.release();
+            }
+            Thread.sleep(delay);
+            assertNotCancelled();
+            if (queue != null) {
+              queue.acquire(m_Priority, (deadline == 0) ? 0 : remaining(deadline));
+              admitted = true;
+            }
+            if (deadline == 0) {
+              m_TransactionLock.acquire();
+            } else if (!m_TransactionLock.attempt(remaining(deadline))) {
+              throw new ModbusIOException("Deadline exceeded waiting for transaction lock.");
+            }
+            locked = true;
+            m_Executor = Thread.currentThread();
+            m_IO = m_Connection.getModbusTransport();
           }
         }
       }
+      if (breaker != null) {
+        breaker.recordSuccess();
+        recorded = true;
+      }
 
       //5. deal with "application level" exceptions
       if (m_Response instanceof ExceptionResponse) {
@@ -209,8 +466,9 @@ public class ModbusTCPTransaction
         );
       }
 
-      //6. close connection if reconnecting
-      if (isReconnecting()) {
+      //6. close connection if reconnecting (but never under
+      //   the feet of other outstanding pipelined requests)
+      if (isReconnecting() && !m_Connection.isPipelining()) {
         m_Connection.close();
       }
 
@@ -220,12 +478,132 @@ public class ModbusTCPTransaction
       }
 
     } catch (InterruptedException ex) {
+      assertNotCancelled();
       throw new ModbusIOException("Thread acquiring lock was interrupted.");
     } finally {
-      m_TransactionLock.release();
+      if (breaker != null && !recorded) {
+        breaker.releaseRequest();
+      }
+      if (locked) {
+        m_Executor = null;
+        m_InIO = false;
+        if (timeoutChanged) {
+          m_Connection.setTimeout(m_Connection.getTimeout());
+        }
+        if (m_Cancelled) {
+          //clear an interrupt that arrived too late to matter
+          Thread.interrupted();
+        }
+        m_TransactionLock.release();
+      } else if (m_Executor == Thread.currentThread()) {
+        //failed to take the turn again after backing off
+        m_Executor = null;
+      }
+      if (admitted) {
+        queue.release();
+      }
     }
   }//execute
 
+  /**
+   * Cancels the execution of this <tt>ModbusTCPTransaction</tt>
+   * that is in progress, if any, which then fails with a
+   * <tt>ModbusIOException</tt>.
+   * <p/>
+   * A request that is being written or awaits its response
+   * on a connection that is not pipelining is aborted by closing
+   * the connection, as the response could no longer be told apart
+   * from the next one; the connection is reopened by the next
+   * execution. Otherwise the executing thread is interrupted.
+   */
+  public void cancel() {
+    Thread t = m_Executor;
+    if (t == null) {
+      return;
+    }
+    m_Cancelled = true;
+    if (m_InIO && !m_Connection.isPipelining()) {
+      m_Connection.close();
+    } else {
+      t.interrupt();
+    }
+  }//cancel
+
+  /**
+   * Opens the connection of this <tt>ModbusTCPTransaction</tt>,
+   * reopening it if its pipeline reader has failed.
+   *
+   * @param deadline the deadline in milliseconds, or 0 if none.
+   * @throws ModbusIOException if the connection cannot be opened.
+   */
+  private void connect(long deadline) throws ModbusIOException {
+    int timeout = (deadline == 0) ? 0 : (int) remaining(deadline);
+    try {
+      m_Connection.connect(timeout);
+      m_IO = m_Connection.getModbusTransport();
+    } catch (Exception ex) {
+      throw new ModbusIOException("Connecting failed.");
+    }
+  }//connect
+
+  /**
+   * Returns the deadline for the next execution, combining
+   * the absolute deadline and the time budget.
+   *
+   * @return the deadline in milliseconds, or 0 if none.
+   */
+  private long getEffectiveDeadline() {
+    long deadline = m_Deadline;
+    if (m_Budget > 0) {
+      long budget = System.currentTimeMillis() + m_Budget;
+      if (deadline == 0 || budget < deadline) {
+        deadline = budget;
+      }
+    }
+    return deadline;
+  }//getEffectiveDeadline
+
+  /**
+   * Returns the timeout of the next read, which is the
+   * given timeout or the time remaining until the deadline,
+   * whichever is shorter.
+   *
+   * @param timeout  the timeout in milliseconds, 0 for none.
+   * @param deadline the deadline in milliseconds, 0 for none.
+   * @return the timeout in milliseconds, 0 for none.
+   * @throws ModbusIOException if the deadline has passed.
+   */
+  static int getTimeout(int timeout, long deadline) throws ModbusIOException {
+    if (deadline != 0) {
+      long remaining = remaining(deadline);
+      if (timeout == 0 || remaining < timeout) {
+        return (int) Math.min(remaining, Integer.MAX_VALUE);
+      }
+    }
+    return timeout;
+  }//getTimeout
+
+  /**
+   * Returns the time remaining until the given deadline.
+   *
+   * @param deadline the deadline in milliseconds.
+   * @return the remaining milliseconds, at least 1.
+   * @throws ModbusIOException if the deadline has passed.
+   */
+  private static long remaining(long deadline) throws ModbusIOException {
+    long remaining = deadline - System.currentTimeMillis();
+    if (remaining <= 0) {
+      throw new ModbusIOException("Deadline exceeded.");
+    }
+    return remaining;
+  }//remaining
+
+  private void assertNotCancelled() throws ModbusIOException {
+    if (m_Cancelled) {
+      throw new ModbusIOException("Transaction cancelled.");
+    }
+  }//assertNotCancelled
+
   /**
    * Asserts if this <tt>ModbusTCPTransaction</tt> is
    * executable.
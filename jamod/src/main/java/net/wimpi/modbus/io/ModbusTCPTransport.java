@@ -25,6 +25,8 @@ import java.io.EOFException;
 import java.io.IOException;
 import java.net.Socket;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
 
 import net.wimpi.modbus.Modbus;
 import net.wimpi.modbus.ModbusIOException;
@@ -36,6 +38,10 @@ import net.wimpi.modbus.util.ModbusUtil;
 /**
  * Class that implements the Modbus transport
  * flavor.
+ * <p>
+ * Reads are guarded by a lock rather than a monitor, so that
+ * a virtual thread blocking on the socket does not pin its
+ * carrier thread (JDK 21 to 23).
  *
  * @author Dieter Wimberger
  * @version @version@ (@date@)
@@ -47,6 +53,7 @@ public class ModbusTCPTransport
   private DataInputStream m_Input;	  //input stream
   private DataOutputStream m_Output;	 //output stream
   private BytesInputStream m_ByteIn;
+  private final ReentrantLock m_ReadLock = new ReentrantLock();
 
   /**
    * Constructs a new <tt>ModbusTransport</tt> instance,
@@ -92,6 +99,24 @@ public class ModbusTCPTransport
     }
   }//write
 
+  /**
+   * Writes a frame that has already been encoded,
+   * MBAP header included.
+   *
+   * @param frame the <tt>byte[]</tt> holding the frame.
+   * @param len   the length of the frame.
+   * @throws ModbusIOException if the frame cannot be written.
+   */
+  public void writeFrame(byte[] frame, int len)
+      throws ModbusIOException {
+    try {
+      m_Output.write(frame, 0, len);
+      m_Output.flush();
+    } catch (Exception ex) {
+      throw new ModbusIOException("I/O exception - failed to write.");
+    }
+  }//writeFrame
+
   public ModbusRequest readRequest()
       throws ModbusIOException {
 
@@ -99,26 +124,25 @@ public class ModbusTCPTransport
     try {
 
       ModbusRequest req = null;
-      synchronized (m_ByteIn) {
+      m_ReadLock.lock();
+      try {
         //use same buffer
         byte[] buffer = m_ByteIn.getBuffer();
 
         //read to byte length of message
-        if (m_Input.read(buffer, 0, 6) == -1) {
-          throw new EOFException("Premature end of stream (Header truncated).");
-        }
+        m_Input.readFully(buffer, 0, 6);
         //extract length of bytes following in message
         int bf = ModbusUtil.registerToShort(buffer, 4);
         //read rest
-        if (m_Input.read(buffer, 6, bf) == -1) {
-          throw new ModbusIOException("Premature end of stream (Message truncated).");
-        }
+        m_Input.readFully(buffer, 6, bf);
         m_ByteIn.reset(buffer, (6 + bf));
         m_ByteIn.skip(7);
         int functionCode = m_ByteIn.readUnsignedByte();
         m_ByteIn.reset();
         req = ModbusRequest.createModbusRequest(functionCode);
         req.readFrom(m_ByteIn);
+      } finally {
+        m_ReadLock.unlock();
       }
       return req;
 /*
@@ -150,6 +174,9 @@ public class ModbusTCPTransport
     } catch (SocketException sockex) {
       //connection reset by peer, also EOF
       throw new ModbusIOException(true);
+    } catch (SocketTimeoutException toex) {
+      //idle connection, closed like EOF
+      throw new ModbusIOException("Connection idle.", true);
     } catch (Exception ex) {
       ex.printStackTrace();
       throw new ModbusIOException("I/O exception - failed to read.");
@@ -158,31 +185,54 @@ public class ModbusTCPTransport
 
   public ModbusResponse readResponse()
       throws ModbusIOException {
+    return readResponse(null);
+  }//readResponse
+
+  /**
+   * Reads a response, decoding it into the instance kept for its
+   * function code in the given array. Instances are created and
+   * stored in the array on first use; exception responses are
+   * never kept.
+   *
+   * @param reusable an array of responses indexed by function code,
+   *                 or null to create a new response.
+   * @return the response read.
+   * @throws ModbusIOException if the response cannot be read.
+   */
+  public ModbusResponse readResponse(ModbusResponse[] reusable)
+      throws ModbusIOException {
     //System.out.println("readResponse()");
 
     try {
 
       ModbusResponse res = null;
-      synchronized (m_ByteIn) {
+      m_ReadLock.lock();
+      try {
         //use same buffer
         byte[] buffer = m_ByteIn.getBuffer();
 
         //read to byte length of message
-        if (m_Input.read(buffer, 0, 6) == -1) {
-          throw new ModbusIOException("Premature end of stream (Header truncated).");
-        }
+        m_Input.readFully(buffer, 0, 6);
         //extract length of bytes following in message
         int bf = ModbusUtil.registerToShort(buffer, 4);
         //read rest
-        if (m_Input.read(buffer, 6, bf) == -1) {
-          throw new ModbusIOException("Premature end of stream (Message truncated).");
-        }
+        m_Input.readFully(buffer, 6, bf);
         m_ByteIn.reset(buffer, (6 + bf));
         m_ByteIn.skip(7);
         int functionCode = m_ByteIn.readUnsignedByte();
         m_ByteIn.reset();
-        res = ModbusResponse.createModbusResponse(functionCode);
+        if (reusable != null && functionCode < reusable.length) {
+          res = reusable[functionCode];
+          if (res == null) {
+            res = ModbusResponse.createModbusResponse(functionCode);
+            reusable[functionCode] = res;
+          }
+        } else {
+          res = ModbusResponse.createModbusResponse(functionCode);
+        }
         res.readFrom(m_ByteIn);
+      } finally {
+        m_ReadLock.unlock();
       }
       return res;
       /*
@@ -211,8 +261,13 @@ public class ModbusTCPTransport
          response.setUnitID(unitID);
          return response;
          */
+    } catch (EOFException eoex) {
+      throw new ModbusIOException(true);
+    } catch (SocketException sockex) {
+      //connection reset by peer or closed locally, also EOF
+      throw new ModbusIOException(true);
     } catch (Exception ex) {
-      ex.printStackTrace();
+      if (Modbus.debug) ex.printStackTrace();
       throw new ModbusIOException("I/O exception - failed to read.");
     }
   }//readResponse
@@ -233,7 +288,8 @@ public class ModbusTCPTransport
     m_Output = new DataOutputStream(
         new BufferedOutputStream(socket.getOutputStream())
     );
-    m_ByteIn = new BytesInputStream(Modbus.MAX_MESSAGE_LENGTH);
+    //the MBAP header precedes up to MAX_MESSAGE_LENGTH bytes
+    m_ByteIn = new BytesInputStream(Modbus.MAX_MESSAGE_LENGTH + 6);
   }//prepareStreams
 
 }//class ModbusTCPTransport
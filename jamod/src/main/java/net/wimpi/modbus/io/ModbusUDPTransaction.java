@@ -45,13 +45,20 @@ public class ModbusUDPTransaction
 
   //instance attributes and associations
   private UDPTerminal m_Terminal;
+  private UDPMasterConnection m_Connection;
   private ModbusTransport m_IO;
   private ModbusRequest m_Request;
   private ModbusResponse m_Response;
   private boolean m_ValidityCheck =
       Modbus.DEFAULT_VALIDITYCHECK;
   private int m_Retries = Modbus.DEFAULT_RETRIES;
-  private int m_RetryCounter = 0;
+  private RetryPolicy m_RetryPolicy;
+  private CircuitBreaker m_CircuitBreaker;
+  private long m_Deadline;
+  private long m_Budget;
+  private volatile Thread m_Executor;
+  private volatile boolean m_InIO;
+  private volatile boolean m_Cancelled;
 
   private Mutex m_TransactionLock = new Mutex();
 
@@ -96,6 +103,7 @@ public class ModbusUDPTransaction
    */
   public ModbusUDPTransaction(UDPMasterConnection con) {
     setTerminal(con.getTerminal());
+    m_Connection = con;
   }//constructor
 
   /**
@@ -106,6 +114,7 @@ public class ModbusUDPTransaction
    */
   public void setTerminal(UDPTerminal terminal) {
     m_Terminal = terminal;
+    m_Connection = null;
     if (terminal.isActive()) {
       m_IO = terminal.getModbusTransport();
     }
@@ -145,12 +154,63 @@ public class ModbusUDPTransaction
     m_Retries = num;
   }//setRetries
 
+  /**
+   * Returns the <tt>RetryPolicy</tt> of this
+   * <tt>ModbusUDPTransaction</tt>.
+   *
+   * @return the <tt>RetryPolicy</tt> or null if
+   *         failed attempts are retried immediately.
+   */
+  public RetryPolicy getRetryPolicy() {
+    return m_RetryPolicy;
+  }//getRetryPolicy
+
+  /**
+   * Sets the <tt>RetryPolicy</tt> of this
+   * <tt>ModbusUDPTransaction</tt>. The number of retries
+   * is still bounded by {@link #getRetries()}. While backing
+   * off, the transaction lock is released.
+   *
+   * @param policy the <tt>RetryPolicy</tt>, or null for immediate retries.
+   */
+  public void setRetryPolicy(RetryPolicy policy) {
+    m_RetryPolicy = policy;
+  }//setRetryPolicy
+
+  /**
+   * Returns the <tt>CircuitBreaker</tt> guarding this
+   * <tt>ModbusUDPTransaction</tt>.
+   *
+   * @return the <tt>CircuitBreaker</tt> or null if none.
+   */
+  public CircuitBreaker getCircuitBreaker() {
+    return m_CircuitBreaker;
+  }//getCircuitBreaker
+
+  /**
+   * Sets the <tt>CircuitBreaker</tt> guarding this
+   * <tt>ModbusUDPTransaction</tt>.
+   *
+   * @param breaker the <tt>CircuitBreaker</tt>, or null.
+   */
+  public void setCircuitBreaker(CircuitBreaker breaker) {
+    m_CircuitBreaker = breaker;
+  }//setCircuitBreaker
+
   public void execute() throws ModbusIOException,
       ModbusSlaveException,
       ModbusException {
 
     //1. assert executeability
     assertExecutable();
+    long deadline = getEffectiveDeadline();
+    CircuitBreaker breaker = m_CircuitBreaker;
+    if (breaker != null && !breaker.allowRequest()) {
+      throw new ModbusIOException("Circuit open, device failed " +
+          breaker.getFailures() + " consecutive times.");
+    }
+    boolean recorded = false;
+    boolean locked = false;
 
     try {
       //2. Lock transaction
@@ -159,7 +219,14 @@ public class ModbusUDPTransaction
        * there is no ordering of pending threads. The Mutex will simply call notify()
        * and the JVM will handle the rest.
        */
-      m_TransactionLock.acquire();
+      if (deadline == 0) {
+        m_TransactionLock.acquire();
+      } else if (!m_TransactionLock.attempt(remaining(deadline))) {
+        throw new ModbusIOException("Deadline exceeded waiting for transaction lock.");
+      }
+      locked = true;
+      m_Cancelled = false;
+      m_Executor = Thread.currentThread();
 
       //3. open the connection if not connected
       if (!m_Terminal.isActive()) {
@@ -167,6 +234,10 @@ public class ModbusUDPTransaction
           m_Terminal.activate();
           m_IO = m_Terminal.getModbusTransport();
         } catch (Exception ex) {
+          if (breaker != null) {
+            breaker.recordFailure();
+            recorded = true;
+          }
           throw new ModbusIOException("Activation failed.");
 
         }
@@ -174,26 +245,83 @@ public class ModbusUDPTransaction
 
       //3. Retry transaction m_Retries times, in case of
       //I/O Exception problems.
-      m_RetryCounter = 0;
+      int retryCounter = 0;
 
-      while (m_RetryCounter <= m_Retries) {
+      while (retryCounter <= m_Retries) {
+        assertNotCancelled();
+        if (deadline != 0) {
+          remaining(deadline);
+        }
         try {
           //toggle the id
           m_Request.setTransactionID(c_TransactionID.increment());
           //3. write request, and read response,
           //   while holding the lock on the IO object
           synchronized (m_IO) {
-            //write request message
-            m_IO.writeMessage(m_Request);
-            //read response message
-            m_Response = m_IO.readResponse();
+            UDPMasterConnection con = null;
+            int timeout = 0;
+            if (deadline != 0 && m_Connection != null
+                && m_Connection.getTerminal() == m_Terminal) {
+              //bound the receive by the time remaining
+              con = m_Connection;
+              timeout = con.getTimeout();
+              con.setTimeout(ModbusTCPTransaction.getTimeout(timeout, deadline));
+            }
+            try {
+              m_InIO = true;
+              //write request message
+              m_IO.writeMessage(m_Request);
+              //read response message
+              m_Response = m_IO.readResponse();
+              m_InIO = false;
+            } finally {
+              if (con != null) {
+                con.setTimeout(timeout);
+              }
+            }
+            assertNotCancelled();
             break;
           }
         } catch (ModbusIOException ex) {
-          m_RetryCounter++;
-          continue;
+          m_InIO = false;
+          assertNotCancelled();
+          if (breaker != null) {
+            breaker.recordFailure();
+            recorded = true;
+          }
+          if (retryCounter == m_Retries) {
+            throw new ModbusIOException("Executing transaction failed (tried " + m_Retries + " times)");
+          }
+          retryCounter++;
+          long delay = (m_RetryPolicy == null) ? 0 : m_RetryPolicy.getRetryDelay(retryCounter, ex);
+          if (delay < 0 || (breaker != null && !breaker.allowRequest())) {
+            throw new ModbusIOException("Executing transaction failed (tried " + retryCounter + " times)");
+          }
+          recorded = false;
+          if (deadline != 0 && remaining(deadline) <= delay) {
+            throw new ModbusIOException("Deadline exceeded after " + retryCounter + " attempts.");
+          }
+          if (delay > 0) {
+            //back off without holding up the other callers
+            //of this transaction
+            locked = false;
+            m_TransactionLock.release();
+            Thread.sleep(delay);
+            assertNotCancelled();
+            if (deadline == 0) {
+              m_TransactionLock.acquire();
+            } else if (!m_TransactionLock.attempt(remaining(deadline))) {
+              throw new ModbusIOException("Deadline exceeded waiting for transaction lock.");
+            }
+            locked = true;
+            m_Executor = Thread.currentThread();
+          }
         }
       }
+      if (breaker != null) {
+        breaker.recordSuccess();
+        recorded = true;
+      }
 
       //4. deal with "application level" exceptions
       if (m_Response instanceof ExceptionResponse) {
@@ -206,13 +334,122 @@ public class ModbusUDPTransaction
         checkValidity();
       }
     } catch (InterruptedException ex) {
+      assertNotCancelled();
       throw new ModbusIOException("Thread acquiring lock was interrupted.");
     } finally {
-      m_TransactionLock.release();
+      if (breaker != null && !recorded) {
+        breaker.releaseRequest();
+      }
+      if (locked) {
+        m_Executor = null;
+        m_InIO = false;
+        if (m_Cancelled) {
+          //clear an interrupt that arrived too late to matter
+          Thread.interrupted();
+        }
+        m_TransactionLock.release();
+      } else if (m_Executor == Thread.currentThread()) {
+        //failed to take the turn again after backing off
+        m_Executor = null;
+      }
     }
 
   }//execute
 
+  /**
+   * Cancels the execution of this <tt>ModbusUDPTransaction</tt>
+   * that is in progress, if any, which then fails with a
+   * <tt>ModbusIOException</tt>.
+   * <p/>
+   * A request awaiting its response is aborted by deactivating
+   * the terminal, which is activated again by the next execution.
+   * Otherwise the executing thread is interrupted.
+   */
+  public void cancel() {
+    Thread t = m_Executor;
+    if (t == null) {
+      return;
+    }
+    m_Cancelled = true;
+    if (m_InIO) {
+      m_Terminal.deactivate();
+    } else {
+      t.interrupt();
+    }
+  }//cancel
+
+  /**
+   * Sets the absolute deadline of the executions of this
+   * <tt>ModbusUDPTransaction</tt>. The deadline covers waiting
+   * for the transaction lock, all attempts and the delays
+   * between them. If the transaction was created for a
+   * <tt>UDPMasterConnection</tt>, each receive is bounded by the
+   * timeout of the connection or the time remaining, whichever is
+   * shorter; the timeout of the connection is restored afterwards.
+   *
+   * @param deadline the deadline as returned by
+   *                 <tt>System.currentTimeMillis()</tt>, or 0 for none.
+   */
+  public void setDeadline(long deadline) {
+    m_Deadline = deadline;
+  }//setDeadline
+
+  /**
+   * Returns the absolute deadline of the executions of this
+   * <tt>ModbusUDPTransaction</tt>.
+   *
+   * @return the deadline in milliseconds, or 0 if none.
+   */
+  public long getDeadline() {
+    return m_Deadline;
+  }//getDeadline
+
+  /**
+   * Sets the time budget of each execution of this
+   * <tt>ModbusUDPTransaction</tt>, relative to the moment
+   * <tt>execute()</tt> is called.
+   *
+   * @param msecs the budget in milliseconds, or 0 for none.
+   */
+  public void setBudget(long msecs) {
+    m_Budget = msecs;
+  }//setBudget
+
+  /**
+   * Returns the time budget of each execution of this
+   * <tt>ModbusUDPTransaction</tt>.
+   *
+   * @return the budget in milliseconds, or 0 if none.
+   */
+  public long getBudget() {
+    return m_Budget;
+  }//getBudget
+
+  private long getEffectiveDeadline() {
+    long deadline = m_Deadline;
+    if (m_Budget > 0) {
+      long budget = System.currentTimeMillis() + m_Budget;
+      if (deadline == 0 || budget < deadline) {
+        deadline = budget;
+      }
+    }
+    return deadline;
+  }//getEffectiveDeadline
+
+  private static long remaining(long deadline) throws ModbusIOException {
+    long remaining = deadline - System.currentTimeMillis();
+    if (remaining <= 0) {
+      throw new ModbusIOException("Deadline exceeded.");
+    }
+    return remaining;
+  }//remaining
+
+  private void assertNotCancelled() throws ModbusIOException {
+    if (m_Cancelled) {
+      throw new ModbusIOException("Transaction cancelled.");
+    }
+  }//assertNotCancelled
+
   /**
    * Asserts if this <tt>ModbusTCPTransaction</tt> is
    * executable.
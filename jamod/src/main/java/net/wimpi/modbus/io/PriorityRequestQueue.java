@@ -0,0 +1,340 @@
+/***
+ * Copyright 2002-2010 jamod development team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***/
+
+package net.wimpi.modbus.io;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.wimpi.modbus.ModbusIOException;
+
+/**
+ * Class implementing a priority aware admission queue
+ * for the transactions on a single connection.
+ * <p>
+ * A transaction acquires a permit before it touches the
+ * connection and releases it when done. When a permit becomes
+ * free it is handed to the waiting transaction with the best
+ * effective priority; lower values are served first. Every
+ * aging interval a transaction has waited improves its
+ * effective priority by one, so bulk polling cannot starve.
+ * <p>
+ * The number of waiting transactions is bounded. When the
+ * queue is full a new transaction sheds the waiting one with
+ * the worst effective priority if its own is strictly better,
+ * otherwise it is rejected.
+ *
+ * @author Dieter Wimberger
+ * @version @version@ (@date@)
+ */
+public class PriorityRequestQueue {
+
+  /**
+   * Defines the priority of control writes.
+   */
+  public static final int PRIORITY_CONTROL = 0;
+
+  /**
+   * Defines the priority of alarm polling.
+   */
+  public static final int PRIORITY_ALARM = 1;
+
+  /**
+   * Defines the default priority.
+   */
+  public static final int PRIORITY_NORMAL = 2;
+
+  /**
+   * Defines the priority of bulk and trend polling.
+   */
+  public static final int PRIORITY_BULK = 3;
+
+  /**
+   * Defines the default aging interval in milliseconds.
+   */
+  public static final long DEFAULT_AGING = 500;
+
+  private int m_Permits;
+  private int m_MaxDepth;
+  private long m_Aging = DEFAULT_AGING;
+  private final List<Waiter> m_Waiters = new ArrayList<Waiter>();
+  private long m_Sequence;
+  private long m_Granted;
+  private long m_Rejected;
+  private long m_Shed;
+
+  /**
+   * Constructs a new <tt>PriorityRequestQueue</tt> instance
+   * admitting one transaction at a time.
+   *
+   * @param maxdepth the maximum number of waiting transactions.
+   */
+  public PriorityRequestQueue(int maxdepth) {
+    this(1, maxdepth);
+  }//constructor
+
+  /**
+   * Constructs a new <tt>PriorityRequestQueue</tt> instance.
+   * More than one permit makes sense for a pipelining
+   * connection, usually as many as its window.
+   *
+   * @param permits  the number of transactions admitted at a time.
+   * @param maxdepth the maximum number of waiting transactions.
+   */
+  public PriorityRequestQueue(int permits, int maxdepth) {
+    if (permits < 1) {
+      throw new IllegalArgumentException("Permits must be at least 1.");
+    }
+    if (maxdepth < 1) {
+      throw new IllegalArgumentException("Depth must be at least 1.");
+    }
+    m_Permits = permits;
+    m_MaxDepth = maxdepth;
+  }//constructor
+
+  /**
+   * Returns the maximum number of waiting transactions.
+   *
+   * @return the maximum depth as <tt>int</tt>.
+   */
+  public int getMaxDepth() {
+    return m_MaxDepth;
+  }//getMaxDepth
+
+  /**
+   * Returns the aging interval of this <tt>PriorityRequestQueue</tt>.
+   *
+   * @return the interval in milliseconds.
+   */
+  public synchronized long getAging() {
+    return m_Aging;
+  }//getAging
+
+  /**
+   * Sets the aging interval of this <tt>PriorityRequestQueue</tt>,
+   * i.e. the waiting time that improves the effective priority
+   * of a transaction by one.
+   *
+   * @param msecs the interval in milliseconds, 0 to disable aging.
+   */
+  public synchronized void setAging(long msecs) {
+    m_Aging = msecs;
+  }//setAging
+
+  /**
+   * Returns the number of transactions currently waiting.
+   *
+   * @return the depth as <tt>int</tt>.
+   */
+  public synchronized int getDepth() {
+    return m_Waiters.size();
+  }//getDepth
+
+  /**
+   * Returns the number of permits that are currently free.
+   *
+   * @return the free permits as <tt>int</tt>.
+   */
+  public synchronized int getAvailable() {
+    return m_Permits;
+  }//getAvailable
+
+  /**
+   * Returns the number of permits granted so far.
+   *
+   * @return the number of granted permits as <tt>long</tt>.
+   */
+  public synchronized long getGranted() {
+    return m_Granted;
+  }//getGranted
+
+  /**
+   * Returns the number of transactions rejected
+   * because the queue was full.
+   *
+   * @return the number of rejections as <tt>long</tt>.
+   */
+  public synchronized long getRejected() {
+    return m_Rejected;
+  }//getRejected
+
+  /**
+   * Returns the number of waiting transactions that
+   * were shed in favour of a higher priority one.
+   *
+   * @return the number of shed transactions as <tt>long</tt>.
+   */
+  public synchronized long getShed() {
+    return m_Shed;
+  }//getShed
+
+  /**
+   * Acquires a permit, waiting for it if none is free.
+   *
+   * @param priority the priority, lower values are served first.
+   * @param timeout  the time to wait in milliseconds, 0 for no limit.
+   * @throws ModbusIOException    if the transaction is rejected, shed
+   *                              or the timeout elapses.
+   * @throws InterruptedException if the waiting thread is interrupted.
+   */
+  public synchronized void acquire(int priority, long timeout)
+      throws ModbusIOException, InterruptedException {
+
+    long now = System.currentTimeMillis();
+    if (m_Permits > 0 && m_Waiters.isEmpty()) {
+      m_Permits--;
+      m_Granted++;
+      return;
+    }
+    //1. make room
+    if (m_Waiters.size() >= m_MaxDepth) {
+      Waiter worst = select(now, false);
+      if (worst.effectivePriority(now, m_Aging) <= priority) {
+        m_Rejected++;
+        throw new ModbusIOException("Request queue full.");
+      }
+      m_Waiters.remove(worst);
+      worst.m_Shed = true;
+      m_Shed++;
+      notifyAll();
+    }
+    //2. wait for a permit to be handed over
+    Waiter w = new Waiter(priority, now, m_Sequence++);
+    m_Waiters.add(w);
+    long deadline = (timeout > 0) ? now + timeout : 0;
+    try {
+      while (!w.m_Granted && !w.m_Shed) {
+        if (deadline == 0) {
+          wait();
+        } else {
+          long waitTime = deadline - System.currentTimeMillis();
+          if (waitTime <= 0) {
+            break;
+          }
+          wait(waitTime);
+        }
+      }
+    } catch (InterruptedException ex) {
+      abandon(w);
+      throw ex;
+    }
+    if (w.m_Shed) {
+      throw new ModbusIOException("Request shed in favour of a higher priority.");
+    }
+    if (!w.m_Granted) {
+      abandon(w);
+      throw new ModbusIOException("Timed out waiting in request queue.");
+    }
+  }//acquire
+
+  /**
+   * Releases a permit, handing it to the waiting
+   * transaction with the best effective priority.
+   */
+  public synchronized void release() {
+    m_Permits++;
+    handOver();
+  }//release
+
+  /**
+   * Removes a waiter that gives up, passing on
+   * a permit that was granted in the meantime.
+   *
+   * @param w the <tt>Waiter</tt> giving up.
+   */
+  private void abandon(Waiter w) {
+    if (w.m_Granted) {
+      m_Permits++;
+      m_Granted--;
+      handOver();
+    } else {
+      m_Waiters.remove(w);
+    }
+  }//abandon
+
+  private void handOver() {
+    if (m_Permits > 0 && !m_Waiters.isEmpty()) {
+      long now = System.currentTimeMillis();
+      while (m_Permits > 0 && !m_Waiters.isEmpty()) {
+        Waiter best = select(now, true);
+        m_Waiters.remove(best);
+        best.m_Granted = true;
+        m_Permits--;
+        m_Granted++;
+      }
+      notifyAll();
+    }
+  }//handOver
+
+  /**
+   * Selects the waiter with the best or the worst effective
+   * priority; ties go to the one that has waited longer.
+   *
+   * @param now  the current time in milliseconds.
+   * @param best true to select the best, false the worst.
+   * @return the selected <tt>Waiter</tt>.
+   */
+  private Waiter select(long now, boolean best) {
+    Waiter sel = null;
+    long selPrio = 0;
+    for (int i = 0; i < m_Waiters.size(); i++) {
+      Waiter w = m_Waiters.get(i);
+      long prio = w.effectivePriority(now, m_Aging);
+      if (sel == null) {
+        sel = w;
+        selPrio = prio;
+      } else if (best) {
+        if (prio < selPrio || (prio == selPrio && w.m_Sequence < sel.m_Sequence)) {
+          sel = w;
+          selPrio = prio;
+        }
+      } else {
+        if (prio > selPrio || (prio == selPrio && w.m_Sequence > sel.m_Sequence)) {
+          sel = w;
+          selPrio = prio;
+        }
+      }
+    }
+    return sel;
+  }//select
+
+  /**
+   * Inner class holding a waiting transaction.
+   */
+  private static class Waiter {
+
+    private final int m_Priority;
+    private final long m_Since;
+    private final long m_Sequence;
+    private boolean m_Granted;
+    private boolean m_Shed;
+
+    public Waiter(int priority, long since, long seq) {
+      m_Priority = priority;
+      m_Since = since;
+      m_Sequence = seq;
+    }//constructor
+
+    public long effectivePriority(long now, long aging) {
+      if (aging <= 0) {
+        return m_Priority;
+      }
+      return m_Priority - (now - m_Since) / aging;
+    }//effectivePriority
+
+  }//inner class Waiter
+
+}//class PriorityRequestQueue
@@ -0,0 +1,483 @@
+/***
+ * Copyright 2002-2010 jamod development team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***/
+
+package net.wimpi.modbus.io;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import net.wimpi.modbus.Modbus;
+import net.wimpi.modbus.ModbusException;
+import net.wimpi.modbus.ModbusIOException;
+import net.wimpi.modbus.msg.MaskWriteRegisterRequest;
+import net.wimpi.modbus.msg.ModbusRequest;
+import net.wimpi.modbus.msg.ModbusResponse;
+import net.wimpi.modbus.msg.ReadCoilsRequest;
+import net.wimpi.modbus.msg.ReadInputDiscretesRequest;
+import net.wimpi.modbus.msg.ReadInputRegistersRequest;
+import net.wimpi.modbus.msg.ReadMultipleRegistersRequest;
+import net.wimpi.modbus.msg.ReadWriteMultipleRequest;
+import net.wimpi.modbus.msg.WriteCoilRequest;
+import net.wimpi.modbus.msg.WriteMultipleCoilsRequest;
+import net.wimpi.modbus.msg.WriteMultipleRegistersRequest;
+import net.wimpi.modbus.msg.WriteSingleRegisterRequest;
+
+/**
+ * Class implementing a read-through cache for the
+ * responses to read requests.
+ * <p>
+ * Responses are keyed by endpoint, unit identifier, function
+ * code and range, and are served until their time to live has
+ * passed. Identical requests arriving while one is in flight wait
+ * for its response instead of being sent again. Writes passed to
+ * {@link #invalidate(String, ModbusRequest)} evict all cached
+ * ranges of the same unit and table that they overlap, and keep
+ * a read in flight from being cached.
+ * <p>
+ * Cached responses are shared by all readers and must be
+ * treated as read-only; the master facades copy the values
+ * out of them. Register responses decode lazily under their
+ * own lock, so concurrent readers may do so safely.
+ *
+ * @author Dieter Wimberger
+ * @version @version@ (@date@)
+ */
+public class ReadCache {
+
+  /**
+   * Defines the default maximum number of cached responses.
+   */
+  public static final int DEFAULT_MAX_ENTRIES = 1024;
+
+  //instance attributes
+  private final long m_DefaultTTL;
+  private int m_MaxEntries = DEFAULT_MAX_ENTRIES;
+  private final Map<Key, Entry> m_Entries = new HashMap<Key, Entry>();
+  private final List<TTLRule> m_Rules = new ArrayList<TTLRule>();
+  private long m_Hits;
+  private long m_Misses;
+  private long m_Merged;
+
+  /**
+   * Constructs a new <tt>ReadCache</tt> instance.
+   *
+   * @param ttl the default time to live of a response in milliseconds.
+   */
+  public ReadCache(long ttl) {
+    m_DefaultTTL = ttl;
+  }//constructor
+
+  /**
+   * Returns the default time to live of a response.
+   *
+   * @return the time to live in milliseconds.
+   */
+  public long getDefaultTTL() {
+    return m_DefaultTTL;
+  }//getDefaultTTL
+
+  /**
+   * Sets the maximum number of cached responses. When the
+   * cache is full and no response has expired, new responses
+   * are not cached.
+   *
+   * @param max the maximum number of responses.
+   */
+  public synchronized void setMaxEntries(int max) {
+    m_MaxEntries = max;
+  }//setMaxEntries
+
+  /**
+   * Returns the maximum number of cached responses.
+   *
+   * @return the maximum number as <tt>int</tt>.
+   */
+  public synchronized int getMaxEntries() {
+    return m_MaxEntries;
+  }//getMaxEntries
+
+  /**
+   * Sets the time to live of the responses to reads of the
+   * given unit and function code that lie within the given range.
+   * Rules are searched in the order they were set.
+   *
+   * @param unitid the unit identifier.
+   * @param fc     the function code of the read.
+   * @param ref    the first reference of the range.
+   * @param count  the number of references of the range.
+   * @param ttl    the time to live in milliseconds, 0 to never cache.
+   */
+  public synchronized void setTTL(int unitid, int fc, int ref, int count, long ttl) {
+    m_Rules.add(new TTLRule(unitid, fc, ref, count, ttl));
+  }//setTTL
+
+  /**
+   * Returns the number of reads served from the cache.
+   *
+   * @return the number of hits as <tt>long</tt>.
+   */
+  public synchronized long getHits() {
+    return m_Hits;
+  }//getHits
+
+  /**
+   * Returns the number of reads that had to be sent.
+   *
+   * @return the number of misses as <tt>long</tt>.
+   */
+  public synchronized long getMisses() {
+    return m_Misses;
+  }//getMisses
+
+  /**
+   * Returns the number of reads that waited for an
+   * identical read in flight.
+   *
+   * @return the number of merged reads as <tt>long</tt>.
+   */
+  public synchronized long getMerged() {
+    return m_Merged;
+  }//getMerged
+
+  /**
+   * Returns the number of cached responses and reads in flight.
+   *
+   * @return the size as <tt>int</tt>.
+   */
+  public synchronized int size() {
+    return m_Entries.size();
+  }//size
+
+  /**
+   * Tests if the given request is served by this cache.
+   *
+   * @param req a <tt>ModbusRequest</tt>.
+   * @return true if it is a read of coils, discretes or registers.
+   */
+  public static boolean isCacheable(ModbusRequest req) {
+    switch (req.getFunctionCode()) {
+      case Modbus.READ_COILS:
+      case Modbus.READ_INPUT_DISCRETES:
+      case Modbus.READ_MULTIPLE_REGISTERS:
+      case Modbus.READ_INPUT_REGISTERS:
+        return true;
+      default:
+        return false;
+    }
+  }//isCacheable
+
+  /**
+   * Returns the response to the given read, from the cache
+   * if possible, otherwise from the given loader.
+   * A request that is not cacheable is passed to the loader.
+   *
+   * @param endpoint the endpoint of the slave, e.g. <tt>host:port</tt>.
+   * @param req      the read <tt>ModbusRequest</tt>; it is not retained.
+   * @param loader   the <tt>Loader</tt> executing the request on a miss.
+   * @return the <tt>ModbusResponse</tt>.
+   * @throws ModbusException if the request fails; all readers
+   *                         waiting for it fail alike.
+   */
+  public ModbusResponse read(String endpoint, ModbusRequest req, Loader loader)
+      throws ModbusException {
+    if (!isCacheable(req)) {
+      return loader.load(req);
+    }
+    Key key = new Key(endpoint, req.getUnitID(), req.getFunctionCode(),
+        getReference(req), getCount(req));
+    Entry entry;
+    boolean loading = false;
+    synchronized (this) {
+      entry = m_Entries.get(key);
+      if (entry != null && entry.m_Done && System.nanoTime() - entry.m_Expires >= 0) {
+        m_Entries.remove(key);
+        entry = null;
+      }
+      if (entry == null) {
+        m_Misses++;
+        entry = new Entry();
+        if (m_Entries.size() >= m_MaxEntries) {
+          purge();
+        }
+        if (m_Entries.size() < m_MaxEntries) {
+          m_Entries.put(key, entry);
+        }
+        loading = true;
+      } else if (entry.m_Done) {
+        m_Hits++;
+        return entry.m_Response;
+      } else {
+        m_Merged++;
+      }
+    }
+    if (!loading) {
+      return entry.await();
+    }
+    //load outside of the monitor
+    ModbusResponse res = null;
+    ModbusException failure = null;
+    try {
+      res = loader.load(req);
+    } catch (ModbusException ex) {
+      failure = ex;
+    } catch (RuntimeException ex) {
+      failure = new ModbusIOException(ex.toString());
+    }
+    synchronized (this) {
+      long ttl = getTTL(key);
+      if (failure == null && ttl > 0 && !entry.m_Invalidated
+          && m_Entries.get(key) == entry) {
+        entry.m_Expires = System.nanoTime() + ttl * 1000000L;
+      } else if (m_Entries.get(key) == entry) {
+        m_Entries.remove(key);
+      }
+    }
+    entry.complete(res, failure);
+    if (failure != null) {
+      throw failure;
+    }
+    return res;
+  }//read
+
+  /**
+   * Evicts the cached ranges overlapped by the given write
+   * request. Requests that do not write are ignored.
+   *
+   * @param endpoint the endpoint of the slave, e.g. <tt>host:port</tt>.
+   * @param req      the write <tt>ModbusRequest</tt>.
+   */
+  public void invalidate(String endpoint, ModbusRequest req) {
+    int unit = req.getUnitID();
+    if (req instanceof WriteCoilRequest) {
+      invalidate(endpoint, unit, Modbus.READ_COILS,
+          ((WriteCoilRequest) req).getReference(), 1);
+    } else if (req instanceof WriteMultipleCoilsRequest) {
+      WriteMultipleCoilsRequest wreq = (WriteMultipleCoilsRequest) req;
+      invalidate(endpoint, unit, Modbus.READ_COILS, wreq.getReference(), wreq.getBitCount());
+    } else if (req instanceof WriteSingleRegisterRequest) {
+      invalidate(endpoint, unit, Modbus.READ_MULTIPLE_REGISTERS,
+          ((WriteSingleRegisterRequest) req).getReference(), 1);
+    } else if (req instanceof WriteMultipleRegistersRequest) {
+      WriteMultipleRegistersRequest wreq = (WriteMultipleRegistersRequest) req;
+      invalidate(endpoint, unit, Modbus.READ_MULTIPLE_REGISTERS,
+          wreq.getReference(), wreq.getWordCount());
+    } else if (req instanceof MaskWriteRegisterRequest) {
+      invalidate(endpoint, unit, Modbus.READ_MULTIPLE_REGISTERS,
+          ((MaskWriteRegisterRequest) req).getReference(), 1);
+    } else if (req instanceof ReadWriteMultipleRequest) {
+      ReadWriteMultipleRequest wreq = (ReadWriteMultipleRequest) req;
+      invalidate(endpoint, unit, Modbus.READ_MULTIPLE_REGISTERS,
+          wreq.getWriteReference(), wreq.getWriteWordCount());
+    }
+  }//invalidate
+
+  /**
+   * Evicts the cached responses of the given unit and read
+   * function code whose ranges overlap the given range.
+   *
+   * @param endpoint the endpoint of the slave, e.g. <tt>host:port</tt>.
+   * @param unitid   the unit identifier.
+   * @param fc       the function code of the read.
+   * @param ref      the first reference of the range.
+   * @param count    the number of references of the range.
+   */
+  public synchronized void invalidate(String endpoint, int unitid, int fc, int ref, int count) {
+    for (Iterator<Map.Entry<Key, Entry>> iter = m_Entries.entrySet().iterator(); iter.hasNext();) {
+      Map.Entry<Key, Entry> e = iter.next();
+      Key k = e.getKey();
+      if (k.m_UnitID == unitid && k.m_FunctionCode == fc
+          && k.m_Reference < ref + count && ref < k.m_Reference + k.m_Count
+          && k.m_Endpoint.equals(endpoint)) {
+        e.getValue().m_Invalidated = true;
+        iter.remove();
+      }
+    }
+  }//invalidate
+
+  /**
+   * Evicts all cached responses.
+   */
+  public synchronized void clear() {
+    for (Entry e : m_Entries.values()) {
+      e.m_Invalidated = true;
+    }
+    m_Entries.clear();
+  }//clear
+
+  private void purge() {
+    long now = System.nanoTime();
+    for (Iterator<Entry> iter = m_Entries.values().iterator(); iter.hasNext();) {
+      Entry e = iter.next();
+      if (e.m_Done && now - e.m_Expires >= 0) {
+        iter.remove();
+      }
+    }
+  }//purge
+
+  private long getTTL(Key key) {
+    for (int i = 0; i < m_Rules.size(); i++) {
+      TTLRule rule = m_Rules.get(i);
+      if (rule.m_UnitID == key.m_UnitID && rule.m_FunctionCode == key.m_FunctionCode
+          && rule.m_Reference <= key.m_Reference
+          && key.m_Reference + key.m_Count <= rule.m_Reference + rule.m_Count) {
+        return rule.m_TTL;
+      }
+    }
+    return m_DefaultTTL;
+  }//getTTL
+
+  private static int getReference(ModbusRequest req) {
+    switch (req.getFunctionCode()) {
+      case Modbus.READ_COILS:
+        return ((ReadCoilsRequest) req).getReference();
+      case Modbus.READ_INPUT_DISCRETES:
+        return ((ReadInputDiscretesRequest) req).getReference();
+      case Modbus.READ_MULTIPLE_REGISTERS:
+        return ((ReadMultipleRegistersRequest) req).getReference();
+      default:
+        return ((ReadInputRegistersRequest) req).getReference();
+    }
+  }//getReference
+
+  private static int getCount(ModbusRequest req) {
+    switch (req.getFunctionCode()) {
+      case Modbus.READ_COILS:
+        return ((ReadCoilsRequest) req).getBitCount();
+      case Modbus.READ_INPUT_DISCRETES:
+        return ((ReadInputDiscretesRequest) req).getBitCount();
+      case Modbus.READ_MULTIPLE_REGISTERS:
+        return ((ReadMultipleRegistersRequest) req).getWordCount();
+      default:
+        return ((ReadInputRegistersRequest) req).getWordCount();
+    }
+  }//getCount
+
+  /**
+   * Interface defining how a <tt>ReadCache</tt>
+   * executes a request on a miss.
+   */
+  public interface Loader {
+
+    /**
+     * Executes the given request.
+     *
+     * @param req the <tt>ModbusRequest</tt> to be executed.
+     * @return the <tt>ModbusResponse</tt> received, which must not
+     *         be reused for another request.
+     * @throws ModbusException if the request fails.
+     */
+    public ModbusResponse load(ModbusRequest req) throws ModbusException;
+
+  }//interface Loader
+
+  /**
+   * Inner class implementing the key of a cached response.
+   */
+  private static final class Key {
+
+    private final String m_Endpoint;
+    private final int m_UnitID;
+    private final int m_FunctionCode;
+    private final int m_Reference;
+    private final int m_Count;
+
+    public Key(String endpoint, int unitid, int fc, int ref, int count) {
+      m_Endpoint = endpoint;
+      m_UnitID = unitid;
+      m_FunctionCode = fc;
+      m_Reference = ref;
+      m_Count = count;
+    }//constructor
+
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key k = (Key) o;
+      return m_UnitID == k.m_UnitID && m_FunctionCode == k.m_FunctionCode
+          && m_Reference == k.m_Reference && m_Count == k.m_Count
+          && m_Endpoint.equals(k.m_Endpoint);
+    }//equals
+
+    public int hashCode() {
+      int h = m_Endpoint.hashCode();
+      h = h * 31 + m_UnitID;
+      h = h * 31 + m_FunctionCode;
+      h = h * 31 + m_Reference;
+      return h * 31 + m_Count;
+    }//hashCode
+
+  }//inner class Key
+
+  /**
+   * Inner class holding a cached response or a read in flight.
+   */
+  private static class Entry {
+
+    private ModbusResponse m_Response;
+    private ModbusException m_Exception;
+    private volatile boolean m_Done;
+    private long m_Expires;
+    private boolean m_Invalidated;
+
+    public synchronized void complete(ModbusResponse res, ModbusException ex) {
+      m_Response = res;
+      m_Exception = ex;
+      m_Done = true;
+      notifyAll();
+    }//complete
+
+    public synchronized ModbusResponse await() throws ModbusException {
+      try {
+        while (!m_Done) {
+          wait();
+        }
+      } catch (InterruptedException ex) {
+        throw new ModbusIOException("Thread waiting for response was interrupted.");
+      }
+      if (m_Exception != null) {
+        throw m_Exception;
+      }
+      return m_Response;
+    }//await
+
+  }//inner class Entry
+
+  /**
+   * Inner class holding the time to live of a range.
+   */
+  private static class TTLRule {
+
+    private final int m_UnitID;
+    private final int m_FunctionCode;
+    private final int m_Reference;
+    private final int m_Count;
+    private final long m_TTL;
+
+    public TTLRule(int unitid, int fc, int ref, int count, long ttl) {
+      m_UnitID = unitid;
+      m_FunctionCode = fc;
+      m_Reference = ref;
+      m_Count = count;
+      m_TTL = ttl;
+    }//constructor
+
+  }//inner class TTLRule
+
+}//class ReadCache
@@ -0,0 +1,309 @@
+/***
+ * Copyright 2002-2010 jamod development team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***/
+
+package net.wimpi.modbus.io;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.wimpi.modbus.Modbus;
+import net.wimpi.modbus.ModbusException;
+import net.wimpi.modbus.msg.ModbusRequest;
+import net.wimpi.modbus.msg.ModbusResponse;
+import net.wimpi.modbus.msg.ReadCoilsRequest;
+import net.wimpi.modbus.msg.ReadCoilsResponse;
+import net.wimpi.modbus.msg.ReadInputDiscretesRequest;
+import net.wimpi.modbus.msg.ReadInputDiscretesResponse;
+import net.wimpi.modbus.msg.ReadInputRegistersRequest;
+import net.wimpi.modbus.msg.ReadInputRegistersResponse;
+import net.wimpi.modbus.msg.ReadMultipleRegistersRequest;
+import net.wimpi.modbus.msg.ReadMultipleRegistersResponse;
+import net.wimpi.modbus.procimg.InputRegister;
+import net.wimpi.modbus.util.BitVector;
+
+/**
+ * Class representing the requests that read a set of
+ * ranges, as created by a {@link ReadPlanner}.
+ * <p>
+ * The plan may be executed with a transaction, or its
+ * requests may be executed by other means and the responses
+ * handed back with {@link #setResponse(int, ModbusResponse)}.
+ * Afterwards the data of each original range is obtained
+ * by the index returned when it was added to the planner.
+ * <p>
+ * A plan can be executed repeatedly; it is not
+ * safe for concurrent use.
+ *
+ * @author Dieter Wimberger
+ * @version @version@ (@date@)
+ */
+public class ReadPlan {
+
+  //instance attributes
+  private final List<ModbusRequest> m_Requests = new ArrayList<ModbusRequest>();
+  private final List<ModbusResponse> m_Responses = new ArrayList<ModbusResponse>();
+  private final int[] m_Read;
+  private final int[] m_Offset;
+  private final int[] m_Count;
+
+  /**
+   * Constructs a new <tt>ReadPlan</tt> instance
+   * for the given number of ranges.
+   *
+   * @param ranges the number of ranges.
+   */
+  ReadPlan(int ranges) {
+    m_Read = new int[ranges];
+    m_Offset = new int[ranges];
+    m_Count = new int[ranges];
+  }//constructor
+
+  /**
+   * Adds a request to this plan.
+   *
+   * @return the index of the request.
+   */
+  int addRead(int unitid, int functioncode, int ref, int count) {
+    ModbusRequest req = null;
+    switch (functioncode) {
+      case Modbus.READ_COILS:
+        req = new ReadCoilsRequest(ref, count);
+        break;
+      case Modbus.READ_INPUT_DISCRETES:
+        req = new ReadInputDiscretesRequest(ref, count);
+        break;
+      case Modbus.READ_MULTIPLE_REGISTERS:
+        req = new ReadMultipleRegistersRequest(ref, count);
+        break;
+      case Modbus.READ_INPUT_REGISTERS:
+        req = new ReadInputRegistersRequest(ref, count);
+        break;
+      default:
+        throw new IllegalArgumentException("Function code " + functioncode + " is not a read.");
+    }
+    req.setUnitID(unitid);
+    m_Requests.add(req);
+    m_Responses.add(null);
+    return m_Requests.size() - 1;
+  }//addRead
+
+  /**
+   * Maps a range to the given part of a request.
+   */
+  void mapRange(int range, int read, int offset, int count) {
+    m_Read[range] = read;
+    m_Offset[range] = offset;
+    m_Count[range] = count;
+  }//mapRange
+
+  /**
+   * Returns the number of requests of this <tt>ReadPlan</tt>.
+   *
+   * @return the number of requests as <tt>int</tt>.
+   */
+  public int getRequestCount() {
+    return m_Requests.size();
+  }//getRequestCount
+
+  /**
+   * Returns the request with the given index.
+   *
+   * @param idx the index of the request.
+   * @return the <tt>ModbusRequest</tt>.
+   */
+  public ModbusRequest getRequest(int idx) {
+    return m_Requests.get(idx);
+  }//getRequest
+
+  /**
+   * Returns the number of ranges served by this <tt>ReadPlan</tt>.
+   *
+   * @return the number of ranges as <tt>int</tt>.
+   */
+  public int getRangeCount() {
+    return m_Read.length;
+  }//getRangeCount
+
+  /**
+   * Returns the index of the request that reads the given range.
+   *
+   * @param range the index of the range.
+   * @return the index of the request.
+   */
+  public int getRequestIndex(int range) {
+    return m_Read[range];
+  }//getRequestIndex
+
+  /**
+   * Sets the response to the request with the given index.
+   *
+   * @param idx the index of the request.
+   * @param res the <tt>ModbusResponse</tt> received.
+   * @throws ModbusException if the response does not match the request.
+   */
+  public void setResponse(int idx, ModbusResponse res)
+      throws ModbusException {
+    ModbusRequest req = m_Requests.get(idx);
+    int count = 0;
+    switch (req.getFunctionCode()) {
+      case Modbus.READ_COILS:
+        if (res instanceof ReadCoilsResponse) {
+          count = ((ReadCoilsResponse) res).getCoils().size();
+          if (count >= ((ReadCoilsRequest) req).getBitCount()) {
+            break;
+          }
+        }
+        throw new ModbusException("Response does not match request " + idx + ".");
+      case Modbus.READ_INPUT_DISCRETES:
+        if (res instanceof ReadInputDiscretesResponse) {
+          count = ((ReadInputDiscretesResponse) res).getDiscretes().size();
+          if (count >= ((ReadInputDiscretesRequest) req).getBitCount()) {
+            break;
+          }
+        }
+        throw new ModbusException("Response does not match request " + idx + ".");
+      case Modbus.READ_MULTIPLE_REGISTERS:
+        if (res instanceof ReadMultipleRegistersResponse) {
+          count = ((ReadMultipleRegistersResponse) res).getWordCount();
+          if (count >= ((ReadMultipleRegistersRequest) req).getWordCount()) {
+            break;
+          }
+        }
+        throw new ModbusException("Response does not match request " + idx + ".");
+      default:
+        if (res instanceof ReadInputRegistersResponse) {
+          count = ((ReadInputRegistersResponse) res).getWordCount();
+          if (count >= ((ReadInputRegistersRequest) req).getWordCount()) {
+            break;
+          }
+        }
+        throw new ModbusException("Response does not match request " + idx + ".");
+    }
+    m_Responses.set(idx, res);
+  }//setResponse
+
+  /**
+   * Executes all requests of this <tt>ReadPlan</tt> with
+   * the given transaction, which is left with the last request.
+   *
+   * @param trans the <tt>ModbusTransaction</tt> to be used.
+   * @throws ModbusException if a request fails.
+   */
+  public void execute(ModbusTransaction trans)
+      throws ModbusException {
+    for (int i = 0; i < m_Requests.size(); i++) {
+      m_Responses.set(i, null);
+    }
+    for (int i = 0; i < m_Requests.size(); i++) {
+      trans.setRequest(m_Requests.get(i));
+      trans.execute();
+      setResponse(i, trans.getResponse());
+    }
+  }//execute
+
+  /**
+   * Returns the registers of the given range, which must
+   * have been added for <tt>Modbus.READ_MULTIPLE_REGISTERS</tt>
+   * or <tt>Modbus.READ_INPUT_REGISTERS</tt>.
+   *
+   * @param range the index of the range.
+   * @return the <tt>InputRegister[]</tt> of the range.
+   * @throws IllegalStateException if the response has not been received.
+   */
+  public InputRegister[] getRegisters(int range) {
+    ModbusResponse res = getResponse(range);
+    InputRegister[] all = null;
+    if (res instanceof ReadMultipleRegistersResponse) {
+      all = ((ReadMultipleRegistersResponse) res).getRegisters();
+    } else if (res instanceof ReadInputRegistersResponse) {
+      all = ((ReadInputRegistersResponse) res).getRegisters();
+    } else {
+      throw new IllegalArgumentException("Range " + range + " does not read registers.");
+    }
+    InputRegister[] regs = new InputRegister[m_Count[range]];
+    System.arraycopy(all, m_Offset[range], regs, 0, regs.length);
+    return regs;
+  }//getRegisters
+
+  /**
+   * Copies the register values of the given range into the given
+   * array, as unsigned values, without creating an object per register.
+   *
+   * @param range  the index of the range.
+   * @param dest   the <tt>int[]</tt> receiving the values.
+   * @param offset the index of <tt>dest</tt> receiving the first value.
+   * @return the number of values copied.
+   * @throws IllegalStateException if the response has not been received.
+   */
+  public int getRegisterValues(int range, int[] dest, int offset) {
+    ModbusResponse res = getResponse(range);
+    int count = m_Count[range];
+    int first = m_Offset[range];
+    if (offset < 0 || offset + count > dest.length) {
+      throw new IndexOutOfBoundsException();
+    }
+    if (res instanceof ReadMultipleRegistersResponse) {
+      ReadMultipleRegistersResponse r = (ReadMultipleRegistersResponse) res;
+      for (int i = 0; i < count; i++) {
+        dest[offset + i] = r.getRegisterValue(first + i);
+      }
+    } else if (res instanceof ReadInputRegistersResponse) {
+      ReadInputRegistersResponse r = (ReadInputRegistersResponse) res;
+      for (int i = 0; i < count; i++) {
+        dest[offset + i] = r.getRegisterValue(first + i);
+      }
+    } else {
+      throw new IllegalArgumentException("Range " + range + " does not read registers.");
+    }
+    return count;
+  }//getRegisterValues
+
+  /**
+   * Returns the coils or discretes of the given range, which
+   * must have been added for <tt>Modbus.READ_COILS</tt> or
+   * <tt>Modbus.READ_INPUT_DISCRETES</tt>.
+   *
+   * @param range the index of the range.
+   * @return a <tt>BitVector</tt> of the size of the range.
+   * @throws IllegalStateException if the response has not been received.
+   */
+  public BitVector getBits(int range) {
+    ModbusResponse res = getResponse(range);
+    BitVector all = null;
+    if (res instanceof ReadCoilsResponse) {
+      all = ((ReadCoilsResponse) res).getCoils();
+    } else if (res instanceof ReadInputDiscretesResponse) {
+      all = ((ReadInputDiscretesResponse) res).getDiscretes();
+    } else {
+      throw new IllegalArgumentException("Range " + range + " does not read bits.");
+    }
+    int offset = m_Offset[range];
+    BitVector bits = new BitVector(m_Count[range]);
+    for (int i = 0; i < bits.size(); i++) {
+      bits.setBit(i, all.getBit(offset + i));
+    }
+    return bits;
+  }//getBits
+
+  private ModbusResponse getResponse(int range) {
+    ModbusResponse res = m_Responses.get(m_Read[range]);
+    if (res == null) {
+      throw new IllegalStateException("No response for range " + range + ".");
+    }
+    return res;
+  }//getResponse
+
+}//class ReadPlan
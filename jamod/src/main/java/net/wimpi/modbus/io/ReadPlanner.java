@@ -0,0 +1,273 @@
+/***
+ * Copyright 2002-2010 jamod development team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***/
+
+package net.wimpi.modbus.io;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import net.wimpi.modbus.Modbus;
+
+/**
+ * Class implementing a planner that coalesces scattered
+ * read ranges into as few requests as possible.
+ * <p>
+ * Ranges are added per unit and function code; ranges of
+ * the same unit and function code that overlap, touch or are
+ * separated by no more than the maximum gap are merged into a
+ * single request, as long as the request stays within the
+ * limits of a PDU. The resulting {@link ReadPlan} slices the
+ * responses back into the original ranges.
+ * <p>
+ * Note that bridging a gap reads the references in between,
+ * which must therefore be readable on the slave.
+ *
+ * @author Dieter Wimberger
+ * @version @version@ (@date@)
+ */
+public class ReadPlanner {
+
+  /**
+   * Defines the maximum number of registers that
+   * can be read with a single request.
+   */
+  public static final int MAX_REGISTERS = 125;
+
+  /**
+   * Defines the maximum number of coils or discretes
+   * that can be read with a single request.
+   */
+  public static final int MAX_BITS = 2000;
+
+  //instance attributes
+  private final List<Range> m_Ranges = new ArrayList<Range>();
+  private int m_MaxGap = 0;
+  private int m_MaxRegisters = MAX_REGISTERS;
+  private int m_MaxBits = MAX_BITS;
+
+  /**
+   * Constructs a new <tt>ReadPlanner</tt> instance
+   * that does not bridge gaps.
+   */
+  public ReadPlanner() {
+  }//constructor
+
+  /**
+   * Constructs a new <tt>ReadPlanner</tt> instance.
+   *
+   * @param maxgap the maximum number of unrequested references
+   *               that may be read to merge two ranges.
+   */
+  public ReadPlanner(int maxgap) {
+    setMaxGap(maxgap);
+  }//constructor
+
+  /**
+   * Returns the maximum gap that is bridged.
+   *
+   * @return the maximum gap as <tt>int</tt>.
+   */
+  public int getMaxGap() {
+    return m_MaxGap;
+  }//getMaxGap
+
+  /**
+   * Sets the maximum number of unrequested references that
+   * may be read to merge two ranges.
+   *
+   * @param maxgap the maximum gap as <tt>int</tt>.
+   */
+  public void setMaxGap(int maxgap) {
+    if (maxgap < 0) {
+      throw new IllegalArgumentException("Gap must not be negative.");
+    }
+    m_MaxGap = maxgap;
+  }//setMaxGap
+
+  /**
+   * Returns the maximum number of registers per request.
+   *
+   * @return the maximum number of registers as <tt>int</tt>.
+   */
+  public int getMaxRegisters() {
+    return m_MaxRegisters;
+  }//getMaxRegisters
+
+  /**
+   * Sets the maximum number of registers per request, for
+   * slaves that do not support full sized PDUs.
+   *
+   * @param max the maximum number of registers, 1 to <tt>MAX_REGISTERS</tt>.
+   */
+  public void setMaxRegisters(int max) {
+    if (max < 1 || max > MAX_REGISTERS) {
+      throw new IllegalArgumentException("Invalid register limit " + max + ".");
+    }
+    m_MaxRegisters = max;
+  }//setMaxRegisters
+
+  /**
+   * Returns the maximum number of coils or discretes per request.
+   *
+   * @return the maximum number of bits as <tt>int</tt>.
+   */
+  public int getMaxBits() {
+    return m_MaxBits;
+  }//getMaxBits
+
+  /**
+   * Sets the maximum number of coils or discretes per request, for
+   * slaves that do not support full sized PDUs.
+   *
+   * @param max the maximum number of bits, 1 to <tt>MAX_BITS</tt>.
+   */
+  public void setMaxBits(int max) {
+    if (max < 1 || max > MAX_BITS) {
+      throw new IllegalArgumentException("Invalid bit limit " + max + ".");
+    }
+    m_MaxBits = max;
+  }//setMaxBits
+
+  /**
+   * Adds a range to be read.
+   *
+   * @param unitid       the unit identifier of the slave.
+   * @param functioncode one of <tt>Modbus.READ_COILS</tt>,
+   *                     <tt>Modbus.READ_INPUT_DISCRETES</tt>,
+   *                     <tt>Modbus.READ_MULTIPLE_REGISTERS</tt> or
+   *                     <tt>Modbus.READ_INPUT_REGISTERS</tt>.
+   * @param ref          the reference of the first coil, discrete or register.
+   * @param count        the number of coils, discretes or registers.
+   * @return the index of the range, used to obtain its data from the plan.
+   */
+  public int addRange(int unitid, int functioncode, int ref, int count) {
+    int max = getLimit(functioncode);
+    if (count < 1 || count > max) {
+      throw new IllegalArgumentException("Count must be between 1 and " + max + ".");
+    }
+    if (ref < 0 || ref + count > 65536) {
+      throw new IllegalArgumentException("Range exceeds the reference space.");
+    }
+    int idx = m_Ranges.size();
+    m_Ranges.add(new Range(idx, unitid, functioncode, ref, count));
+    return idx;
+  }//addRange
+
+  /**
+   * Returns the number of ranges added.
+   *
+   * @return the number of ranges as <tt>int</tt>.
+   */
+  public int getRangeCount() {
+    return m_Ranges.size();
+  }//getRangeCount
+
+  /**
+   * Removes all ranges from this <tt>ReadPlanner</tt>.
+   */
+  public void clear() {
+    m_Ranges.clear();
+  }//clear
+
+  /**
+   * Creates the plan reading all ranges added so far
+   * with the fewest requests.
+   *
+   * @return the <tt>ReadPlan</tt>.
+   */
+  public ReadPlan plan() {
+    List<Range> sorted = new ArrayList<Range>(m_Ranges);
+    Collections.sort(sorted, RANGE_ORDER);
+
+    ReadPlan plan = new ReadPlan(m_Ranges.size());
+    int i = 0;
+    while (i < sorted.size()) {
+      Range first = sorted.get(i);
+      int max = getLimit(first.m_FunctionCode);
+      int start = first.m_Reference;
+      int end = start + first.m_Count;
+      int j = i + 1;
+      //extend while the next range is in reach and the request fits
+      while (j < sorted.size()) {
+        Range r = sorted.get(j);
+        if (r.m_UnitID != first.m_UnitID
+            || r.m_FunctionCode != first.m_FunctionCode
+            || r.m_Reference > end + m_MaxGap
+            || Math.max(end, r.m_Reference + r.m_Count) - start > max) {
+          break;
+        }
+        end = Math.max(end, r.m_Reference + r.m_Count);
+        j++;
+      }
+      int read = plan.addRead(first.m_UnitID, first.m_FunctionCode, start, end - start);
+      for (int k = i; k < j; k++) {
+        Range r = sorted.get(k);
+        plan.mapRange(r.m_Index, read, r.m_Reference - start, r.m_Count);
+      }
+      i = j;
+    }
+    return plan;
+  }//plan
+
+  private int getLimit(int functioncode) {
+    switch (functioncode) {
+      case Modbus.READ_COILS:
+      case Modbus.READ_INPUT_DISCRETES:
+        return m_MaxBits;
+      case Modbus.READ_MULTIPLE_REGISTERS:
+      case Modbus.READ_INPUT_REGISTERS:
+        return m_MaxRegisters;
+      default:
+        throw new IllegalArgumentException("Function code " + functioncode + " is not a read.");
+    }
+  }//getLimit
+
+  private static final Comparator<Range> RANGE_ORDER = new Comparator<Range>() {
+    public int compare(Range r1, Range r2) {
+      if (r1.m_UnitID != r2.m_UnitID) {
+        return r1.m_UnitID - r2.m_UnitID;
+      }
+      if (r1.m_FunctionCode != r2.m_FunctionCode) {
+        return r1.m_FunctionCode - r2.m_FunctionCode;
+      }
+      return r1.m_Reference - r2.m_Reference;
+    }
+  };
+
+  /**
+   * Class holding a range as it was added.
+   */
+  private static class Range {
+
+    final int m_Index;
+    final int m_UnitID;
+    final int m_FunctionCode;
+    final int m_Reference;
+    final int m_Count;
+
+    Range(int idx, int unitid, int functioncode, int ref, int count) {
+      m_Index = idx;
+      m_UnitID = unitid;
+      m_FunctionCode = functioncode;
+      m_Reference = ref;
+      m_Count = count;
+    }//constructor
+
+  }//class Range
+
+}//class ReadPlanner
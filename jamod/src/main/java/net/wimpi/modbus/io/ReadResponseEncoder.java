@@ -0,0 +1,218 @@
+/***
+ * Copyright 2002-2010 jamod development team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***/
+
+
+package net.wimpi.modbus.io;
+
+import net.wimpi.modbus.Modbus;
+import net.wimpi.modbus.msg.ModbusRequest;
+import net.wimpi.modbus.msg.ReadCoilsRequest;
+import net.wimpi.modbus.msg.ReadInputDiscretesRequest;
+import net.wimpi.modbus.msg.ReadInputRegistersRequest;
+import net.wimpi.modbus.msg.ReadMultipleRegistersRequest;
+import net.wimpi.modbus.procimg.DigitalIn;
+import net.wimpi.modbus.procimg.DigitalOut;
+import net.wimpi.modbus.procimg.InputRegister;
+import net.wimpi.modbus.procimg.ProcessImage;
+
+/**
+ * Class implementing an encoder that writes the Modbus/TCP
+ * responses to read requests straight from a process image
+ * into a reused buffer.
+ * <p>
+ * The registers, input registers, coils and discretes are
+ * fetched one by one and encoded as they are fetched, so that
+ * neither the range arrays of the process image nor response
+ * objects are created. Reads this encoder does not handle,
+ * i.e. other function codes, invalid counts and addresses out
+ * of range, are left to the regular path, which also creates
+ * the exception responses.
+ * <p>
+ * Instances are not thread safe; use one per thread.
+ *
+ * @author Dieter Wimberger
+ * @version @version@ (@date@)
+ */
+public class ReadResponseEncoder {
+
+  /**
+   * Defines the maximum number of registers of a read.
+   */
+  public static final int MAX_WORDS = 125;
+
+  /**
+   * Defines the length of the MBAP header, unit identifier
+   * included, and function code.
+   */
+  private static final int HEADER_LENGTH = 8;
+
+  private final byte[] m_Buffer =
+      new byte[HEADER_LENGTH + 1 + Math.max(MAX_WORDS * 2, (Modbus.MAX_BITS + 7) / 8)];
+
+  /**
+   * Constructs a new <tt>ReadResponseEncoder</tt> instance.
+   */
+  public ReadResponseEncoder() {
+  }//constructor
+
+  /**
+   * Returns the buffer holding the last encoded frame.
+   *
+   * @return the buffer as <tt>byte[]</tt>.
+   */
+  public byte[] getBuffer() {
+    return m_Buffer;
+  }//getBuffer
+
+  /**
+   * Tests if reads with the given function code
+   * may be encoded by this <tt>ReadResponseEncoder</tt>.
+   *
+   * @param fc the function code.
+   * @return true if the function code is one of the
+   *         four read function codes, false otherwise.
+   */
+  public static boolean isEncodable(int fc) {
+    return fc == Modbus.READ_MULTIPLE_REGISTERS || fc == Modbus.READ_INPUT_REGISTERS
+        || fc == Modbus.READ_COILS || fc == Modbus.READ_INPUT_DISCRETES;
+  }//isEncodable
+
+  /**
+   * Encodes the response frame to the given request.
+   *
+   * @param req     the <tt>ModbusRequest</tt> to be answered.
+   * @param procimg the <tt>ProcessImage</tt> to read from.
+   * @return the length of the frame in the buffer, or -1 if the
+   *         request is to be answered by the regular path.
+   */
+  public int encode(ModbusRequest req, ProcessImage procimg) {
+    int ref = 0;
+    int count = 0;
+    if (req.isHeadless() || req.getProtocolID() != Modbus.DEFAULT_PROTOCOL_ID) {
+      return -1;
+    } else if (req instanceof ReadMultipleRegistersRequest) {
+      ref = ((ReadMultipleRegistersRequest) req).getReference();
+      count = ((ReadMultipleRegistersRequest) req).getWordCount();
+    } else if (req instanceof ReadInputRegistersRequest) {
+      ref = ((ReadInputRegistersRequest) req).getReference();
+      count = ((ReadInputRegistersRequest) req).getWordCount();
+    } else if (req instanceof ReadCoilsRequest) {
+      ref = ((ReadCoilsRequest) req).getReference();
+      count = ((ReadCoilsRequest) req).getBitCount();
+    } else if (req instanceof ReadInputDiscretesRequest) {
+      ref = ((ReadInputDiscretesRequest) req).getReference();
+      count = ((ReadInputDiscretesRequest) req).getBitCount();
+    } else {
+      return -1;
+    }
+    return encode(req.getTransactionID(), req.getUnitID(), req.getFunctionCode(),
+        ref, count, procimg);
+  }//encode
+
+  /**
+   * Encodes the response frame to the read request
+   * with the given fields.
+   *
+   * @param tid     the transaction identifier.
+   * @param unit    the unit identifier.
+   * @param fc      the function code.
+   * @param ref     the reference of the first value.
+   * @param count   the number of values.
+   * @param procimg the <tt>ProcessImage</tt> to read from.
+   * @return the length of the frame in the buffer, or -1 if the
+   *         request is to be answered by the regular path.
+   */
+  public int encode(int tid, int unit, int fc, int ref, int count,
+                    ProcessImage procimg) {
+    if (procimg == null || ref < 0 || count < 1) {
+      return -1;
+    }
+    final byte[] buf = m_Buffer;
+    int pos = HEADER_LENGTH + 1;
+    switch (fc) {
+      case Modbus.READ_MULTIPLE_REGISTERS:
+        if (count > MAX_WORDS || ref + count > procimg.getRegisterCount()) {
+          return -1;
+        }
+        for (int i = 0; i < count; i++) {
+          pos = put(procimg.getRegister(ref + i), buf, pos);
+        }
+        break;
+      case Modbus.READ_INPUT_REGISTERS:
+        if (count > MAX_WORDS || ref + count > procimg.getInputRegisterCount()) {
+          return -1;
+        }
+        for (int i = 0; i < count; i++) {
+          pos = put(procimg.getInputRegister(ref + i), buf, pos);
+        }
+        break;
+      case Modbus.READ_COILS:
+        if (count > Modbus.MAX_BITS || ref + count > procimg.getDigitalOutCount()) {
+          return -1;
+        }
+        for (int i = 0; i < count; i += 8) {
+          int b = 0;
+          for (int k = 0; k < 8 && i + k < count; k++) {
+            DigitalOut dout = procimg.getDigitalOut(ref + i + k);
+            if (dout.isSet()) {
+              b |= 1 << k;
+            }
+          }
+          buf[pos++] = (byte) b;
+        }
+        break;
+      case Modbus.READ_INPUT_DISCRETES:
+        if (count > Modbus.MAX_BITS || ref + count > procimg.getDigitalInCount()) {
+          return -1;
+        }
+        for (int i = 0; i < count; i += 8) {
+          int b = 0;
+          for (int k = 0; k < 8 && i + k < count; k++) {
+            DigitalIn din = procimg.getDigitalIn(ref + i + k);
+            if (din.isSet()) {
+              b |= 1 << k;
+            }
+          }
+          buf[pos++] = (byte) b;
+        }
+        break;
+      default:
+        return -1;
+    }
+    //MBAP header, function code and byte count
+    int bytes = pos - HEADER_LENGTH - 1;
+    int len = bytes + 3;
+    buf[0] = (byte) (tid >> 8);
+    buf[1] = (byte) tid;
+    buf[2] = (byte) (Modbus.DEFAULT_PROTOCOL_ID >> 8);
+    buf[3] = (byte) Modbus.DEFAULT_PROTOCOL_ID;
+    buf[4] = (byte) (len >> 8);
+    buf[5] = (byte) len;
+    buf[6] = (byte) unit;
+    buf[7] = (byte) fc;
+    buf[8] = (byte) bytes;
+    return pos;
+  }//encode
+
+  private static int put(InputRegister reg, byte[] buf, int pos) {
+    //as on the wire, see writeData() of the responses
+    byte[] b = reg.toBytes();
+    buf[pos] = b[0];
+    buf[pos + 1] = b[1];
+    return pos + 2;
+  }//put
+
+}//class ReadResponseEncoder
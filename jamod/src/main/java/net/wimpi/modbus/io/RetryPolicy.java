@@ -0,0 +1,45 @@
+/***
+ * Copyright 2002-2010 jamod development team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***/
+
+package net.wimpi.modbus.io;
+
+import net.wimpi.modbus.ModbusIOException;
+
+/**
+ * Interface defining the policy that decides if
+ * and when a failed transaction is retried.
+ *
+ * @author Dieter Wimberger
+ * @version @version@ (@date@)
+ * @see ExponentialBackoffRetryPolicy
+ */
+public interface RetryPolicy {
+
+  /**
+   * Returns the time to wait before the given retry.
+   * <p>
+   * The number of retries is bounded by the retries
+   * of the transaction; a policy may give up earlier by
+   * returning a negative value.
+   *
+   * @param retry the number of the retry, starting with 1.
+   * @param cause the <tt>ModbusIOException</tt> of the failed attempt.
+   * @return the delay in milliseconds, 0 for an immediate retry or
+   *         a negative value for not retrying at all.
+   */
+  public long getRetryDelay(int retry, ModbusIOException cause);
+
+}//interface RetryPolicy
@@ -0,0 +1,358 @@
+/***
+ * Copyright 2002-2010 jamod development team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***/
+
+package net.wimpi.modbus.io;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import net.wimpi.modbus.ModbusException;
+
+/**
+ * Class representing a group of transactions that is
+ * scanned periodically by a {@link ScanScheduler}.
+ * <p>
+ * Each cycle is released at a fixed rate, independent of
+ * the time taken by earlier cycles. A cycle that is released
+ * while the previous one is still running is skipped. The group
+ * keeps the following statistics:
+ * <ul>
+ * <li>jitter: the delay between release and start of a cycle</li>
+ * <li>overruns: cycles that took longer than the period</li>
+ * <li>missed deadlines: cycles that completed after the next
+ *     release, including skipped ones</li>
+ * </ul>
+ *
+ * @author Dieter Wimberger
+ * @version @version@ (@date@)
+ */
+public class ScanGroup {
+
+  /**
+   * Defines the minimum period of a group in milliseconds.
+   */
+  public static final long MIN_PERIOD = 10;
+
+  /**
+   * Defines the maximum period of a group in milliseconds.
+   */
+  public static final long MAX_PERIOD = 3600000;
+
+  //instance attributes
+  private final String m_Name;
+  private final long m_Period;
+  private final CopyOnWriteArrayList<Item> m_Items =
+      new CopyOnWriteArrayList<Item>();
+  private volatile ScanListener m_Listener;
+
+  //scheduling state, owned by the scheduler
+  final AtomicBoolean m_Running = new AtomicBoolean(false);
+  volatile ScanScheduler m_Scheduler;
+  long m_Release;
+  long m_Rounds;
+  boolean m_InWheel;
+
+  //statistics
+  private long m_Cycles;
+  private long m_Skipped;
+  private long m_Overruns;
+  private long m_Missed;
+  private long m_LastJitter;
+  private long m_MaxJitter;
+  private long m_TotalJitter;
+  private long m_LastDuration;
+  private long m_MaxDuration;
+
+  /**
+   * Constructs a new <tt>ScanGroup</tt> instance.
+   *
+   * @param name   the name of the group.
+   * @param period the period in milliseconds, between
+   *               <tt>MIN_PERIOD</tt> and <tt>MAX_PERIOD</tt>.
+   */
+  public ScanGroup(String name, long period) {
+    if (period < MIN_PERIOD || period > MAX_PERIOD) {
+      throw new IllegalArgumentException("Period must be between " +
+          MIN_PERIOD + " and " + MAX_PERIOD + " ms.");
+    }
+    m_Name = name;
+    m_Period = period;
+  }//constructor
+
+  /**
+   * Returns the name of this <tt>ScanGroup</tt>.
+   *
+   * @return the name as <tt>String</tt>.
+   */
+  public String getName() {
+    return m_Name;
+  }//getName
+
+  /**
+   * Returns the period of this <tt>ScanGroup</tt>.
+   *
+   * @return the period in milliseconds.
+   */
+  public long getPeriod() {
+    return m_Period;
+  }//getPeriod
+
+  /**
+   * Sets the listener of this <tt>ScanGroup</tt>.
+   *
+   * @param l the <tt>ScanListener</tt>, or null.
+   */
+  public void setListener(ScanListener l) {
+    m_Listener = l;
+  }//setListener
+
+  /**
+   * Returns the listener of this <tt>ScanGroup</tt>.
+   *
+   * @return the <tt>ScanListener</tt>, or null.
+   */
+  public ScanListener getListener() {
+    return m_Listener;
+  }//getListener
+
+  /**
+   * Adds a transaction to be executed with each cycle.
+   * Its request has to be set already.
+   *
+   * @param trans the <tt>ModbusTransaction</tt>.
+   */
+  public void addTransaction(ModbusTransaction trans) {
+    m_Items.add(new Item(trans, null));
+  }//addTransaction
+
+  /**
+   * Adds a read plan to be executed with each cycle,
+   * on the given transaction.
+   *
+   * @param plan  the <tt>ReadPlan</tt>.
+   * @param trans the <tt>ModbusTransaction</tt> used to execute it.
+   */
+  public void addPlan(ReadPlan plan, ModbusTransaction trans) {
+    m_Items.add(new Item(trans, plan));
+  }//addPlan
+
+  /**
+   * Removes the given transaction, and the plans
+   * executed on it, from this <tt>ScanGroup</tt>.
+   *
+   * @param trans the <tt>ModbusTransaction</tt>.
+   */
+  public void removeTransaction(ModbusTransaction trans) {
+    for (Item item : m_Items) {
+      if (item.m_Transaction == trans) {
+        m_Items.remove(item);
+      }
+    }
+  }//removeTransaction
+
+  /**
+   * Tests if a cycle of this <tt>ScanGroup</tt> is running.
+   *
+   * @return true if running, false otherwise.
+   */
+  public boolean isRunning() {
+    return m_Running.get();
+  }//isRunning
+
+  /**
+   * Returns the number of completed cycles.
+   *
+   * @return the number of cycles.
+   */
+  public synchronized long getCycles() {
+    return m_Cycles;
+  }//getCycles
+
+  /**
+   * Returns the number of cycles that were skipped because
+   * the previous cycle was still running or no worker was
+   * available.
+   *
+   * @return the number of skipped cycles.
+   */
+  public synchronized long getSkipped() {
+    return m_Skipped;
+  }//getSkipped
+
+  /**
+   * Returns the number of cycles that took longer than the period.
+   *
+   * @return the number of overruns.
+   */
+  public synchronized long getOverruns() {
+    return m_Overruns;
+  }//getOverruns
+
+  /**
+   * Returns the number of cycles that completed after their
+   * deadline, i.e. the next release, including skipped cycles.
+   *
+   * @return the number of missed deadlines.
+   */
+  public synchronized long getMissedDeadlines() {
+    return m_Missed;
+  }//getMissedDeadlines
+
+  /**
+   * Returns the jitter of the last cycle.
+   *
+   * @return the delay between release and start in milliseconds.
+   */
+  public synchronized long getLastJitter() {
+    return m_LastJitter;
+  }//getLastJitter
+
+  /**
+   * Returns the maximum jitter observed.
+   *
+   * @return the maximum delay between release and start in milliseconds.
+   */
+  public synchronized long getMaxJitter() {
+    return m_MaxJitter;
+  }//getMaxJitter
+
+  /**
+   * Returns the average jitter observed.
+   *
+   * @return the average delay between release and start in milliseconds.
+   */
+  public synchronized double getAverageJitter() {
+    return (m_Cycles == 0) ? 0 : (double) m_TotalJitter / m_Cycles;
+  }//getAverageJitter
+
+  /**
+   * Returns the duration of the last cycle.
+   *
+   * @return the duration in milliseconds.
+   */
+  public synchronized long getLastDuration() {
+    return m_LastDuration;
+  }//getLastDuration
+
+  /**
+   * Returns the maximum duration of a cycle.
+   *
+   * @return the duration in milliseconds.
+   */
+  public synchronized long getMaxDuration() {
+    return m_MaxDuration;
+  }//getMaxDuration
+
+  /**
+   * Resets the statistics of this <tt>ScanGroup</tt>.
+   */
+  public synchronized void resetStatistics() {
+    m_Cycles = 0;
+    m_Skipped = 0;
+    m_Overruns = 0;
+    m_Missed = 0;
+    m_LastJitter = 0;
+    m_MaxJitter = 0;
+    m_TotalJitter = 0;
+    m_LastDuration = 0;
+    m_MaxDuration = 0;
+  }//resetStatistics
+
+  public String toString() {
+    synchronized (this) {
+      return m_Name + "[period=" + m_Period + ",cycles=" + m_Cycles +
+          ",skipped=" + m_Skipped + ",overruns=" + m_Overruns +
+          ",missed=" + m_Missed + ",maxjitter=" + m_MaxJitter +
+          ",maxduration=" + m_MaxDuration + "]";
+    }
+  }//toString
+
+  /**
+   * Records a cycle that was skipped.
+   */
+  synchronized void skipped() {
+    m_Skipped++;
+    m_Missed++;
+  }//skipped
+
+  /**
+   * Executes one cycle released at the given time.
+   *
+   * @param release the release time in milliseconds.
+   */
+  void scan(long release) {
+    long start = ScanScheduler.now();
+    ScanListener l = m_Listener;
+    try {
+      for (Item item : m_Items) {
+        try {
+          if (item.m_Plan != null) {
+            item.m_Plan.execute(item.m_Transaction);
+          } else {
+            item.m_Transaction.execute();
+          }
+        } catch (ModbusException ex) {
+          if (l != null) {
+            l.transactionFailed(this, item.m_Transaction, ex);
+          }
+        }
+      }
+      if (l != null) {
+        l.cycleCompleted(this);
+      }
+    } finally {
+      long end = ScanScheduler.now();
+      synchronized (this) {
+        long jitter = Math.max(0, start - release);
+        long duration = end - start;
+        m_Cycles++;
+        m_LastJitter = jitter;
+        m_TotalJitter += jitter;
+        if (jitter > m_MaxJitter) {
+          m_MaxJitter = jitter;
+        }
+        m_LastDuration = duration;
+        if (duration > m_MaxDuration) {
+          m_MaxDuration = duration;
+        }
+        if (duration > m_Period) {
+          m_Overruns++;
+        }
+        if (end > release + m_Period) {
+          m_Missed++;
+        }
+      }
+      m_Running.set(false);
+    }
+  }//scan
+
+  /**
+   * Class holding a transaction and the plan
+   * executed on it, if any.
+   */
+  private static class Item {
+
+    final ModbusTransaction m_Transaction;
+    final ReadPlan m_Plan;
+
+    Item(ModbusTransaction trans, ReadPlan plan) {
+      m_Transaction = trans;
+      m_Plan = plan;
+    }//constructor
+
+  }//class Item
+
+}//class ScanGroup
@@ -0,0 +1,52 @@
+/***
+ * Copyright 2002-2010 jamod development team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***/
+
+package net.wimpi.modbus.io;
+
+import net.wimpi.modbus.ModbusException;
+
+/**
+ * Interface defining a listener that is notified
+ * about the scan cycles of a {@link ScanGroup}.
+ * <p>
+ * Notifications are delivered on the worker thread
+ * executing the cycle, thus they add to its duration.
+ *
+ * @author Dieter Wimberger
+ * @version @version@ (@date@)
+ */
+public interface ScanListener {
+
+  /**
+   * Invoked when a transaction of the given group failed.
+   * The remaining transactions of the cycle are executed
+   * nevertheless.
+   *
+   * @param group the <tt>ScanGroup</tt> being scanned.
+   * @param trans the <tt>ModbusTransaction</tt> that failed.
+   * @param ex    the <tt>ModbusException</tt> raised.
+   */
+  public void transactionFailed(ScanGroup group, ModbusTransaction trans,
+                                ModbusException ex);
+
+  /**
+   * Invoked when a cycle of the given group has been completed.
+   *
+   * @param group the <tt>ScanGroup</tt> that was scanned.
+   */
+  public void cycleCompleted(ScanGroup group);
+
+}//interface ScanListener
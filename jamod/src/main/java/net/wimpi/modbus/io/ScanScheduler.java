@@ -0,0 +1,378 @@
+/***
+ * Copyright 2002-2010 jamod development team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***/
+
+package net.wimpi.modbus.io;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import net.wimpi.modbus.Modbus;
+
+/**
+ * Class implementing a scheduler that scans groups of
+ * transactions periodically.
+ * <p>
+ * Releases are kept in a hashed timer wheel that is advanced
+ * by a single ticker thread; released cycles are executed by a
+ * bounded pool of workers. Each group is released at a fixed rate,
+ * and a cycle is skipped rather than queued if the previous cycle of
+ * the group is still running or all workers are busy and the queue
+ * is full. This keeps the cycle times of all groups predictable
+ * under load; the statistics of each {@link ScanGroup} reveal when
+ * they are not met.
+ * <p>
+ * Groups sharing a transaction or connection are serialized by
+ * the transaction lock, so they should be scanned with a worker pool
+ * no larger than the number of independent devices.
+ *
+ * @author Dieter Wimberger
+ * @version @version@ (@date@)
+ */
+public class ScanScheduler {
+
+  /**
+   * Defines the default duration of a tick of the timer wheel.
+   */
+  public static final int DEFAULT_TICK = 5;
+
+  private static final int WHEEL_SIZE = 512;
+
+  //instance attributes
+  private final int m_Workers;
+  private final int m_QueueCapacity;
+  private int m_Tick = DEFAULT_TICK;
+  private final List<ScanGroup> m_Groups = new ArrayList<ScanGroup>();
+  private final ConcurrentLinkedQueue<ScanGroup> m_Added =
+      new ConcurrentLinkedQueue<ScanGroup>();
+  private ThreadPoolExecutor m_Executor;
+  private Thread m_Ticker;
+  private volatile boolean m_Running;
+
+  //timer wheel, owned by the ticker
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private final List<ScanGroup>[] m_Wheel = new List[WHEEL_SIZE];
+  private int m_Cursor;
+  private long m_TickTime;
+
+  /**
+   * Constructs a new <tt>ScanScheduler</tt> instance.
+   *
+   * @param workers  the number of worker threads.
+   * @param capacity the number of released cycles that may wait
+   *                 for a worker.
+   */
+  public ScanScheduler(int workers, int capacity) {
+    if (workers < 1 || capacity < 1) {
+      throw new IllegalArgumentException("Workers and capacity must be at least 1.");
+    }
+    m_Workers = workers;
+    m_QueueCapacity = capacity;
+    for (int i = 0; i < WHEEL_SIZE; i++) {
+      m_Wheel[i] = new ArrayList<ScanGroup>();
+    }
+  }//constructor
+
+  /**
+   * Returns the duration of a tick, which bounds the
+   * precision of releases.
+   *
+   * @return the tick in milliseconds.
+   */
+  public int getTick() {
+    return m_Tick;
+  }//getTick
+
+  /**
+   * Sets the duration of a tick. Takes effect
+   * with the next <tt>start()</tt>.
+   *
+   * @param tick the tick in milliseconds, at least 1.
+   */
+  public void setTick(int tick) {
+    if (tick < 1) {
+      throw new IllegalArgumentException("Tick must be at least 1 ms.");
+    }
+    m_Tick = tick;
+  }//setTick
+
+  /**
+   * Returns the number of worker threads.
+   *
+   * @return the number of workers as <tt>int</tt>.
+   */
+  public int getWorkers() {
+    return m_Workers;
+  }//getWorkers
+
+  /**
+   * Adds a group to this <tt>ScanScheduler</tt>. If the
+   * scheduler is running, the first cycle is released with
+   * the next tick.
+   *
+   * @param group the <tt>ScanGroup</tt> to be scanned.
+   * @throws IllegalStateException if the group is already scheduled.
+   */
+  public void addGroup(ScanGroup group) {
+    synchronized (m_Groups) {
+      if (group.m_Scheduler != null) {
+        throw new IllegalStateException("Group " + group.getName() + " is already scheduled.");
+      }
+      group.m_Scheduler = this;
+      m_Groups.add(group);
+      if (m_Running) {
+        m_Added.offer(group);
+      }
+    }
+  }//addGroup
+
+  /**
+   * Removes a group from this <tt>ScanScheduler</tt>.
+   * A cycle that is running will complete.
+   *
+   * @param group the <tt>ScanGroup</tt>.
+   */
+  public void removeGroup(ScanGroup group) {
+    synchronized (m_Groups) {
+      if (group.m_Scheduler == this) {
+        group.m_Scheduler = null;
+        m_Groups.remove(group);
+      }
+    }
+  }//removeGroup
+
+  /**
+   * Returns the groups of this <tt>ScanScheduler</tt>.
+   *
+   * @return an array of <tt>ScanGroup</tt> instances.
+   */
+  public ScanGroup[] getGroups() {
+    synchronized (m_Groups) {
+      return m_Groups.toArray(new ScanGroup[m_Groups.size()]);
+    }
+  }//getGroups
+
+  /**
+   * Tests if this <tt>ScanScheduler</tt> is running.
+   *
+   * @return true if running, false otherwise.
+   */
+  public boolean isRunning() {
+    return m_Running;
+  }//isRunning
+
+  /**
+   * Starts this <tt>ScanScheduler</tt>.
+   */
+  public synchronized void start() {
+    if (m_Running) {
+      return;
+    }
+    m_Executor = new ThreadPoolExecutor(m_Workers, m_Workers,
+        0L, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<Runnable>(m_QueueCapacity),
+        new ThreadFactory() {
+          private int m_Count = 0;
+
+          public synchronized Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "ScanScheduler-worker-" + (m_Count++));
+            t.setDaemon(true);
+            return t;
+          }
+        });
+    for (int i = 0; i < WHEEL_SIZE; i++) {
+      for (ScanGroup group : m_Wheel[i]) {
+        group.m_InWheel = false;
+      }
+      m_Wheel[i].clear();
+    }
+    m_Added.clear();
+    synchronized (m_Groups) {
+      m_Running = true;
+      m_Added.addAll(m_Groups);
+    }
+    m_Ticker = new Thread(new Ticker(), "ScanScheduler-ticker");
+    m_Ticker.setDaemon(true);
+    m_Ticker.start();
+  }//start
+
+  /**
+   * Stops this <tt>ScanScheduler</tt>. Running cycles are
+   * completed, released cycles that wait for a worker are dropped.
+   */
+  public synchronized void stop() {
+    if (!m_Running) {
+      return;
+    }
+    m_Running = false;
+    m_Ticker.interrupt();
+    try {
+      m_Ticker.join();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+    //running cycles reset the flag of their group when done,
+    //cycles dropped from the queue never will
+    List<Runnable> dropped = new ArrayList<Runnable>();
+    m_Executor.getQueue().drainTo(dropped);
+    m_Executor.shutdown();
+    for (int i = 0; i < dropped.size(); i++) {
+      ((Cycle) dropped.get(i)).m_Group.m_Running.set(false);
+    }
+  }//stop
+
+  /**
+   * Returns the time base of the scheduler.
+   *
+   * @return a monotonic time in milliseconds.
+   */
+  static long now() {
+    return System.nanoTime() / 1000000L;
+  }//now
+
+  /**
+   * Places the group into the wheel for its next release.
+   */
+  private void schedule(ScanGroup group) {
+    long ticks = (group.m_Release - m_TickTime + m_Tick - 1) / m_Tick;
+    if (ticks < 1) {
+      ticks = 1;
+    }
+    group.m_Rounds = (ticks - 1) / WHEEL_SIZE;
+    group.m_InWheel = true;
+    m_Wheel[(int) ((m_Cursor + ticks) % WHEEL_SIZE)].add(group);
+  }//schedule
+
+  /**
+   * Releases a cycle of the given group and schedules the next one.
+   */
+  private void release(ScanGroup group) {
+    long release = group.m_Release;
+    if (group.m_Running.compareAndSet(false, true)) {
+      try {
+        m_Executor.execute(new Cycle(group, release));
+      } catch (RejectedExecutionException ex) {
+        group.m_Running.set(false);
+        group.skipped();
+      }
+    } else {
+      group.skipped();
+    }
+    //fixed rate; releases that have passed already count as skipped
+    long next = release + group.getPeriod();
+    while (next <= m_TickTime - m_Tick) {
+      group.skipped();
+      next += group.getPeriod();
+    }
+    group.m_Release = next;
+    schedule(group);
+  }//release
+
+  /**
+   * Advances the wheel by one tick and releases
+   * the groups that are due.
+   */
+  private void advance() {
+    ScanGroup group = null;
+    while ((group = m_Added.poll()) != null) {
+      if (!group.m_InWheel) {
+        //otherwise removed and added again before its entry was dropped
+        group.m_Release = m_TickTime;
+        schedule(group);
+      }
+    }
+    m_Cursor = (m_Cursor + 1) % WHEEL_SIZE;
+    m_TickTime += m_Tick;
+    List<ScanGroup> slot = m_Wheel[m_Cursor];
+    if (slot.isEmpty()) {
+      return;
+    }
+    List<ScanGroup> due = null;
+    for (Iterator<ScanGroup> iter = slot.iterator(); iter.hasNext();) {
+      group = iter.next();
+      if (group.m_Scheduler != this) {
+        iter.remove();
+        group.m_InWheel = false;
+      } else if (group.m_Rounds > 0) {
+        group.m_Rounds--;
+      } else {
+        iter.remove();
+        group.m_InWheel = false;
+        if (due == null) {
+          due = new ArrayList<ScanGroup>();
+        }
+        due.add(group);
+      }
+    }
+    if (due != null) {
+      for (int i = 0; i < due.size(); i++) {
+        release(due.get(i));
+      }
+    }
+  }//advance
+
+  /**
+   * Class implementing a released cycle of a group.
+   */
+  private static class Cycle implements Runnable {
+
+    private final ScanGroup m_Group;
+    private final long m_Release;
+
+    public Cycle(ScanGroup group, long release) {
+      m_Group = group;
+      m_Release = release;
+    }//constructor
+
+    public void run() {
+      m_Group.scan(m_Release);
+    }//run
+
+  }//class Cycle
+
+  /**
+   * Class implementing the ticker thread.
+   */
+  private class Ticker implements Runnable {
+
+    public void run() {
+      m_Cursor = 0;
+      m_TickTime = now();
+      try {
+        while (m_Running) {
+          long wait = m_TickTime + m_Tick - now();
+          if (wait > 0) {
+            Thread.sleep(wait);
+          }
+          advance();
+        }
+      } catch (InterruptedException ex) {
+        //stopped
+      } catch (RuntimeException ex) {
+        if (Modbus.debug) ex.printStackTrace();
+        m_Running = false;
+      }
+    }//run
+
+  }//class Ticker
+
+}//class ScanScheduler
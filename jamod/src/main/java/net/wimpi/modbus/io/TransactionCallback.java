@@ -0,0 +1,57 @@
+/***
+ * Copyright 2002-2010 jamod development team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***/
+
+package net.wimpi.modbus.io;
+
+import net.wimpi.modbus.ModbusException;
+import net.wimpi.modbus.msg.ModbusRequest;
+import net.wimpi.modbus.msg.ModbusResponse;
+
+/**
+ * Interface defining the callback that receives
+ * the outcome of an asynchronously executed transaction.
+ * <p>
+ * Implementations are invoked on the thread that completed
+ * the transaction, thus they should return quickly and
+ * must not block.
+ *
+ * @author Dieter Wimberger
+ * @version @version@ (@date@)
+ */
+public interface TransactionCallback {
+
+  /**
+   * Invoked when the response to the given request
+   * has been received.
+   *
+   * @param req the <tt>ModbusRequest</tt> that was sent.
+   * @param res the <tt>ModbusResponse</tt> received.
+   */
+  public void completed(ModbusRequest req, ModbusResponse res);
+
+  /**
+   * Invoked when the given request failed.
+   * The exception is a <tt>ModbusSlaveException</tt> if the
+   * slave answered with an exception response, and a
+   * <tt>ModbusIOException</tt> if the request could not be
+   * sent, timed out or the connection was lost.
+   *
+   * @param req the <tt>ModbusRequest</tt> that was sent.
+   * @param ex  the <tt>ModbusException</tt> describing the failure.
+   */
+  public void failed(ModbusRequest req, ModbusException ex);
+
+}//interface TransactionCallback
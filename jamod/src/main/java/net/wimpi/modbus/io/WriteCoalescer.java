@@ -0,0 +1,440 @@
+/***
+ * Copyright 2002-2010 jamod development team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***/
+
+package net.wimpi.modbus.io;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.wimpi.modbus.Modbus;
+import net.wimpi.modbus.ModbusException;
+import net.wimpi.modbus.ModbusIOException;
+import net.wimpi.modbus.msg.ModbusRequest;
+import net.wimpi.modbus.msg.ModbusResponse;
+import net.wimpi.modbus.msg.WriteCoilRequest;
+import net.wimpi.modbus.msg.WriteCoilResponse;
+import net.wimpi.modbus.msg.WriteMultipleCoilsRequest;
+import net.wimpi.modbus.msg.WriteMultipleRegistersRequest;
+import net.wimpi.modbus.msg.WriteSingleRegisterRequest;
+import net.wimpi.modbus.msg.WriteSingleRegisterResponse;
+import net.wimpi.modbus.procimg.Register;
+import net.wimpi.modbus.procimg.SimpleRegister;
+import net.wimpi.modbus.util.BitVector;
+
+/**
+ * Class implementing a buffer that coalesces single
+ * register and coil writes.
+ * <p>
+ * Writes are held for a short window after the first pending
+ * write, then sent in the order they were submitted. Runs of
+ * writes of the same kind to the same unit with consecutive
+ * ascending references are merged into a single
+ * <tt>WriteMultipleRegistersRequest</tt> or
+ * <tt>WriteMultipleCoilsRequest</tt>; any other write ends the
+ * run, so a reference written twice is written twice, in order.
+ * A run of a single write is sent as it was submitted.
+ * <p>
+ * The outcome of each write is reported to its own callback,
+ * on the flusher thread and without holding a lock of the
+ * coalescer, with a response matching the single request; a
+ * failing merged request fails all its writes. If the flusher is
+ * interrupted, the writes it leaves behind fail as well.
+ * <p>
+ * Note that merged writes are no longer atomic with respect to
+ * each other, a device rejecting one of the references rejects
+ * the whole run.
+ *
+ * @author Dieter Wimberger
+ * @version @version@ (@date@)
+ */
+public class WriteCoalescer {
+
+  /**
+   * Defines the maximum number of registers that
+   * can be written with a single request.
+   */
+  public static final int MAX_REGISTERS = 123;
+
+  /**
+   * Defines the maximum number of coils that
+   * can be written with a single request.
+   */
+  public static final int MAX_COILS = 1968;
+
+  //instance attributes
+  private ModbusTransaction m_Transaction;
+  private final long m_Window;
+  private List<PendingWrite> m_Pending = new ArrayList<PendingWrite>();
+  private List<PendingWrite> m_Flushing = new ArrayList<PendingWrite>();
+  private long m_FirstAt;
+  private boolean m_FlushRequested;
+  private boolean m_InFlight;
+  private boolean m_Closed;
+  private Thread m_Flusher;
+  private long m_Writes;
+  private long m_Requests;
+
+  /**
+   * Constructs a new <tt>WriteCoalescer</tt> instance
+   * that executes the requests with the given transaction.
+   * The transaction must not be used by anyone else.
+   *
+   * @param trans  the <tt>ModbusTransaction</tt> to execute requests with.
+   * @param window the time writes are held in milliseconds.
+   */
+  public WriteCoalescer(ModbusTransaction trans, long window) {
+    this(window);
+    m_Transaction = trans;
+  }//constructor
+
+  /**
+   * Constructs a new <tt>WriteCoalescer</tt> instance for
+   * subclasses that override {@link #execute(ModbusRequest)}.
+   *
+   * @param window the time writes are held in milliseconds.
+   */
+  protected WriteCoalescer(long window) {
+    if (window < 0) {
+      throw new IllegalArgumentException("Window must not be negative.");
+    }
+    m_Window = window;
+  }//constructor
+
+  /**
+   * Returns the time writes are held before being sent.
+   *
+   * @return the window in milliseconds.
+   */
+  public long getWindow() {
+    return m_Window;
+  }//getWindow
+
+  /**
+   * Returns the number of writes submitted so far.
+   *
+   * @return the number of writes as <tt>long</tt>.
+   */
+  public synchronized long getWriteCount() {
+    return m_Writes;
+  }//getWriteCount
+
+  /**
+   * Returns the number of requests sent so far.
+   *
+   * @return the number of requests as <tt>long</tt>.
+   */
+  public synchronized long getRequestCount() {
+    return m_Requests;
+  }//getRequestCount
+
+  /**
+   * Submits a write of a single register.
+   *
+   * @param unitid the unit identifier of the slave.
+   * @param ref    the reference of the register.
+   * @param value  the value to be written.
+   * @param cb     the <tt>TransactionCallback</tt> receiving the outcome,
+   *               or null.
+   */
+  public void writeRegister(int unitid, int ref, int value, TransactionCallback cb) {
+    submit(new PendingWrite(unitid, false, ref, value & 0xFFFF, cb));
+  }//writeRegister
+
+  /**
+   * Submits a write of a single coil.
+   *
+   * @param unitid the unit identifier of the slave.
+   * @param ref    the reference of the coil.
+   * @param state  the state to be written.
+   * @param cb     the <tt>TransactionCallback</tt> receiving the outcome,
+   *               or null.
+   */
+  public void writeCoil(int unitid, int ref, boolean state, TransactionCallback cb) {
+    submit(new PendingWrite(unitid, true, ref, state ? 1 : 0, cb));
+  }//writeCoil
+
+  /**
+   * Sends all pending writes right away and waits
+   * until they have completed.
+   * <p>
+   * Called from a callback, i.e. on the flusher thread, it
+   * returns right away; the pending writes are sent as soon as
+   * the writes in flight have been reported.
+   *
+   * @throws InterruptedException if the calling thread is interrupted.
+   */
+  public synchronized void flush() throws InterruptedException {
+    m_FlushRequested = true;
+    notifyAll();
+    if (Thread.currentThread() == m_Flusher) {
+      //waiting for ourselves would never end
+      return;
+    }
+    while (!m_Pending.isEmpty() || m_InFlight) {
+      wait();
+    }
+  }//flush
+
+  /**
+   * Closes this <tt>WriteCoalescer</tt>. Pending writes
+   * are still sent; further writes are refused.
+   */
+  public synchronized void close() {
+    m_Closed = true;
+    m_FlushRequested = true;
+    notifyAll();
+  }//close
+
+  /**
+   * Executes a single request. Override to execute the
+   * requests by other means than a dedicated transaction.
+   *
+   * @param req the <tt>ModbusRequest</tt> to be executed.
+   * @return the <tt>ModbusResponse</tt> received.
+   * @throws ModbusException if the request fails.
+   */
+  protected ModbusResponse execute(ModbusRequest req) throws ModbusException {
+    m_Transaction.setRequest(req);
+    m_Transaction.execute();
+    return m_Transaction.getResponse();
+  }//execute
+
+  private synchronized void submit(PendingWrite w) {
+    if (m_Closed) {
+      throw new IllegalStateException("WriteCoalescer closed.");
+    }
+    if (m_Pending.isEmpty()) {
+      m_FirstAt = System.currentTimeMillis();
+    }
+    m_Pending.add(w);
+    m_Writes++;
+    if (m_Flusher == null) {
+      m_Flusher = new Thread(new Flusher(), "WriteCoalescer");
+      m_Flusher.setDaemon(true);
+      m_Flusher.start();
+    }
+    notifyAll();
+  }//submit
+
+  /**
+   * Waits for pending writes and takes them over once
+   * their window has passed.
+   *
+   * @return the writes to be sent, or null if closed.
+   * @throws InterruptedException if the flusher is interrupted.
+   */
+  private synchronized List<PendingWrite> take() throws InterruptedException {
+    m_InFlight = false;
+    notifyAll();
+    for (; ;) {
+      if (m_Pending.isEmpty()) {
+        if (m_Closed) {
+          m_Flusher = null;
+          return null;
+        }
+        m_FlushRequested = false;
+        wait();
+        continue;
+      }
+      long waitTime = m_FirstAt + m_Window - System.currentTimeMillis();
+      if (waitTime <= 0 || m_FlushRequested) {
+        break;
+      }
+      wait(waitTime);
+    }
+    //swap the lists, the flushing one has been cleared
+    List<PendingWrite> taken = m_Pending;
+    m_Pending = m_Flushing;
+    m_Flushing = taken;
+    m_InFlight = true;
+    return taken;
+  }//take
+
+  /**
+   * Sends the given writes, merging runs.
+   *
+   * @param writes the writes in submission order.
+   */
+  private void send(List<PendingWrite> writes) {
+    int n = writes.size();
+    int i = 0;
+    while (i < n) {
+      PendingWrite first = writes.get(i);
+      int max = first.m_Coil ? MAX_COILS : MAX_REGISTERS;
+      int j = i + 1;
+      while (j < n && j - i < max) {
+        PendingWrite prev = writes.get(j - 1);
+        PendingWrite next = writes.get(j);
+        if (next.m_UnitID != first.m_UnitID
+            || next.m_Coil != first.m_Coil
+            || next.m_Reference != prev.m_Reference + 1) {
+          break;
+        }
+        j++;
+      }
+      sendRun(writes, i, j);
+      i = j;
+    }
+  }//send
+
+  private void sendRun(List<PendingWrite> writes, int from, int to) {
+    PendingWrite first = writes.get(from);
+    int count = to - from;
+    ModbusRequest req;
+    if (count == 1) {
+      req = first.createRequest();
+    } else if (first.m_Coil) {
+      BitVector bv = new BitVector(count);
+      for (int i = 0; i < count; i++) {
+        bv.setBit(i, writes.get(from + i).m_Value != 0);
+      }
+      req = new WriteMultipleCoilsRequest(first.m_Reference, bv);
+    } else {
+      Register[] regs = new Register[count];
+      for (int i = 0; i < count; i++) {
+        regs[i] = new SimpleRegister(writes.get(from + i).m_Value);
+      }
+      req = new WriteMultipleRegistersRequest(first.m_Reference, regs);
+    }
+    req.setUnitID(first.m_UnitID);
+    synchronized (this) {
+      m_Requests++;
+    }
+    ModbusResponse res = null;
+    ModbusException failure = null;
+    try {
+      res = execute(req);
+    } catch (ModbusException ex) {
+      failure = ex;
+    } catch (RuntimeException ex) {
+      failure = new ModbusException(ex.toString());
+    }
+    for (int i = from; i < to; i++) {
+      PendingWrite w = writes.get(i);
+      if (w.m_Callback == null) {
+        continue;
+      }
+      ModbusRequest single = (count == 1) ? req : w.createRequest();
+      try {
+        if (failure != null) {
+          w.m_Callback.failed(single, failure);
+        } else {
+          w.m_Callback.completed(single, (count == 1) ? res : w.createResponse());
+        }
+      } catch (RuntimeException ex) {
+        if (Modbus.debug) ex.printStackTrace();
+      }
+    }
+  }//sendRun
+
+  /**
+   * Fails the writes left behind by a flusher that terminates
+   * other than through <tt>close()</tt>; the next write starts
+   * a new flusher.
+   */
+  private void abandon() {
+    List<PendingWrite> left;
+    synchronized (this) {
+      if (m_Flusher != Thread.currentThread()) {
+        //terminated regularly
+        return;
+      }
+      m_Flusher = null;
+      m_InFlight = false;
+      left = new ArrayList<PendingWrite>(m_Pending);
+      m_Pending.clear();
+      m_Flushing.clear();
+      notifyAll();
+    }
+    ModbusException failure = new ModbusIOException("WriteCoalescer flusher terminated.");
+    for (int i = 0; i < left.size(); i++) {
+      PendingWrite w = left.get(i);
+      if (w.m_Callback == null) {
+        continue;
+      }
+      try {
+        w.m_Callback.failed(w.createRequest(), failure);
+      } catch (RuntimeException ex) {
+        if (Modbus.debug) ex.printStackTrace();
+      }
+    }
+  }//abandon
+
+  /**
+   * Inner class holding a pending write.
+   */
+  private static class PendingWrite {
+
+    private final int m_UnitID;
+    private final boolean m_Coil;
+    private final int m_Reference;
+    private final int m_Value;
+    private final TransactionCallback m_Callback;
+
+    public PendingWrite(int unitid, boolean coil, int ref, int value, TransactionCallback cb) {
+      m_UnitID = unitid;
+      m_Coil = coil;
+      m_Reference = ref;
+      m_Value = value;
+      m_Callback = cb;
+    }//constructor
+
+    public ModbusRequest createRequest() {
+      ModbusRequest req;
+      if (m_Coil) {
+        req = new WriteCoilRequest(m_Reference, m_Value != 0);
+      } else {
+        req = new WriteSingleRegisterRequest(m_Reference, new SimpleRegister(m_Value));
+      }
+      req.setUnitID(m_UnitID);
+      return req;
+    }//createRequest
+
+    public ModbusResponse createResponse() {
+      ModbusResponse res;
+      if (m_Coil) {
+        res = new WriteCoilResponse(m_Reference, m_Value != 0);
+      } else {
+        res = new WriteSingleRegisterResponse(m_Reference, m_Value);
+      }
+      res.setUnitID(m_UnitID);
+      return res;
+    }//createResponse
+
+  }//inner class PendingWrite
+
+  /**
+   * Inner class sending the pending writes.
+   */
+  private class Flusher implements Runnable {
+
+    public void run() {
+      try {
+        List<PendingWrite> writes;
+        while ((writes = take()) != null) {
+          send(writes);
+          writes.clear();
+        }
+      } catch (InterruptedException ex) {
+        //terminate
+      } finally {
+        abandon();
+      }
+    }//run
+
+  }//inner class Flusher
+
+}//class WriteCoalescer
@@ -0,0 +1,177 @@
+/***
+ * Copyright 2002-2010 jamod development team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***/
+
+package net.wimpi.modbus.msg;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import net.wimpi.modbus.Modbus;
+import net.wimpi.modbus.ModbusCoupler;
+import net.wimpi.modbus.procimg.IllegalAddressException;
+import net.wimpi.modbus.procimg.ProcessImage;
+import net.wimpi.modbus.procimg.Register;
+
+/**
+ * Class implementing a <tt>MaskWriteRegisterRequest</tt>.
+ * The implementation directly correlates with the
+ * function <i>mask write register (FC 22)</i>. It
+ * encapsulates the corresponding request message.
+ * <p>
+ * The slave sets the register to
+ * <tt>(current AND andMask) OR (orMask AND (NOT andMask))</tt>,
+ * thus the bits cleared in the AND mask are taken from the
+ * OR mask and all other bits are kept.
+ *
+ * @author Dieter Wimberger
+ * @version @version@ (@date@)
+ */
+public final class MaskWriteRegisterRequest
+    extends ModbusRequest {
+
+  //instance attributes
+  private int m_Reference;
+  private int m_AndMask;
+  private int m_OrMask;
+
+  /**
+   * Constructs a new <tt>MaskWriteRegisterRequest</tt>
+   * instance.
+   */
+  public MaskWriteRegisterRequest() {
+    super();
+    setFunctionCode(Modbus.MASK_WRITE_REGISTER);
+    //6 bytes (remember unit identifier and function
+    //code are excluded)
+    setDataLength(6);
+  }//constructor
+
+  /**
+   * Constructs a new <tt>MaskWriteRegisterRequest</tt>
+   * instance with the given reference and masks.
+   * <p>
+   * @param ref the reference of the register to be modified.
+   * @param andmask the AND mask.
+   * @param ormask the OR mask.
+   */
+  public MaskWriteRegisterRequest(int ref, int andmask, int ormask) {
+    this();
+    setReference(ref);
+    setAndMask(andmask);
+    setOrMask(ormask);
+  }//constructor
+
+  public ModbusResponse createResponse() {
+    return createResponse(ModbusCoupler.getReference().getProcessImage());
+  }//createResponse
+
+  public ModbusResponse createResponse(ProcessImage procimg) {
+    MaskWriteRegisterResponse response = null;
+
+    //1. get register and modify it while holding the image,
+    //   like all requests writing registers
+    synchronized (procimg) {
+      try {
+        Register reg = procimg.getRegister(m_Reference);
+        int value = reg.toUnsignedShort();
+        reg.setValue((value & m_AndMask) | (m_OrMask & ~m_AndMask));
+      } catch (IllegalAddressException iaex) {
+        return createExceptionResponse(Modbus.ILLEGAL_ADDRESS_EXCEPTION);
+      }
+    }
+    response = new MaskWriteRegisterResponse(m_Reference, m_AndMask, m_OrMask);
+    //transfer header data
+    if (!isHeadless()) {
+      response.setTransactionID(this.getTransactionID());
+      response.setProtocolID(this.getProtocolID());
+    } else {
+      response.setHeadless();
+    }
+    response.setUnitID(this.getUnitID());
+    response.setFunctionCode(this.getFunctionCode());
+    return response;
+  }//createResponse
+
+  /**
+   * Sets the reference of the register to be modified.
+   * <p>
+   * @param ref the reference as <tt>int</tt>.
+   */
+  public void setReference(int ref) {
+    m_Reference = ref;
+  }//setReference
+
+  /**
+   * Returns the reference of the register to be modified.
+   * <p>
+   * @return the reference as <tt>int</tt>.
+   */
+  public int getReference() {
+    return m_Reference;
+  }//getReference
+
+  /**
+   * Sets the AND mask, whose cleared bits are replaced.
+   * <p>
+   * @param mask the mask as unsigned short (<tt>int</tt>).
+   */
+  public void setAndMask(int mask) {
+    m_AndMask = mask & 0xFFFF;
+  }//setAndMask
+
+  /**
+   * Returns the AND mask.
+   * <p>
+   * @return the mask as unsigned short (<tt>int</tt>).
+   */
+  public int getAndMask() {
+    return m_AndMask;
+  }//getAndMask
+
+  /**
+   * Sets the OR mask, providing the replaced bits.
+   * <p>
+   * @param mask the mask as unsigned short (<tt>int</tt>).
+   */
+  public void setOrMask(int mask) {
+    m_OrMask = mask & 0xFFFF;
+  }//setOrMask
+
+  /**
+   * Returns the OR mask.
+   * <p>
+   * @return the mask as unsigned short (<tt>int</tt>).
+   */
+  public int getOrMask() {
+    return m_OrMask;
+  }//getOrMask
+
+  public void writeData(DataOutput dout)
+      throws IOException {
+    dout.writeShort(m_Reference);
+    dout.writeShort(m_AndMask);
+    dout.writeShort(m_OrMask);
+  }//writeData
+
+  public void readData(DataInput din)
+      throws IOException {
+    m_Reference = din.readUnsignedShort();
+    m_AndMask = din.readUnsignedShort();
+    m_OrMask = din.readUnsignedShort();
+  }//readData
+
+}//class MaskWriteRegisterRequest
@@ -0,0 +1,111 @@
+/***
+ * Copyright 2002-2010 jamod development team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***/
+
+package net.wimpi.modbus.msg;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import net.wimpi.modbus.Modbus;
+
+/**
+ * Class implementing a <tt>MaskWriteRegisterResponse</tt>.
+ * The implementation directly correlates with the
+ * function <i>mask write register (FC 22)</i>. It
+ * encapsulates the corresponding response message, which
+ * echoes the request.
+ *
+ * @author Dieter Wimberger
+ * @version @version@ (@date@)
+ */
+public final class MaskWriteRegisterResponse
+    extends ModbusResponse {
+
+  //instance attributes
+  private int m_Reference;
+  private int m_AndMask;
+  private int m_OrMask;
+
+  /**
+   * Constructs a new <tt>MaskWriteRegisterResponse</tt>
+   * instance.
+   */
+  public MaskWriteRegisterResponse() {
+    super();
+    setFunctionCode(Modbus.MASK_WRITE_REGISTER);
+    setDataLength(6);
+  }//constructor
+
+  /**
+   * Constructs a new <tt>MaskWriteRegisterResponse</tt>
+   * instance.
+   *
+   * @param ref the reference of the register modified.
+   * @param andmask the AND mask.
+   * @param ormask the OR mask.
+   */
+  public MaskWriteRegisterResponse(int ref, int andmask, int ormask) {
+    this();
+    m_Reference = ref;
+    m_AndMask = andmask;
+    m_OrMask = ormask;
+  }//constructor
+
+  /**
+   * Returns the reference of the register modified.
+   * <p>
+   * @return the reference as <tt>int</tt>.
+   */
+  public int getReference() {
+    return m_Reference;
+  }//getReference
+
+  /**
+   * Returns the AND mask echoed by the slave.
+   * <p>
+   * @return the mask as unsigned short (<tt>int</tt>).
+   */
+  public int getAndMask() {
+    return m_AndMask;
+  }//getAndMask
+
+  /**
+   * Returns the OR mask echoed by the slave.
+   * <p>
+   * @return the mask as unsigned short (<tt>int</tt>).
+   */
+  public int getOrMask() {
+    return m_OrMask;
+  }//getOrMask
+
+  public void writeData(DataOutput dout)
+      throws IOException {
+    dout.writeShort(m_Reference);
+    dout.writeShort(m_AndMask);
+    dout.writeShort(m_OrMask);
+  }//writeData
+
+  public void readData(DataInput din)
+      throws IOException {
+    m_Reference = din.readUnsignedShort();
+    m_AndMask = din.readUnsignedShort();
+    m_OrMask = din.readUnsignedShort();
+    //update data length
+    setDataLength(6);
+  }//readData
+
+}//class MaskWriteRegisterResponse
@@ -17,6 +17,7 @@
 package net.wimpi.modbus.msg;
 
 import net.wimpi.modbus.Modbus;
+import net.wimpi.modbus.procimg.ProcessImage;
 
 /**
  * Abstract class implementing a <tt>ModbusRequest</tt>.
@@ -49,6 +50,22 @@ public abstract class ModbusRequest
    */
   public abstract ModbusResponse createResponse();
 
+  /**
+   * Returns the <tt>ModbusResponse</tt> that represents the
+   * answer to this <tt>ModbusRequest</tt>, served from the
+   * given process image instead of the one of the
+   * <tt>ModbusCoupler</tt>.
+   * <p>
+   * This implementation falls back to {@link #createResponse()};
+   * the requests of this package override it.
+   * <p>
+   * @param procimg the <tt>ProcessImage</tt> to be used.
+   * @return the corresponding <tt>ModbusResponse</tt>.
+   */
+  public ModbusResponse createResponse(ProcessImage procimg) {
+    return createResponse();
+  }//createResponse
+
   /**
    * Factory method for creating exception responses with the
    * given exception code.
@@ -105,6 +122,15 @@ public abstract class ModbusRequest
       case Modbus.WRITE_MULTIPLE_COILS:
         request = new WriteMultipleCoilsRequest();
         break;
+      case Modbus.READ_WRITE_MULTIPLE:
+        request = new ReadWriteMultipleRequest();
+        break;
+      case Modbus.MASK_WRITE_REGISTER:
+        request = new MaskWriteRegisterRequest();
+        break;
+      case Modbus.READ_FIFO_QUEUE:
+        request = new ReadFIFOQueueRequest();
+        break;
       default:
         request = new IllegalFunctionRequest(functionCode);
         break;
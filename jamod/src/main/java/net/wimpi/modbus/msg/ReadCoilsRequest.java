@@ -75,12 +75,14 @@ public final class ReadCoilsRequest
   }//constructor
 
   public ModbusResponse createResponse() {
+    return createResponse(ModbusCoupler.getReference().getProcessImage());
+  }//createResponse
+
+  public ModbusResponse createResponse(ProcessImage procimg) {
     ReadCoilsResponse response = null;
     DigitalOut[] douts = null;
 
-    //1. get process image
-    ProcessImage procimg = ModbusCoupler.getReference().getProcessImage();
-    //2. get coil range
+    //1. get coil range
     try {
       douts = procimg.getDigitalOutRange(this.getReference(), this.getBitCount());
     } catch (IllegalAddressException iaex) {
@@ -90,6 +90,29 @@ public final class ReadCoilsResponse
     return m_Coils;
   }//getCoils
 
+  /**
+   * Copies the coil states read into the given
+   * <tt>BitVector</tt>, which allows a single bitmap
+   * to be reused for repeated reads.
+   *
+   * @param dest   the <tt>BitVector</tt> receiving the states.
+   * @param offset the index of the bit of <tt>dest</tt> receiving
+   *               the first state.
+   * @param count  the number of states to be copied, which should
+   *               be the number originally requested.
+   * @throws IndexOutOfBoundsException if more states are requested
+   *                                   than read, or <tt>dest</tt> is too small.
+   */
+  public void getCoils(BitVector dest, int offset, int count)
+      throws IndexOutOfBoundsException {
+    if (count > m_Coils.size() || offset < 0 || offset + count > dest.size()) {
+      throw new IndexOutOfBoundsException();
+    }
+    for (int i = 0; i < count; i++) {
+      dest.setBit(offset + i, m_Coils.getBit(i));
+    }
+  }//getCoils
+
   /**
    * Convenience method that returns the state
    * of the bit at the given index.
@@ -127,12 +150,19 @@ public final class ReadCoilsResponse
   public void readData(DataInput din)
       throws IOException {
     int count = din.readUnsignedByte();
-    byte[] data = new byte[count];
-    for (int k = 0; k < count; k++) {
-      data[k] = din.readByte();
+    if (m_Coils != null && m_Coils.getBytes().length == count) {
+      //reused response of the same size, decode into the
+      //existing bitvector; its byte size is written back
+      din.readFully(m_Coils.getBytes(), 0, count);
+      m_Coils.forceSize(count * 8);
+    } else {
+      byte[] data = new byte[count];
+      for (int k = 0; k < count; k++) {
+        data[k] = din.readByte();
+      }
+      //decode bytes into bitvector
+      m_Coils = BitVector.createBitVector(data);
     }
-    //decode bytes into bitvector
-    m_Coils = BitVector.createBitVector(data);
     //update data length
     setDataLength(count + 1);
   }//readData
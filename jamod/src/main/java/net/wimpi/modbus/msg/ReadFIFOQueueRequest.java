@@ -0,0 +1,143 @@
+/***
+ * Copyright 2002-2010 jamod development team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***/
+
+package net.wimpi.modbus.msg;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import net.wimpi.modbus.Modbus;
+import net.wimpi.modbus.ModbusCoupler;
+import net.wimpi.modbus.procimg.FIFORegister;
+import net.wimpi.modbus.procimg.IllegalAddressException;
+import net.wimpi.modbus.procimg.ProcessImage;
+import net.wimpi.modbus.procimg.Register;
+
+/**
+ * Class implementing a <tt>ReadFIFOQueueRequest</tt>.
+ * The implementation directly correlates with the
+ * function <i>read FIFO queue (FC 24)</i>. It
+ * encapsulates the corresponding request message.
+ * <p>
+ * The slave serves the request from the <tt>FIFORegister</tt>
+ * at the FIFO pointer address. The values read stay queued,
+ * unless the register is draining; a queue of more than 31
+ * values is answered with an illegal value exception.
+ *
+ * @author Dieter Wimberger
+ * @version @version@ (@date@)
+ */
+public final class ReadFIFOQueueRequest
+    extends ModbusRequest {
+
+  //instance attributes
+  private int m_Reference;
+
+  /**
+   * Constructs a new <tt>ReadFIFOQueueRequest</tt>
+   * instance.
+   */
+  public ReadFIFOQueueRequest() {
+    super();
+    setFunctionCode(Modbus.READ_FIFO_QUEUE);
+    //2 bytes (remember unit identifier and function
+    //code are excluded)
+    setDataLength(2);
+  }//constructor
+
+  /**
+   * Constructs a new <tt>ReadFIFOQueueRequest</tt>
+   * instance with the given FIFO pointer address.
+   * <p>
+   * @param ref the reference of the FIFO pointer.
+   */
+  public ReadFIFOQueueRequest(int ref) {
+    this();
+    setReference(ref);
+  }//constructor
+
+  public ModbusResponse createResponse() {
+    return createResponse(ModbusCoupler.getReference().getProcessImage());
+  }//createResponse
+
+  public ModbusResponse createResponse(ProcessImage procimg) {
+    ReadFIFOQueueResponse response = null;
+
+    //1. get the queue
+    Register reg = null;
+    try {
+      reg = procimg.getRegister(m_Reference);
+    } catch (IllegalAddressException iaex) {
+      return createExceptionResponse(Modbus.ILLEGAL_ADDRESS_EXCEPTION);
+    }
+    if (!(reg instanceof FIFORegister)) {
+      return createExceptionResponse(Modbus.ILLEGAL_ADDRESS_EXCEPTION);
+    }
+    FIFORegister fifo = (FIFORegister) reg;
+    byte[] data = new byte[FIFORegister.MAX_READ_COUNT * 2];
+    int count = 0;
+    synchronized (fifo) {
+      if (fifo.isDraining()) {
+        count = fifo.drain(data, 0, FIFORegister.MAX_READ_COUNT);
+      } else if (fifo.size() > FIFORegister.MAX_READ_COUNT) {
+        return createExceptionResponse(Modbus.ILLEGAL_VALUE_EXCEPTION);
+      } else {
+        count = fifo.peek(data, 0, FIFORegister.MAX_READ_COUNT);
+      }
+    }
+    response = new ReadFIFOQueueResponse(data, count);
+    //transfer header data
+    if (!isHeadless()) {
+      response.setTransactionID(this.getTransactionID());
+      response.setProtocolID(this.getProtocolID());
+    } else {
+      response.setHeadless();
+    }
+    response.setUnitID(this.getUnitID());
+    response.setFunctionCode(this.getFunctionCode());
+    return response;
+  }//createResponse
+
+  /**
+   * Sets the reference of the FIFO pointer.
+   * <p>
+   * @param ref the reference as <tt>int</tt>.
+   */
+  public void setReference(int ref) {
+    m_Reference = ref;
+  }//setReference
+
+  /**
+   * Returns the reference of the FIFO pointer.
+   * <p>
+   * @return the reference as <tt>int</tt>.
+   */
+  public int getReference() {
+    return m_Reference;
+  }//getReference
+
+  public void writeData(DataOutput dout)
+      throws IOException {
+    dout.writeShort(m_Reference);
+  }//writeData
+
+  public void readData(DataInput din)
+      throws IOException {
+    m_Reference = din.readUnsignedShort();
+  }//readData
+
+}//class ReadFIFOQueueRequest
@@ -0,0 +1,145 @@
+/***
+ * Copyright 2002-2010 jamod development team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***/
+
+package net.wimpi.modbus.msg;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import net.wimpi.modbus.Modbus;
+import net.wimpi.modbus.procimg.FIFORegister;
+
+/**
+ * Class implementing a <tt>ReadFIFOQueueResponse</tt>.
+ * The implementation directly correlates with the
+ * function <i>read FIFO queue (FC 24)</i>. It
+ * encapsulates the corresponding response message,
+ * which carries up to 31 queued values.
+ *
+ * @author Dieter Wimberger
+ * @version @version@ (@date@)
+ */
+public final class ReadFIFOQueueResponse
+    extends ModbusResponse {
+
+  //instance attributes
+  private int m_Count;
+  private byte[] m_Data;
+
+  /**
+   * Constructs a new <tt>ReadFIFOQueueResponse</tt>
+   * instance.
+   */
+  public ReadFIFOQueueResponse() {
+    super();
+    setFunctionCode(Modbus.READ_FIFO_QUEUE);
+  }//constructor
+
+  /**
+   * Constructs a new <tt>ReadFIFOQueueResponse</tt>
+   * instance holding the given values.
+   *
+   * @param data  the values, two bytes each in big-endian order.
+   * @param count the number of values.
+   */
+  public ReadFIFOQueueResponse(byte[] data, int count) {
+    super();
+    m_Data = data;
+    m_Count = count;
+    setFunctionCode(Modbus.READ_FIFO_QUEUE);
+    //set correct data length excluding unit id and fc
+    setDataLength(4 + count * 2);
+  }//constructor
+
+  /**
+   * Returns the number of values read.
+   *
+   * @return the number of values as <tt>int</tt>.
+   */
+  public int getCount() {
+    return m_Count;
+  }//getCount
+
+  /**
+   * Returns the value at the given position,
+   * the head of the queue being at index 0,
+   * interpreted as unsigned short.
+   *
+   * @param index the index of the value.
+   * @return the value as <tt>int</tt>.
+   * @throws IndexOutOfBoundsException if
+   *         the index is out of bounds.
+   */
+  public int getValue(int index)
+      throws IndexOutOfBoundsException {
+    if (index >= m_Count) {
+      throw new IndexOutOfBoundsException();
+    }
+    return ((m_Data[index * 2] & 0xff) << 8) | (m_Data[index * 2 + 1] & 0xff);
+  }//getValue
+
+  /**
+   * Copies the values read into the given array,
+   * interpreted as unsigned short.
+   *
+   * @param dest   the <tt>int[]</tt> receiving the values.
+   * @param offset the index of <tt>dest</tt> receiving the first value.
+   * @return the number of values copied.
+   * @throws IndexOutOfBoundsException if <tt>dest</tt> is too small.
+   */
+  public int getValues(int[] dest, int offset)
+      throws IndexOutOfBoundsException {
+    if (offset < 0 || offset + m_Count > dest.length) {
+      throw new IndexOutOfBoundsException();
+    }
+    for (int k = 0; k < m_Count; k++) {
+      dest[offset + k] = getValue(k);
+    }
+    return m_Count;
+  }//getValues
+
+  public void writeData(DataOutput dout)
+      throws IOException {
+    dout.writeShort(2 + m_Count * 2);
+    dout.writeShort(m_Count);
+    dout.write(m_Data, 0, m_Count * 2);
+  }//writeData
+
+  public void readData(DataInput din)
+      throws IOException {
+    int bytecount = din.readUnsignedShort();
+    int count = din.readUnsignedShort();
+    //reject malformed replies before allocating
+    if (count > FIFORegister.MAX_READ_COUNT) {
+      throw new IOException("FIFO count " + count + " exceeds "
+          + FIFORegister.MAX_READ_COUNT + ".");
+    }
+    if (bytecount != 2 + count * 2) {
+      throw new IOException("Byte count " + bytecount
+          + " does not match FIFO count " + count + ".");
+    }
+    m_Count = count;
+    //a reused response decodes into its existing buffer
+    if (m_Data == null || m_Data.length < m_Count * 2) {
+      m_Data = new byte[m_Count * 2];
+    }
+    din.readFully(m_Data, 0, m_Count * 2);
+    //update data length
+    setDataLength(4 + m_Count * 2);
+  }//readData
+
+}//class ReadFIFOQueueResponse
@@ -84,12 +84,14 @@ public final class ReadInputDiscretesRequest
   */
 
   public ModbusResponse createResponse() {
+    return createResponse(ModbusCoupler.getReference().getProcessImage());
+  }//createResponse
+
+  public ModbusResponse createResponse(ProcessImage procimg) {
     ReadInputDiscretesResponse response = null;
     DigitalIn[] dins = null;
 
-    //1. get process image
-    ProcessImage procimg = ModbusCoupler.getReference().getProcessImage();
-    //2. get inputdiscretes range
+    //1. get inputdiscretes range
     try {
       dins = procimg.getDigitalInRange(this.getReference(), this.getBitCount());
     } catch (IllegalAddressException iaex) {
@@ -98,6 +98,29 @@ public final class ReadInputDiscretesResponse
     return m_Discretes;
   }//getDiscretes
 
+  /**
+   * Copies the input discrete states read into the given
+   * <tt>BitVector</tt>, which allows a single bitmap
+   * to be reused for repeated reads.
+   *
+   * @param dest   the <tt>BitVector</tt> receiving the states.
+   * @param offset the index of the bit of <tt>dest</tt> receiving
+   *               the first state.
+   * @param count  the number of states to be copied, which should
+   *               be the number originally requested.
+   * @throws IndexOutOfBoundsException if more states are requested
+   *                                   than read, or <tt>dest</tt> is too small.
+   */
+  public void getDiscretes(BitVector dest, int offset, int count)
+      throws IndexOutOfBoundsException {
+    if (count > m_Discretes.size() || offset < 0 || offset + count > dest.size()) {
+      throw new IndexOutOfBoundsException();
+    }
+    for (int i = 0; i < count; i++) {
+      dest.setBit(offset + i, m_Discretes.getBit(i));
+    }
+  }//getDiscretes
+
   /**
    * Convenience method that returns the state
    * of the bit at the given index.
@@ -138,14 +161,21 @@ public final class ReadInputDiscretesResponse
       throws IOException {
 
     int count = din.readUnsignedByte();
-    byte[] data = new byte[count];
-    for (int k = 0; k < count; k++) {
-      data[k] = din.readByte();
+    if (m_Discretes != null && m_Discretes.getBytes().length == count) {
+      //reused response of the same size, decode into the
+      //existing bitvector; its byte size is written back
+      din.readFully(m_Discretes.getBytes(), 0, count);
+      m_Discretes.forceSize(count * 8);
+    } else {
+      byte[] data = new byte[count];
+      for (int k = 0; k < count; k++) {
+        data[k] = din.readByte();
+      }
+
+      //decode bytes into bitvector
+      m_Discretes = BitVector.createBitVector(data);
     }
 
-    //decode bytes into bitvector
-    m_Discretes = BitVector.createBitVector(data);
-
     //update data length
     setDataLength(count + 1);
   }//readData
@@ -72,12 +72,14 @@ public final class ReadInputRegistersRequest
   }//constructor
   
   public ModbusResponse createResponse() {
+    return createResponse(ModbusCoupler.getReference().getProcessImage());
+  }//createResponse
+
+  public ModbusResponse createResponse(ProcessImage procimg) {
     ReadInputRegistersResponse response = null;
     InputRegister[] inpregs = null;
 
-    //1. get process image
-    ProcessImage procimg = ModbusCoupler.getReference().getProcessImage();
-    //2. get input registers range
+    //1. get input registers range
     try {
       inpregs = procimg.getInputRegisterRange(this.getReference(), this.getWordCount());
     } catch (IllegalAddressException iaex) {
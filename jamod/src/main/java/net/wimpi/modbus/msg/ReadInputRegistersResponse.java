@@ -24,6 +24,7 @@ import net.wimpi.modbus.Modbus;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * Class implementing a <tt>ReadInputRegistersRequest</tt>.
@@ -40,7 +41,9 @@ public final class ReadInputRegistersResponse
   //instance attributes
   private int m_ByteCount;
   //private int[] m_RegisterValues;
-  private InputRegister[] m_Registers;
+  //decoded or encoded lazily, possibly by concurrent readers
+  private volatile InputRegister[] m_Registers;
+  private volatile byte[] m_Data;
 
   /**
    * Constructs a new <tt>ReadInputRegistersResponse</tt>
@@ -119,7 +122,7 @@ public final class ReadInputRegistersResponse
     if (index >= getWordCount()) {
       throw new IndexOutOfBoundsException();
     } else {
-      return m_Registers[index];
+      return getRegisters()[index];
     }
   }//getRegister
 
@@ -141,9 +144,11 @@ public final class ReadInputRegistersResponse
 
     if (index >= getWordCount()) {
       throw new IndexOutOfBoundsException();
-    } else {
-      return m_Registers[index].toUnsignedShort();
     }
+    if (m_Registers == null) {
+      return ((m_Data[index * 2] & 0xff) << 8) | (m_Data[index * 2 + 1] & 0xff);
+    }
+    return m_Registers[index].toUnsignedShort();
   }//getRegisterValue
 
   /**
@@ -152,13 +157,90 @@ public final class ReadInputRegistersResponse
    *
    * @return a <tt>InputRegister[]</tt> instance.
    */
-  public InputRegister[] getRegisters() {
+  public synchronized InputRegister[] getRegisters() {
+    if (m_Registers == null && m_Data != null) {
+      InputRegister[] registers = new InputRegister[getWordCount()];
+      ProcessImageFactory pimf = ModbusCoupler.getReference().getProcessImageFactory();
+      for (int k = 0; k < registers.length; k++) {
+        registers[k] = pimf.createInputRegister(m_Data[k * 2], m_Data[k * 2 + 1]);
+      }
+      m_Registers = registers;
+    }
     return m_Registers;
   }//getRegisters
 
+  /**
+   * Copies the values of the registers read into the given array,
+   * interpreted as unsigned short.
+   * <p>
+   * Unlike {@link #getRegisters()}, this does not create
+   * an object per register.
+   *
+   * @param dest   the <tt>int[]</tt> receiving the values.
+   * @param offset the index of <tt>dest</tt> receiving the first value.
+   * @return the number of values copied.
+   * @throws IndexOutOfBoundsException if <tt>dest</tt> is too small.
+   */
+  public int getRegisterValues(int[] dest, int offset)
+      throws IndexOutOfBoundsException {
+    int count = getWordCount();
+    if (offset < 0 || offset + count > dest.length) {
+      throw new IndexOutOfBoundsException();
+    }
+    for (int k = 0; k < count; k++) {
+      dest[offset + k] = getRegisterValue(k);
+    }
+    return count;
+  }//getRegisterValues
+
+  /**
+   * Copies the values of the registers read into the given array,
+   * interpreted as signed short.
+   *
+   * @param dest   the <tt>short[]</tt> receiving the values.
+   * @param offset the index of <tt>dest</tt> receiving the first value.
+   * @return the number of values copied.
+   * @throws IndexOutOfBoundsException if <tt>dest</tt> is too small.
+   */
+  public int getRegisterValues(short[] dest, int offset)
+      throws IndexOutOfBoundsException {
+    int count = getWordCount();
+    if (offset < 0 || offset + count > dest.length) {
+      throw new IndexOutOfBoundsException();
+    }
+    for (int k = 0; k < count; k++) {
+      dest[offset + k] = (short) getRegisterValue(k);
+    }
+    return count;
+  }//getRegisterValues
+
+  /**
+   * Returns a read-only, big-endian view of the register
+   * data of this response, without the byte count.
+   * <p>
+   * The view is not backed by the registers of this
+   * response, so later changes to them are not reflected.
+   *
+   * @return a read-only <tt>ByteBuffer</tt>.
+   */
+  public synchronized ByteBuffer getRegisterData() {
+    if (m_Data == null) {
+      byte[] data = new byte[m_ByteCount];
+      for (int k = 0; k < getWordCount(); k++) {
+        System.arraycopy(m_Registers[k].toBytes(), 0, data, k * 2, 2);
+      }
+      m_Data = data;
+    }
+    return ByteBuffer.wrap(m_Data, 0, m_ByteCount).asReadOnlyBuffer();
+  }//getRegisterData
+
   public void writeData(DataOutput dout)
       throws IOException {
     dout.writeByte(m_ByteCount);
+    if (m_Registers == null) {
+      dout.write(m_Data, 0, m_ByteCount);
+      return;
+    }
     for (int k = 0; k < getWordCount(); k++) {
       dout.write(m_Registers[k].toBytes());
     }
@@ -168,12 +250,14 @@ public final class ReadInputRegistersResponse
       throws IOException {
     setByteCount(din.readUnsignedByte());
 
-    InputRegister[] registers = new InputRegister[getWordCount()];
-    ProcessImageFactory pimf = ModbusCoupler.getReference().getProcessImageFactory();
-    for (int k = 0; k < getWordCount(); k++) {
-      registers[k] = pimf.createInputRegister(din.readByte(), din.readByte());
+    //keep the raw data, registers are created on demand;
+    //a reused response decodes into its existing buffer
+    if (m_Data == null || m_Data.length < getByteCount()) {
+      m_Data = new byte[getByteCount()];
     }
-    m_Registers = registers;
+    din.readFully(m_Data, 0, getByteCount());
+    m_Registers = null;
+
     //update data length
     setDataLength(getByteCount() + 1);
   }//readData
@@ -72,12 +72,14 @@ public final class ReadMultipleRegistersRequest
   }//constructor
 
   public ModbusResponse createResponse() {
+    return createResponse(ModbusCoupler.getReference().getProcessImage());
+  }//createResponse
+
+  public ModbusResponse createResponse(ProcessImage procimg) {
     ReadMultipleRegistersResponse response = null;
     Register[] regs = null;
 
-    //1. get process image
-    ProcessImage procimg = ModbusCoupler.getReference().getProcessImage();
-    //2. get input registers range
+    //1. get input registers range
     try {
       regs = procimg.getRegisterRange(this.getReference(), this.getWordCount());
     } catch (IllegalAddressException iaex) {
@@ -19,6 +19,7 @@ package net.wimpi.modbus.msg;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import net.wimpi.modbus.procimg.Register;
 import net.wimpi.modbus.procimg.SimpleRegister;
@@ -40,7 +41,9 @@ public final class ReadMultipleRegistersResponse
 
   //instance attributes
   private int m_ByteCount;
-  private Register[] m_Registers;
+  //decoded or encoded lazily, possibly by concurrent readers
+  private volatile Register[] m_Registers;
+  private volatile byte[] m_Data;
 
   /**
    * Constructs a new <tt>ReadMultipleRegistersResponse</tt>
@@ -114,6 +117,12 @@ public final class ReadMultipleRegistersResponse
    */
   public int getRegisterValue(int index)
       throws IndexOutOfBoundsException {
+    if (index >= getWordCount()) {
+      throw new IndexOutOfBoundsException();
+    }
+    if (m_Registers == null) {
+      return ((m_Data[index * 2] & 0xff) << 8) | (m_Data[index * 2 + 1] & 0xff);
+    }
     return m_Registers[index].toUnsignedShort();
   }//getRegisterValue
 
@@ -135,7 +144,7 @@ public final class ReadMultipleRegistersResponse
     if (index >= getWordCount()) {
       throw new IndexOutOfBoundsException();
     } else {
-      return m_Registers[index];
+      return getRegisters()[index];
     }
   }//getRegister
 
@@ -145,13 +154,90 @@ public final class ReadMultipleRegistersResponse
    *
    * @return a <tt>Register[]</tt> instance.
    */
-  public Register[] getRegisters() {
+  public synchronized Register[] getRegisters() {
+    if (m_Registers == null && m_Data != null) {
+      Register[] registers = new Register[getWordCount()];
+      ProcessImageFactory pimf = ModbusCoupler.getReference().getProcessImageFactory();
+      for (int k = 0; k < registers.length; k++) {
+        registers[k] = pimf.createRegister(m_Data[k * 2], m_Data[k * 2 + 1]);
+      }
+      m_Registers = registers;
+    }
     return m_Registers;
   }//getRegisters
 
+  /**
+   * Copies the values of the registers read into the given array,
+   * interpreted as unsigned short.
+   * <p>
+   * Unlike {@link #getRegisters()}, this does not create
+   * an object per register.
+   *
+   * @param dest   the <tt>int[]</tt> receiving the values.
+   * @param offset the index of <tt>dest</tt> receiving the first value.
+   * @return the number of values copied.
+   * @throws IndexOutOfBoundsException if <tt>dest</tt> is too small.
+   */
+  public int getRegisterValues(int[] dest, int offset)
+      throws IndexOutOfBoundsException {
+    int count = getWordCount();
+    if (offset < 0 || offset + count > dest.length) {
+      throw new IndexOutOfBoundsException();
+    }
+    for (int k = 0; k < count; k++) {
+      dest[offset + k] = getRegisterValue(k);
+    }
+    return count;
+  }//getRegisterValues
+
+  /**
+   * Copies the values of the registers read into the given array,
+   * interpreted as signed short.
+   *
+   * @param dest   the <tt>short[]</tt> receiving the values.
+   * @param offset the index of <tt>dest</tt> receiving the first value.
+   * @return the number of values copied.
+   * @throws IndexOutOfBoundsException if <tt>dest</tt> is too small.
+   */
+  public int getRegisterValues(short[] dest, int offset)
+      throws IndexOutOfBoundsException {
+    int count = getWordCount();
+    if (offset < 0 || offset + count > dest.length) {
+      throw new IndexOutOfBoundsException();
+    }
+    for (int k = 0; k < count; k++) {
+      dest[offset + k] = (short) getRegisterValue(k);
+    }
+    return count;
+  }//getRegisterValues
+
+  /**
+   * Returns a read-only, big-endian view of the register
+   * data of this response, without the byte count.
+   * <p>
+   * The view is not backed by the registers of this
+   * response, so later changes to them are not reflected.
+   *
+   * @return a read-only <tt>ByteBuffer</tt>.
+   */
+  public synchronized ByteBuffer getRegisterData() {
+    if (m_Data == null) {
+      byte[] data = new byte[m_ByteCount];
+      for (int k = 0; k < getWordCount(); k++) {
+        System.arraycopy(m_Registers[k].toBytes(), 0, data, k * 2, 2);
+      }
+      m_Data = data;
+    }
+    return ByteBuffer.wrap(m_Data, 0, m_ByteCount).asReadOnlyBuffer();
+  }//getRegisterData
+
   public void writeData(DataOutput dout)
       throws IOException {
     dout.writeByte(m_ByteCount);
+    if (m_Registers == null) {
+      dout.write(m_Data, 0, m_ByteCount);
+      return;
+    }
     for (int k = 0; k < getWordCount(); k++) {
       dout.write(m_Registers[k].toBytes());
     }
@@ -161,12 +247,13 @@ public final class ReadMultipleRegistersResponse
       throws IOException {
     setByteCount(din.readUnsignedByte());
 
-    m_Registers = new Register[getWordCount()];
-    ProcessImageFactory pimf = ModbusCoupler.getReference().getProcessImageFactory();
-
-    for (int k = 0; k < getWordCount(); k++) {
-      m_Registers[k] = pimf.createRegister(din.readByte(), din.readByte());
+    //keep the raw data, registers are created on demand;
+    //a reused response decodes into its existing buffer
+    if (m_Data == null || m_Data.length < getByteCount()) {
+      m_Data = new byte[getByteCount()];
     }
+    din.readFully(m_Data, 0, getByteCount());
+    m_Registers = null;
 
     //update data length
     setDataLength(getByteCount() + 1);
@@ -0,0 +1,247 @@
+/***
+ * Copyright 2002-2010 jamod development team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***/
+
+package net.wimpi.modbus.msg;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import net.wimpi.modbus.Modbus;
+import net.wimpi.modbus.ModbusCoupler;
+import net.wimpi.modbus.procimg.IllegalAddressException;
+import net.wimpi.modbus.procimg.ProcessImage;
+import net.wimpi.modbus.procimg.ProcessImageFactory;
+import net.wimpi.modbus.procimg.Register;
+
+/**
+ * Class implementing a <tt>ReadWriteMultipleRequest</tt>.
+ * The implementation directly correlates with the
+ * function <i>read/write multiple registers (FC 23)</i>. It
+ * encapsulates the corresponding request message.
+ * <p>
+ * The slave writes the registers first and then reads
+ * the requested range, which thus reflects the write.
+ *
+ * @author Dieter Wimberger
+ * @version @version@ (@date@)
+ */
+public final class ReadWriteMultipleRequest
+    extends ModbusRequest {
+
+  /**
+   * Defines the maximum number of registers that
+   * can be read with a single request.
+   */
+  public static final int MAX_READ_COUNT = 125;
+
+  /**
+   * Defines the maximum number of registers that
+   * can be written with a single request.
+   */
+  public static final int MAX_WRITE_COUNT = 121;
+
+  //instance attributes
+  private int m_ReadReference;
+  private int m_ReadCount;
+  private int m_WriteReference;
+  private Register[] m_Registers;
+
+  /**
+   * Constructs a new <tt>ReadWriteMultipleRequest</tt>
+   * instance.
+   */
+  public ReadWriteMultipleRequest() {
+    super();
+    setFunctionCode(Modbus.READ_WRITE_MULTIPLE);
+    //9 bytes (remember unit identifier and function
+    //code are excluded)
+    setDataLength(9);
+  }//constructor
+
+  /**
+   * Constructs a new <tt>ReadWriteMultipleRequest</tt>
+   * instance with the given ranges.
+   * <p>
+   * @param readref the reference of the first register to be read.
+   * @param count the number of registers to be read.
+   * @param writeref the reference of the first register to be written.
+   * @param registers the registers to be written.
+   */
+  public ReadWriteMultipleRequest(int readref, int count,
+                                  int writeref, Register[] registers) {
+    this();
+    setReadReference(readref);
+    setReadWordCount(count);
+    setWriteReference(writeref);
+    setRegisters(registers);
+  }//constructor
+
+  public ModbusResponse createResponse() {
+    return createResponse(ModbusCoupler.getReference().getProcessImage());
+  }//createResponse
+
+  public ModbusResponse createResponse(ProcessImage procimg) {
+    ReadWriteMultipleResponse response = null;
+
+    if (m_ReadCount < 1 || m_ReadCount > MAX_READ_COUNT
+        || getWriteWordCount() < 1 || getWriteWordCount() > MAX_WRITE_COUNT) {
+      return createExceptionResponse(Modbus.ILLEGAL_VALUE_EXCEPTION);
+    }
+    byte[] data = new byte[m_ReadCount * 2];
+    //1. write, then read, while holding the image
+    //   like all requests writing registers
+    synchronized (procimg) {
+      try {
+        Register[] wregs = procimg.getRegisterRange(m_WriteReference, getWriteWordCount());
+        Register[] rregs = procimg.getRegisterRange(m_ReadReference, m_ReadCount);
+        for (int i = 0; i < wregs.length; i++) {
+          wregs[i].setValue(m_Registers[i].toBytes());
+        }
+        for (int i = 0; i < rregs.length; i++) {
+          System.arraycopy(rregs[i].toBytes(), 0, data, i * 2, 2);
+        }
+      } catch (IllegalAddressException iaex) {
+        return createExceptionResponse(Modbus.ILLEGAL_ADDRESS_EXCEPTION);
+      }
+    }
+    response = new ReadWriteMultipleResponse(data);
+    //transfer header data
+    if (!isHeadless()) {
+      response.setTransactionID(this.getTransactionID());
+      response.setProtocolID(this.getProtocolID());
+    } else {
+      response.setHeadless();
+    }
+    response.setUnitID(this.getUnitID());
+    response.setFunctionCode(this.getFunctionCode());
+    return response;
+  }//createResponse
+
+  /**
+   * Sets the reference of the first register to be read.
+   * <p>
+   * @param ref the reference as <tt>int</tt>.
+   */
+  public void setReadReference(int ref) {
+    m_ReadReference = ref;
+  }//setReadReference
+
+  /**
+   * Returns the reference of the first register to be read.
+   * <p>
+   * @return the reference as <tt>int</tt>.
+   */
+  public int getReadReference() {
+    return m_ReadReference;
+  }//getReadReference
+
+  /**
+   * Sets the number of registers to be read.
+   * <p>
+   * @param count the number of registers as <tt>int</tt>.
+   */
+  public void setReadWordCount(int count) {
+    m_ReadCount = count;
+  }//setReadWordCount
+
+  /**
+   * Returns the number of registers to be read.
+   * <p>
+   * @return the number of registers as <tt>int</tt>.
+   */
+  public int getReadWordCount() {
+    return m_ReadCount;
+  }//getReadWordCount
+
+  /**
+   * Sets the reference of the first register to be written.
+   * <p>
+   * @param ref the reference as <tt>int</tt>.
+   */
+  public void setWriteReference(int ref) {
+    m_WriteReference = ref;
+  }//setWriteReference
+
+  /**
+   * Returns the reference of the first register to be written.
+   * <p>
+   * @return the reference as <tt>int</tt>.
+   */
+  public int getWriteReference() {
+    return m_WriteReference;
+  }//getWriteReference
+
+  /**
+   * Sets the registers to be written with this
+   * <tt>ReadWriteMultipleRequest</tt>.
+   * <p>
+   * @param registers the registers to be written
+   *        as <tt>Register[]</tt>.
+   */
+  public void setRegisters(Register[] registers) {
+    m_Registers = registers;
+    setDataLength(9 + getWriteWordCount() * 2);
+  }//setRegisters
+
+  /**
+   * Returns the registers to be written with this
+   * <tt>ReadWriteMultipleRequest</tt>.
+   * <p>
+   * @return the registers to be written as <tt>Register[]</tt>.
+   */
+  public Register[] getRegisters() {
+    return m_Registers;
+  }//getRegisters
+
+  /**
+   * Returns the number of registers to be written.
+   * <p>
+   * @return the number of registers as <tt>int</tt>.
+   */
+  public int getWriteWordCount() {
+    return (m_Registers == null) ? 0 : m_Registers.length;
+  }//getWriteWordCount
+
+  public void writeData(DataOutput dout)
+      throws IOException {
+    dout.writeShort(m_ReadReference);
+    dout.writeShort(m_ReadCount);
+    dout.writeShort(m_WriteReference);
+    dout.writeShort(getWriteWordCount());
+    dout.writeByte(getWriteWordCount() * 2);
+    for (int n = 0; n < getWriteWordCount(); n++) {
+      dout.write(m_Registers[n].toBytes());
+    }
+  }//writeData
+
+  public void readData(DataInput din)
+      throws IOException {
+    m_ReadReference = din.readUnsignedShort();
+    m_ReadCount = din.readUnsignedShort();
+    m_WriteReference = din.readUnsignedShort();
+    int wc = din.readUnsignedShort();
+    //byte count
+    din.readUnsignedByte();
+    Register[] registers = new Register[wc];
+    ProcessImageFactory pimf = ModbusCoupler.getReference().getProcessImageFactory();
+    for (int i = 0; i < wc; i++) {
+      registers[i] = pimf.createRegister(din.readByte(), din.readByte());
+    }
+    setRegisters(registers);
+  }//readData
+
+}//class ReadWriteMultipleRequest
@@ -0,0 +1,164 @@
+/***
+ * Copyright 2002-2010 jamod development team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***/
+
+package net.wimpi.modbus.msg;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import net.wimpi.modbus.Modbus;
+import net.wimpi.modbus.ModbusCoupler;
+import net.wimpi.modbus.procimg.ProcessImageFactory;
+import net.wimpi.modbus.procimg.Register;
+
+/**
+ * Class implementing a <tt>ReadWriteMultipleResponse</tt>.
+ * The implementation directly correlates with the
+ * function <i>read/write multiple registers (FC 23)</i>. It
+ * encapsulates the corresponding response message, which
+ * carries the registers read.
+ *
+ * @author Dieter Wimberger
+ * @version @version@ (@date@)
+ */
+public final class ReadWriteMultipleResponse
+    extends ModbusResponse {
+
+  //instance attributes
+  private int m_ByteCount;
+  private byte[] m_Data;
+  private Register[] m_Registers;
+
+  /**
+   * Constructs a new <tt>ReadWriteMultipleResponse</tt>
+   * instance.
+   */
+  public ReadWriteMultipleResponse() {
+    super();
+    setFunctionCode(Modbus.READ_WRITE_MULTIPLE);
+  }//constructor
+
+  /**
+   * Constructs a new <tt>ReadWriteMultipleResponse</tt>
+   * instance holding the given register data.
+   *
+   * @param data the values of the registers read, two bytes
+   *             per register in big-endian order.
+   */
+  public ReadWriteMultipleResponse(byte[] data) {
+    super();
+    m_Data = data;
+    m_ByteCount = data.length;
+    setFunctionCode(Modbus.READ_WRITE_MULTIPLE);
+    //set correct data length excluding unit id and fc
+    setDataLength(m_ByteCount + 1);
+  }//constructor
+
+  /**
+   * Returns the number of bytes that have been read.
+   *
+   * @return the number of bytes as <tt>int</tt>.
+   */
+  public int getByteCount() {
+    return m_ByteCount;
+  }//getByteCount
+
+  /**
+   * Returns the number of words that have been read.
+   *
+   * @return the number of words as <tt>int</tt>.
+   */
+  public int getWordCount() {
+    return m_ByteCount / 2;
+  }//getWordCount
+
+  /**
+   * Returns the value of the register at
+   * the given position (relative to the read reference
+   * used in the request) interpreted as unsigned short.
+   *
+   * @param index the relative index of the register.
+   * @return the value as <tt>int</tt>.
+   * @throws IndexOutOfBoundsException if
+   *         the index is out of bounds.
+   */
+  public int getRegisterValue(int index)
+      throws IndexOutOfBoundsException {
+    if (index >= getWordCount()) {
+      throw new IndexOutOfBoundsException();
+    }
+    return ((m_Data[index * 2] & 0xff) << 8) | (m_Data[index * 2 + 1] & 0xff);
+  }//getRegisterValue
+
+  /**
+   * Copies the values of the registers read into the given array,
+   * interpreted as unsigned short.
+   *
+   * @param dest   the <tt>int[]</tt> receiving the values.
+   * @param offset the index of <tt>dest</tt> receiving the first value.
+   * @return the number of values copied.
+   * @throws IndexOutOfBoundsException if <tt>dest</tt> is too small.
+   */
+  public int getRegisterValues(int[] dest, int offset)
+      throws IndexOutOfBoundsException {
+    int count = getWordCount();
+    if (offset < 0 || offset + count > dest.length) {
+      throw new IndexOutOfBoundsException();
+    }
+    for (int k = 0; k < count; k++) {
+      dest[offset + k] = getRegisterValue(k);
+    }
+    return count;
+  }//getRegisterValues
+
+  /**
+   * Returns the registers read.
+   *
+   * @return a <tt>Register[]</tt> instance.
+   */
+  public Register[] getRegisters() {
+    if (m_Registers == null && m_Data != null) {
+      Register[] registers = new Register[getWordCount()];
+      ProcessImageFactory pimf = ModbusCoupler.getReference().getProcessImageFactory();
+      for (int k = 0; k < registers.length; k++) {
+        registers[k] = pimf.createRegister(m_Data[k * 2], m_Data[k * 2 + 1]);
+      }
+      m_Registers = registers;
+    }
+    return m_Registers;
+  }//getRegisters
+
+  public void writeData(DataOutput dout)
+      throws IOException {
+    dout.writeByte(m_ByteCount);
+    dout.write(m_Data, 0, m_ByteCount);
+  }//writeData
+
+  public void readData(DataInput din)
+      throws IOException {
+    m_ByteCount = din.readUnsignedByte();
+    //a reused response decodes into its existing buffer
+    if (m_Data == null || m_Data.length < m_ByteCount) {
+      m_Data = new byte[m_ByteCount];
+    }
+    din.readFully(m_Data, 0, m_ByteCount);
+    m_Registers = null;
+    //update data length
+    setDataLength(m_ByteCount + 1);
+  }//readData
+
+}//class ReadWriteMultipleResponse
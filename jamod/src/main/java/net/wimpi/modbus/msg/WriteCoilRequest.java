@@ -73,15 +73,17 @@ public final class WriteCoilRequest
   }//constructor
   
   public ModbusResponse createResponse() {
+    return createResponse(ModbusCoupler.getReference().getProcessImage());
+  }//createResponse
+
+  public ModbusResponse createResponse(ProcessImage procimg) {
     WriteCoilResponse response = null;
     DigitalOut dout = null;
 
-    //1. get process image
-    ProcessImage procimg = ModbusCoupler.getReference().getProcessImage();
-    //2. get coil
+    //1. get coil
     try {
       dout = procimg.getDigitalOut(this.getReference());
-      //3. set coil
+      //2. set coil
       dout.set(this.getCoil());
       //if(Modbus.debug) System.out.println("set coil ref="+this.getReference()+" state=" + this.getCoil());
     } catch (IllegalAddressException iaex) {
@@ -119,12 +119,10 @@ public final class WriteCoilResponse
       throws IOException {
     setReference(din.readUnsignedShort());
 
-    byte[] data = new byte[2];
-    for (int k = 0; k < 2; k++) {
-      data[k] = din.readByte();
-    }
+    byte state = din.readByte();
+    din.readByte();
     //set toggle
-    if (data[0] == Modbus.COIL_ON) {
+    if (state == Modbus.COIL_ON) {
       setCoil(true);
     } else {
       setCoil(false);
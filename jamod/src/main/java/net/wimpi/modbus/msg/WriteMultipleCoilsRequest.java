@@ -90,15 +90,17 @@ public final class WriteMultipleCoilsRequest
   }//constructor
 
   public ModbusResponse createResponse() {
+    return createResponse(ModbusCoupler.getReference().getProcessImage());
+  }//createResponse
+
+  public ModbusResponse createResponse(ProcessImage procimg) {
     WriteMultipleCoilsResponse response = null;
     DigitalOut douts[] = null;
 
-    //1. get process image
-    ProcessImage procimg = ModbusCoupler.getReference().getProcessImage();
-    //2. get coil range
+    //1. get coil range
     try {
       douts = procimg.getDigitalOutRange(m_Reference, m_Coils.size());
-      //3. set coils
+      //2. set coils
       for (int i = 0; i < douts.length; i++) {
         douts[i].set(m_Coils.getBit(i));
       }
@@ -67,22 +67,27 @@ public final class WriteMultipleRegistersRequest
   }//constructor
 
   public ModbusResponse createResponse() {
+    return createResponse(ModbusCoupler.getReference().getProcessImage());
+  }//createResponse
+
+  public ModbusResponse createResponse(ProcessImage procimg) {
     WriteMultipleRegistersResponse response = null;
 
     if (m_NonWordDataHandler == null) {
       Register[] regs = null;
-      //1. get process image
-      ProcessImage procimg = ModbusCoupler.getReference().getProcessImage();
-      //2. get registers
-      try {
-        //TODO: realize a setRegisterRange()?
-        regs = procimg.getRegisterRange(this.getReference(), this.getWordCount());
-        //3. set Register values
-        for (int i = 0; i < regs.length; i++) {
-          regs[i].setValue(this.getRegister(i).toBytes());
+      //1. get registers, holding the image like all
+      //   requests writing registers
+      synchronized (procimg) {
+        try {
+          //TODO: realize a setRegisterRange()?
+          regs = procimg.getRegisterRange(this.getReference(), this.getWordCount());
+          //2. set Register values
+          for (int i = 0; i < regs.length; i++) {
+            regs[i].setValue(this.getRegister(i).toBytes());
+          }
+        } catch (IllegalAddressException iaex) {
+          return createExceptionResponse(Modbus.ILLEGAL_ADDRESS_EXCEPTION);
         }
-      } catch (IllegalAddressException iaex) {
-        return createExceptionResponse(Modbus.ILLEGAL_ADDRESS_EXCEPTION);
       }
       response = new WriteMultipleRegistersResponse(this.getReference(), regs.length);
     } else {
@@ -72,20 +72,27 @@ public final class WriteSingleRegisterRequest
   }//constructor
 
   public ModbusResponse createResponse() {
+    return createResponse(ModbusCoupler.getReference().getProcessImage());
+  }//createResponse
+
+  public ModbusResponse createResponse(ProcessImage procimg) {
     WriteSingleRegisterResponse response = null;
     Register reg = null;
 
-    //1. get process image
-    ProcessImage procimg = ModbusCoupler.getReference().getProcessImage();
-    //2. get register
-    try {
-      reg = procimg.getRegister(m_Reference);
-      //3. set Register
-      reg.setValue(m_Register.toBytes());
-    } catch (IllegalAddressException iaex) {
-      return createExceptionResponse(Modbus.ILLEGAL_ADDRESS_EXCEPTION);
+    int value = 0;
+    //1. get register, holding the image like all
+    //   requests writing registers
+    synchronized (procimg) {
+      try {
+        reg = procimg.getRegister(m_Reference);
+        //2. set Register
+        reg.setValue(m_Register.toBytes());
+        value = reg.getValue();
+      } catch (IllegalAddressException iaex) {
+        return createExceptionResponse(Modbus.ILLEGAL_ADDRESS_EXCEPTION);
+      }
     }
-    response = new WriteSingleRegisterResponse(this.getReference(), reg.getValue());
+    response = new WriteSingleRegisterResponse(this.getReference(), value);
     //transfer header data
     if (!isHeadless()) {
       response.setTransactionID(this.getTransactionID());
@@ -0,0 +1,172 @@
+/***
+ * Copyright 2002-2010 jamod development team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***/
+
+package net.wimpi.modbus.net;
+
+import java.util.Arrays;
+
+import net.wimpi.modbus.ModbusException;
+import net.wimpi.modbus.msg.ModbusResponse;
+
+/**
+ * Class holding the outcome of a fan-out execution
+ * by a <tt>ModbusTCPFanOut</tt>, indexed by target.
+ * <p>
+ * The outcome of every target is set before
+ * <tt>ModbusTCPFanOut.execute()</tt> returns, and is no longer
+ * changed by workers completing late, so instances can be read
+ * without further synchronization.
+ *
+ * @author Dieter Wimberger
+ * @version @version@ (@date@)
+ */
+public class FanOutResult {
+
+  /**
+   * Defines the status of a target that returned a response.
+   */
+  public static final int OK = 0;
+
+  /**
+   * Defines the status of a target that returned an exception response.
+   */
+  public static final int SLAVE_EXCEPTION = 1;
+
+  /**
+   * Defines the status of a target that could not be reached in time.
+   */
+  public static final int IO_FAILURE = 2;
+
+  final int[] m_Status;
+  final ModbusResponse[] m_Responses;
+  final ModbusException[] m_Exceptions;
+  final long[] m_Latencies;
+  long m_Duration;
+  boolean m_Sealed;
+
+  /**
+   * Constructs a new <tt>FanOutResult</tt> instance.
+   *
+   * @param count the number of targets.
+   */
+  FanOutResult(int count) {
+    m_Status = new int[count];
+    m_Responses = new ModbusResponse[count];
+    m_Exceptions = new ModbusException[count];
+    m_Latencies = new long[count];
+    Arrays.fill(m_Status, IO_FAILURE);
+  }//constructor
+
+  /**
+   * Returns the number of targets.
+   *
+   * @return the number of targets as <tt>int</tt>.
+   */
+  public int getCount() {
+    return m_Status.length;
+  }//getCount
+
+  /**
+   * Returns the status of the given target.
+   *
+   * @param idx the index of the target.
+   * @return one of <tt>OK</tt>, <tt>SLAVE_EXCEPTION</tt> or <tt>IO_FAILURE</tt>.
+   */
+  public int getStatus(int idx) {
+    return m_Status[idx];
+  }//getStatus
+
+  /**
+   * Tests if the given target returned a response.
+   *
+   * @param idx the index of the target.
+   * @return true if the status is <tt>OK</tt>, false otherwise.
+   */
+  public boolean isOK(int idx) {
+    return m_Status[idx] == OK;
+  }//isOK
+
+  /**
+   * Returns the response of the given target.
+   *
+   * @param idx the index of the target.
+   * @return the <tt>ModbusResponse</tt>, or null if the target failed.
+   */
+  public ModbusResponse getResponse(int idx) {
+    return m_Responses[idx];
+  }//getResponse
+
+  /**
+   * Returns the exception raised for the given target.
+   *
+   * @param idx the index of the target.
+   * @return the <tt>ModbusException</tt>, or null if the target succeeded.
+   */
+  public ModbusException getException(int idx) {
+    return m_Exceptions[idx];
+  }//getException
+
+  /**
+   * Returns the latency of the given target, including
+   * the time it waited for a connection.
+   *
+   * @param idx the index of the target.
+   * @return the latency in nanoseconds.
+   */
+  public long getLatency(int idx) {
+    return m_Latencies[idx];
+  }//getLatency
+
+  /**
+   * Returns the maximum latency over all targets.
+   *
+   * @return the latency in nanoseconds.
+   */
+  public long getMaxLatency() {
+    long max = 0;
+    for (int i = 0; i < m_Latencies.length; i++) {
+      if (m_Latencies[i] > max) {
+        max = m_Latencies[i];
+      }
+    }
+    return max;
+  }//getMaxLatency
+
+  /**
+   * Returns the number of targets that returned a response.
+   *
+   * @return the number of successes as <tt>int</tt>.
+   */
+  public int getSuccessCount() {
+    int count = 0;
+    for (int i = 0; i < m_Status.length; i++) {
+      if (m_Status[i] == OK) {
+        count++;
+      }
+    }
+    return count;
+  }//getSuccessCount
+
+  /**
+   * Returns the duration of the whole fan-out.
+   *
+   * @return the duration in nanoseconds.
+   */
+  public long getDuration() {
+    return m_Duration;
+  }//getDuration
+
+}//class FanOutResult
@@ -0,0 +1,742 @@
+/***
+ * Copyright 2002-2010 jamod development team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***/
+
+
+package net.wimpi.modbus.net;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.wimpi.modbus.Modbus;
+import net.wimpi.modbus.ModbusCoupler;
+import net.wimpi.modbus.io.BytesInputStream;
+import net.wimpi.modbus.io.BytesOutputStream;
+import net.wimpi.modbus.io.ReadResponseEncoder;
+import net.wimpi.modbus.msg.ModbusRequest;
+import net.wimpi.modbus.msg.ModbusResponse;
+import net.wimpi.modbus.procimg.ProcessImage;
+
+/**
+ * Class implementing a Modbus/TCP slave listener that
+ * serves a large number of masters on a fixed number of
+ * threads, using non-blocking I/O.
+ * <p>
+ * A single acceptor thread accepts incoming connections
+ * and hands them to the event loops round robin. Each event
+ * loop owns a <tt>Selector</tt> and a pair of direct buffers
+ * shared by all of its connections; it decodes the MBAP frames
+ * straight from the read buffer, has the requests answered by
+ * the process image of the {@link ModbusCoupler}, or of their
+ * unit if a {@link ProcessImageRouter} is set, and gathers
+ * the responses in the write buffer. Unlike the
+ * {@link ModbusTCPListener}, the number of threads does not
+ * grow with the number of connections, and no connection
+ * waits for a free thread.
+ * <p>
+ * A connection whose master does not take its responses off
+ * the wire is not read from until its pending output has been
+ * written.
+ *
+ * @author Dieter Wimberger
+ * @version @version@ (@date@)
+ */
+public class ModbusNIOTCPListener
+    implements Runnable {
+
+  /**
+   * Defines the size of the direct read buffer of
+   * each event loop.
+   */
+  public static final int READ_BUFFER_SIZE = 16384;
+
+  /**
+   * Defines the size of the direct write buffer of
+   * each event loop.
+   */
+  public static final int WRITE_BUFFER_SIZE = 16384;
+
+  /**
+   * Defines the maximum length of a Modbus/TCP frame
+   * (MBAP header and PDU).
+   */
+  public static final int MAX_FRAME_LENGTH = ModbusNIOTCPMaster.MAX_FRAME_LENGTH;
+
+  /**
+   * Defines the time in milliseconds the acceptor backs off
+   * after a failed accept, e.g. when out of file descriptors.
+   */
+  public static final int ACCEPT_BACKOFF = 100;
+
+  //instance attributes
+  private int m_Port = Modbus.DEFAULT_PORT;
+  private InetAddress m_Address;
+  private volatile ProcessImageRouter m_Router;
+  private volatile boolean m_DirectEncoding;
+  private int m_Backlog = 128;
+  private ServerSocketChannel m_ServerChannel;
+  private Thread m_Acceptor;
+  private EventLoop[] m_Loops;
+  private int m_NextLoop;
+  private final AtomicInteger m_Connections = new AtomicInteger(0);
+  private final AtomicLong m_Accepted = new AtomicLong(0);
+  private final AtomicLong m_Requests = new AtomicLong(0);
+  private volatile boolean m_Listening;
+
+  /**
+   * Constructs a new <tt>ModbusNIOTCPListener</tt> instance
+   * with the given number of event loops, listening on
+   * the local host.
+   *
+   * @param loops the number of event loop threads.
+   */
+  public ModbusNIOTCPListener(int loops) {
+    this(loops, null);
+    try {
+      m_Address = InetAddress.getLocalHost();
+    } catch (UnknownHostException ex) {
+
+    }
+  }//constructor
+
+  /**
+   * Constructs a new <tt>ModbusNIOTCPListener</tt> instance
+   * with the given number of event loops.
+   *
+   * @param loops the number of event loop threads.
+   * @param addr  the interface to use for listening.
+   */
+  public ModbusNIOTCPListener(int loops, InetAddress addr) {
+    if (loops < 1) {
+      throw new IllegalArgumentException("At least one event loop is required.");
+    }
+    m_Loops = new EventLoop[loops];
+    m_Address = addr;
+  }//constructor
+
+  /**
+   * Sets the port to be listened to.
+   *
+   * @param port the number of the IP port as <tt>int</tt>.
+   */
+  public void setPort(int port) {
+    m_Port = port;
+  }//setPort
+
+  /**
+   * Returns the port listened to.
+   *
+   * @return the number of the IP port as <tt>int</tt>.
+   */
+  public int getPort() {
+    return m_Port;
+  }//getPort
+
+  /**
+   * Sets the address of the interface to be listened to.
+   *
+   * @param addr an <tt>InetAddress</tt> instance.
+   */
+  public void setAddress(InetAddress addr) {
+    m_Address = addr;
+  }//setAddress
+
+  /**
+   * Sets the router serving the requests from the process
+   * images of their units. If no router is set, all requests
+   * are served from the process image of the <tt>ModbusCoupler</tt>.
+   *
+   * @param router the <tt>ProcessImageRouter</tt>, or null.
+   */
+  public void setRouter(ProcessImageRouter router) {
+    m_Router = router;
+  }//setRouter
+
+  /**
+   * Returns the router serving the requests.
+   *
+   * @return the <tt>ProcessImageRouter</tt>, or null if none is set.
+   */
+  public ProcessImageRouter getRouter() {
+    return m_Router;
+  }//getRouter
+
+  /**
+   * Sets the flag that determines whether reads of registers,
+   * input registers, coils and discretes are encoded straight
+   * from the process image into the write buffer, without
+   * creating requests, range arrays or responses.
+   *
+   * @param b true if reads should be encoded directly, false otherwise.
+   * @see ReadResponseEncoder
+   */
+  public void setDirectEncoding(boolean b) {
+    m_DirectEncoding = b;
+  }//setDirectEncoding
+
+  /**
+   * Tests if reads are encoded straight from the process image.
+   *
+   * @return true if reads are encoded directly, false otherwise.
+   */
+  public boolean isDirectEncoding() {
+    return m_DirectEncoding;
+  }//isDirectEncoding
+
+  /**
+   * Sets the maximum number of connections that may
+   * wait to be accepted. Takes effect on the next start.
+   *
+   * @param backlog the accept backlog, at least 1.
+   */
+  public void setBacklog(int backlog) {
+    if (backlog < 1) {
+      throw new IllegalArgumentException("Backlog must be at least 1.");
+    }
+    m_Backlog = backlog;
+  }//setBacklog
+
+  /**
+   * Returns the number of event loops of this
+   * <tt>ModbusNIOTCPListener</tt>.
+   *
+   * @return the number of event loops as <tt>int</tt>.
+   */
+  public int getLoopCount() {
+    return m_Loops.length;
+  }//getLoopCount
+
+  /**
+   * Returns the number of connections currently open.
+   *
+   * @return the number of connections as <tt>int</tt>.
+   */
+  public int getConnectionCount() {
+    return m_Connections.get();
+  }//getConnectionCount
+
+  /**
+   * Returns the number of connections accepted
+   * since this listener was created.
+   *
+   * @return the number of connections accepted as <tt>long</tt>.
+   */
+  public long getAcceptedCount() {
+    return m_Accepted.get();
+  }//getAcceptedCount
+
+  /**
+   * Returns the number of requests answered
+   * since this listener was created.
+   *
+   * @return the number of requests as <tt>long</tt>.
+   */
+  public long getRequestCount() {
+    return m_Requests.get();
+  }//getRequestCount
+
+  /**
+   * Tests if this <tt>ModbusNIOTCPListener</tt> is listening
+   * and accepting incoming connections.
+   *
+   * @return true if listening, false otherwise.
+   */
+  public boolean isListening() {
+    return m_Listening;
+  }//isListening
+
+  /**
+   * Starts this <tt>ModbusNIOTCPListener</tt>, binding
+   * the server socket right away.
+   *
+   * @throws IOException if the socket cannot be bound or a
+   *                     selector cannot be opened.
+   */
+  public synchronized void start() throws IOException {
+    if (m_Listening) {
+      return;
+    }
+    try {
+      for (int i = 0; i < m_Loops.length; i++) {
+        m_Loops[i] = new EventLoop(this, Selector.open());
+      }
+      m_ServerChannel = ServerSocketChannel.open();
+      m_ServerChannel.socket().setReuseAddress(true);
+      m_ServerChannel.socket().bind(new InetSocketAddress(m_Address, m_Port), m_Backlog);
+    } catch (IOException ex) {
+      for (int i = 0; i < m_Loops.length; i++) {
+        if (m_Loops[i] != null) {
+          m_Loops[i].closeSelector();
+          m_Loops[i] = null;
+        }
+      }
+      if (m_ServerChannel != null) {
+        try {
+          m_ServerChannel.close();
+        } catch (IOException ignore) {
+          //ignore
+        }
+        m_ServerChannel = null;
+      }
+      throw ex;
+    }
+    if (m_Port == 0) {
+      m_Port = m_ServerChannel.socket().getLocalPort();
+    }
+    if (Modbus.debug) System.out.println("Listening to " + m_ServerChannel.socket() + "(Port " + m_Port + ")");
+    m_Listening = true;
+    for (int i = 0; i < m_Loops.length; i++) {
+      Thread t = new Thread(m_Loops[i], "ModbusNIOTCPListener-" + i);
+      t.setDaemon(true);
+      m_Loops[i].m_Thread = t;
+      t.start();
+    }
+    m_Acceptor = new Thread(this, "ModbusNIOTCPListener-acceptor");
+    m_Acceptor.start();
+  }//start
+
+  /**
+   * Stops this <tt>ModbusNIOTCPListener</tt>, closing
+   * the server socket and all connections.
+   */
+  public synchronized void stop() {
+    if (!m_Listening) {
+      return;
+    }
+    m_Listening = false;
+    try {
+      m_ServerChannel.close();
+    } catch (IOException ex) {
+      //ignore
+    }
+    for (int i = 0; i < m_Loops.length; i++) {
+      m_Loops[i].m_Selector.wakeup();
+    }
+    try {
+      m_Acceptor.join();
+      for (int i = 0; i < m_Loops.length; i++) {
+        m_Loops[i].m_Thread.join();
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+  }//stop
+
+  /**
+   * Accepts incoming connections and hands them
+   * to the event loops until stopped. A failed accept
+   * is retried after a short back-off.
+   */
+  public void run() {
+    while (m_Listening) {
+      try {
+        SocketChannel ch = m_ServerChannel.accept();
+        if (Modbus.debug) System.out.println("Making new connection " + ch.socket());
+        m_Accepted.incrementAndGet();
+        m_Connections.incrementAndGet();
+        m_Loops[m_NextLoop].schedule(ch);
+        m_NextLoop = (m_NextLoop + 1) % m_Loops.length;
+      } catch (ClosedChannelException ex) {
+        //stopped
+        return;
+      } catch (IOException ex) {
+        if (!m_Listening) {
+          return;
+        }
+        //e.g. out of file descriptors, pending connections wait
+        if (Modbus.debug) ex.printStackTrace();
+        try {
+          Thread.sleep(ACCEPT_BACKOFF);
+        } catch (InterruptedException iex) {
+          return;
+        }
+      }
+    }
+  }//run
+
+  /**
+   * Class implementing an event loop that owns a
+   * <tt>Selector</tt> and the connections registered with it.
+   * Apart from scheduling, all methods are invoked by the
+   * loop thread only.
+   */
+  static class EventLoop
+      implements Runnable {
+
+    private final ModbusNIOTCPListener m_Listener;
+    private final Selector m_Selector;
+    private Thread m_Thread;
+    private final ConcurrentLinkedQueue<SocketChannel> m_Scheduled =
+        new ConcurrentLinkedQueue<SocketChannel>();
+    private final ByteBuffer m_ReadBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private final ByteBuffer m_WriteBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+    private final byte[] m_Frame = new byte[MAX_FRAME_LENGTH];
+    private final BytesInputStream m_ByteIn = new BytesInputStream(m_Frame);
+    private final BytesOutputStream m_ByteOut = new BytesOutputStream(MAX_FRAME_LENGTH);
+    private final ReadResponseEncoder m_Encoder = new ReadResponseEncoder();
+
+    EventLoop(ModbusNIOTCPListener listener, Selector sel) {
+      m_Listener = listener;
+      m_Selector = sel;
+    }//constructor
+
+    /**
+     * Schedules the given channel to be registered
+     * with this loop and wakes up the selector.
+     *
+     * @param ch the accepted <tt>SocketChannel</tt>.
+     */
+    void schedule(SocketChannel ch) {
+      m_Scheduled.offer(ch);
+      m_Selector.wakeup();
+    }//schedule
+
+    public void run() {
+      try {
+        while (m_Listener.m_Listening) {
+          m_Selector.select();
+          processScheduled();
+          Iterator<SelectionKey> iter = m_Selector.selectedKeys().iterator();
+          while (iter.hasNext()) {
+            SelectionKey key = iter.next();
+            iter.remove();
+            handle(key);
+          }
+        }
+      } catch (IOException ex) {
+        if (Modbus.debug) ex.printStackTrace();
+      } finally {
+        for (Iterator<SelectionKey> iter = m_Selector.keys().iterator(); iter.hasNext();) {
+          SelectionKey key = iter.next();
+          close((Connection) key.attachment());
+        }
+        SocketChannel ch = null;
+        while ((ch = m_Scheduled.poll()) != null) {
+          closeChannel(ch);
+        }
+        closeSelector();
+      }
+    }//run
+
+    void closeSelector() {
+      try {
+        m_Selector.close();
+      } catch (IOException ex) {
+        //ignore
+      }
+    }//closeSelector
+
+    private void processScheduled() {
+      SocketChannel ch = null;
+      while ((ch = m_Scheduled.poll()) != null) {
+        Connection con = new Connection(ch);
+        try {
+          ch.configureBlocking(false);
+          ch.socket().setTcpNoDelay(true);
+          con.m_Key = ch.register(m_Selector, SelectionKey.OP_READ, con);
+        } catch (IOException ex) {
+          close(con);
+        }
+      }
+    }//processScheduled
+
+    private void handle(SelectionKey key) {
+      Connection con = (Connection) key.attachment();
+      try {
+        if (!key.isValid()) {
+          return;
+        }
+        if (key.isWritable()) {
+          writeBacklog(con);
+        }
+        if (key.isValid() && key.isReadable()) {
+          read(con);
+        }
+      } catch (IOException ex) {
+        if (Modbus.debug) ex.printStackTrace();
+        close(con);
+      } catch (RuntimeException ex) {
+        //drop the connection, not the loop serving all others
+        if (Modbus.debug) ex.printStackTrace();
+        close(con);
+      }
+    }//handle
+
+    /**
+     * Reads available data, answers all complete requests
+     * and writes the responses; the tail of a split frame
+     * is kept with the connection.
+     */
+    private void read(Connection con) throws IOException {
+      ByteBuffer in = m_ReadBuffer;
+      ByteBuffer out = m_WriteBuffer;
+      out.clear();
+      boolean full = true;
+      while (full && con.m_Backlog == null) {
+        in.clear();
+        if (con.m_PartialLength > 0) {
+          in.put(con.m_Partial, 0, con.m_PartialLength);
+          con.m_PartialLength = 0;
+        }
+        int n = con.m_Channel.read(in);
+        if (n < 0) {
+          write(con, out);
+          close(con);
+          return;
+        }
+        full = !in.hasRemaining();
+        in.flip();
+        if (!dispatch(con, in, out)) {
+          close(con);
+          return;
+        }
+        if (in.hasRemaining()) {
+          if (con.m_Partial == null) {
+            con.m_Partial = new byte[MAX_FRAME_LENGTH];
+          }
+          con.m_PartialLength = in.remaining();
+          in.get(con.m_Partial, 0, con.m_PartialLength);
+        } else {
+          //release the tail buffer of idle connections
+          con.m_Partial = null;
+        }
+      }
+      write(con, out);
+    }//read
+
+    /**
+     * Decodes the complete requests in the given buffer and
+     * gathers their responses in the output buffer.
+     *
+     * @return false if the connection is to be closed, true otherwise.
+     */
+    private boolean dispatch(Connection con, ByteBuffer in, ByteBuffer out)
+        throws IOException {
+      while (in.remaining() >= 6) {
+        int pos = in.position();
+        int len = in.getShort(pos + 4) & 0xFFFF;
+        if (in.getShort(pos + 2) != Modbus.DEFAULT_PROTOCOL_ID ||
+            len < 2 || len + 6 > MAX_FRAME_LENGTH) {
+          if (Modbus.debug) System.out.println("ModbusNIOTCPListener::Invalid frame, closing connection.");
+          return false;
+        }
+        if (in.remaining() < len + 6) {
+          break;
+        }
+        in.get(m_Frame, 0, len + 6);
+        if (m_Listener.m_DirectEncoding && !Modbus.debug && len == 6) {
+          int n = -1;
+          try {
+            n = encodeDirect();
+          } catch (RuntimeException ex) {
+            //answered by the regular path
+            if (Modbus.debug) ex.printStackTrace();
+          }
+          if (n > 0) {
+            m_Listener.m_Requests.incrementAndGet();
+            emit(con, out, m_Encoder.getBuffer(), n);
+            continue;
+          }
+        }
+        ModbusRequest request = null;
+        try {
+          m_ByteIn.reset(m_Frame, len + 6);
+          m_ByteIn.skip(7);
+          int functionCode = m_ByteIn.readUnsignedByte();
+          m_ByteIn.reset();
+          request = ModbusRequest.createModbusRequest(functionCode);
+          request.readFrom(m_ByteIn);
+        } catch (IOException ex) {
+          if (Modbus.debug) System.out.println("ModbusNIOTCPListener::Malformed request, closing connection.");
+          return false;
+        } catch (RuntimeException ex) {
+          if (Modbus.debug) System.out.println("ModbusNIOTCPListener::Malformed request, closing connection.");
+          return false;
+        }
+        ModbusResponse response = null;
+        try {
+          ProcessImageRouter router = m_Listener.m_Router;
+          if (router != null) {
+            response = router.createResponse(request);
+          } else {
+            ProcessImage procimg = ModbusCoupler.getReference().getProcessImage();
+            if (procimg == null) {
+              response = request.createExceptionResponse(Modbus.ILLEGAL_FUNCTION_EXCEPTION);
+            } else {
+              response = request.createResponse(procimg);
+            }
+          }
+        } catch (RuntimeException ex) {
+          //a failing process image fails the request only
+          if (Modbus.debug) ex.printStackTrace();
+          response = request.createExceptionResponse(Modbus.SLAVE_DEVICE_FAILURE_EXCEPTION);
+        }
+        if (Modbus.debug) System.out.println("Request:" + request.getHexMessage());
+        if (Modbus.debug) System.out.println("Response:" + response.getHexMessage());
+        m_Listener.m_Requests.incrementAndGet();
+
+        m_ByteOut.reset();
+        try {
+          response.writeTo(m_ByteOut);
+        } catch (RuntimeException ex) {
+          if (Modbus.debug) ex.printStackTrace();
+          return false;
+        }
+        emit(con, out, m_ByteOut.getBuffer(), m_ByteOut.size());
+      }
+      return true;
+    }//dispatch
+
+    /**
+     * Encodes the response to the read request in the frame
+     * buffer straight from the process image of its unit.
+     *
+     * @return the length of the response frame, or -1 if the
+     *         request is to be answered by the regular path.
+     */
+    private int encodeDirect() {
+      int fc = m_Frame[7] & 0xFF;
+      if (!ReadResponseEncoder.isEncodable(fc)) {
+        return -1;
+      }
+      int unit = m_Frame[6] & 0xFF;
+      ProcessImageRouter router = m_Listener.m_Router;
+      ProcessImage procimg = (router != null)
+          ? router.getProcessImage(unit)
+          : ModbusCoupler.getReference().getProcessImage();
+      return m_Encoder.encode(
+          (m_Frame[0] & 0xFF) << 8 | (m_Frame[1] & 0xFF), unit, fc,
+          (m_Frame[8] & 0xFF) << 8 | (m_Frame[9] & 0xFF),
+          (m_Frame[10] & 0xFF) << 8 | (m_Frame[11] & 0xFF),
+          procimg);
+    }//encodeDirect
+
+    /**
+     * Gathers the given response frame in the output buffer,
+     * or in the backlog of the connection if the socket is full.
+     */
+    private void emit(Connection con, ByteBuffer out, byte[] frame, int len)
+        throws IOException {
+      if (con.m_Backlog != null) {
+        append(con, frame, len);
+      } else if (out.remaining() < len && !write(con, out)) {
+        append(con, frame, len);
+      } else {
+        out.put(frame, 0, len);
+      }
+    }//emit
+
+    /**
+     * Writes the content of the given buffer to the channel,
+     * keeping what is not accepted as backlog of the connection
+     * and suspending reads until it has been written.
+     *
+     * @return true if everything has been written, false otherwise.
+     */
+    private boolean write(Connection con, ByteBuffer out)
+        throws IOException {
+      out.flip();
+      if (out.hasRemaining()) {
+        con.m_Channel.write(out);
+      }
+      boolean done = !out.hasRemaining();
+      if (!done) {
+        ByteBuffer backlog = ByteBuffer.allocate(out.remaining());
+        backlog.put(out);
+        backlog.flip();
+        con.m_Backlog = backlog;
+        con.m_Key.interestOps(SelectionKey.OP_WRITE);
+      }
+      out.clear();
+      return done;
+    }//write
+
+    private void append(Connection con, byte[] data, int len) {
+      ByteBuffer backlog = ByteBuffer.allocate(con.m_Backlog.remaining() + len);
+      backlog.put(con.m_Backlog);
+      backlog.put(data, 0, len);
+      backlog.flip();
+      con.m_Backlog = backlog;
+    }//append
+
+    private void writeBacklog(Connection con) throws IOException {
+      con.m_Channel.write(con.m_Backlog);
+      if (!con.m_Backlog.hasRemaining()) {
+        con.m_Backlog = null;
+        con.m_Key.interestOps(SelectionKey.OP_READ);
+      }
+    }//writeBacklog
+
+    private void close(Connection con) {
+      if (con.m_Closed) {
+        return;
+      }
+      con.m_Closed = true;
+      m_Listener.m_Connections.decrementAndGet();
+      if (con.m_Key != null) {
+        con.m_Key.cancel();
+      }
+      con.m_Partial = null;
+      con.m_Backlog = null;
+      try {
+        con.m_Channel.close();
+      } catch (IOException ignore) {
+        //ignore
+      }
+    }//close
+
+    private void closeChannel(SocketChannel ch) {
+      m_Listener.m_Connections.decrementAndGet();
+      try {
+        ch.close();
+      } catch (IOException ignore) {
+        //ignore
+      }
+    }//closeChannel
+
+  }//inner class EventLoop
+
+  /**
+   * Class holding the state of a connection
+   * served by an event loop.
+   */
+  static class Connection {
+
+    private final SocketChannel m_Channel;
+    private SelectionKey m_Key;
+    private byte[] m_Partial;
+    private int m_PartialLength;
+    private ByteBuffer m_Backlog;
+    private boolean m_Closed;
+
+    Connection(SocketChannel ch) {
+      m_Channel = ch;
+    }//constructor
+
+  }//inner class Connection
+
+}//class ModbusNIOTCPListener
@@ -0,0 +1,712 @@
+/***
+ * Copyright 2002-2010 jamod development team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***/
+
+package net.wimpi.modbus.net;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.wimpi.modbus.Modbus;
+import net.wimpi.modbus.ModbusIOException;
+import net.wimpi.modbus.ModbusSlaveException;
+import net.wimpi.modbus.io.BytesInputStream;
+import net.wimpi.modbus.io.BytesOutputStream;
+import net.wimpi.modbus.msg.ExceptionResponse;
+import net.wimpi.modbus.msg.ModbusResponse;
+
+/**
+ * Class implementing a Modbus/TCP master that multiplexes
+ * a large number of slave connections on a few event loop
+ * threads, using non-blocking I/O.
+ * <p>
+ * Each event loop owns a <tt>Selector</tt> and a pair of
+ * direct buffers that are shared by all of its connections,
+ * so the memory held per connection is limited to the channel,
+ * its bookkeeping and the requests in flight. Only a frame that
+ * arrives split over several reads, or data the socket did not
+ * accept, is buffered per connection until it is complete;
+ * see {@link #getBufferedBytes()}.
+ * <p>
+ * Requests complete through a {@link net.wimpi.modbus.io.TransactionCallback},
+ * which is invoked on the event loop thread and therefore must
+ * not block.
+ *
+ * @author Dieter Wimberger
+ * @version @version@ (@date@)
+ */
+public class ModbusNIOTCPMaster {
+
+  /**
+   * Defines the size of the direct read buffer of
+   * each event loop.
+   */
+  public static final int READ_BUFFER_SIZE = 16384;
+
+  /**
+   * Defines the size of the direct write buffer of
+   * each event loop.
+   */
+  public static final int WRITE_BUFFER_SIZE = 8192;
+
+  /**
+   * Defines the maximum length of a Modbus/TCP frame
+   * (MBAP header and PDU).
+   */
+  public static final int MAX_FRAME_LENGTH = Modbus.MAX_MESSAGE_LENGTH + 6;
+
+  //interval for timeout checks in milliseconds
+  private static final int TICK = 50;
+
+  //instance attributes
+  private EventLoop[] m_Loops;
+  private final AtomicInteger m_NextLoop = new AtomicInteger(0);
+  private final AtomicInteger m_Connections = new AtomicInteger(0);
+  private volatile int m_Timeout = Modbus.DEFAULT_TIMEOUT;
+  private volatile int m_Window = 1;
+  private volatile boolean m_Running;
+
+  /**
+   * Constructs a new <tt>ModbusNIOTCPMaster</tt> instance
+   * with the given number of event loops.
+   *
+   * @param loops the number of event loop threads.
+   */
+  public ModbusNIOTCPMaster(int loops) {
+    if (loops < 1) {
+      throw new IllegalArgumentException("At least one event loop is required.");
+    }
+    m_Loops = new EventLoop[loops];
+  }//constructor
+
+  /**
+   * Returns the timeout of this <tt>ModbusNIOTCPMaster</tt>,
+   * which applies to connecting as well as to each request.
+   *
+   * @return the timeout in milliseconds as <tt>int</tt>.
+   */
+  public int getTimeout() {
+    return m_Timeout;
+  }//getTimeout
+
+  /**
+   * Sets the timeout of this <tt>ModbusNIOTCPMaster</tt>.
+   *
+   * @param timeout the timeout in milliseconds as <tt>int</tt>.
+   */
+  public void setTimeout(int timeout) {
+    m_Timeout = timeout;
+  }//setTimeout
+
+  /**
+   * Returns the maximum number of outstanding requests
+   * per connection.
+   *
+   * @return the window size as <tt>int</tt>.
+   */
+  public int getWindow() {
+    return m_Window;
+  }//getWindow
+
+  /**
+   * Sets the maximum number of outstanding requests
+   * per connection. The default of 1 suits slaves that
+   * process one request at a time; larger windows pipeline
+   * requests to slaves that support it.
+   *
+   * @param window the window size, at least 1.
+   */
+  public void setWindow(int window) {
+    if (window < 1) {
+      throw new IllegalArgumentException("Window must be at least 1.");
+    }
+    m_Window = window;
+  }//setWindow
+
+  /**
+   * Returns the number of event loops of this
+   * <tt>ModbusNIOTCPMaster</tt>.
+   *
+   * @return the number of event loops as <tt>int</tt>.
+   */
+  public int getLoopCount() {
+    return m_Loops.length;
+  }//getLoopCount
+
+  /**
+   * Returns the number of connections that are currently
+   * connecting or connected.
+   *
+   * @return the number of connections as <tt>int</tt>.
+   */
+  public int getConnectionCount() {
+    return m_Connections.get();
+  }//getConnectionCount
+
+  /**
+   * Returns the number of bytes currently buffered for
+   * individual connections, over all event loops. This
+   * excludes the fixed direct buffers of the loops, which
+   * amount to <tt>(READ_BUFFER_SIZE + WRITE_BUFFER_SIZE)</tt>
+   * bytes per loop.
+   *
+   * @return the number of bytes buffered per connection, summed up.
+   */
+  public long getBufferedBytes() {
+    long bytes = 0;
+    for (int i = 0; i < m_Loops.length; i++) {
+      EventLoop loop = m_Loops[i];
+      if (loop != null) {
+        bytes += loop.m_BufferedBytes;
+      }
+    }
+    return bytes;
+  }//getBufferedBytes
+
+  /**
+   * Tests if this <tt>ModbusNIOTCPMaster</tt> is running.
+   *
+   * @return true if running, false otherwise.
+   */
+  public boolean isRunning() {
+    return m_Running;
+  }//isRunning
+
+  /**
+   * Starts the event loops of this <tt>ModbusNIOTCPMaster</tt>.
+   *
+   * @throws IOException if a selector cannot be opened.
+   */
+  public synchronized void start() throws IOException {
+    if (m_Running) {
+      return;
+    }
+    try {
+      for (int i = 0; i < m_Loops.length; i++) {
+        m_Loops[i] = new EventLoop(this, Selector.open());
+      }
+    } catch (IOException ex) {
+      for (int i = 0; i < m_Loops.length; i++) {
+        if (m_Loops[i] != null) {
+          m_Loops[i].closeSelector();
+          m_Loops[i] = null;
+        }
+      }
+      throw ex;
+    }
+    m_Running = true;
+    for (int i = 0; i < m_Loops.length; i++) {
+      Thread t = new Thread(m_Loops[i], "ModbusNIOTCPMaster-" + i);
+      t.setDaemon(true);
+      m_Loops[i].m_Thread = t;
+      t.start();
+    }
+  }//start
+
+  /**
+   * Stops this <tt>ModbusNIOTCPMaster</tt>, closing all
+   * of its connections. Queued and outstanding requests fail.
+   */
+  public synchronized void stop() {
+    if (!m_Running) {
+      return;
+    }
+    m_Running = false;
+    for (int i = 0; i < m_Loops.length; i++) {
+      m_Loops[i].m_Selector.wakeup();
+    }
+    for (int i = 0; i < m_Loops.length; i++) {
+      try {
+        m_Loops[i].m_Thread.join();
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }//stop
+
+  /**
+   * Opens a connection to the slave at the given address.
+   * The connection is established asynchronously; requests
+   * may be issued right away and are written once connected.
+   *
+   * @param adr  the <tt>InetAddress</tt> of the slave.
+   * @param port the port of the slave.
+   * @return the <tt>NIOTCPMasterConnection</tt>.
+   * @throws IllegalStateException if this master is not running.
+   */
+  public NIOTCPMasterConnection connect(InetAddress adr, int port) {
+    if (!m_Running) {
+      throw new IllegalStateException("Master not running.");
+    }
+    EventLoop loop = m_Loops[(m_NextLoop.getAndIncrement() & Integer.MAX_VALUE) % m_Loops.length];
+    NIOTCPMasterConnection con = new NIOTCPMasterConnection(loop, adr, port);
+    m_Connections.incrementAndGet();
+    loop.schedule(con);
+    return con;
+  }//connect
+
+  /**
+   * Class implementing an event loop that owns a
+   * <tt>Selector</tt> and the connections registered with it.
+   * Apart from scheduling, all methods are invoked by the
+   * loop thread only.
+   */
+  static class EventLoop
+      implements Runnable {
+
+    private final ModbusNIOTCPMaster m_Master;
+    private final Selector m_Selector;
+    private Thread m_Thread;
+    private final ConcurrentLinkedQueue<NIOTCPMasterConnection> m_Scheduled =
+        new ConcurrentLinkedQueue<NIOTCPMasterConnection>();
+    private final AtomicBoolean m_Wakeup = new AtomicBoolean(false);
+    private final List<NIOTCPMasterConnection> m_Connections =
+        new ArrayList<NIOTCPMasterConnection>();
+    private final ByteBuffer m_ReadBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private final ByteBuffer m_WriteBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+    private final byte[] m_Frame = new byte[MAX_FRAME_LENGTH];
+    private final BytesInputStream m_ByteIn = new BytesInputStream(m_Frame);
+    private final BytesOutputStream m_ByteOut = new BytesOutputStream(MAX_FRAME_LENGTH);
+    private volatile long m_BufferedBytes;
+
+    EventLoop(ModbusNIOTCPMaster master, Selector sel) {
+      m_Master = master;
+      m_Selector = sel;
+    }//constructor
+
+    ModbusNIOTCPMaster getMaster() {
+      return m_Master;
+    }//getMaster
+
+    /**
+     * Schedules the given connection to be processed
+     * by this loop, waking up the selector if required.
+     *
+     * @param con the <tt>NIOTCPMasterConnection</tt> to be processed.
+     */
+    void schedule(NIOTCPMasterConnection con) {
+      if (con.m_Scheduled.compareAndSet(false, true)) {
+        m_Scheduled.offer(con);
+        if (m_Wakeup.compareAndSet(false, true)) {
+          m_Selector.wakeup();
+        }
+      }
+    }//schedule
+
+    public void run() {
+      long nextCheck = System.currentTimeMillis() + TICK;
+      try {
+        while (m_Master.m_Running) {
+          m_Selector.select(TICK);
+          m_Wakeup.set(false);
+          processScheduled();
+          Iterator<SelectionKey> iter = m_Selector.selectedKeys().iterator();
+          while (iter.hasNext()) {
+            SelectionKey key = iter.next();
+            iter.remove();
+            handle(key);
+          }
+          long now = System.currentTimeMillis();
+          if (now >= nextCheck) {
+            checkTimeouts(now);
+            nextCheck = now + TICK;
+          }
+        }
+      } catch (IOException ex) {
+        if (Modbus.debug) ex.printStackTrace();
+      } finally {
+        ModbusIOException ex = new ModbusIOException("Master stopped.", true);
+        for (int i = m_Connections.size() - 1; i >= 0; i--) {
+          fail(m_Connections.get(i), ex);
+        }
+        NIOTCPMasterConnection con = null;
+        while ((con = m_Scheduled.poll()) != null) {
+          fail(con, ex);
+        }
+        closeSelector();
+      }
+    }//run
+
+    void closeSelector() {
+      try {
+        m_Selector.close();
+      } catch (IOException ex) {
+        //ignore
+      }
+    }//closeSelector
+
+    private void processScheduled() {
+      NIOTCPMasterConnection con = null;
+      while ((con = m_Scheduled.poll()) != null) {
+        con.m_Scheduled.set(false);
+        if (con.m_State == NIOTCPMasterConnection.CLOSED) {
+          continue;
+        }
+        if (con.m_CloseRequested) {
+          close(con, null);
+        } else if (con.m_Channel == null) {
+          open(con);
+        } else if (con.m_State == NIOTCPMasterConnection.CONNECTED) {
+          flush(con);
+        }
+      }
+    }//processScheduled
+
+    private void open(NIOTCPMasterConnection con) {
+      m_Connections.add(con);
+      try {
+        SocketChannel ch = SocketChannel.open();
+        con.m_Channel = ch;
+        ch.configureBlocking(false);
+        ch.socket().setTcpNoDelay(true);
+        con.m_ConnectDeadline = System.currentTimeMillis() + m_Master.getTimeout();
+        if (ch.connect(new InetSocketAddress(con.getAddress(), con.getPort()))) {
+          con.m_Key = ch.register(m_Selector, SelectionKey.OP_READ, con);
+          connected(con);
+        } else {
+          con.m_Key = ch.register(m_Selector, SelectionKey.OP_CONNECT, con);
+        }
+      } catch (IOException ex) {
+        fail(con, new ModbusIOException("Failed to connect: " + ex.getMessage(), true));
+      }
+    }//open
+
+    private void connected(NIOTCPMasterConnection con) {
+      con.m_State = NIOTCPMasterConnection.CONNECTED;
+      flush(con);
+    }//connected
+
+    private void handle(SelectionKey key) {
+      NIOTCPMasterConnection con = (NIOTCPMasterConnection) key.attachment();
+      try {
+        if (!key.isValid()) {
+          return;
+        }
+        if (key.isConnectable()) {
+          if (con.m_Channel.finishConnect()) {
+            key.interestOps(SelectionKey.OP_READ);
+            connected(con);
+          }
+          return;
+        }
+        if (key.isReadable()) {
+          read(con);
+        }
+        if (key.isValid() && key.isWritable()) {
+          writeBacklog(con);
+        }
+      } catch (IOException ex) {
+        fail(con, new ModbusIOException("I/O exception: " + ex.getMessage(), true));
+      }
+    }//handle
+
+    /**
+     * Writes queued requests as far as the window permits,
+     * gathering them in the shared write buffer.
+     */
+    private void flush(NIOTCPMasterConnection con) {
+      if (con.m_Backlog != null) {
+        return;
+      }
+      ByteBuffer out = m_WriteBuffer;
+      out.clear();
+      int window = m_Master.getWindow();
+      try {
+        while (con.m_Outstanding.size() < window) {
+          NIOTCPMasterConnection.PendingRequest pr = con.m_Queue.poll();
+          if (pr == null) {
+            break;
+          }
+          m_ByteOut.reset();
+          try {
+            pr.m_Request.writeTo(m_ByteOut);
+          } catch (IOException ex) {
+            pr.fail(new ModbusIOException("Failed to encode request."));
+            continue;
+          }
+          //the identifier goes into the frame only, the request
+          //object belongs to the caller
+          int tid = con.nextTransactionID();
+          byte[] frame = m_ByteOut.getBuffer();
+          frame[0] = (byte) (tid >>> 8);
+          frame[1] = (byte) tid;
+          if (out.remaining() < m_ByteOut.size() && !write(con, out)) {
+            //socket is full, keep the request for later
+            con.m_Outstanding.put(tid, pr);
+            append(con, m_ByteOut.getBuffer(), m_ByteOut.size());
+            return;
+          }
+          out.put(m_ByteOut.getBuffer(), 0, m_ByteOut.size());
+          con.m_Outstanding.put(tid, pr);
+        }
+        write(con, out);
+      } catch (IOException ex) {
+        fail(con, new ModbusIOException("I/O exception - failed to write.", true));
+      }
+    }//flush
+
+    /**
+     * Writes the content of the given buffer to the channel,
+     * keeping what is not accepted as backlog of the connection.
+     *
+     * @return true if everything has been written, false otherwise.
+     */
+    private boolean write(NIOTCPMasterConnection con, ByteBuffer out)
+        throws IOException {
+      out.flip();
+      if (out.hasRemaining()) {
+        con.m_Channel.write(out);
+      }
+      boolean done = !out.hasRemaining();
+      if (!done) {
+        ByteBuffer backlog = ByteBuffer.allocate(out.remaining());
+        backlog.put(out);
+        backlog.flip();
+        setBacklog(con, backlog);
+        con.m_Key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+      }
+      out.clear();
+      return done;
+    }//write
+
+    private void append(NIOTCPMasterConnection con, byte[] data, int len) {
+      ByteBuffer backlog = ByteBuffer.allocate(con.m_Backlog.remaining() + len);
+      backlog.put(con.m_Backlog);
+      backlog.put(data, 0, len);
+      backlog.flip();
+      setBacklog(con, backlog);
+    }//append
+
+    private void writeBacklog(NIOTCPMasterConnection con) throws IOException {
+      con.m_Channel.write(con.m_Backlog);
+      if (!con.m_Backlog.hasRemaining()) {
+        setBacklog(con, null);
+        con.m_Key.interestOps(SelectionKey.OP_READ);
+        flush(con);
+      }
+    }//writeBacklog
+
+    private void setBacklog(NIOTCPMasterConnection con, ByteBuffer backlog) {
+      if (con.m_Backlog != null) {
+        m_BufferedBytes -= con.m_Backlog.capacity();
+      }
+      con.m_Backlog = backlog;
+      if (backlog != null) {
+        m_BufferedBytes += backlog.capacity();
+      }
+    }//setBacklog
+
+    /**
+     * Reads available data and dispatches all complete
+     * frames; the tail of a split frame is kept with the
+     * connection.
+     */
+    private void read(NIOTCPMasterConnection con) throws IOException {
+      ByteBuffer in = m_ReadBuffer;
+      boolean full = true;
+      while (full && con.m_State == NIOTCPMasterConnection.CONNECTED) {
+        in.clear();
+        if (con.m_PartialLength > 0) {
+          in.put(con.m_Partial, 0, con.m_PartialLength);
+          setPartial(con, null, 0);
+        }
+        int n = con.m_Channel.read(in);
+        if (n < 0) {
+          fail(con, new ModbusIOException(true));
+          return;
+        }
+        full = !in.hasRemaining();
+        in.flip();
+        if (!dispatch(con, in)) {
+          return;
+        }
+        if (in.hasRemaining()) {
+          byte[] partial = new byte[MAX_FRAME_LENGTH];
+          int len = in.remaining();
+          in.get(partial, 0, len);
+          setPartial(con, partial, len);
+        }
+      }
+      if (!con.m_Queue.isEmpty()) {
+        flush(con);
+      }
+    }//read
+
+    private void setPartial(NIOTCPMasterConnection con, byte[] partial, int len) {
+      if (con.m_Partial != null) {
+        m_BufferedBytes -= con.m_Partial.length;
+      }
+      con.m_Partial = partial;
+      con.m_PartialLength = len;
+      if (partial != null) {
+        m_BufferedBytes += partial.length;
+      }
+    }//setPartial
+
+    /**
+     * Decodes and dispatches the complete frames in
+     * the given buffer.
+     *
+     * @return false if the connection failed, true otherwise.
+     */
+    private boolean dispatch(NIOTCPMasterConnection con, ByteBuffer in) {
+      while (in.remaining() >= 6) {
+        int len = in.getShort(in.position() + 4) & 0xFFFF;
+        if (len < 2 || len + 6 > MAX_FRAME_LENGTH) {
+          fail(con, new ModbusIOException("Invalid frame length " + len + ".", true));
+          return false;
+        }
+        if (in.remaining() < len + 6) {
+          break;
+        }
+        in.get(m_Frame, 0, len + 6);
+        ModbusResponse res = null;
+        try {
+          m_ByteIn.reset(m_Frame, len + 6);
+          m_ByteIn.skip(7);
+          int functionCode = m_ByteIn.readUnsignedByte();
+          m_ByteIn.reset();
+          res = ModbusResponse.createModbusResponse(functionCode);
+          res.readFrom(m_ByteIn);
+        } catch (IOException ex) {
+          fail(con, new ModbusIOException("I/O exception - failed to read.", true));
+          return false;
+        }
+        NIOTCPMasterConnection.PendingRequest pr =
+            con.m_Outstanding.remove(res.getTransactionID());
+        if (pr == null) {
+          if (Modbus.debug) {
+            System.out.println("ModbusNIOTCPMaster::Discarding late or unknown response " +
+                res.getTransactionID());
+          }
+          continue;
+        }
+        if (res instanceof ExceptionResponse) {
+          pr.fail(new ModbusSlaveException(((ExceptionResponse) res).getExceptionCode()));
+        } else {
+          try {
+            pr.m_Callback.completed(pr.m_Request, res);
+          } catch (RuntimeException ex) {
+            if (Modbus.debug) ex.printStackTrace();
+          }
+        }
+      }
+      return true;
+    }//dispatch
+
+    /**
+     * Fails connects and requests that have passed their deadline.
+     */
+    private void checkTimeouts(long now) {
+      ModbusIOException timeout = null;
+      for (int i = m_Connections.size() - 1; i >= 0; i--) {
+        NIOTCPMasterConnection con = m_Connections.get(i);
+        if (con.m_State == NIOTCPMasterConnection.CONNECTING) {
+          if (now >= con.m_ConnectDeadline) {
+            fail(con, new ModbusIOException("Connect timed out.", true));
+          }
+          continue;
+        }
+        boolean freed = false;
+        if (!con.m_Outstanding.isEmpty()) {
+          Iterator<NIOTCPMasterConnection.PendingRequest> iter =
+              con.m_Outstanding.values().iterator();
+          while (iter.hasNext()) {
+            NIOTCPMasterConnection.PendingRequest pr = iter.next();
+            if (now >= pr.m_Deadline) {
+              iter.remove();
+              if (timeout == null) {
+                timeout = new ModbusIOException("Response timed out.");
+              }
+              pr.fail(timeout);
+              freed = true;
+            }
+          }
+        }
+        if (!con.m_Queue.isEmpty()) {
+          Iterator<NIOTCPMasterConnection.PendingRequest> iter = con.m_Queue.iterator();
+          while (iter.hasNext()) {
+            NIOTCPMasterConnection.PendingRequest pr = iter.next();
+            if (now >= pr.m_Deadline) {
+              iter.remove();
+              if (timeout == null) {
+                timeout = new ModbusIOException("Response timed out.");
+              }
+              pr.fail(timeout);
+            }
+          }
+          if (freed) {
+            flush(con);
+          }
+        }
+      }
+    }//checkTimeouts
+
+    private void fail(NIOTCPMasterConnection con, ModbusIOException ex) {
+      close(con, ex);
+    }//fail
+
+    /**
+     * Closes the given connection and fails all of its
+     * queued and outstanding requests.
+     */
+    private void close(NIOTCPMasterConnection con, ModbusIOException ex) {
+      if (con.m_State == NIOTCPMasterConnection.CLOSED) {
+        return;
+      }
+      con.m_Failure = ex;
+      con.m_State = NIOTCPMasterConnection.CLOSED;
+      m_Connections.remove(con);
+      m_Master.m_Connections.decrementAndGet();
+      if (con.m_Key != null) {
+        con.m_Key.cancel();
+      }
+      if (con.m_Channel != null) {
+        try {
+          con.m_Channel.close();
+        } catch (IOException ignore) {
+          //ignore
+        }
+      }
+      setBacklog(con, null);
+      setPartial(con, null, 0);
+      if (ex == null) {
+        ex = new ModbusIOException("Connection closed.", true);
+      }
+      for (Iterator<NIOTCPMasterConnection.PendingRequest> iter =
+               con.m_Outstanding.values().iterator(); iter.hasNext();) {
+        iter.next().fail(ex);
+        iter.remove();
+      }
+      NIOTCPMasterConnection.PendingRequest pr = null;
+      while ((pr = con.m_Queue.poll()) != null) {
+        pr.fail(ex);
+      }
+    }//close
+
+  }//class EventLoop
+
+}//class ModbusNIOTCPMaster
@@ -0,0 +1,401 @@
+/***
+ * Copyright 2002-2010 jamod development team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***/
+
+package net.wimpi.modbus.net;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import net.wimpi.modbus.Modbus;
+import net.wimpi.modbus.ModbusException;
+import net.wimpi.modbus.ModbusIOException;
+import net.wimpi.modbus.io.BytesInputStream;
+import net.wimpi.modbus.io.BytesOutputStream;
+import net.wimpi.modbus.io.ModbusTCPTransaction;
+import net.wimpi.modbus.msg.ModbusRequest;
+import net.wimpi.modbus.msg.ModbusResponse;
+
+/**
+ * Class implementing a scatter-gather execution of one
+ * request against many slaves.
+ * <p>
+ * The request is copied for each target, addressed to its
+ * unit identifier and executed concurrently on connections
+ * borrowed from a <tt>TCPMasterConnectionPool</tt>, with at most
+ * the configured number of requests in flight. Targets behind
+ * the same gateway share its connections as limited by the pool.
+ * The call returns when every target has answered or failed,
+ * so a snapshot takes about as long as the slowest device, but
+ * no longer than the budget if one is set.
+ * <p>
+ * The workers are owned by the <tt>ModbusTCPFanOut</tt>; call
+ * <tt>close()</tt> when it is no longer needed. The pool is not
+ * closed with it.
+ * <p>
+ * <b>Sample usage</b>
+ * <pre>
+ * ModbusTCPFanOut fanout = new ModbusTCPFanOut(pool, 32);
+ * for (int i = 0; i &lt; drives.length; i++) {
+ *   fanout.addTarget(drives[i], Modbus.DEFAULT_PORT, 1);
+ * }
+ * FanOutResult res = fanout.execute(new ReadMultipleRegistersRequest(0, 10));
+ * </pre>
+ *
+ * @author Dieter Wimberger
+ * @version @version@ (@date@)
+ */
+public class ModbusTCPFanOut {
+
+  private final TCPMasterConnectionPool m_Pool;
+  private final int m_Parallelism;
+  private final ThreadPoolExecutor m_Executor;
+  private final List<Target> m_Targets = new ArrayList<Target>();
+  private long m_Budget;
+  private int m_Retries = Modbus.DEFAULT_RETRIES;
+  private boolean m_Closed;
+
+  /**
+   * Constructs a new <tt>ModbusTCPFanOut</tt> instance.
+   *
+   * @param pool        the <tt>TCPMasterConnectionPool</tt> providing
+   *                    the connections.
+   * @param parallelism the maximum number of requests in flight.
+   */
+  public ModbusTCPFanOut(TCPMasterConnectionPool pool, int parallelism) {
+    if (parallelism < 1) {
+      throw new IllegalArgumentException("Parallelism must be at least 1.");
+    }
+    m_Pool = pool;
+    m_Parallelism = parallelism;
+    m_Executor = new ThreadPoolExecutor(parallelism, parallelism,
+        60L, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(),
+        new ThreadFactory() {
+          private int m_Count = 0;
+
+          public synchronized Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "ModbusTCPFanOut-" + (m_Count++));
+            t.setDaemon(true);
+            return t;
+          }
+        });
+    //idle workers die off between snapshots
+    m_Executor.allowCoreThreadTimeOut(true);
+  }//constructor
+
+  /**
+   * Returns the maximum number of requests in flight.
+   *
+   * @return the parallelism as <tt>int</tt>.
+   */
+  public int getParallelism() {
+    return m_Parallelism;
+  }//getParallelism
+
+  /**
+   * Returns the time budget of an execution.
+   *
+   * @return the budget in milliseconds, or 0 if none.
+   */
+  public synchronized long getBudget() {
+    return m_Budget;
+  }//getBudget
+
+  /**
+   * Sets the time budget of an execution, which bounds waiting
+   * for a worker and a pooled connection, the connect, all retries
+   * and the response of every target. A target that has not been
+   * tried when the budget has passed fails without being tried;
+   * <tt>execute()</tt> returns once the budget has passed, failing
+   * the targets still in progress.
+   *
+   * @param msecs the budget in milliseconds, or 0 for none.
+   */
+  public synchronized void setBudget(long msecs) {
+    m_Budget = msecs;
+  }//setBudget
+
+  /**
+   * Returns the number of retries of each request.
+   *
+   * @return the number of retries as <tt>int</tt>.
+   */
+  public synchronized int getRetries() {
+    return m_Retries;
+  }//getRetries
+
+  /**
+   * Sets the number of retries of each request.
+   *
+   * @param retries the number of retries.
+   */
+  public synchronized void setRetries(int retries) {
+    m_Retries = retries;
+  }//setRetries
+
+  /**
+   * Adds a target to this <tt>ModbusTCPFanOut</tt>.
+   *
+   * @param addr   the address of the slave or gateway.
+   * @param port   the port of the slave or gateway.
+   * @param unitid the unit identifier of the slave.
+   * @return the index of the target in the results.
+   */
+  public synchronized int addTarget(InetAddress addr, int port, int unitid) {
+    m_Targets.add(new Target(addr, port, unitid));
+    return m_Targets.size() - 1;
+  }//addTarget
+
+  /**
+   * Returns the number of targets of this <tt>ModbusTCPFanOut</tt>.
+   *
+   * @return the number of targets as <tt>int</tt>.
+   */
+  public synchronized int getTargetCount() {
+    return m_Targets.size();
+  }//getTargetCount
+
+  /**
+   * Removes all targets of this <tt>ModbusTCPFanOut</tt>.
+   */
+  public synchronized void clearTargets() {
+    m_Targets.clear();
+  }//clearTargets
+
+  /**
+   * Executes a copy of the given request against every target
+   * and waits for all of them to complete.
+   *
+   * @param template the <tt>ModbusRequest</tt> to be sent to each target;
+   *                 it is not modified.
+   * @return the <tt>FanOutResult</tt> holding the outcome of each target.
+   * @throws ModbusException if the request cannot be copied or the
+   *                         calling thread is interrupted.
+   * @throws IllegalStateException if this instance has been closed.
+   */
+  public FanOutResult execute(ModbusRequest template)
+      throws ModbusException {
+
+    Target[] targets;
+    long budget;
+    int retries;
+    synchronized (this) {
+      if (m_Closed) {
+        throw new IllegalStateException("Fan-out closed.");
+      }
+      targets = m_Targets.toArray(new Target[m_Targets.size()]);
+      budget = m_Budget;
+      retries = m_Retries;
+    }
+    //1. encode the payload once
+    BytesOutputStream payload = new BytesOutputStream(Modbus.MAX_MESSAGE_LENGTH);
+    try {
+      template.writeData(payload);
+    } catch (Exception ex) {
+      throw new ModbusException("Encoding request failed.");
+    }
+
+    //2. scatter
+    long start = System.nanoTime();
+    FanOutResult result = new FanOutResult(targets.length);
+    CountDownLatch done = new CountDownLatch(targets.length);
+    long deadline = (budget > 0) ? System.currentTimeMillis() + budget : 0;
+    for (int i = 0; i < targets.length; i++) {
+      ModbusRequest req = copy(template, payload);
+      req.setUnitID(targets[i].m_UnitID);
+      try {
+        m_Executor.execute(new Call(targets[i], req, i, result, done, deadline, retries));
+      } catch (RejectedExecutionException ex) {
+        //closed in the meantime
+        for (; i < targets.length; i++) {
+          result.m_Exceptions[i] = new ModbusIOException("Fan-out closed.");
+          result.m_Status[i] = FanOutResult.IO_FAILURE;
+          done.countDown();
+        }
+      }
+    }
+
+    //3. gather, up to the deadline
+    try {
+      if (deadline == 0) {
+        done.await();
+      } else {
+        done.await(Math.max(deadline - System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS);
+      }
+    } catch (InterruptedException ex) {
+      throw new ModbusException("Thread waiting for fan-out was interrupted.");
+    }
+    synchronized (result) {
+      //targets still in progress fail, their calls are ignored
+      result.m_Sealed = true;
+      long elapsed = System.nanoTime() - start;
+      for (int i = 0; i < targets.length; i++) {
+        if (result.m_Responses[i] == null && result.m_Exceptions[i] == null) {
+          result.m_Exceptions[i] = new ModbusIOException("Deadline exceeded.");
+          result.m_Status[i] = FanOutResult.IO_FAILURE;
+          result.m_Latencies[i] = elapsed;
+        }
+      }
+      result.m_Duration = elapsed;
+    }
+    return result;
+  }//execute
+
+  /**
+   * Closes this <tt>ModbusTCPFanOut</tt> and ends its workers.
+   * Executions in progress are completed.
+   */
+  public void close() {
+    synchronized (this) {
+      m_Closed = true;
+    }
+    m_Executor.shutdown();
+  }//close
+
+  /**
+   * Creates a copy of a request from its encoded payload.
+   */
+  private static ModbusRequest copy(ModbusRequest template, BytesOutputStream payload)
+      throws ModbusException {
+    ModbusRequest req = ModbusRequest.createModbusRequest(template.getFunctionCode());
+    try {
+      req.readData(new BytesInputStream(payload.getBuffer()));
+    } catch (Exception ex) {
+      throw new ModbusException("Copying request failed.");
+    }
+    if (template.isHeadless()) {
+      req.setHeadless();
+    }
+    return req;
+  }//copy
+
+  /**
+   * Inner class holding a target.
+   */
+  private static class Target {
+
+    private final InetAddress m_Address;
+    private final int m_Port;
+    private final int m_UnitID;
+
+    public Target(InetAddress addr, int port, int unitid) {
+      m_Address = addr;
+      m_Port = port;
+      m_UnitID = unitid;
+    }//constructor
+
+  }//inner class Target
+
+  /**
+   * Inner class executing the request against a single target.
+   */
+  private class Call implements Runnable {
+
+    private final Target m_Target;
+    private final ModbusRequest m_Request;
+    private final int m_Index;
+    private final FanOutResult m_Result;
+    private final CountDownLatch m_Done;
+    private final long m_Deadline;
+    private final int m_CallRetries;
+
+    public Call(Target target, ModbusRequest req, int idx, FanOutResult result,
+                CountDownLatch done, long deadline, int retries) {
+      m_Target = target;
+      m_Request = req;
+      m_Index = idx;
+      m_Result = result;
+      m_Done = done;
+      m_Deadline = deadline;
+      m_CallRetries = retries;
+    }//constructor
+
+    public void run() {
+      long start = System.nanoTime();
+      ModbusResponse res = null;
+      ModbusException failure = null;
+      int status = FanOutResult.IO_FAILURE;
+      try {
+        res = execute();
+        status = FanOutResult.OK;
+      } catch (ModbusException ex) {
+        failure = ex;
+        if (!(ex instanceof ModbusIOException)) {
+          status = FanOutResult.SLAVE_EXCEPTION;
+        }
+      } catch (RuntimeException ex) {
+        failure = new ModbusException(ex.toString());
+      } finally {
+        synchronized (m_Result) {
+          //too late if the execution has returned already
+          if (!m_Result.m_Sealed) {
+            m_Result.m_Responses[m_Index] = res;
+            m_Result.m_Exceptions[m_Index] = failure;
+            m_Result.m_Status[m_Index] = status;
+            m_Result.m_Latencies[m_Index] = System.nanoTime() - start;
+          }
+        }
+        m_Done.countDown();
+      }
+    }//run
+
+    private ModbusResponse execute() throws ModbusException {
+      //the wait for a connection is bounded by the deadline as well
+      long wait = m_Pool.getBorrowTimeout();
+      if (m_Deadline != 0) {
+        long remaining = m_Deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+          throw new ModbusIOException("Deadline exceeded before execution.");
+        }
+        wait = Math.min(wait, remaining);
+      }
+      TCPMasterConnection con = m_Pool.borrowConnection(m_Target.m_Address, m_Target.m_Port, wait);
+      boolean broken = true;
+      try {
+        ModbusTCPTransaction trans = new ModbusTCPTransaction(con);
+        trans.setRequest(m_Request);
+        trans.setRetries(m_CallRetries);
+        trans.setDeadline(m_Deadline);
+        try {
+          trans.execute();
+        } catch (ModbusIOException ex) {
+          throw ex;
+        } catch (ModbusException ex) {
+          //slave exception, the connection is fine
+          broken = false;
+          throw ex;
+        }
+        broken = false;
+        return trans.getResponse();
+      } finally {
+        if (broken) {
+          m_Pool.invalidateConnection(con);
+        } else {
+          m_Pool.returnConnection(con);
+        }
+      }
+    }//execute
+
+  }//inner class Call
+
+}//class ModbusTCPFanOut
@@ -17,19 +17,44 @@
 package net.wimpi.modbus.net;
 
 import java.io.IOException;
+import java.lang.reflect.Method;
 import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import net.wimpi.modbus.Modbus;
-import net.wimpi.modbus.util.ThreadPool;
 
 /**
  * Class that implements a ModbusTCPListener.<br>
  * If listening, it accepts incoming requests
  * passing them on to be handled.
+ * <p>
+ * Each connection occupies a worker thread for its
+ * lifetime; for many concurrent masters use the
+ * {@link ModbusNIOTCPListener} instead, or, on a JVM
+ * supporting them, run the connections on virtual threads
+ * (see {@link #setVirtualThreads(boolean)}).
+ * <p>
+ * The number of connections admitted is bounded (see
+ * {@link #setMaxConnections(int)}); connections admitted
+ * while all workers are busy wait in a bounded queue, and
+ * further connections are handled according to the
+ * rejection policy. Idle connections can be reaped
+ * (see {@link #setIdleTimeout(int)}).
  *
  * @author Dieter Wimberger
  * @version @version@ (@date@)
@@ -37,24 +62,61 @@ import net.wimpi.modbus.util.ThreadPool;
 public class ModbusTCPListener
     implements Runnable {
 
-  private static int c_RequestCounter = 0;
+  /**
+   * Rejection policy closing an incoming connection
+   * that exceeds the maximum number of connections.
+   */
+  public static final int REJECT_CLOSE = 0;
+
+  /**
+   * Rejection policy that stops accepting until a connection
+   * has been closed, leaving incoming connections to the
+   * accept backlog of the server socket.
+   */
+  public static final int REJECT_WAIT = 1;
+
+  /**
+   * Rejection policy closing the connection that has been
+   * open for the longest time in favor of the incoming one.
+   */
+  public static final int REJECT_EVICT_OLDEST = 2;
+
+  private static final ThreadFactory c_VirtualThreadFactory = createVirtualThreadFactory();
 
   private ServerSocket m_ServerSocket = null;
-  private ThreadPool m_ThreadPool;
+  private volatile ThreadPoolExecutor m_Executor;
+  private int m_PoolSize;
+  private volatile boolean m_VirtualThreads;
   private Thread m_Listener;
   private int m_Port = Modbus.DEFAULT_PORT;
-  private int m_FloodProtection = 5;
-  private boolean m_Listening;
+  private int m_Backlog = 5;
+  private int m_MaxConnections = -1;
+  private int m_RejectionPolicy = REJECT_CLOSE;
+  private int m_IdleTimeout = 0;
+  private volatile boolean m_Listening;
   private InetAddress m_Address;
+  private volatile ProcessImageRouter m_Router;
+  private volatile Executor m_RequestExecutor;
+  private volatile int m_RequestWindow = TCPConnectionHandler.DEFAULT_WINDOW;
+  private volatile boolean m_StrictOrdering;
+  private volatile boolean m_DirectEncoding;
+
+  //connections admitted, in the order of admission
+  private final LinkedHashSet<TCPSlaveConnection> m_Connections =
+      new LinkedHashSet<TCPSlaveConnection>();
+  private final AtomicInteger m_Active = new AtomicInteger(0);
+  private final AtomicLong m_Accepted = new AtomicLong(0);
+  private final AtomicLong m_Rejected = new AtomicLong(0);
+  private final AtomicLong m_Evicted = new AtomicLong(0);
 
   /**
    * Constructs a ModbusTCPListener instance.<br>
    *
-   * @param poolsize the size of the <tt>ThreadPool</tt> used to handle
+   * @param poolsize the number of worker threads used to handle
    *        incoming requests.
    */
   public ModbusTCPListener(int poolsize) {
-    m_ThreadPool = new ThreadPool(poolsize);
+    this(poolsize, null);
     try {
       m_Address = InetAddress.getLocalHost();
     } catch (UnknownHostException ex) {
@@ -65,12 +127,15 @@ public class ModbusTCPListener
   /**
    * Constructs a ModbusTCPListener instance.<br>
    *
-   * @param poolsize the size of the <tt>ThreadPool</tt> used to handle
+   * @param poolsize the number of worker threads used to handle
    *        incoming requests.
    * @param addr the interface to use for listening.
    */
   public ModbusTCPListener(int poolsize, InetAddress addr) {
-    m_ThreadPool = new ThreadPool(poolsize);
+    if (poolsize < 1) {
+      throw new IllegalArgumentException("Pool size must be at least 1.");
+    }
+    m_PoolSize = poolsize;
     m_Address = addr;
   }//constructor
 
@@ -93,26 +158,335 @@ public class ModbusTCPListener
     m_Address = addr;
   }//setAddress
 
+  /**
+   * Sets the router serving the requests from the process
+   * images of their units. If no router is set, all requests
+   * are served from the process image of the <tt>ModbusCoupler</tt>.
+   *
+   * @param router the <tt>ProcessImageRouter</tt>, or null.
+   */
+  public void setRouter(ProcessImageRouter router) {
+    m_Router = router;
+  }//setRouter
+
+  /**
+   * Returns the router serving the requests.
+   *
+   * @return the <tt>ProcessImageRouter</tt>, or null if none is set.
+   */
+  public ProcessImageRouter getRouter() {
+    return m_Router;
+  }//getRouter
+
+  /**
+   * Sets the executor answering the requests of each
+   * connection concurrently, so that a master pipelining
+   * requests does not wait for each response before the next
+   * request is read. The executor may be shared by all
+   * connections. Takes effect for connections accepted afterwards.
+   *
+   * @param executor the <tt>Executor</tt>, or null to answer the
+   *                 requests of a connection one by one.
+   * @param window   the maximum number of outstanding requests
+   *                 per connection.
+   * @param ordered  true if the requests of a connection are to be
+   *                 answered one at a time and in order, so that reads
+   *                 observe earlier writes of the connection; false to
+   *                 answer them concurrently and write the responses
+   *                 as they complete.
+   * @see TCPConnectionHandler#setExecutor(Executor, int, boolean)
+   */
+  public void setRequestExecutor(Executor executor, int window, boolean ordered) {
+    if (window < 1) {
+      throw new IllegalArgumentException("Window must be at least 1.");
+    }
+    m_RequestWindow = window;
+    m_StrictOrdering = ordered;
+    m_RequestExecutor = executor;
+  }//setRequestExecutor
+
+  /**
+   * Returns the executor answering the requests
+   * of each connection concurrently.
+   *
+   * @return the <tt>Executor</tt>, or null if none is set.
+   */
+  public Executor getRequestExecutor() {
+    return m_RequestExecutor;
+  }//getRequestExecutor
+
+  /**
+   * Sets the flag that determines whether reads of registers,
+   * input registers, coils and discretes are encoded straight
+   * from the process image into a reused buffer, without
+   * creating range arrays or responses. Applies to connections
+   * accepted afterwards, as long as no request executor is set.
+   *
+   * @param b true if reads should be encoded directly, false otherwise.
+   * @see net.wimpi.modbus.io.ReadResponseEncoder
+   */
+  public void setDirectEncoding(boolean b) {
+    m_DirectEncoding = b;
+  }//setDirectEncoding
+
+  /**
+   * Tests if reads are encoded straight from the process image.
+   *
+   * @return true if reads are encoded directly, false otherwise.
+   */
+  public boolean isDirectEncoding() {
+    return m_DirectEncoding;
+  }//isDirectEncoding
+
+  /**
+   * Sets the maximum number of connections that may wait
+   * to be accepted by the server socket. The default is 5.
+   * Takes effect on the next start.
+   *
+   * @param backlog the accept backlog, at least 1.
+   */
+  public void setBacklog(int backlog) {
+    if (backlog < 1) {
+      throw new IllegalArgumentException("Backlog must be at least 1.");
+    }
+    m_Backlog = backlog;
+  }//setBacklog
+
+  /**
+   * Sets the maximum number of connections admitted at the
+   * same time, i.e. handled or waiting for a worker.
+   * By default no connection waits for a worker, i.e. the
+   * maximum equals the pool size; with virtual threads the
+   * number is unbounded by default.
+   * Takes effect on the next start.
+   *
+   * @param max the maximum number of connections, at least
+   *            the pool size.
+   */
+  public void setMaxConnections(int max) {
+    if (max < m_PoolSize) {
+      throw new IllegalArgumentException("Maximum must not be less than the pool size.");
+    }
+    m_MaxConnections = max;
+  }//setMaxConnections
+
+  /**
+   * Returns the maximum number of connections admitted
+   * at the same time.
+   *
+   * @return the maximum number of connections as <tt>int</tt>.
+   */
+  public int getMaxConnections() {
+    if (m_MaxConnections > 0) {
+      return m_MaxConnections;
+    }
+    return (isVirtualThreads()) ? Integer.MAX_VALUE : m_PoolSize;
+  }//getMaxConnections
+
+  /**
+   * Sets the policy applied to an incoming connection
+   * that exceeds the maximum number of connections.
+   *
+   * @param policy one of <tt>REJECT_CLOSE</tt>, <tt>REJECT_WAIT</tt>
+   *               or <tt>REJECT_EVICT_OLDEST</tt>.
+   */
+  public void setRejectionPolicy(int policy) {
+    if (policy < REJECT_CLOSE || policy > REJECT_EVICT_OLDEST) {
+      throw new IllegalArgumentException("Invalid rejection policy " + policy + ".");
+    }
+    m_RejectionPolicy = policy;
+  }//setRejectionPolicy
+
+  /**
+   * Returns the policy applied to an incoming connection
+   * that exceeds the maximum number of connections.
+   *
+   * @return the rejection policy as <tt>int</tt>.
+   */
+  public int getRejectionPolicy() {
+    return m_RejectionPolicy;
+  }//getRejectionPolicy
+
+  /**
+   * Sets the time after which a connection that did not
+   * send a request is closed. Takes effect for connections
+   * accepted afterwards.
+   *
+   * @param timeout the idle timeout in milliseconds, 0 for none.
+   */
+  public void setIdleTimeout(int timeout) {
+    if (timeout < 0) {
+      throw new IllegalArgumentException("Timeout must not be negative.");
+    }
+    m_IdleTimeout = timeout;
+  }//setIdleTimeout
+
+  /**
+   * Returns the time after which a connection that did not
+   * send a request is closed.
+   *
+   * @return the idle timeout in milliseconds, 0 for none.
+   */
+  public int getIdleTimeout() {
+    return m_IdleTimeout;
+  }//getIdleTimeout
+
+  /**
+   * Sets the flag that determines whether each incoming
+   * connection is handled on a virtual thread of its own,
+   * instead of a thread of the pool.
+   * <p>
+   * Connections are then no longer limited by the size of the
+   * pool, while the handlers keep using blocking I/O. Virtual
+   * threads require a JDK 21 or later runtime; on other
+   * runtimes the pool is used regardless of this flag.
+   * The handlers block on the socket under locks only, not
+   * monitors, so they do not pin their carrier threads on
+   * JDK 21 to 23; process images and routers should keep
+   * their <tt>synchronized</tt> sections short for the same
+   * reason. JDK 24 or later no longer pins on monitors.
+   * Takes effect for connections accepted afterwards.
+   *
+   * @param b true if virtual threads should be used, false otherwise.
+   * @see #isVirtualThreadsSupported()
+   */
+  public void setVirtualThreads(boolean b) {
+    m_VirtualThreads = b;
+    if (b && c_VirtualThreadFactory == null && Modbus.debug) {
+      System.out.println("Virtual threads not supported, using thread pool.");
+    }
+  }//setVirtualThreads
+
+  /**
+   * Tests if this <tt>ModbusTCPListener</tt> handles
+   * incoming connections on virtual threads.
+   *
+   * @return true if virtual threads are set and supported,
+   *         false otherwise.
+   */
+  public boolean isVirtualThreads() {
+    return m_VirtualThreads && c_VirtualThreadFactory != null;
+  }//isVirtualThreads
+
+  /**
+   * Tests if the running JVM supports virtual threads.
+   *
+   * @return true if supported, false otherwise.
+   */
+  public static boolean isVirtualThreadsSupported() {
+    return c_VirtualThreadFactory != null;
+  }//isVirtualThreadsSupported
+
+  /**
+   * Returns the number of connections currently admitted,
+   * i.e. handled or waiting for a worker.
+   *
+   * @return the number of connections as <tt>int</tt>.
+   */
+  public int getConnectionCount() {
+    synchronized (m_Connections) {
+      return m_Connections.size();
+    }
+  }//getConnectionCount
+
+  /**
+   * Returns the number of connections currently
+   * being handled.
+   *
+   * @return the number of active handlers as <tt>int</tt>.
+   */
+  public int getActiveHandlers() {
+    return m_Active.get();
+  }//getActiveHandlers
+
+  /**
+   * Returns the number of admitted connections currently
+   * waiting for a worker.
+   *
+   * @return the queue depth as <tt>int</tt>.
+   */
+  public int getQueueDepth() {
+    ThreadPoolExecutor executor = m_Executor;
+    return (executor == null) ? 0 : executor.getQueue().size();
+  }//getQueueDepth
+
+  /**
+   * Returns the number of connections accepted
+   * since this listener was created.
+   *
+   * @return the number of connections accepted as <tt>long</tt>.
+   */
+  public long getAcceptedCount() {
+    return m_Accepted.get();
+  }//getAcceptedCount
+
+  /**
+   * Returns the number of incoming connections closed
+   * because the maximum number of connections was reached.
+   *
+   * @return the number of rejected connections as <tt>long</tt>.
+   */
+  public long getRejectedCount() {
+    return m_Rejected.get();
+  }//getRejectedCount
+
+  /**
+   * Returns the number of connections closed in favor
+   * of incoming ones, under <tt>REJECT_EVICT_OLDEST</tt>.
+   *
+   * @return the number of evicted connections as <tt>long</tt>.
+   */
+  public long getEvictedCount() {
+    return m_Evicted.get();
+  }//getEvictedCount
+
   /**
    * Starts this <tt>ModbusTCPListener</tt>.
    */
-  public void start() {
+  public synchronized void start() {
+    if (m_Listening) {
+      return;
+    }
+    m_Listening = true;
     m_Listener = new Thread(this);
     m_Listener.start();
-    m_Listening = true;
   }//start
 
   /**
-   * Stops this <tt>ModbusTCPListener</tt>.
+   * Stops this <tt>ModbusTCPListener</tt>, closing
+   * all connections admitted.
    */
-  public void stop() {
+  public synchronized void stop() {
+    if (!m_Listening) {
+      return;
+    }
     m_Listening = false;
+    synchronized (m_Connections) {
+      m_Connections.notifyAll();
+    }
     try {
-      m_ServerSocket.close();
+      if (m_ServerSocket != null) {
+        m_ServerSocket.close();
+      }
       m_Listener.join();
     } catch (Exception ex) {
       //?
     }
+    List<TCPSlaveConnection> open = null;
+    synchronized (m_Connections) {
+      open = new ArrayList<TCPSlaveConnection>(m_Connections);
+    }
+    for (TCPSlaveConnection con : open) {
+      con.close();
+    }
+    //no longer admitted, even if their handlers are still winding down
+    synchronized (m_Connections) {
+      m_Connections.removeAll(open);
+    }
+    if (m_Executor != null) {
+      m_Executor.shutdown();
+      m_Executor = null;
+    }
   }//stop
 
   /**
@@ -123,27 +497,28 @@ public class ModbusTCPListener
     try {
       /*
           A server socket is opened with a connectivity queue of a size specified
-          in int floodProtection.  Concurrent login handling under normal circumstances
+          by the backlog.  Concurrent login handling under normal circumstances
           should be allright, denial of service attacks via massive parallel
           program logins can probably be prevented.
       */
-      m_ServerSocket = new ServerSocket(m_Port, m_FloodProtection, m_Address);
+      m_ServerSocket = new ServerSocket(m_Port, m_Backlog, m_Address);
       if(Modbus.debug) System.out.println("Listenening to " + m_ServerSocket.toString() + "(Port " + m_Port + ")");
+      if (!m_Listening) {
+        //stopped while binding
+        m_ServerSocket.close();
+        return;
+      }
 
-      //Infinite loop, taking care of resources in case of a lot of parallel logins
+      //Infinite loop, bounded by the admission of connections
       do {
         Socket incoming = m_ServerSocket.accept();
         if (Modbus.debug) System.out.println("Making new connection " + incoming.toString());
-        if (m_Listening) {
-          //FIXME: Replace with object pool due to resource issues
-          m_ThreadPool.execute(
-              new TCPConnectionHandler(
-                  new TCPSlaveConnection(incoming)
-              )
-          );
-          count();
+        m_Accepted.incrementAndGet();
+        if (m_Listening && admit()) {
+          handle(incoming);
         } else {
           //just close the socket
+          m_Rejected.incrementAndGet();
           incoming.close();
         }
       } while (m_Listening);
@@ -169,14 +544,160 @@ public class ModbusTCPListener
     return m_Listening;
   }//isListening
 
-  private void count() {
-    c_RequestCounter++;
-    if (c_RequestCounter == REQUESTS_TOGC) {
-      System.gc();
-      c_RequestCounter = 0;
+  /**
+   * Makes room for an incoming connection according
+   * to the rejection policy.
+   *
+   * @return true if the connection is admitted, false otherwise.
+   */
+  private boolean admit() {
+    int max = getMaxConnections();
+    TCPSlaveConnection evicted = null;
+    synchronized (m_Connections) {
+      while (m_Connections.size() >= max) {
+        if (m_RejectionPolicy == REJECT_CLOSE || !m_Listening) {
+          return false;
+        } else if (m_RejectionPolicy == REJECT_EVICT_OLDEST) {
+          Iterator<TCPSlaveConnection> iter = m_Connections.iterator();
+          evicted = iter.next();
+          iter.remove();
+          break;
+        }
+        try {
+          m_Connections.wait();
+        } catch (InterruptedException ex) {
+          return false;
+        }
+      }
+    }
+    if (evicted != null) {
+      if (Modbus.debug) System.out.println("Evicting connection " + evicted.getAddress());
+      m_Evicted.incrementAndGet();
+      evicted.close();
+    }
+    return true;
+  }//admit
+
+  private void handle(Socket incoming) throws IOException {
+    TCPSlaveConnection con = null;
+    try {
+      con = new TCPSlaveConnection(incoming);
+    } catch (IllegalStateException ex) {
+      incoming.close();
+      return;
     }
-  }//count
+    if (m_IdleTimeout > 0) {
+      con.setTimeout(m_IdleTimeout);
+    }
+    synchronized (m_Connections) {
+      m_Connections.add(con);
+    }
+    ConnectionWorker worker = new ConnectionWorker(con);
+    try {
+      if (isVirtualThreads()) {
+        c_VirtualThreadFactory.newThread(worker).start();
+      } else {
+        getExecutor().execute(worker);
+      }
+    } catch (RejectedExecutionException ex) {
+      m_Rejected.incrementAndGet();
+      remove(con);
+      con.close();
+    }
+  }//handle
+
+  /**
+   * Returns the pool of workers, creating it on first use, as
+   * virtual threads may be switched off while listening.
+   * Invoked by the listener thread only.
+   *
+   * @return the <tt>ThreadPoolExecutor</tt> of the workers.
+   */
+  private ThreadPoolExecutor getExecutor() {
+    ThreadPoolExecutor executor = m_Executor;
+    if (executor == null) {
+      int queue = Math.max(1, getMaxConnections() - m_PoolSize);
+      executor = new ThreadPoolExecutor(m_PoolSize, m_PoolSize,
+          60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(queue),
+          new WorkerThreadFactory());
+      executor.allowCoreThreadTimeOut(true);
+      m_Executor = executor;
+    }
+    return executor;
+  }//getExecutor
+
+  private void remove(TCPSlaveConnection con) {
+    synchronized (m_Connections) {
+      if (m_Connections.remove(con)) {
+        m_Connections.notifyAll();
+      }
+    }
+  }//remove
+
+  /**
+   * Looks up the virtual thread factory of the running JVM
+   * reflectively, so that this class remains loadable on
+   * runtimes without virtual threads.
+   *
+   * @return the <tt>ThreadFactory</tt>, or null if not supported.
+   */
+  private static ThreadFactory createVirtualThreadFactory() {
+    try {
+      Class<?> builder = Class.forName("java.lang.Thread$Builder");
+      Object b = Thread.class.getMethod("ofVirtual").invoke(null);
+      b = builder.getMethod("name", String.class, long.class)
+          .invoke(b, "ModbusTCPListener-", 0L);
+      Method factory = builder.getMethod("factory");
+      return (ThreadFactory) factory.invoke(b);
+    } catch (Exception ex) {
+      return null;
+    }
+  }//createVirtualThreadFactory
+
+  /**
+   * Inner class handling an admitted connection
+   * and accounting for it.
+   */
+  private class ConnectionWorker
+      implements Runnable {
+
+    private final TCPSlaveConnection m_Connection;
+
+    public ConnectionWorker(TCPSlaveConnection con) {
+      m_Connection = con;
+    }//constructor
+
+    public void run() {
+      m_Active.incrementAndGet();
+      try {
+        TCPConnectionHandler handler = new TCPConnectionHandler(m_Connection, m_Router);
+        Executor executor = m_RequestExecutor;
+        if (executor != null) {
+          handler.setExecutor(executor, m_RequestWindow, m_StrictOrdering);
+        } else if (m_DirectEncoding) {
+          handler.setDirectEncoding(true);
+        }
+        handler.run();
+      } finally {
+        m_Active.decrementAndGet();
+        remove(m_Connection);
+      }
+    }//run
+
+  }//inner class ConnectionWorker
+
+  /**
+   * Inner class creating the named worker threads.
+   */
+  private static class WorkerThreadFactory
+      implements ThreadFactory {
+
+    private final AtomicInteger m_Count = new AtomicInteger(0);
+
+    public Thread newThread(Runnable r) {
+      return new Thread(r, "ModbusTCPListener-worker-" + m_Count.getAndIncrement());
+    }//newThread
 
-  private static final int REQUESTS_TOGC = 10;
+  }//inner class WorkerThreadFactory
 
 }//class ModbusTCPListener
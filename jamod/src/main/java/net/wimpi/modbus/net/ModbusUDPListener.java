@@ -24,6 +24,7 @@ import net.wimpi.modbus.ModbusIOException;
 import net.wimpi.modbus.io.ModbusUDPTransport;
 import net.wimpi.modbus.msg.ModbusRequest;
 import net.wimpi.modbus.msg.ModbusResponse;
+import net.wimpi.modbus.procimg.ProcessImage;
 
 /**
  * Class that implements a ModbusUDPListener.<br>
@@ -39,6 +40,7 @@ public class ModbusUDPListener {
   private int m_Port = Modbus.DEFAULT_PORT;
   private boolean m_Listening;
   private InetAddress m_Interface;
+  private volatile ProcessImageRouter m_Router;
 
   /**
    * Constructs a new ModbusUDPListener instance.
@@ -76,6 +78,26 @@ public class ModbusUDPListener {
     m_Port = ((port>0)? port : Modbus.DEFAULT_PORT);
   }//setPort
 
+  /**
+   * Sets the router serving the requests from the process
+   * images of their units. If no router is set, all requests
+   * are served from the process image of the <tt>ModbusCoupler</tt>.
+   *
+   * @param router the <tt>ProcessImageRouter</tt>, or null.
+   */
+  public void setRouter(ProcessImageRouter router) {
+    m_Router = router;
+  }//setRouter
+
+  /**
+   * Returns the router serving the requests.
+   *
+   * @return the <tt>ProcessImageRouter</tt>, or null if none is set.
+   */
+  public ProcessImageRouter getRouter() {
+    return m_Router;
+  }//getRouter
+
   /**
    * Starts this <tt>ModbusUDPListener</tt>.
    */
@@ -139,12 +161,18 @@ public class ModbusUDPListener {
           //System.out.println("Request:" + request.getHexMessage());
           ModbusResponse response = null;
 
-          //test if Process image exists
-          if (ModbusCoupler.getReference().getProcessImage() == null) {
-            response =
-                request.createExceptionResponse(Modbus.ILLEGAL_FUNCTION_EXCEPTION);
+          ProcessImageRouter router = m_Router;
+          if (router != null) {
+            response = router.createResponse(request);
           } else {
-            response = request.createResponse();
+            ProcessImage procimg = ModbusCoupler.getReference().getProcessImage();
+            //test if Process image exists
+            if (procimg == null) {
+              response =
+                  request.createExceptionResponse(Modbus.ILLEGAL_FUNCTION_EXCEPTION);
+            } else {
+              response = request.createResponse(procimg);
+            }
           }
           /*DEBUG*/
           if (Modbus.debug) System.out.println("Request:" + request.getHexMessage());
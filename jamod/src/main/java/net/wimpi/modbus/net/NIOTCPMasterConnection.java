@@ -0,0 +1,244 @@
+/***
+ * Copyright 2002-2010 jamod development team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***/
+
+package net.wimpi.modbus.net;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import net.wimpi.modbus.Modbus;
+import net.wimpi.modbus.ModbusException;
+import net.wimpi.modbus.ModbusIOException;
+import net.wimpi.modbus.io.TransactionCallback;
+import net.wimpi.modbus.msg.ModbusRequest;
+
+/**
+ * Class representing a master connection that is
+ * multiplexed by a {@link ModbusNIOTCPMaster}.
+ * <p>
+ * Instances are obtained from
+ * {@link ModbusNIOTCPMaster#connect(InetAddress, int)}.
+ * Requests may be issued from any thread; they are queued
+ * and written by the event loop that owns the connection, and
+ * the outcome is reported to the given callback.
+ * <p>
+ * A connection is not re-established once it has been
+ * lost; all queued and outstanding requests fail and a new
+ * connection has to be obtained from the master.
+ *
+ * @author Dieter Wimberger
+ * @version @version@ (@date@)
+ */
+public class NIOTCPMasterConnection {
+
+  static final int CONNECTING = 0;
+  static final int CONNECTED = 1;
+  static final int CLOSED = 2;
+
+  //instance attributes shared with callers
+  private final ModbusNIOTCPMaster.EventLoop m_Loop;
+  private final InetAddress m_Address;
+  private final int m_Port;
+  final ConcurrentLinkedQueue<PendingRequest> m_Queue =
+      new ConcurrentLinkedQueue<PendingRequest>();
+  final AtomicBoolean m_Scheduled = new AtomicBoolean(false);
+  volatile int m_State = CONNECTING;
+  volatile boolean m_CloseRequested;
+  volatile ModbusIOException m_Failure;
+
+  //instance attributes owned by the event loop
+  SocketChannel m_Channel;
+  SelectionKey m_Key;
+  long m_ConnectDeadline;
+  final Map<Integer, PendingRequest> m_Outstanding =
+      new HashMap<Integer, PendingRequest>(4);
+  int m_TransactionID;
+  byte[] m_Partial;
+  int m_PartialLength;
+  ByteBuffer m_Backlog;
+
+  /**
+   * Constructs a new <tt>NIOTCPMasterConnection</tt> instance
+   * owned by the given event loop.
+   *
+   * @param loop the event loop owning the connection.
+   * @param adr  the <tt>InetAddress</tt> of the slave.
+   * @param port the port of the slave.
+   */
+  NIOTCPMasterConnection(ModbusNIOTCPMaster.EventLoop loop,
+                         InetAddress adr, int port) {
+    m_Loop = loop;
+    m_Address = adr;
+    m_Port = port;
+  }//constructor
+
+  /**
+   * Returns the address of the slave of this
+   * <tt>NIOTCPMasterConnection</tt>.
+   *
+   * @return the slave <tt>InetAddress</tt>.
+   */
+  public InetAddress getAddress() {
+    return m_Address;
+  }//getAddress
+
+  /**
+   * Returns the port of the slave of this
+   * <tt>NIOTCPMasterConnection</tt>.
+   *
+   * @return the slave port as <tt>int</tt>.
+   */
+  public int getPort() {
+    return m_Port;
+  }//getPort
+
+  /**
+   * Tests if this <tt>NIOTCPMasterConnection</tt> is connected.
+   *
+   * @return true if connected, false otherwise.
+   */
+  public boolean isConnected() {
+    return m_State == CONNECTED;
+  }//isConnected
+
+  /**
+   * Tests if this <tt>NIOTCPMasterConnection</tt> has been
+   * closed or lost.
+   *
+   * @return true if closed, false otherwise.
+   */
+  public boolean isClosed() {
+    return m_State == CLOSED;
+  }//isClosed
+
+  /**
+   * Returns the exception that caused this
+   * <tt>NIOTCPMasterConnection</tt> to be closed.
+   *
+   * @return the <tt>ModbusIOException</tt> or null if the
+   *         connection is open or was closed regularly.
+   */
+  public ModbusIOException getFailure() {
+    return m_Failure;
+  }//getFailure
+
+  /**
+   * Executes the given request asynchronously.
+   * <p>
+   * The transaction identifier is assigned to the frame when
+   * it is written; the request itself is not modified, and may
+   * be reused once the callback has been invoked. The request
+   * times out if its response has not been received within the
+   * timeout of the master, measured from the moment of this call.
+   *
+   * @param req the <tt>ModbusRequest</tt> to be executed.
+   * @param cb  the <tt>TransactionCallback</tt> receiving the outcome.
+   */
+  public void execute(ModbusRequest req, TransactionCallback cb) {
+    if (req == null || cb == null) {
+      throw new IllegalArgumentException("Request and callback must not be null.");
+    }
+    m_Queue.offer(new PendingRequest(req, cb,
+        System.currentTimeMillis() + m_Loop.getMaster().getTimeout()));
+    if (m_State == CLOSED) {
+      //lost the race with the event loop, fail whatever is left
+      ModbusIOException ex = (m_Failure != null) ? m_Failure
+          : new ModbusIOException("Connection closed.", true);
+      PendingRequest pr = null;
+      while ((pr = m_Queue.poll()) != null) {
+        pr.fail(ex);
+      }
+    } else {
+      m_Loop.schedule(this);
+    }
+  }//execute
+
+  /**
+   * Closes this <tt>NIOTCPMasterConnection</tt>.
+   * All queued and outstanding requests fail.
+   */
+  public void close() {
+    m_CloseRequested = true;
+    m_Loop.schedule(this);
+  }//close
+
+  /**
+   * Returns the number of bytes currently buffered for this
+   * connection, i.e. a partially received frame and data
+   * that could not yet be written to the socket.
+   *
+   * @return the number of bytes buffered.
+   */
+  int getBufferedBytes() {
+    int bytes = 0;
+    if (m_Partial != null) {
+      bytes += m_Partial.length;
+    }
+    if (m_Backlog != null) {
+      bytes += m_Backlog.capacity();
+    }
+    return bytes;
+  }//getBufferedBytes
+
+  /**
+   * Returns the next transaction identifier
+   * that is not in use on this connection.
+   *
+   * @return the transaction identifier as <tt>int</tt>.
+   */
+  int nextTransactionID() {
+    do {
+      if (m_TransactionID >= Modbus.MAX_TRANSACTION_ID) {
+        m_TransactionID = 0;
+      }
+      m_TransactionID++;
+    } while (m_Outstanding.containsKey(m_TransactionID));
+    return m_TransactionID;
+  }//nextTransactionID
+
+  /**
+   * Class holding a request that is queued or
+   * awaiting its response.
+   */
+  static class PendingRequest {
+
+    final ModbusRequest m_Request;
+    final TransactionCallback m_Callback;
+    final long m_Deadline;
+
+    PendingRequest(ModbusRequest req, TransactionCallback cb, long deadline) {
+      m_Request = req;
+      m_Callback = cb;
+      m_Deadline = deadline;
+    }//constructor
+
+    void fail(ModbusException ex) {
+      try {
+        m_Callback.failed(m_Request, ex);
+      } catch (RuntimeException rex) {
+        if (Modbus.debug) rex.printStackTrace();
+      }
+    }//fail
+
+  }//class PendingRequest
+
+}//class NIOTCPMasterConnection
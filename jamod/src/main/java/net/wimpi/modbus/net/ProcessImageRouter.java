@@ -0,0 +1,159 @@
+/***
+ * Copyright 2002-2010 jamod development team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***/
+
+
+package net.wimpi.modbus.net;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import net.wimpi.modbus.Modbus;
+import net.wimpi.modbus.msg.ModbusRequest;
+import net.wimpi.modbus.msg.ModbusResponse;
+import net.wimpi.modbus.procimg.ProcessImage;
+
+/**
+ * Class implementing a router that lets a single slave
+ * listener serve several units, each from a process image
+ * of its own.
+ * <p>
+ * Process images are looked up by the unit identifier of
+ * the request in an array with volatile semantics, so that
+ * serving a request takes no lock, while units may be added
+ * or removed at any time. Requests for units without a
+ * process image are served from the default process image,
+ * if set, or answered with a
+ * <tt>Modbus.GATEWAY_PATH_UNAVAILABLE_EXCEPTION</tt>.
+ * <p>
+ * A router is set on a listener; to serve different units
+ * per port, use a router per listener.
+ *
+ * @author Dieter Wimberger
+ * @version @version@ (@date@)
+ */
+public class ProcessImageRouter {
+
+  /**
+   * Defines the number of unit identifiers.
+   */
+  public static final int MAX_UNITS = 256;
+
+  //instance attributes
+  private final AtomicReferenceArray<ProcessImage> m_Images =
+      new AtomicReferenceArray<ProcessImage>(MAX_UNITS);
+  private volatile ProcessImage m_Default;
+
+  /**
+   * Constructs a new <tt>ProcessImageRouter</tt> instance
+   * without any units.
+   */
+  public ProcessImageRouter() {
+  }//constructor
+
+  /**
+   * Sets the process image serving the given unit.
+   *
+   * @param unit    the unit identifier, 0 to 255.
+   * @param procimg the <tt>ProcessImage</tt>, or null to remove the unit.
+   */
+  public void setProcessImage(int unit, ProcessImage procimg) {
+    checkUnit(unit);
+    m_Images.set(unit, procimg);
+  }//setProcessImage
+
+  /**
+   * Removes the given unit from this <tt>ProcessImageRouter</tt>.
+   *
+   * @param unit the unit identifier, 0 to 255.
+   */
+  public void removeProcessImage(int unit) {
+    setProcessImage(unit, null);
+  }//removeProcessImage
+
+  /**
+   * Returns the process image serving the given unit,
+   * which is the default process image if none is set
+   * for the unit.
+   *
+   * @param unit the unit identifier, 0 to 255.
+   * @return the <tt>ProcessImage</tt>, or null if the unit is not served.
+   */
+  public ProcessImage getProcessImage(int unit) {
+    checkUnit(unit);
+    ProcessImage procimg = m_Images.get(unit);
+    return (procimg != null) ? procimg : m_Default;
+  }//getProcessImage
+
+  /**
+   * Sets the process image serving the units
+   * without a process image of their own.
+   *
+   * @param procimg the <tt>ProcessImage</tt>, or null for none.
+   */
+  public void setDefaultProcessImage(ProcessImage procimg) {
+    m_Default = procimg;
+  }//setDefaultProcessImage
+
+  /**
+   * Returns the process image serving the units
+   * without a process image of their own.
+   *
+   * @return the <tt>ProcessImage</tt>, or null if none is set.
+   */
+  public ProcessImage getDefaultProcessImage() {
+    return m_Default;
+  }//getDefaultProcessImage
+
+  /**
+   * Returns the number of units with a process
+   * image of their own.
+   *
+   * @return the number of units as <tt>int</tt>.
+   */
+  public int getUnitCount() {
+    int count = 0;
+    for (int i = 0; i < MAX_UNITS; i++) {
+      if (m_Images.get(i) != null) {
+        count++;
+      }
+    }
+    return count;
+  }//getUnitCount
+
+  /**
+   * Returns the response to the given request, served
+   * from the process image of its unit.
+   *
+   * @param request the <tt>ModbusRequest</tt> to be answered.
+   * @return the corresponding <tt>ModbusResponse</tt>.
+   */
+  public ModbusResponse createResponse(ModbusRequest request) {
+    ProcessImage procimg = m_Images.get(request.getUnitID() & 0xFF);
+    if (procimg == null) {
+      procimg = m_Default;
+      if (procimg == null) {
+        return request.createExceptionResponse(Modbus.GATEWAY_PATH_UNAVAILABLE_EXCEPTION);
+      }
+    }
+    return request.createResponse(procimg);
+  }//createResponse
+
+  private static void checkUnit(int unit) {
+    if (unit < 0 || unit >= MAX_UNITS) {
+      throw new IllegalArgumentException("Invalid unit identifier " + unit + ".");
+    }
+  }//checkUnit
+
+}//class ProcessImageRouter
@@ -16,23 +16,68 @@
 
 package net.wimpi.modbus.net;
 
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.ReentrantLock;
+
 import net.wimpi.modbus.Modbus;
 import net.wimpi.modbus.ModbusCoupler;
 import net.wimpi.modbus.ModbusIOException;
+import net.wimpi.modbus.io.ModbusTCPTransport;
 import net.wimpi.modbus.io.ModbusTransport;
+import net.wimpi.modbus.io.ReadResponseEncoder;
 import net.wimpi.modbus.msg.ModbusRequest;
 import net.wimpi.modbus.msg.ModbusResponse;
+import net.wimpi.modbus.procimg.ProcessImage;
 
 /**
  * Class implementing a handler for incoming Modbus/TCP requests.
+ * <p>
+ * By default, each request is read, answered and written
+ * before the next one is read. If an executor is set, the
+ * handler keeps reading requests while earlier ones are
+ * answered by the executor, up to a window of outstanding
+ * requests, so that masters pipelining requests on the
+ * connection are served concurrently. The responses carry
+ * the transaction identifiers of their requests and are
+ * written as they complete. If strict ordering is set, the
+ * requests of the connection are instead answered one at a
+ * time, in the order they were read, and each response is
+ * written before the next request is answered; a read thus
+ * observes all writes requested before it on the connection,
+ * while other connections are still served concurrently.
+ * <p>
+ * Responses are written under locks rather than monitors, so
+ * that handlers run on virtual threads do not pin their carrier
+ * threads while blocked on the socket (JDK 21 to 23).
  *
  * @author Dieter Wimberger
  * @version @version@ (@date@)
  */
 public class TCPConnectionHandler implements Runnable {
 
+  /**
+   * Defines the default maximum number of outstanding
+   * requests per connection.
+   */
+  public static final int DEFAULT_WINDOW = 16;
+
   private TCPSlaveConnection m_Connection;
   private ModbusTransport m_Transport;
+  private ProcessImageRouter m_Router;
+  private Executor m_Executor;
+  private int m_Window = DEFAULT_WINDOW;
+  private boolean m_Ordered;
+  private ReadResponseEncoder m_Encoder;
+
+  //state of concurrent processing
+  private Semaphore m_Slots;
+  private final ReentrantLock m_WriteLock = new ReentrantLock();
+  private final ReentrantLock m_PendingLock = new ReentrantLock();
+  private final ArrayDeque<PendingRequest> m_Pending = new ArrayDeque<PendingRequest>();
+  private boolean m_Draining;
 
   /**
    * Constructs a new <tt>TCPConnectionHandler</tt> instance.
@@ -43,6 +88,19 @@ public class TCPConnectionHandler implements Runnable {
     setConnection(con);
   }//constructor
 
+  /**
+   * Constructs a new <tt>TCPConnectionHandler</tt> instance
+   * serving the requests through the given router.
+   *
+   * @param con    an incoming connection.
+   * @param router the <tt>ProcessImageRouter</tt>, or null to serve
+   *               from the process image of the <tt>ModbusCoupler</tt>.
+   */
+  public TCPConnectionHandler(TCPSlaveConnection con, ProcessImageRouter router) {
+    setConnection(con);
+    m_Router = router;
+  }//constructor
+
   /**
    * Sets a connection to be handled by this <tt>
    * TCPConnectionHandler</tt>.
@@ -54,26 +112,56 @@ public class TCPConnectionHandler implements Runnable {
     m_Transport = m_Connection.getModbusTransport();
   }//setConnection
 
+  /**
+   * Sets the executor answering the requests of this
+   * <tt>TCPConnectionHandler</tt> concurrently.
+   * Must be set before the handler is run.
+   *
+   * @param executor the <tt>Executor</tt>, or null to answer
+   *                 each request before reading the next.
+   * @param window   the maximum number of outstanding requests.
+   * @param ordered  true if requests are to be answered one at a time
+   *                 and in order, false to answer them concurrently.
+   */
+  public void setExecutor(Executor executor, int window, boolean ordered) {
+    if (window < 1) {
+      throw new IllegalArgumentException("Window must be at least 1.");
+    }
+    m_Executor = executor;
+    m_Window = window;
+    m_Ordered = ordered;
+  }//setExecutor
+
+  /**
+   * Sets the flag that determines whether reads of registers,
+   * input registers, coils and discretes are encoded straight
+   * from the process image, without creating a response.
+   * Applies to requests answered one by one, i.e. without
+   * an executor. Must be set before the handler is run.
+   *
+   * @param b true if reads should be encoded directly, false otherwise.
+   * @see ReadResponseEncoder
+   */
+  public void setDirectEncoding(boolean b) {
+    m_Encoder = (b) ? new ReadResponseEncoder() : null;
+  }//setDirectEncoding
+
   public void run() {
+    if (m_Executor != null) {
+      runConcurrent();
+      return;
+    }
     try {
       do {
         //1. read the request
         ModbusRequest request = m_Transport.readRequest();
-        //System.out.println("Request:" + request.getHexMessage());
-        ModbusResponse response = null;
-
-        //test if Process image exists
-        if (ModbusCoupler.getReference().getProcessImage() == null) {
-          response =
-              request.createExceptionResponse(Modbus.ILLEGAL_FUNCTION_EXCEPTION);
-        } else {
-          response = request.createResponse();
+        //2. encode reads straight from the image, if set
+        if (m_Encoder != null && writeDirect(request)) {
+          continue;
         }
-        /*DEBUG*/
-        if (Modbus.debug) System.out.println("Request:" + request.getHexMessage());
-        if (Modbus.debug) System.out.println("Response:" + response.getHexMessage());
-
-        //System.out.println("Response:" + response.getHexMessage());
+        //3. answer it
+        ModbusResponse response = createResponse(request);
+        //4. write the response
         m_Transport.writeMessage(response);
       } while (true);
     } catch (ModbusIOException ex) {
@@ -91,5 +179,198 @@ public class TCPConnectionHandler implements Runnable {
     }
   }//run
 
-}//TCPConnectionHandler
+  /**
+   * Reads requests and hands them to the executor, as long
+   * as the window permits, until the connection fails.
+   */
+  private void runConcurrent() {
+    m_Slots = new Semaphore(m_Window);
+    try {
+      do {
+        m_Slots.acquireUninterruptibly();
+        ModbusRequest request = null;
+        try {
+          request = m_Transport.readRequest();
+        } catch (ModbusIOException ex) {
+          m_Slots.release();
+          throw ex;
+        }
+        PendingRequest pr = new PendingRequest(request);
+        Runnable task = pr;
+        if (m_Ordered) {
+          boolean drain = false;
+          m_PendingLock.lock();
+          try {
+            m_Pending.addLast(pr);
+            drain = !m_Draining;
+            m_Draining = true;
+          } finally {
+            m_PendingLock.unlock();
+          }
+          if (!drain) {
+            //answered by the running drainer
+            continue;
+          }
+          task = new Drainer();
+        }
+        try {
+          m_Executor.execute(task);
+        } catch (RejectedExecutionException ex) {
+          task.run();
+        }
+      } while (true);
+    } catch (ModbusIOException ex) {
+      if (!ex.isEOF()) {
+        //other troubles, output for debug
+        ex.printStackTrace();
+      }
+    } finally {
+      //let outstanding requests complete
+      m_Slots.acquireUninterruptibly(m_Window);
+      try {
+        m_Connection.close();
+      } catch (Exception ex) {
+        //ignore
+      }
+    }
+  }//runConcurrent
 
+  /**
+   * Answers the given request from the process image
+   * of the router or the <tt>ModbusCoupler</tt>.
+   *
+   * @param request the <tt>ModbusRequest</tt> to be answered.
+   * @return the corresponding <tt>ModbusResponse</tt>.
+   */
+  private ModbusResponse createResponse(ModbusRequest request) {
+    ModbusResponse response = null;
+    if (m_Router != null) {
+      response = m_Router.createResponse(request);
+    } else {
+      ProcessImage procimg = ModbusCoupler.getReference().getProcessImage();
+      //test if Process image exists
+      if (procimg == null) {
+        response =
+            request.createExceptionResponse(Modbus.ILLEGAL_FUNCTION_EXCEPTION);
+      } else {
+        response = request.createResponse(procimg);
+      }
+    }
+    /*DEBUG*/
+    if (Modbus.debug) System.out.println("Request:" + request.getHexMessage());
+    if (Modbus.debug) System.out.println("Response:" + response.getHexMessage());
+    return response;
+  }//createResponse
+
+  /**
+   * Encodes the response to the given read request
+   * straight from the process image and writes it.
+   *
+   * @param request the <tt>ModbusRequest</tt> to be answered.
+   * @return true if written, false if the request is to be answered
+   *         by the regular path.
+   * @throws ModbusIOException if the response cannot be written.
+   */
+  private boolean writeDirect(ModbusRequest request)
+      throws ModbusIOException {
+    if (Modbus.debug || !(m_Transport instanceof ModbusTCPTransport)
+        || !ReadResponseEncoder.isEncodable(request.getFunctionCode())) {
+      return false;
+    }
+    ProcessImage procimg = (m_Router != null)
+        ? m_Router.getProcessImage(request.getUnitID())
+        : ModbusCoupler.getReference().getProcessImage();
+    int len = -1;
+    try {
+      len = m_Encoder.encode(request, procimg);
+    } catch (RuntimeException ex) {
+      //e.g. a sparse image, answered by the regular path
+      if (Modbus.debug) ex.printStackTrace();
+    }
+    if (len < 0) {
+      return false;
+    }
+    ((ModbusTCPTransport) m_Transport).writeFrame(m_Encoder.getBuffer(), len);
+    return true;
+  }//writeDirect
+
+  /**
+   * Writes the response of the given request
+   * and frees its slot.
+   *
+   * @param pr the completed <tt>PendingRequest</tt>.
+   */
+  private void write(PendingRequest pr) {
+    try {
+      if (pr.m_Response == null) {
+        //failed to answer, give up the connection
+        m_Connection.close();
+      } else {
+        m_WriteLock.lock();
+        try {
+          m_Transport.writeMessage(pr.m_Response);
+        } finally {
+          m_WriteLock.unlock();
+        }
+      }
+    } catch (ModbusIOException ex) {
+      if (Modbus.debug) ex.printStackTrace();
+      m_Connection.close();
+    } finally {
+      m_Slots.release();
+    }
+  }//write
+
+  /**
+   * Inner class answering a single request
+   * on the executor.
+   */
+  private class PendingRequest
+      implements Runnable {
+
+    private final ModbusRequest m_Request;
+    private ModbusResponse m_Response;
+
+    public PendingRequest(ModbusRequest req) {
+      m_Request = req;
+    }//constructor
+
+    public void run() {
+      try {
+        m_Response = createResponse(m_Request);
+      } catch (RuntimeException ex) {
+        if (Modbus.debug) ex.printStackTrace();
+      } finally {
+        write(this);
+      }
+    }//run
+
+  }//inner class PendingRequest
+
+  /**
+   * Inner class answering the queued requests of
+   * the connection one by one, in order.
+   */
+  private class Drainer
+      implements Runnable {
+
+    public void run() {
+      do {
+        PendingRequest pr = null;
+        m_PendingLock.lock();
+        try {
+          pr = m_Pending.pollFirst();
+          if (pr == null) {
+            m_Draining = false;
+            return;
+          }
+        } finally {
+          m_PendingLock.unlock();
+        }
+        pr.run();
+      } while (true);
+    }//run
+
+  }//inner class Drainer
+
+}//TCPConnectionHandler
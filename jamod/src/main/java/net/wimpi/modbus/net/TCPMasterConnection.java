@@ -18,9 +18,13 @@ package net.wimpi.modbus.net;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 
 import net.wimpi.modbus.Modbus;
+import net.wimpi.modbus.io.CircuitBreaker;
+import net.wimpi.modbus.io.ModbusTCPPipeline;
+import net.wimpi.modbus.io.PriorityRequestQueue;
 import net.wimpi.modbus.io.ModbusTCPTransport;
 import net.wimpi.modbus.io.ModbusTransport;
 
@@ -42,6 +46,10 @@ public class TCPMasterConnection {
 
   //private int m_Retries = Modbus.DEFAULT_RETRIES;
   private ModbusTCPTransport m_ModbusTransport;
+  private int m_PipelineWindow = 1;
+  private volatile ModbusTCPPipeline m_Pipeline;
+  private volatile CircuitBreaker m_CircuitBreaker;
+  private volatile PriorityRequestQueue m_RequestQueue;
 
   /**
    * Constructs a <tt>TCPMasterConnection</tt> instance
@@ -60,11 +68,39 @@ public class TCPMasterConnection {
    */
   public synchronized void connect()
       throws Exception {
+    connect(0);
+  }//connect
+
+  /**
+   * Opens this <tt>TCPMasterConnection</tt>, waiting at most
+   * the given time for the connection to be established.
+   * <p>
+   * A pipelining connection whose reader has failed is
+   * closed and opened again.
+   *
+   * @param timeout the connect timeout in milliseconds, 0 for none.
+   * @throws Exception if there is a network failure.
+   */
+  public synchronized void connect(int timeout)
+      throws Exception {
+    if (m_Connected && m_Pipeline != null && !m_Pipeline.isRunning()) {
+      close();
+    }
     if(!m_Connected) {
       if(Modbus.debug) System.out.println("connect()");
-      m_Socket = new Socket(m_Address, m_Port);
-      setTimeout(m_Timeout);
+      m_Socket = new Socket();
+      try {
+        m_Socket.connect(new InetSocketAddress(m_Address, m_Port), timeout);
+      } catch (IOException ex) {
+        m_Socket.close();
+        throw ex;
+      }
       prepareTransport();
+      if (m_PipelineWindow > 1) {
+        m_Pipeline = new ModbusTCPPipeline(m_ModbusTransport, m_PipelineWindow);
+        m_Pipeline.start();
+      }
+      setTimeout(m_Timeout);
       m_Connected = true;
     }
   }//connect
@@ -74,11 +110,15 @@ public class TCPMasterConnection {
    */
   public void close() {
     if(m_Connected) {
+      if (m_Pipeline != null) {
+        m_Pipeline.stop();
+      }
       try {
         m_ModbusTransport.close();
       } catch (IOException ex) {
         if(Modbus.debug) System.out.println("close()");
       }
+      m_Pipeline = null;
       m_Connected = false;
     }
   }//close
@@ -118,6 +158,10 @@ public class TCPMasterConnection {
 
   /**
    * Sets the timeout for this <tt>TCPMasterConnection</tt>.
+   * <p>
+   * If the connection is pipelining, the timeout applies
+   * to each outstanding request, while the pipeline reader
+   * blocks on the socket without timeout.
    *
    * @param timeout the timeout as <tt>int</tt>.
    */
@@ -125,13 +169,30 @@ public class TCPMasterConnection {
     m_Timeout = timeout;
     if(m_Socket != null) {
       try {
-        m_Socket.setSoTimeout(m_Timeout);
+        m_Socket.setSoTimeout((m_Pipeline != null) ? 0 : m_Timeout);
       } catch (IOException ex) {
         //handle?
       } 
     }
   }//setReceiveTimeout
 
+  /**
+   * Sets the timeout of the following reads on the socket,
+   * without changing the timeout of this <tt>TCPMasterConnection</tt>;
+   * <tt>setTimeout(getTimeout())</tt> restores it.
+   *
+   * @param timeout the read timeout in milliseconds.
+   */
+  public void setReadTimeout(int timeout) {
+    if (m_Socket != null && m_Pipeline == null) {
+      try {
+        m_Socket.setSoTimeout(timeout);
+      } catch (IOException ex) {
+        //handled by the next read
+      }
+    }
+  }//setReadTimeout
+
   /**
    * Returns the destination port of this
    * <tt>TCPMasterConnection</tt>.
@@ -173,14 +234,131 @@ public class TCPMasterConnection {
     m_Address = adr;
   }//setAddress
 
+  /**
+   * Returns the maximum number of requests that may be
+   * outstanding on this <tt>TCPMasterConnection</tt>.
+   *
+   * @return the pipeline window as <tt>int</tt>.
+   */
+  public int getPipelineWindow() {
+    return m_PipelineWindow;
+  }//getPipelineWindow
+
+  /**
+   * Sets the maximum number of requests that may be
+   * outstanding on this <tt>TCPMasterConnection</tt>.
+   * A window larger than one enables pipelining, where
+   * responses are matched to requests by their transaction
+   * identifier. The default is one (i.e. no pipelining).
+   * <p>
+   * The window takes effect with the next <tt>connect()</tt>.
+   *
+   * @param window the pipeline window as <tt>int</tt>.
+   */
+  public void setPipelineWindow(int window) {
+    if (window < 1) {
+      throw new IllegalArgumentException("Window must be at least 1.");
+    }
+    m_PipelineWindow = window;
+  }//setPipelineWindow
+
+  /**
+   * Tests if this <tt>TCPMasterConnection</tt> is
+   * connected and pipelining requests.
+   *
+   * @return <tt>true</tt> if pipelining, <tt>false</tt> otherwise.
+   */
+  public boolean isPipelining() {
+    return m_Pipeline != null;
+  }//isPipelining
+
+  /**
+   * Returns the <tt>ModbusTCPPipeline</tt> of this
+   * <tt>TCPMasterConnection</tt>.
+   *
+   * @return the pipeline, or <tt>null</tt> if not pipelining.
+   */
+  public ModbusTCPPipeline getPipeline() {
+    return m_Pipeline;
+  }//getPipeline
+
+  /**
+   * Returns the <tt>CircuitBreaker</tt> guarding the
+   * transactions on this <tt>TCPMasterConnection</tt>.
+   *
+   * @return the <tt>CircuitBreaker</tt>, or <tt>null</tt> if none.
+   */
+  public CircuitBreaker getCircuitBreaker() {
+    return m_CircuitBreaker;
+  }//getCircuitBreaker
+
+  /**
+   * Sets the <tt>CircuitBreaker</tt> guarding the
+   * transactions on this <tt>TCPMasterConnection</tt>.
+   * The same breaker may be shared by several connections
+   * to the same device.
+   *
+   * @param breaker the <tt>CircuitBreaker</tt>, or <tt>null</tt>.
+   */
+  public void setCircuitBreaker(CircuitBreaker breaker) {
+    m_CircuitBreaker = breaker;
+  }//setCircuitBreaker
+
+  /**
+   * Returns the <tt>PriorityRequestQueue</tt> admitting
+   * the transactions on this <tt>TCPMasterConnection</tt>.
+   *
+   * @return the <tt>PriorityRequestQueue</tt>, or <tt>null</tt> if none.
+   */
+  public PriorityRequestQueue getRequestQueue() {
+    return m_RequestQueue;
+  }//getRequestQueue
+
+  /**
+   * Sets the <tt>PriorityRequestQueue</tt> admitting
+   * the transactions on this <tt>TCPMasterConnection</tt>,
+   * so that transactions sharing the connection are served
+   * by priority instead of in arbitrary order.
+   *
+   * @param queue the <tt>PriorityRequestQueue</tt>, or <tt>null</tt>.
+   */
+  public void setRequestQueue(PriorityRequestQueue queue) {
+    m_RequestQueue = queue;
+  }//setRequestQueue
+
   /**
    * Tests if this <tt>TCPMasterConnection</tt> is connected.
+   * A pipelining connection is no longer connected once
+   * its reader has failed, e.g. on end of stream.
    *
    * @return <tt>true</tt> if connected, <tt>false</tt> otherwise.
    */
   public boolean isConnected() {
-    return m_Connected;
+    ModbusTCPPipeline pipeline = m_Pipeline;
+    return m_Connected && (pipeline == null || pipeline.isRunning());
   }//isConnected
 
+  /**
+   * Tests if the socket of this <tt>TCPMasterConnection</tt> is
+   * still usable, i.e. connected, not shut down and without stale
+   * data waiting to be read.
+   *
+   * @return <tt>true</tt> if usable, <tt>false</tt> otherwise.
+   */
+  boolean isUsable() {
+    if (!m_Connected || m_Socket == null || m_Socket.isClosed()
+        || m_Socket.isInputShutdown() || m_Socket.isOutputShutdown()) {
+      return false;
+    }
+    if (m_Pipeline != null) {
+      return m_Pipeline.isRunning();
+    }
+    try {
+      return m_Socket.getInputStream().available() == 0;
+    } catch (IOException ex) {
+      return false;
+    }
+  }//isUsable
+
 
 }//class TCPMasterConnection
@@ -0,0 +1,614 @@
+/***
+ * Copyright 2002-2010 jamod development team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***/
+
+package net.wimpi.modbus.net;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import net.wimpi.modbus.Modbus;
+import net.wimpi.modbus.ModbusException;
+import net.wimpi.modbus.ModbusIOException;
+import net.wimpi.modbus.io.ModbusTCPTransaction;
+import net.wimpi.modbus.msg.ModbusRequest;
+import net.wimpi.modbus.msg.ModbusResponse;
+
+/**
+ * Class implementing a pool of <tt>TCPMasterConnection</tt>
+ * instances, keyed by the endpoint (address and port)
+ * of the slave.
+ * <p>
+ * Each endpoint is limited to a maximum number of
+ * connections, matching the connection limit of the device.
+ * Connections idle for longer than the idle time are closed,
+ * but at least the minimum number of idle connections is kept
+ * open for every endpoint that has been used. Connections are
+ * validated when borrowed.
+ * <p>
+ * <b>Sample usage</b>
+ * <pre>
+ * TCPMasterConnection con = pool.borrowConnection(addr, 502);
+ * try {
+ *   ModbusTCPTransaction trans = new ModbusTCPTransaction(con);
+ *   trans.setRequest(req);
+ *   trans.execute();
+ *   pool.returnConnection(con);
+ * } catch (ModbusIOException ex) {
+ *   pool.invalidateConnection(con);
+ *   throw ex;
+ * }
+ * </pre>
+ * which is what {@link #execute(InetAddress, int, ModbusRequest)} does.
+ *
+ * @author Dieter Wimberger
+ * @version @version@ (@date@)
+ */
+public class TCPMasterConnectionPool {
+
+  //instance attributes
+  private final Map<String, Endpoint> m_Endpoints =
+      new HashMap<String, Endpoint>();
+  private int m_MinIdle = 0;
+  private int m_MaxTotal = 4;
+  private long m_MaxIdleTime = 60000;
+  private long m_BorrowTimeout = Modbus.DEFAULT_TIMEOUT;
+  private int m_Timeout = Modbus.DEFAULT_TIMEOUT;
+  private boolean m_ValidatingOnBorrow = true;
+  private Timer m_Evictor;
+  private boolean m_Closed;
+
+  /**
+   * Constructs a new <tt>TCPMasterConnectionPool</tt> with
+   * at most four connections per endpoint.
+   */
+  public TCPMasterConnectionPool() {
+  }//constructor
+
+  /**
+   * Constructs a new <tt>TCPMasterConnectionPool</tt>.
+   *
+   * @param minIdle  the minimum number of idle connections per endpoint.
+   * @param maxTotal the maximum number of connections per endpoint.
+   */
+  public TCPMasterConnectionPool(int minIdle, int maxTotal) {
+    setMaxTotal(maxTotal);
+    setMinIdle(minIdle);
+  }//constructor
+
+  /**
+   * Returns the minimum number of idle connections
+   * kept open per endpoint.
+   *
+   * @return the minimum number of idle connections.
+   */
+  public int getMinIdle() {
+    return m_MinIdle;
+  }//getMinIdle
+
+  /**
+   * Sets the minimum number of idle connections
+   * kept open per endpoint.
+   *
+   * @param min the minimum number of idle connections.
+   */
+  public synchronized void setMinIdle(int min) {
+    if (min < 0 || min > m_MaxTotal) {
+      throw new IllegalArgumentException("Invalid minimum: " + min);
+    }
+    m_MinIdle = min;
+  }//setMinIdle
+
+  /**
+   * Returns the maximum number of connections per endpoint.
+   *
+   * @return the maximum number of connections.
+   */
+  public int getMaxTotal() {
+    return m_MaxTotal;
+  }//getMaxTotal
+
+  /**
+   * Sets the maximum number of connections per endpoint,
+   * borrowed and idle ones together.
+   *
+   * @param max the maximum number of connections.
+   */
+  public synchronized void setMaxTotal(int max) {
+    if (max < 1 || max < m_MinIdle) {
+      throw new IllegalArgumentException("Invalid maximum: " + max);
+    }
+    m_MaxTotal = max;
+  }//setMaxTotal
+
+  /**
+   * Returns the time in milliseconds after which an
+   * idle connection is closed.
+   *
+   * @return the maximum idle time in milliseconds.
+   */
+  public long getMaxIdleTime() {
+    return m_MaxIdleTime;
+  }//getMaxIdleTime
+
+  /**
+   * Sets the time in milliseconds after which an
+   * idle connection is closed. Zero disables eviction.
+   *
+   * @param msecs the maximum idle time in milliseconds.
+   */
+  public synchronized void setMaxIdleTime(long msecs) {
+    m_MaxIdleTime = msecs;
+  }//setMaxIdleTime
+
+  /**
+   * Returns the time in milliseconds a borrower waits
+   * for a connection if the endpoint is exhausted.
+   *
+   * @return the borrow timeout in milliseconds.
+   */
+  public long getBorrowTimeout() {
+    return m_BorrowTimeout;
+  }//getBorrowTimeout
+
+  /**
+   * Sets the time in milliseconds a borrower waits
+   * for a connection if the endpoint is exhausted.
+   *
+   * @param msecs the borrow timeout in milliseconds.
+   */
+  public void setBorrowTimeout(long msecs) {
+    m_BorrowTimeout = msecs;
+  }//setBorrowTimeout
+
+  /**
+   * Returns the timeout set on new connections.
+   *
+   * @return the timeout as <tt>int</tt>.
+   */
+  public int getTimeout() {
+    return m_Timeout;
+  }//getTimeout
+
+  /**
+   * Sets the timeout set on new connections, which
+   * also bounds establishing them.
+   *
+   * @param timeout the timeout as <tt>int</tt>.
+   */
+  public void setTimeout(int timeout) {
+    m_Timeout = timeout;
+  }//setTimeout
+
+  /**
+   * Tests if connections are validated when borrowed.
+   *
+   * @return true if validating, false otherwise.
+   */
+  public boolean isValidatingOnBorrow() {
+    return m_ValidatingOnBorrow;
+  }//isValidatingOnBorrow
+
+  /**
+   * Sets the flag that controls whether idle connections are
+   * validated before being handed out.
+   *
+   * @param b true if validating, false otherwise.
+   */
+  public void setValidatingOnBorrow(boolean b) {
+    m_ValidatingOnBorrow = b;
+  }//setValidatingOnBorrow
+
+  /**
+   * Borrows a connected <tt>TCPMasterConnection</tt> to the given
+   * endpoint from this pool, waiting at most the borrow timeout
+   * if all connections of the endpoint are in use.
+   * <p>
+   * The connection has to be handed back with either
+   * <tt>returnConnection()</tt> or <tt>invalidateConnection()</tt>.
+   *
+   * @param addr the address of the slave.
+   * @param port the port of the slave.
+   * @return a connected <tt>TCPMasterConnection</tt>.
+   * @throws ModbusIOException if no connection becomes available in time
+   *                           or connecting fails.
+   */
+  public TCPMasterConnection borrowConnection(InetAddress addr, int port)
+      throws ModbusIOException {
+    return borrowConnection(addr, port, m_BorrowTimeout);
+  }//borrowConnection
+
+  /**
+   * Borrows a connected <tt>TCPMasterConnection</tt> to the given
+   * endpoint from this pool, waiting at most the given time
+   * if all connections of the endpoint are in use. The time
+   * left also bounds opening a new connection.
+   *
+   * @param addr    the address of the slave.
+   * @param port    the port of the slave.
+   * @param timeout the time to wait in milliseconds.
+   * @return a connected <tt>TCPMasterConnection</tt>.
+   * @throws ModbusIOException if no connection becomes available in time
+   *                           or connecting fails.
+   */
+  public TCPMasterConnection borrowConnection(InetAddress addr, int port, long timeout)
+      throws ModbusIOException {
+    Endpoint ep = getEndpoint(addr, port, true);
+    long deadline = System.currentTimeMillis() + timeout;
+    synchronized (ep) {
+      for (; ;) {
+        //1. hand out a valid idle connection
+        while (!ep.m_Idle.isEmpty()) {
+          TCPMasterConnection con = ep.m_Idle.removeFirst().m_Connection;
+          if (!m_ValidatingOnBorrow || con.isUsable()) {
+            return con;
+          }
+          //discard
+          ep.m_Total--;
+          con.close();
+        }
+        //2. open a new connection if there is capacity
+        if (ep.m_Total < m_MaxTotal) {
+          ep.m_Total++;
+          break;
+        }
+        //3. wait for a connection being returned
+        long waitTime = deadline - System.currentTimeMillis();
+        if (waitTime <= 0) {
+          throw new ModbusIOException("No connection available to " + ep.m_Key);
+        }
+        try {
+          ep.wait(waitTime);
+        } catch (InterruptedException ex) {
+          throw new ModbusIOException("Thread waiting for connection was interrupted.");
+        }
+      }
+    }
+    //connect outside of the monitor, the capacity is reserved
+    TCPMasterConnection con = null;
+    try {
+      long remaining = deadline - System.currentTimeMillis();
+      if (remaining <= 0) {
+        throw new ModbusIOException("No connection available to " + ep.m_Key);
+      }
+      con = openConnection(ep, (int) Math.min(remaining, Integer.MAX_VALUE));
+    } finally {
+      synchronized (ep) {
+        if (con == null) {
+          ep.m_Total--;
+          ep.notify();
+        }
+      }
+    }
+    return con;
+  }//borrowConnection
+
+  /**
+   * Hands a borrowed connection back to this pool for reuse.
+   *
+   * @param con a <tt>TCPMasterConnection</tt> obtained from this pool.
+   */
+  public void returnConnection(TCPMasterConnection con) {
+    Endpoint ep = getEndpoint(con.getAddress(), con.getPort(), false);
+    synchronized (ep) {
+      if (m_Closed || !con.isConnected()) {
+        ep.m_Total--;
+        con.close();
+      } else {
+        //most recently used first, so surplus connections age out
+        ep.m_Idle.addFirst(new IdleConnection(con));
+      }
+      ep.notify();
+    }
+  }//returnConnection
+
+  /**
+   * Hands a broken connection back to this pool, which
+   * closes it and frees its capacity.
+   *
+   * @param con a <tt>TCPMasterConnection</tt> obtained from this pool.
+   */
+  public void invalidateConnection(TCPMasterConnection con) {
+    Endpoint ep = getEndpoint(con.getAddress(), con.getPort(), false);
+    synchronized (ep) {
+      ep.m_Total--;
+      ep.notify();
+    }
+    con.close();
+  }//invalidateConnection
+
+  /**
+   * Executes a request on a connection borrowed from
+   * this pool. The connection is invalidated if the
+   * transaction fails with an I/O error, otherwise it is
+   * returned to the pool.
+   *
+   * @param addr the address of the slave.
+   * @param port the port of the slave.
+   * @param req  the <tt>ModbusRequest</tt> to be executed.
+   * @return the <tt>ModbusResponse</tt> received from the slave.
+   * @throws ModbusException if no connection is available, an I/O error,
+   *                         a slave exception or a transaction error occurs.
+   */
+  public ModbusResponse execute(InetAddress addr, int port, ModbusRequest req)
+      throws ModbusException {
+    TCPMasterConnection con = borrowConnection(addr, port);
+    boolean broken = true;
+    try {
+      ModbusTCPTransaction trans = new ModbusTCPTransaction(con);
+      trans.setRequest(req);
+      try {
+        trans.execute();
+      } catch (ModbusIOException ex) {
+        throw ex;
+      } catch (ModbusException ex) {
+        //slave exception, the connection is fine
+        broken = false;
+        throw ex;
+      }
+      broken = false;
+      return trans.getResponse();
+    } finally {
+      if (broken) {
+        invalidateConnection(con);
+      } else {
+        returnConnection(con);
+      }
+    }
+  }//execute
+
+  /**
+   * Opens connections until the given endpoint has
+   * the minimum number of idle connections.
+   *
+   * @param addr the address of the slave.
+   * @param port the port of the slave.
+   */
+  public void prepare(InetAddress addr, int port) {
+    ensureMinIdle(getEndpoint(addr, port, true));
+  }//prepare
+
+  /**
+   * Returns the number of connections to the given endpoint,
+   * borrowed and idle ones together.
+   *
+   * @param addr the address of the slave.
+   * @param port the port of the slave.
+   * @return the number of connections.
+   */
+  public int getTotalCount(InetAddress addr, int port) {
+    Endpoint ep = getEndpoint(addr, port, false);
+    synchronized (ep) {
+      return ep.m_Total;
+    }
+  }//getTotalCount
+
+  /**
+   * Returns the number of idle connections to the given endpoint.
+   *
+   * @param addr the address of the slave.
+   * @param port the port of the slave.
+   * @return the number of idle connections.
+   */
+  public int getIdleCount(InetAddress addr, int port) {
+    Endpoint ep = getEndpoint(addr, port, false);
+    synchronized (ep) {
+      return ep.m_Idle.size();
+    }
+  }//getIdleCount
+
+  /**
+   * Closes connections idle for longer than the maximum idle
+   * time, and refills endpoints below the minimum idle count.
+   * This is done periodically by a daemon timer, but may as
+   * well be called explicitly.
+   */
+  public void evict() {
+    long now = System.currentTimeMillis();
+    for (Endpoint ep : getEndpoints()) {
+      List<TCPMasterConnection> evicted = new ArrayList<TCPMasterConnection>();
+      synchronized (ep) {
+        //idle list is ordered most recently used first
+        for (Iterator<IdleConnection> iter = ep.m_Idle.descendingIterator();
+             iter.hasNext();) {
+          IdleConnection idle = iter.next();
+          if (ep.m_Idle.size() <= m_MinIdle
+              || m_MaxIdleTime <= 0
+              || now - idle.m_Since < m_MaxIdleTime) {
+            break;
+          }
+          iter.remove();
+          ep.m_Total--;
+          evicted.add(idle.m_Connection);
+        }
+        if (!evicted.isEmpty()) {
+          ep.notifyAll();
+        }
+      }
+      for (TCPMasterConnection con : evicted) {
+        con.close();
+      }
+      ensureMinIdle(ep);
+    }
+  }//evict
+
+  /**
+   * Closes this pool and all idle connections. Borrowed connections
+   * are closed when they are returned.
+   */
+  public void close() {
+    synchronized (this) {
+      m_Closed = true;
+      if (m_Evictor != null) {
+        m_Evictor.cancel();
+        m_Evictor = null;
+      }
+    }
+    for (Endpoint ep : getEndpoints()) {
+      synchronized (ep) {
+        for (IdleConnection idle : ep.m_Idle) {
+          idle.m_Connection.close();
+          ep.m_Total--;
+        }
+        ep.m_Idle.clear();
+        ep.notifyAll();
+      }
+    }
+  }//close
+
+  /**
+   * Opens a new connection to the given endpoint.
+   *
+   * @param ep      the endpoint to connect to.
+   * @param timeout the longest time to wait for the connection to be
+   *                established in milliseconds, in addition to the timeout
+   *                of the pool, or 0 for none.
+   * @return a connected <tt>TCPMasterConnection</tt>.
+   * @throws ModbusIOException if connecting fails.
+   */
+  private TCPMasterConnection openConnection(Endpoint ep, int timeout)
+      throws ModbusIOException {
+    TCPMasterConnection con = new TCPMasterConnection(ep.m_Address);
+    con.setPort(ep.m_Port);
+    con.setTimeout(m_Timeout);
+    if (timeout == 0 || (m_Timeout > 0 && m_Timeout < timeout)) {
+      timeout = m_Timeout;
+    }
+    try {
+      con.connect(timeout);
+    } catch (Exception ex) {
+      throw new ModbusIOException("Connecting to " + ep.m_Key + " failed.");
+    }
+    return con;
+  }//openConnection
+
+  /**
+   * Opens idle connections until the endpoint has the
+   * minimum number of idle connections.
+   *
+   * @param ep the endpoint to be filled.
+   */
+  private void ensureMinIdle(Endpoint ep) {
+    for (; ;) {
+      synchronized (ep) {
+        if (m_Closed || ep.m_Idle.size() >= m_MinIdle || ep.m_Total >= m_MaxTotal) {
+          return;
+        }
+        ep.m_Total++;
+      }
+      TCPMasterConnection con = null;
+      try {
+        con = openConnection(ep, 0);
+      } catch (ModbusIOException ex) {
+        if (Modbus.debug) ex.printStackTrace();
+      }
+      synchronized (ep) {
+        if (con == null) {
+          ep.m_Total--;
+          return;
+        }
+        ep.m_Idle.addLast(new IdleConnection(con));
+        ep.notify();
+      }
+    }
+  }//ensureMinIdle
+
+  /**
+   * Returns the endpoint for the given address and port,
+   * creating it if required.
+   *
+   * @param addr      the address of the slave.
+   * @param port      the port of the slave.
+   * @param borrowing true if a connection is about to be borrowed.
+   * @return the <tt>Endpoint</tt>.
+   */
+  private Endpoint getEndpoint(InetAddress addr, int port, boolean borrowing) {
+    String key = addr.getHostAddress() + ":" + port;
+    synchronized (this) {
+      if (m_Closed && borrowing) {
+        throw new IllegalStateException("Pool closed.");
+      }
+      Endpoint ep = m_Endpoints.get(key);
+      if (ep == null) {
+        ep = new Endpoint(key, addr, port);
+        m_Endpoints.put(key, ep);
+      }
+      if (m_Evictor == null && !m_Closed) {
+        m_Evictor = new Timer("TCPMasterConnectionPool-evictor", true);
+        m_Evictor.schedule(new TimerTask() {
+          public void run() {
+            evict();
+          }
+        }, EVICTION_INTERVAL, EVICTION_INTERVAL);
+      }
+      return ep;
+    }
+  }//getEndpoint
+
+  /**
+   * Returns a snapshot of all endpoints of this pool.
+   *
+   * @return a list of <tt>Endpoint</tt> instances.
+   */
+  private synchronized List<Endpoint> getEndpoints() {
+    return new ArrayList<Endpoint>(m_Endpoints.values());
+  }//getEndpoints
+
+  private static final long EVICTION_INTERVAL = 1000;
+
+  /**
+   * Inner class holding the connections of one endpoint.
+   */
+  private static class Endpoint {
+
+    private final String m_Key;
+    private final InetAddress m_Address;
+    private final int m_Port;
+    private final LinkedList<IdleConnection> m_Idle =
+        new LinkedList<IdleConnection>();
+    private int m_Total;
+
+    public Endpoint(String key, InetAddress addr, int port) {
+      m_Key = key;
+      m_Address = addr;
+      m_Port = port;
+    }//constructor
+
+  }//inner class Endpoint
+
+  /**
+   * Inner class holding an idle connection and the
+   * time it was returned.
+   */
+  private static class IdleConnection {
+
+    private final TCPMasterConnection m_Connection;
+    private final long m_Since;
+
+    public IdleConnection(TCPMasterConnection con) {
+      m_Connection = con;
+      m_Since = System.currentTimeMillis();
+    }//constructor
+
+  }//inner class IdleConnection
+
+}//class TCPMasterConnectionPool
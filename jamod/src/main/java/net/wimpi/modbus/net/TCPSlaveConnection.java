@@ -58,7 +58,7 @@ public class TCPSlaveConnection {
   /**
    * Closes this <tt>TCPSlaveConnection</tt>.
    */
-  public void close() {
+  public synchronized void close() {
     if(m_Connected) {
       try {
         m_ModbusTransport.close();
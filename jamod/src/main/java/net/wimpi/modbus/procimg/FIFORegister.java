@@ -0,0 +1,232 @@
+/***
+ * Copyright 2002-2010 jamod development team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***/
+
+package net.wimpi.modbus.procimg;
+
+/**
+ * Class implementing a FIFO queue of register values
+ * that is served by the function <i>read FIFO queue (FC 24)</i>.
+ * <p>
+ * The queue is placed in the process image at the address
+ * of its FIFO pointer; as a plain <tt>Register</tt> its value
+ * is the number of queued values, and writing it clears the queue.
+ * Values are kept in a bounded ring buffer of primitives;
+ * when it is full, <tt>offer()</tt> either refuses the new value
+ * or overwrites the oldest one.
+ * <p>
+ * As specified, a read hands over the queued values and leaves
+ * them queued, so that it can be repeated; a queue holding more
+ * than {@link #MAX_READ_COUNT} values is refused with an illegal
+ * value exception. The master removes the values by writing the
+ * pointer. A draining queue instead removes the values it hands
+ * over, at most {@link #MAX_READ_COUNT} per read, so a lost response
+ * loses them (see {@link #setDraining(boolean)}).
+ *
+ * @author Dieter Wimberger
+ * @version @version@ (@date@)
+ */
+public class FIFORegister
+    implements Register {
+
+  /**
+   * Defines the maximum number of values
+   * that can be read with a single request.
+   */
+  public static final int MAX_READ_COUNT = 31;
+
+  //instance attributes
+  private final short[] m_Values;
+  private int m_Head;
+  private int m_Size;
+  private boolean m_Overwriting;
+  private boolean m_Draining;
+  private long m_Dropped;
+
+  /**
+   * Constructs a new <tt>FIFORegister</tt> instance.
+   *
+   * @param capacity the maximum number of queued values.
+   */
+  public FIFORegister(int capacity) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("Capacity must be at least 1.");
+    }
+    m_Values = new short[capacity];
+  }//constructor
+
+  /**
+   * Returns the maximum number of queued values.
+   *
+   * @return the capacity as <tt>int</tt>.
+   */
+  public int getCapacity() {
+    return m_Values.length;
+  }//getCapacity
+
+  /**
+   * Sets the flag that controls whether a value offered
+   * to a full queue overwrites the oldest one.
+   *
+   * @param b true to overwrite, false to refuse the new value.
+   */
+  public synchronized void setOverwriting(boolean b) {
+    m_Overwriting = b;
+  }//setOverwriting
+
+  /**
+   * Tests if a value offered to a full queue
+   * overwrites the oldest one.
+   *
+   * @return true if overwriting, false otherwise.
+   */
+  public synchronized boolean isOverwriting() {
+    return m_Overwriting;
+  }//isOverwriting
+
+  /**
+   * Sets the flag that controls whether a read removes
+   * the values it hands over. Off by default.
+   *
+   * @param b true to remove the values read, false to keep
+   *          them queued until the pointer is written.
+   */
+  public synchronized void setDraining(boolean b) {
+    m_Draining = b;
+  }//setDraining
+
+  /**
+   * Tests if a read removes the values it hands over.
+   *
+   * @return true if draining, false otherwise.
+   */
+  public synchronized boolean isDraining() {
+    return m_Draining;
+  }//isDraining
+
+  /**
+   * Returns the number of values that were lost,
+   * either refused or overwritten.
+   *
+   * @return the number of lost values as <tt>long</tt>.
+   */
+  public synchronized long getDropped() {
+    return m_Dropped;
+  }//getDropped
+
+  /**
+   * Returns the number of queued values.
+   *
+   * @return the number of values as <tt>int</tt>.
+   */
+  public synchronized int size() {
+    return m_Size;
+  }//size
+
+  /**
+   * Appends a value to this queue.
+   *
+   * @param value the value as unsigned short (<tt>int</tt>).
+   * @return true if the value was queued, false if the queue is full.
+   */
+  public synchronized boolean offer(int value) {
+    if (m_Size == m_Values.length) {
+      m_Dropped++;
+      if (!m_Overwriting) {
+        return false;
+      }
+      m_Head = (m_Head + 1) % m_Values.length;
+      m_Size--;
+    }
+    m_Values[(m_Head + m_Size) % m_Values.length] = (short) value;
+    m_Size++;
+    return true;
+  }//offer
+
+  /**
+   * Removes all queued values.
+   */
+  public synchronized void clear() {
+    m_Head = 0;
+    m_Size = 0;
+  }//clear
+
+  /**
+   * Removes up to the given number of values from the head
+   * of this queue and stores them big-endian in the given array.
+   *
+   * @param dest   the <tt>byte[]</tt> receiving two bytes per value.
+   * @param offset the index of <tt>dest</tt> receiving the first byte.
+   * @param max    the maximum number of values to be removed.
+   * @return the number of values removed.
+   */
+  public synchronized int drain(byte[] dest, int offset, int max) {
+    int count = peek(dest, offset, max);
+    m_Head = (m_Head + count) % m_Values.length;
+    m_Size -= count;
+    return count;
+  }//drain
+
+  /**
+   * Copies up to the given number of values from the head
+   * of this queue big-endian into the given array, leaving
+   * them queued.
+   *
+   * @param dest   the <tt>byte[]</tt> receiving two bytes per value.
+   * @param offset the index of <tt>dest</tt> receiving the first byte.
+   * @param max    the maximum number of values to be copied.
+   * @return the number of values copied.
+   */
+  public synchronized int peek(byte[] dest, int offset, int max) {
+    int count = Math.min(max, m_Size);
+    int idx = m_Head;
+    for (int i = 0; i < count; i++) {
+      short v = m_Values[idx];
+      dest[offset++] = (byte) (v >> 8);
+      dest[offset++] = (byte) v;
+      idx = (idx + 1) % m_Values.length;
+    }
+    return count;
+  }//peek
+
+  public synchronized int getValue() {
+    return m_Size;
+  }//getValue
+
+  public synchronized int toUnsignedShort() {
+    return m_Size & 0xFFFF;
+  }//toUnsignedShort
+
+  public synchronized short toShort() {
+    return (short) m_Size;
+  }//toShort
+
+  public synchronized byte[] toBytes() {
+    return new byte[]{(byte) (m_Size >> 8), (byte) m_Size};
+  }//toBytes
+
+  public void setValue(int v) {
+    clear();
+  }//setValue
+
+  public void setValue(short s) {
+    clear();
+  }//setValue
+
+  public void setValue(byte[] bytes) {
+    clear();
+  }//setValue
+
+}//class FIFORegister
@@ -23,6 +23,12 @@ package net.wimpi.modbus.procimg;
  * The process image is understood as a shared
  * memory area used form communication between
  * slave and master or device side.
+ * <p>
+ * Requests writing registers (function codes 6, 16, 22 and 23)
+ * modify the image while holding its monitor, so that a masked write
+ * or a write followed by a read is atomic with respect to all other
+ * register writes. Device side code modifying registers based on
+ * their current values should synchronize on the image as well.
  *
  * @author Dieter Wimberger
  * @version @version@ (@date@)
@@ -0,0 +1,289 @@
+/***
+ * Copyright 2002-2010 jamod development team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***/
+
+package net.wimpi.modbus.util;
+
+import net.wimpi.modbus.procimg.Register;
+
+/**
+ * Helper class that provides bulk conversions between blocks
+ * of register values and typed primitive arrays.
+ * <p>
+ * Register blocks are given as <tt>int[]</tt> holding one unsigned
+ * 16 bit value per register, as obtained from
+ * <tt>ReadMultipleRegistersResponse.getRegisterValues(int[], int)</tt>.
+ * Values spanning several registers are assembled according to
+ * one of the orders below, where A denotes the most significant
+ * byte of a 32 bit value:
+ * <ul>
+ * <li><tt>ABCD</tt>: big-endian, as used by {@link ModbusUtil}</li>
+ * <li><tt>CDAB</tt>: least significant word first</li>
+ * <li><tt>BADC</tt>: bytes swapped within each word</li>
+ * <li><tt>DCBA</tt>: little-endian</li>
+ * </ul>
+ * 64 bit values follow the same scheme over four registers.
+ * None of the methods allocate.
+ *
+ * @author Dieter Wimberger
+ * @version @version@ (@date@)
+ */
+public final class RegisterCodec {
+
+  /**
+   * Defines big-endian byte and word order.
+   */
+  public static final int ABCD = 0;
+
+  /**
+   * Defines big-endian byte order with the least
+   * significant word first.
+   */
+  public static final int CDAB = 1;
+
+  /**
+   * Defines the most significant word first with the
+   * bytes of each word swapped.
+   */
+  public static final int BADC = 2;
+
+  /**
+   * Defines little-endian byte and word order.
+   */
+  public static final int DCBA = 3;
+
+  private RegisterCodec() {
+  }//constructor
+
+  /**
+   * Decodes 32 bit integers from a block of registers.
+   *
+   * @param regs   the register values.
+   * @param regoff the index of the first register.
+   * @param dest   the array receiving the values.
+   * @param off    the index of <tt>dest</tt> receiving the first value.
+   * @param count  the number of values, each taking two registers.
+   * @param order  one of <tt>ABCD</tt>, <tt>CDAB</tt>, <tt>BADC</tt> or <tt>DCBA</tt>.
+   */
+  public static void decodeInts(int[] regs, int regoff, int[] dest, int off,
+                                int count, int order) {
+    checkOrder(order);
+    for (int i = 0; i < count; i++) {
+      dest[off + i] = (int) decode(regs, regoff + i * 2, 2, order);
+    }
+  }//decodeInts
+
+  /**
+   * Decodes 32 bit unsigned integers from a block of registers.
+   *
+   * @param regs   the register values.
+   * @param regoff the index of the first register.
+   * @param dest   the array receiving the values.
+   * @param off    the index of <tt>dest</tt> receiving the first value.
+   * @param count  the number of values, each taking two registers.
+   * @param order  one of <tt>ABCD</tt>, <tt>CDAB</tt>, <tt>BADC</tt> or <tt>DCBA</tt>.
+   */
+  public static void decodeUnsignedInts(int[] regs, int regoff, long[] dest, int off,
+                                        int count, int order) {
+    checkOrder(order);
+    for (int i = 0; i < count; i++) {
+      dest[off + i] = decode(regs, regoff + i * 2, 2, order);
+    }
+  }//decodeUnsignedInts
+
+  /**
+   * Decodes 64 bit integers from a block of registers.
+   *
+   * @param regs   the register values.
+   * @param regoff the index of the first register.
+   * @param dest   the array receiving the values.
+   * @param off    the index of <tt>dest</tt> receiving the first value.
+   * @param count  the number of values, each taking four registers.
+   * @param order  one of <tt>ABCD</tt>, <tt>CDAB</tt>, <tt>BADC</tt> or <tt>DCBA</tt>.
+   */
+  public static void decodeLongs(int[] regs, int regoff, long[] dest, int off,
+                                 int count, int order) {
+    checkOrder(order);
+    for (int i = 0; i < count; i++) {
+      dest[off + i] = decode(regs, regoff + i * 4, 4, order);
+    }
+  }//decodeLongs
+
+  /**
+   * Decodes IEEE 754 single precision values from a block of registers.
+   *
+   * @param regs   the register values.
+   * @param regoff the index of the first register.
+   * @param dest   the array receiving the values.
+   * @param off    the index of <tt>dest</tt> receiving the first value.
+   * @param count  the number of values, each taking two registers.
+   * @param order  one of <tt>ABCD</tt>, <tt>CDAB</tt>, <tt>BADC</tt> or <tt>DCBA</tt>.
+   */
+  public static void decodeFloats(int[] regs, int regoff, float[] dest, int off,
+                                  int count, int order) {
+    checkOrder(order);
+    for (int i = 0; i < count; i++) {
+      dest[off + i] = Float.intBitsToFloat((int) decode(regs, regoff + i * 2, 2, order));
+    }
+  }//decodeFloats
+
+  /**
+   * Decodes IEEE 754 double precision values from a block of registers.
+   *
+   * @param regs   the register values.
+   * @param regoff the index of the first register.
+   * @param dest   the array receiving the values.
+   * @param off    the index of <tt>dest</tt> receiving the first value.
+   * @param count  the number of values, each taking four registers.
+   * @param order  one of <tt>ABCD</tt>, <tt>CDAB</tt>, <tt>BADC</tt> or <tt>DCBA</tt>.
+   */
+  public static void decodeDoubles(int[] regs, int regoff, double[] dest, int off,
+                                   int count, int order) {
+    checkOrder(order);
+    for (int i = 0; i < count; i++) {
+      dest[off + i] = Double.longBitsToDouble(decode(regs, regoff + i * 4, 4, order));
+    }
+  }//decodeDoubles
+
+  /**
+   * Encodes 32 bit integers into a block of registers.
+   *
+   * @param src    the values to be encoded.
+   * @param off    the index of the first value.
+   * @param count  the number of values, each taking two registers.
+   * @param order  one of <tt>ABCD</tt>, <tt>CDAB</tt>, <tt>BADC</tt> or <tt>DCBA</tt>.
+   * @param regs   the array receiving the register values.
+   * @param regoff the index of the first register.
+   */
+  public static void encodeInts(int[] src, int off, int count, int order,
+                                int[] regs, int regoff) {
+    checkOrder(order);
+    for (int i = 0; i < count; i++) {
+      encode(src[off + i] & 0xffffffffL, 2, order, regs, regoff + i * 2);
+    }
+  }//encodeInts
+
+  /**
+   * Encodes 64 bit integers into a block of registers.
+   *
+   * @param src    the values to be encoded.
+   * @param off    the index of the first value.
+   * @param count  the number of values, each taking four registers.
+   * @param order  one of <tt>ABCD</tt>, <tt>CDAB</tt>, <tt>BADC</tt> or <tt>DCBA</tt>.
+   * @param regs   the array receiving the register values.
+   * @param regoff the index of the first register.
+   */
+  public static void encodeLongs(long[] src, int off, int count, int order,
+                                 int[] regs, int regoff) {
+    checkOrder(order);
+    for (int i = 0; i < count; i++) {
+      encode(src[off + i], 4, order, regs, regoff + i * 4);
+    }
+  }//encodeLongs
+
+  /**
+   * Encodes single precision values into a block of registers.
+   *
+   * @param src    the values to be encoded.
+   * @param off    the index of the first value.
+   * @param count  the number of values, each taking two registers.
+   * @param order  one of <tt>ABCD</tt>, <tt>CDAB</tt>, <tt>BADC</tt> or <tt>DCBA</tt>.
+   * @param regs   the array receiving the register values.
+   * @param regoff the index of the first register.
+   */
+  public static void encodeFloats(float[] src, int off, int count, int order,
+                                  int[] regs, int regoff) {
+    checkOrder(order);
+    for (int i = 0; i < count; i++) {
+      encode(Float.floatToIntBits(src[off + i]) & 0xffffffffL, 2, order, regs, regoff + i * 2);
+    }
+  }//encodeFloats
+
+  /**
+   * Encodes double precision values into a block of registers.
+   *
+   * @param src    the values to be encoded.
+   * @param off    the index of the first value.
+   * @param count  the number of values, each taking four registers.
+   * @param order  one of <tt>ABCD</tt>, <tt>CDAB</tt>, <tt>BADC</tt> or <tt>DCBA</tt>.
+   * @param regs   the array receiving the register values.
+   * @param regoff the index of the first register.
+   */
+  public static void encodeDoubles(double[] src, int off, int count, int order,
+                                   int[] regs, int regoff) {
+    checkOrder(order);
+    for (int i = 0; i < count; i++) {
+      encode(Double.doubleToLongBits(src[off + i]), 4, order, regs, regoff + i * 4);
+    }
+  }//encodeDoubles
+
+  /**
+   * Sets the given register values on the given registers,
+   * e.g. to reuse the <tt>Register[]</tt> of a
+   * <tt>WriteMultipleRegistersRequest</tt> for every write.
+   *
+   * @param regs   the register values.
+   * @param regoff the index of the first register value.
+   * @param dest   the registers to be set.
+   * @param off    the index of the first register to be set.
+   * @param count  the number of registers.
+   */
+  public static void setValues(int[] regs, int regoff, Register[] dest, int off,
+                               int count) {
+    for (int i = 0; i < count; i++) {
+      dest[off + i].setValue(regs[regoff + i]);
+    }
+  }//setValues
+
+  /**
+   * Assembles a value from the given number of registers.
+   */
+  private static long decode(int[] regs, int off, int words, int order) {
+    boolean reverse = (order == CDAB || order == DCBA);
+    boolean swap = (order == BADC || order == DCBA);
+    long v = 0;
+    for (int w = 0; w < words; w++) {
+      int word = regs[off + (reverse ? words - 1 - w : w)] & 0xffff;
+      if (swap) {
+        word = ((word & 0xff) << 8) | (word >> 8);
+      }
+      v = (v << 16) | word;
+    }
+    return v;
+  }//decode
+
+  /**
+   * Splits a value into the given number of registers.
+   */
+  private static void encode(long v, int words, int order, int[] regs, int off) {
+    boolean reverse = (order == CDAB || order == DCBA);
+    boolean swap = (order == BADC || order == DCBA);
+    for (int w = words - 1; w >= 0; w--) {
+      int word = (int) (v & 0xffff);
+      if (swap) {
+        word = ((word & 0xff) << 8) | (word >> 8);
+      }
+      regs[off + (reverse ? words - 1 - w : w)] = word;
+      v >>>= 16;
+    }
+  }//encode
+
+  private static void checkOrder(int order) {
+    if (order < ABCD || order > DCBA) {
+      throw new IllegalArgumentException("Invalid word order " + order + ".");
+    }
+  }//checkOrder
+
+}//class RegisterCodec